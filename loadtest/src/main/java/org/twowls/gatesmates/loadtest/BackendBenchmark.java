@@ -0,0 +1,241 @@
+/*
+ * Copyright (c) 2016 Twowls.org.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.twowls.gatesmates.loadtest;
+
+import org.twowls.gatesmates.registry.RegistryConst;
+import org.twowls.gatesmates.util.AdvApi32Backend;
+import org.twowls.gatesmates.util.ForeignBackend;
+import org.twowls.gatesmates.util.Gates;
+
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>Compares the cost of a single system call through JNA ({@link AdvApi32Backend#NATIVE})
+ * and through the Foreign Function and Memory API ({@link ForeignBackend}).</p>
+ *
+ * <p>Both backends call the same library: the system {@code Advapi32} or, with
+ * {@code --library}, any library having the same functions, such as the shim built
+ * from {@code util/src/test/c/advapi32_shim.c}. Each operation is called directly on
+ * the backend in a tight loop; after a warm-up round the best of the measured rounds
+ * is reported in nanoseconds per call. A key {@value #BENCHMARK_PATH} is created under
+ * {@code HKEY_CURRENT_USER} for the time of the run.</p>
+ *
+ * <p>The foreign backend needs Java 22 and {@code --enable-native-access=ALL-UNNAMED}.</p>
+ *
+ * @author bubo &lt;bubo@twowls.org&gt;
+ */
+public class BackendBenchmark implements RegistryConst {
+
+    /** Path of the key called by the benchmark, relative to {@code HKEY_CURRENT_USER} */
+    public static final String BENCHMARK_PATH = "Software\\Gatesmates\\Benchmark";
+
+    private static final String VALUE_NAME = "Value";
+
+    private static final String USAGE = String.join(System.lineSeparator(),
+            "Usage: java -cp gatesmates-loadtest.jar:lib/* " + BackendBenchmark.class.getName() + " [options]",
+            "  --library PATH     library serving the calls (default Advapi32, Windows only)",
+            "  --calls N          calls per round (default 200000)",
+            "  --rounds N         measured rounds, the best one reported (default 5)");
+
+    private int calls = 200_000;
+    private int rounds = 5;
+    private volatile int sink;
+
+    public static void main(String[] args) {
+        BackendBenchmark benchmark = new BackendBenchmark();
+        String library = null;
+        try {
+            for (int i = 0; i < args.length; i++) {
+                String option = args[i];
+                if ("--help".equals(option) || "-h".equals(option)) {
+                    System.out.println(USAGE);
+                    return;
+                }
+                if (i + 1 == args.length) {
+                    throw new IllegalArgumentException("Missing argument of " + option);
+                }
+                String value = args[++i];
+                switch (option) {
+                    case "--library":
+                        library = value;
+                        break;
+                    case "--calls":
+                        benchmark.calls = Integer.parseInt(value);
+                        break;
+                    case "--rounds":
+                        benchmark.rounds = Integer.parseInt(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + option);
+                }
+            }
+            if (benchmark.calls < 1 || benchmark.rounds < 1) {
+                throw new IllegalArgumentException("Calls and rounds must be positive");
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+
+        if (library != null) {
+            // must be set before the JNA functions get registered
+            System.setProperty(Gates.ADVAPI32_LIBRARY_PROPERTY, library);
+        } else if (!Gates.isAvailable()) {
+            System.err.println("Registry is not available, use --library");
+            System.exit(2);
+        }
+
+        Map<String, AdvApi32Backend> backends = new LinkedHashMap<>();
+        backends.put("JNA", AdvApi32Backend.NATIVE);
+        if (ForeignBackend.isSupported()) {
+            backends.put("FFM", ForeignBackend.forLibrary(library == null ? "Advapi32" : library));
+        } else {
+            System.out.println("Foreign function calls not supported by Java " + Runtime.version().feature());
+        }
+
+        System.out.printf("%d calls per round, best of %d rounds, ns/call%n%n", benchmark.calls, benchmark.rounds);
+        System.out.printf("%-12s", "backend");
+        for (String operation : Operations.NAMES) {
+            System.out.printf("%14s", operation);
+        }
+        System.out.println();
+        for (Map.Entry<String, AdvApi32Backend> entry : backends.entrySet()) {
+            System.out.printf("%-12s", entry.getKey());
+            for (double nanos : benchmark.run(entry.getValue())) {
+                System.out.printf("%14.1f", nanos);
+            }
+            System.out.println();
+        }
+    }
+
+    /**
+     * <p>Measures all operations on a backend.</p>
+     * @param backend the backend to call
+     * @return nanoseconds per call of each of {@link Operations#NAMES}
+     */
+    double[] run(AdvApi32Backend backend) {
+        long[] handle = new long[1];
+        check(backend.RegCreateKeyExA(HKEY_CURRENT_USER, BENCHMARK_PATH, 0, null, REG_OPTION_NON_VOLATILE,
+                KEY_READ | KEY_WRITE, null, handle, new int[1]), "create key");
+        int key = (int) handle[0];
+        try {
+            byte[] data = "benchmark\0".getBytes(StandardCharsets.US_ASCII);
+            check(backend.RegSetValueExA(key, VALUE_NAME, 0, REG_SZ, data, data.length), "set value");
+
+            Operations operations = new Operations(backend, key, data.length);
+            double[] result = new double[Operations.NAMES.length];
+            for (int i = 0; i < result.length; i++) {
+                check(operations.call(i), Operations.NAMES[i]);
+                result[i] = measure(operations, i);
+            }
+            return result;
+        } finally {
+            backend.RegDeleteValueA(key, VALUE_NAME);
+            backend.RegCloseKey(key);
+            backend.RegDeleteKeyA(HKEY_CURRENT_USER, BENCHMARK_PATH);
+        }
+    }
+
+    private double measure(Operations operations, int operation) {
+        long best = Long.MAX_VALUE;
+        // the first round warms up
+        for (int round = 0; round <= rounds; round++) {
+            int errors = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < calls; i++) {
+                errors |= operations.call(operation);
+            }
+            long elapsed = System.nanoTime() - start;
+            sink += errors;
+            if (round > 0) {
+                best = Math.min(best, elapsed);
+            }
+        }
+        return (double) best / calls;
+    }
+
+    private static void check(int err, String operation) {
+        if (err != ERROR_SUCCESS) {
+            throw new IllegalStateException("Failed to " + operation + ", error " + err);
+        }
+    }
+
+    /** Measured operations with their preallocated buffers */
+    private static final class Operations {
+        static final String[] NAMES = {"open+close", "query value", "enum value", "query info"};
+
+        private final AdvApi32Backend backend;
+        private final int key;
+        private final long[] handle = new long[1];
+        private final int[] type = new int[1];
+        private final int[] size = new int[1];
+        private final int[] nameSize = new int[1];
+        private final int[] count = new int[1];
+        private final long[] lastWriteTime = new long[1];
+        private final byte[] name = new byte[MAX_KEY_NAME_LENGTH + 1];
+        private final byte[] data;
+
+        Operations(AdvApi32Backend backend, int key, int dataLength) {
+            this.backend = backend;
+            this.key = key;
+            this.data = new byte[dataLength];
+        }
+
+        /**
+         * @param operation index into {@link #NAMES}
+         * @return error code of the call
+         */
+        int call(int operation) {
+            switch (operation) {
+                case 0:
+                    return openClose();
+                case 1:
+                    return queryValue();
+                case 2:
+                    return enumValue();
+                default:
+                    return queryInfo();
+            }
+        }
+
+        int openClose() {
+            int err = backend.RegOpenKeyExA(HKEY_CURRENT_USER, BENCHMARK_PATH, REG_OPTION_NON_VOLATILE,
+                    KEY_READ, handle);
+            return (err != ERROR_SUCCESS ? err : backend.RegCloseKey((int) handle[0]));
+        }
+
+        int queryValue() {
+            size[0] = data.length;
+            return backend.RegQueryValueExA(key, VALUE_NAME, null, type, data, size);
+        }
+
+        int enumValue() {
+            nameSize[0] = name.length;
+            size[0] = data.length;
+            return backend.RegEnumValueA(key, 0, name, nameSize, null, type, data, size);
+        }
+
+        int queryInfo() {
+            return backend.RegQueryInfoKeyA(key, null, null, null, count, null, null, count, null, null,
+                    null, lastWriteTime);
+        }
+    }
+}
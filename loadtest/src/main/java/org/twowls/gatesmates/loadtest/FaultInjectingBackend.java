@@ -0,0 +1,183 @@
+/*
+ * Copyright (c) 2016 Twowls.org.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.twowls.gatesmates.loadtest;
+
+import org.twowls.gatesmates.registry.RegistryConst;
+import org.twowls.gatesmates.util.AdvApi32Backend;
+
+import java.util.Objects;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <p>Backend wrapper adding latency and failures to every call of the target backend,
+ * standing in for a real system under load.</p>
+ *
+ * <p>Each call is delayed by the configured base latency plus a uniformly distributed
+ * jitter. Delays shorter than {@link #SPIN_THRESHOLD_NANOS} are spun, as parking the
+ * thread would overshoot them considerably; longer ones park the calling thread.</p>
+ *
+ * <p>Calls opening keys, reading and writing data fail with the configured error
+ * code at the configured rate, without reaching the target. {@code RegCloseKey} is
+ * never failed, so that injected errors do not leak handles of the target.</p>
+ *
+ * @author bubo &lt;bubo@twowls.org&gt;
+ */
+public class FaultInjectingBackend implements AdvApi32Backend, RegistryConst {
+
+    /** Delays shorter than this are spun rather than parked */
+    public static final long SPIN_THRESHOLD_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+    private final AdvApi32Backend target;
+    private final long latencyNanos;
+    private final long jitterNanos;
+    private final double errorRate;
+    private final int errorCode;
+
+    /**
+     * <p>Creates a new instance of {@link FaultInjectingBackend}.</p>
+     * @param target the backend serving calls that are not failed
+     * @param latencyNanos base latency added to each call
+     * @param jitterNanos upper bound of random latency added on top of base latency
+     * @param errorRate probability of a call failing, from {@code 0.0} to {@code 1.0}
+     * @param errorCode system error code returned by failed calls
+     */
+    public FaultInjectingBackend(AdvApi32Backend target, long latencyNanos, long jitterNanos,
+                                 double errorRate, int errorCode) {
+        if (latencyNanos < 0 || jitterNanos < 0) {
+            throw new IllegalArgumentException("Latency must not be negative");
+        }
+        if (errorRate < 0.0 || errorRate > 1.0) {
+            throw new IllegalArgumentException("Error rate must be between 0 and 1");
+        }
+        if (ERROR_SUCCESS == errorCode) {
+            throw new IllegalArgumentException("Injected error code must denote an error");
+        }
+        this.target = Objects.requireNonNull(target, "Target backend must not be null");
+        this.latencyNanos = latencyNanos;
+        this.jitterNanos = jitterNanos;
+        this.errorRate = errorRate;
+        this.errorCode = errorCode;
+    }
+
+    @Override
+    public int RegOpenKeyExA(int handle, String path, int options, int access, long[] result) {
+        delay();
+        return (fails() ? errorCode : target.RegOpenKeyExA(handle, path, options, access, result));
+    }
+
+    @Override
+    public int RegQueryValueExA(int handle, String value, int[] ignore, int[] type, byte[] data, int[] size) {
+        delay();
+        return (fails() ? errorCode : target.RegQueryValueExA(handle, value, ignore, type, data, size));
+    }
+
+    @Override
+    public int RegEnumKeyExA(int handle, int index, byte[] name, int[] nameSize, int[] ignore,
+                             byte[] className, int[] classNameSize, long[] lastWriteTime) {
+        delay();
+        return (fails() ? errorCode : target.RegEnumKeyExA(handle, index, name, nameSize, ignore,
+                className, classNameSize, lastWriteTime));
+    }
+
+    @Override
+    public int RegEnumValueA(int handle, int index, byte[] name, int[] nameSize, int[] ignore,
+                             int[] type, byte[] data, int[] size) {
+        delay();
+        return (fails() ? errorCode : target.RegEnumValueA(handle, index, name, nameSize, ignore,
+                type, data, size));
+    }
+
+    @Override
+    public int RegQueryInfoKeyA(int handle, byte[] className, int[] classNameSize, int[] ignore,
+                                int[] subKeys, int[] maxSubKeyLen, int[] maxClassLen,
+                                int[] values, int[] maxValueNameLen, int[] maxValueLen,
+                                int[] securityDescriptor, long[] lastWriteTime) {
+        delay();
+        return (fails() ? errorCode : target.RegQueryInfoKeyA(handle, className, classNameSize, ignore,
+                subKeys, maxSubKeyLen, maxClassLen, values, maxValueNameLen, maxValueLen,
+                securityDescriptor, lastWriteTime));
+    }
+
+    @Override
+    public int RegCreateKeyExA(int handle, String path, int reserved, String className, int options,
+                               int access, int[] securityAttributes, long[] result, int[] disposition) {
+        delay();
+        return (fails() ? errorCode : target.RegCreateKeyExA(handle, path, reserved, className, options,
+                access, securityAttributes, result, disposition));
+    }
+
+    @Override
+    public int RegSetValueExA(int handle, String value, int reserved, int type, byte[] data, int size) {
+        delay();
+        return (fails() ? errorCode : target.RegSetValueExA(handle, value, reserved, type, data, size));
+    }
+
+    @Override
+    public int RegDeleteKeyA(int handle, String path) {
+        delay();
+        return (fails() ? errorCode : target.RegDeleteKeyA(handle, path));
+    }
+
+    @Override
+    public int RegDeleteValueA(int handle, String value) {
+        delay();
+        return (fails() ? errorCode : target.RegDeleteValueA(handle, value));
+    }
+
+    @Override
+    public int RegNotifyChangeKeyValue(int handle, boolean watchSubtree, int notifyFilter,
+                                       int event, boolean asynchronous) {
+        delay();
+        return (fails() ? errorCode
+                : target.RegNotifyChangeKeyValue(handle, watchSubtree, notifyFilter, event, asynchronous));
+    }
+
+    @Override
+    public int RegCloseKey(int handle) {
+        delay();
+        return target.RegCloseKey(handle);
+    }
+
+    private boolean fails() {
+        return errorRate > 0.0 && ThreadLocalRandom.current().nextDouble() < errorRate;
+    }
+
+    private void delay() {
+        long nanos = latencyNanos;
+        if (jitterNanos > 0) {
+            nanos += ThreadLocalRandom.current().nextLong(jitterNanos + 1);
+        }
+        if (nanos == 0) {
+            return;
+        }
+
+        long deadline = System.nanoTime() + nanos;
+        if (nanos < SPIN_THRESHOLD_NANOS) {
+            while (System.nanoTime() - deadline < 0) {
+                Thread.onSpinWait();
+            }
+        } else {
+            long remaining;
+            while ((remaining = deadline - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(remaining);
+            }
+        }
+    }
+}
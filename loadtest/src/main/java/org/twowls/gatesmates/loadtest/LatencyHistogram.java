@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2016 Twowls.org.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.twowls.gatesmates.loadtest;
+
+/**
+ * <p>Histogram of latencies in nanoseconds with logarithmic buckets, each power of
+ * two being split into linear sub buckets. Values below {@value #SUB_BUCKETS} are
+ * recorded exactly, larger ones with relative error below 2/{@value #SUB_BUCKETS},
+ * using a fixed amount of memory whatever the number of samples.</p>
+ *
+ * <p>Instances are not thread safe; each load generating thread records into its own
+ * histogram and histograms are {@link #add(LatencyHistogram) merged} afterwards.</p>
+ *
+ * @author bubo &lt;bubo@twowls.org&gt;
+ */
+public final class LatencyHistogram {
+
+    /** Range of exactly recorded values; twice the number of sub buckets per power of two */
+    static final int SUB_BUCKETS = 64;
+
+    private static final int SUB_BITS = Integer.numberOfTrailingZeros(SUB_BUCKETS);
+    private static final int BUCKET_COUNT = (64 - SUB_BITS + 1) * (SUB_BUCKETS >> 1);
+
+    private final long[] counts = new long[BUCKET_COUNT];
+    private long totalCount;
+    private long max;
+
+    /**
+     * @param nanos latency to record, negative values are recorded as zero
+     */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts[indexOf(value)]++;
+        totalCount++;
+        if (value > max) {
+            max = value;
+        }
+    }
+
+    /**
+     * <p>Adds all samples of another histogram to this one.</p>
+     * @param other histogram to add
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] += other.counts[i];
+        }
+        totalCount += other.totalCount;
+        max = Math.max(max, other.max);
+    }
+
+    /**
+     * @return number of recorded samples
+     */
+    public long getTotalCount() {
+        return totalCount;
+    }
+
+    /**
+     * @return the largest recorded latency, exactly
+     */
+    public long getMax() {
+        return max;
+    }
+
+    /**
+     * <p>Returns latency at the given percentile, that is the upper bound of the
+     * bucket holding the sample of that rank.</p>
+     * @param percentile percentile from {@code 0.0} to {@code 100.0}
+     * @return latency in nanoseconds, or zero if nothing was recorded
+     */
+    public long getValueAtPercentile(double percentile) {
+        if (percentile < 0.0 || percentile > 100.0) {
+            throw new IllegalArgumentException("Percentile must be between 0 and 100");
+        }
+        if (totalCount == 0) {
+            return 0;
+        }
+
+        long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * totalCount));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(max, highestValueOf(i));
+            }
+        }
+        return max;
+    }
+
+    static int indexOf(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        // value >>> shift falls into [SUB_BUCKETS / 2, SUB_BUCKETS)
+        int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BITS - 1);
+        int half = SUB_BUCKETS >> 1;
+        return (shift + 1) * half + (int) (value >>> shift) - half;
+    }
+
+    static long highestValueOf(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        int half = SUB_BUCKETS >> 1;
+        int shift = index / half - 1;
+        long mantissa = index % half + half;
+        return ((mantissa + 1) << shift) - 1;
+    }
+}
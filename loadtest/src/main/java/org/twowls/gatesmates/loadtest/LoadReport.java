@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2016 Twowls.org.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.twowls.gatesmates.loadtest;
+
+import java.io.PrintStream;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Results of a {@link LoadTest} run: latency histograms and error counts per
+ * operation, collected during the measured period.</p>
+ *
+ * @author bubo &lt;bubo@twowls.org&gt;
+ */
+public final class LoadReport {
+
+    private final Map<Operation, LatencyHistogram> latencies = new EnumMap<>(Operation.class);
+    private final Map<Operation, Long> errors = new EnumMap<>(Operation.class);
+    private final Map<Integer, Long> errorCodes = new TreeMap<>();
+    private final LatencyHistogram total = new LatencyHistogram();
+    private long elapsedNanos;
+    private int leakedHandles;
+
+    LoadReport() {
+    }
+
+    void add(Operation operation, LatencyHistogram histogram, long errorCount) {
+        latencies.computeIfAbsent(operation, o -> new LatencyHistogram()).add(histogram);
+        errors.merge(operation, errorCount, Long::sum);
+        total.add(histogram);
+    }
+
+    void addErrorCode(int errorCode, long count) {
+        errorCodes.merge(errorCode, count, Long::sum);
+    }
+
+    void setElapsedNanos(long elapsedNanos) {
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    void setLeakedHandles(int leakedHandles) {
+        this.leakedHandles = leakedHandles;
+    }
+
+    /**
+     * @param operation an operation
+     * @return latencies of the given operation, empty if it was not generated
+     */
+    public LatencyHistogram getLatencies(Operation operation) {
+        return latencies.getOrDefault(operation, new LatencyHistogram());
+    }
+
+    /**
+     * @return latencies of all operations
+     */
+    public LatencyHistogram getTotalLatencies() {
+        return total;
+    }
+
+    /**
+     * @param operation an operation
+     * @return number of failed executions of the given operation
+     */
+    public long getErrorCount(Operation operation) {
+        return errors.getOrDefault(operation, 0L);
+    }
+
+    /**
+     * @return numbers of failures by system error code
+     */
+    public Map<Integer, Long> getErrorCodes() {
+        return Collections.unmodifiableMap(errorCodes);
+    }
+
+    /**
+     * @return length of the measured period in nanoseconds
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * @return number of handles still open in the simulated registry after all threads finished
+     */
+    public int getLeakedHandles() {
+        return leakedHandles;
+    }
+
+    /**
+     * @return operations completed per second, failed ones included
+     */
+    public double getThroughput() {
+        return (elapsedNanos == 0 ? 0.0 : total.getTotalCount() * 1e9 / elapsedNanos);
+    }
+
+    /**
+     * <p>Prints a table of throughput and latency percentiles per operation.</p>
+     * @param out stream to print to
+     */
+    public void print(PrintStream out) {
+        out.printf("%-10s %12s %12s %10s %10s %10s %10s %10s%n",
+                "operation", "count", "ops/s", "errors", "p50 us", "p99 us", "p999 us", "max us");
+        for (Map.Entry<Operation, LatencyHistogram> entry : latencies.entrySet()) {
+            printRow(out, entry.getKey().label(), entry.getValue(), getErrorCount(entry.getKey()));
+        }
+        long errorCount = 0;
+        for (long count : errors.values()) {
+            errorCount += count;
+        }
+        printRow(out, "total", total, errorCount);
+
+        out.println();
+        out.printf("measured %.1f s, errors by code %s, leaked handles %d%n",
+                elapsedNanos / 1e9, errorCodes, leakedHandles);
+    }
+
+    private void printRow(PrintStream out, String label, LatencyHistogram histogram, long errorCount) {
+        out.printf("%-10s %12d %12.1f %10d %10.1f %10.1f %10.1f %10.1f%n", label,
+                histogram.getTotalCount(),
+                (elapsedNanos == 0 ? 0.0 : histogram.getTotalCount() * 1e9 / elapsedNanos),
+                errorCount,
+                micros(histogram.getValueAtPercentile(50.0)),
+                micros(histogram.getValueAtPercentile(99.0)),
+                micros(histogram.getValueAtPercentile(99.9)),
+                micros(histogram.getMax()));
+    }
+
+    private static double micros(long nanos) {
+        return nanos / (double) TimeUnit.MICROSECONDS.toNanos(1);
+    }
+}
@@ -0,0 +1,412 @@
+/*
+ * Copyright (c) 2016 Twowls.org.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.twowls.gatesmates.loadtest;
+
+import org.twowls.gatesmates.registry.Registry;
+import org.twowls.gatesmates.registry.RegistryConst;
+import org.twowls.gatesmates.registry.RegistryException;
+import org.twowls.gatesmates.registry.SimulatedBackend;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Generates concurrent load on {@link Registry} and measures throughput and latency
+ * of its operations.</p>
+ *
+ * <p>Registry calls are served by a {@link SimulatedBackend} populated with a number
+ * of keys, wrapped into a {@link FaultInjectingBackend}. Each thread runs a closed
+ * loop, picking operations according to the {@link WorkloadMix} and timing them
+ * through the public {@link Registry.Key} API. Operations are measured only after
+ * the warm-up period; since every thread waits for its previous operation to finish,
+ * reported latencies describe service time under the given concurrency rather than
+ * response time at a fixed arrival rate.</p>
+ *
+ * <p>The test replaces the backend of {@link Registry} for the time of a run and
+ * restores the system one afterwards.</p>
+ *
+ * <p>Run {@code java -jar gatesmates-loadtest.jar --help} for command line options.</p>
+ *
+ * @author bubo &lt;bubo@twowls.org&gt;
+ */
+public class LoadTest implements RegistryConst {
+
+    /** Path of the subtree holding generated keys, relative to {@code HKEY_LOCAL_MACHINE} */
+    public static final String BASE_PATH = "Software/Gatesmates/LoadTest";
+
+    /** Number of keys under each group key */
+    public static final int KEYS_PER_GROUP = 16;
+
+    private static final String NAME_VALUE = "Name";
+    private static final String SIZE_VALUE = "Size";
+
+    private static final String USAGE = String.join(System.lineSeparator(),
+            "Usage: java -jar gatesmates-loadtest.jar [options]",
+            "  --threads N        number of load generating threads (default 64)",
+            "  --duration SEC     length of the measured period (default 10)",
+            "  --warmup SEC       length of the warm-up period (default 2)",
+            "  --mix SPEC         weights of operations open, query, hotquery and enum",
+            "                     (default " + WorkloadMix.DEFAULT_SPEC + ")",
+            "  --keys N           number of keys in simulated registry (default 4096)",
+            "  --latency-us US    latency added to each system call (default 20)",
+            "  --jitter-us US     upper bound of random latency added on top (default 10)",
+            "  --error-rate P     probability of a system call failing (default 0.001)",
+            "  --error-code CODE  system error code of failed calls (default " + ERROR_ACCESS_DENIED + ")",
+            "  --help             print this message");
+
+    private int threads = 64;
+    private Duration duration = Duration.ofSeconds(10);
+    private Duration warmup = Duration.ofSeconds(2);
+    private WorkloadMix mix = WorkloadMix.parse(WorkloadMix.DEFAULT_SPEC);
+    private int keyCount = 4096;
+    private long latencyNanos = TimeUnit.MICROSECONDS.toNanos(20);
+    private long jitterNanos = TimeUnit.MICROSECONDS.toNanos(10);
+    private double errorRate = 0.001;
+    private int errorCode = ERROR_ACCESS_DENIED;
+
+    /**
+     * @param threads number of load generating threads, 64 by default
+     */
+    public void setThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("At least one thread is required");
+        }
+        this.threads = threads;
+    }
+
+    /**
+     * @param duration length of the measured period, 10 seconds by default
+     */
+    public void setDuration(Duration duration) {
+        if (duration.isNegative() || duration.isZero()) {
+            throw new IllegalArgumentException("Duration must be positive");
+        }
+        this.duration = duration;
+    }
+
+    /**
+     * @param warmup length of the warm-up period preceding measurements, 2 seconds by default
+     */
+    public void setWarmup(Duration warmup) {
+        if (warmup.isNegative()) {
+            throw new IllegalArgumentException("Warm-up must not be negative");
+        }
+        this.warmup = warmup;
+    }
+
+    /**
+     * @param mix relative weights of generated operations, {@link WorkloadMix#DEFAULT_SPEC} by default
+     */
+    public void setMix(WorkloadMix mix) {
+        this.mix = Objects.requireNonNull(mix, "Workload mix must not be null");
+    }
+
+    /**
+     * @param keyCount number of keys in simulated registry, 4096 by default
+     */
+    public void setKeyCount(int keyCount) {
+        if (keyCount < 1) {
+            throw new IllegalArgumentException("At least one key is required");
+        }
+        this.keyCount = keyCount;
+    }
+
+    /**
+     * @param latency latency added to each system call, 20 microseconds by default
+     */
+    public void setLatency(Duration latency) {
+        this.latencyNanos = latency.toNanos();
+    }
+
+    /**
+     * @param jitter upper bound of random latency added on top of base latency, 10 microseconds by default
+     */
+    public void setJitter(Duration jitter) {
+        this.jitterNanos = jitter.toNanos();
+    }
+
+    /**
+     * @param errorRate probability of a system call failing, 0.001 by default
+     */
+    public void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    /**
+     * @param errorCode system error code of failed calls, {@code ERROR_ACCESS_DENIED} by default
+     */
+    public void setErrorCode(int errorCode) {
+        this.errorCode = errorCode;
+    }
+
+    /**
+     * <p>Populates simulated registry, runs the load and collects results.</p>
+     * @return results of the run
+     * @throws InterruptedException if interrupted while waiting for load threads
+     */
+    public LoadReport run() throws InterruptedException {
+        SimulatedBackend simulated = new SimulatedBackend();
+        for (int i = 0; i < keyCount; i++) {
+            simulated.setStringValue(HKEY_LOCAL_MACHINE, keyPath(i), NAME_VALUE, "Item " + i);
+            simulated.setIntValue(HKEY_LOCAL_MACHINE, keyPath(i), SIZE_VALUE, i);
+        }
+
+        FaultInjectingBackend backend = new FaultInjectingBackend(simulated, latencyNanos, jitterNanos,
+                errorRate, errorCode);
+        Run run = new Run();
+        List<Worker> workers = new ArrayList<>();
+        List<Thread> started = new ArrayList<>();
+        Registry.useBackend(backend);
+        try {
+            for (int i = 0; i < threads; i++) {
+                Worker worker = new Worker(run);
+                Thread thread = new Thread(worker, "loadtest-" + i);
+                thread.setDaemon(true);
+                workers.add(worker);
+                started.add(thread);
+                thread.start();
+            }
+
+            run.ready.await();
+            TimeUnit.NANOSECONDS.sleep(warmup.toNanos());
+            long start = System.nanoTime();
+            run.phase = Run.MEASURING;
+            TimeUnit.NANOSECONDS.sleep(duration.toNanos());
+            run.phase = Run.STOPPED;
+            long elapsed = System.nanoTime() - start;
+
+            for (Thread thread : started) {
+                thread.join();
+            }
+
+            LoadReport report = new LoadReport();
+            report.setElapsedNanos(elapsed);
+            for (Worker worker : workers) {
+                for (Operation operation : worker.latencies.keySet()) {
+                    report.add(operation, worker.latencies.get(operation), worker.errors.get(operation)[0]);
+                }
+                worker.errorCodes.forEach(report::addErrorCode);
+            }
+            report.setLeakedHandles(simulated.openHandleCount());
+            return report;
+        } finally {
+            run.phase = Run.STOPPED;
+            Registry.useBackend(null);
+        }
+    }
+
+    /**
+     * <p>Runs the load test with options given on the command line and prints the report.</p>
+     * @param args command line options, see {@code --help}
+     * @throws InterruptedException if interrupted while running
+     */
+    public static void main(String[] args) throws InterruptedException {
+        LoadTest loadTest = new LoadTest();
+        try {
+            if (!configure(loadTest, args)) {
+                System.out.println(USAGE);
+                return;
+            }
+        } catch (IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println(USAGE);
+            System.exit(2);
+        }
+
+        System.out.printf("%d threads, %d s warm-up, %d s measured, mix %s%n", loadTest.threads,
+                loadTest.warmup.getSeconds(), loadTest.duration.getSeconds(), loadTest.mix);
+        System.out.printf("%d keys, latency %.1f us + up to %.1f us, error rate %s (code %d)%n%n",
+                loadTest.keyCount, loadTest.latencyNanos / 1e3, loadTest.jitterNanos / 1e3,
+                loadTest.errorRate, loadTest.errorCode);
+        loadTest.run().print(System.out);
+    }
+
+    /**
+     * @return {@code false} if usage was requested instead of a run
+     */
+    static boolean configure(LoadTest loadTest, String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            String option = args[i];
+            if ("--help".equals(option) || "-h".equals(option)) {
+                return false;
+            }
+            if (i + 1 == args.length) {
+                throw new IllegalArgumentException("Missing argument of " + option);
+            }
+
+            String value = args[++i];
+            try {
+                switch (option) {
+                    case "--threads":
+                        loadTest.setThreads(Integer.parseInt(value));
+                        break;
+                    case "--duration":
+                        loadTest.setDuration(seconds(value));
+                        break;
+                    case "--warmup":
+                        loadTest.setWarmup(seconds(value));
+                        break;
+                    case "--mix":
+                        loadTest.setMix(WorkloadMix.parse(value));
+                        break;
+                    case "--keys":
+                        loadTest.setKeyCount(Integer.parseInt(value));
+                        break;
+                    case "--latency-us":
+                        loadTest.setLatency(micros(value));
+                        break;
+                    case "--jitter-us":
+                        loadTest.setJitter(micros(value));
+                        break;
+                    case "--error-rate":
+                        loadTest.setErrorRate(Double.parseDouble(value));
+                        break;
+                    case "--error-code":
+                        loadTest.setErrorCode(Integer.parseInt(value));
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + option);
+                }
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid number '" + value + "' for " + option, e);
+            }
+        }
+
+        // fail early on values checked only when the backend is created
+        new FaultInjectingBackend(new SimulatedBackend(), loadTest.latencyNanos, loadTest.jitterNanos,
+                loadTest.errorRate, loadTest.errorCode);
+        return true;
+    }
+
+    private static Duration seconds(String value) {
+        return Duration.ofMillis(Math.round(Double.parseDouble(value) * 1000));
+    }
+
+    private static Duration micros(String value) {
+        return Duration.ofNanos(Math.round(Double.parseDouble(value) * 1000));
+    }
+
+    private static String groupPath(int group) {
+        return BASE_PATH + "/Group" + group;
+    }
+
+    private static String keyPath(int index) {
+        return groupPath(index / KEYS_PER_GROUP) + "/Key" + index;
+    }
+
+    /** State shared by threads of a single run */
+    private final class Run {
+        static final int WARMING_UP = 0;
+        static final int MEASURING = 1;
+        static final int STOPPED = 2;
+
+        final CountDownLatch ready = new CountDownLatch(threads);
+        volatile int phase = WARMING_UP;
+    }
+
+    /** Load generating loop of a single thread, recording into its own histograms */
+    private final class Worker implements Runnable {
+        final Run run;
+        final Map<Operation, LatencyHistogram> latencies = new EnumMap<>(Operation.class);
+        final Map<Operation, long[]> errors = new EnumMap<>(Operation.class);
+        final Map<Integer, Long> errorCodes = new HashMap<>();
+        Registry.Key hotKey;
+
+        Worker(Run run) {
+            this.run = run;
+            for (Operation operation : Operation.values()) {
+                if (mix.weightOf(operation) > 0) {
+                    latencies.put(operation, new LatencyHistogram());
+                    errors.put(operation, new long[1]);
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            run.ready.countDown();
+            try {
+                int phase;
+                while ((phase = run.phase) != Run.STOPPED) {
+                    Operation operation = mix.next(random);
+                    int result = ERROR_SUCCESS;
+                    long start = System.nanoTime();
+                    try {
+                        perform(operation, random);
+                    } catch (RegistryException e) {
+                        result = e.getErrorCode();
+                    }
+                    long latency = System.nanoTime() - start;
+
+                    if (phase == Run.MEASURING && run.phase == Run.MEASURING) {
+                        latencies.get(operation).record(latency);
+                        if (ERROR_SUCCESS != result) {
+                            errors.get(operation)[0]++;
+                            errorCodes.merge(result, 1L, Long::sum);
+                        }
+                    }
+                }
+            } finally {
+                if (hotKey != null) {
+                    try {
+                        hotKey.close();
+                    } catch (RegistryException e) {
+                        // reported as a leaked handle
+                    }
+                }
+            }
+        }
+
+        private void perform(Operation operation, ThreadLocalRandom random) throws RegistryException {
+            switch (operation) {
+                case OPEN:
+                    Registry.openKey(Registry.KEY_LOCAL_MACHINE, keyPath(random.nextInt(keyCount))).close();
+                    break;
+                case QUERY:
+                    try (Registry.Key key = Registry.openKey(Registry.KEY_LOCAL_MACHINE,
+                            keyPath(random.nextInt(keyCount)))) {
+                        key.queryStringValue(NAME_VALUE);
+                    }
+                    break;
+                case HOT_QUERY:
+                    if (hotKey == null) {
+                        hotKey = Registry.openKey(Registry.KEY_LOCAL_MACHINE, keyPath(random.nextInt(keyCount)));
+                    }
+                    hotKey.queryIntValue(SIZE_VALUE);
+                    break;
+                case ENUM:
+                    try (Registry.Key key = Registry.openKey(Registry.KEY_LOCAL_MACHINE,
+                            groupPath(random.nextInt((keyCount - 1) / KEYS_PER_GROUP + 1)))) {
+                        key.listSubKeys();
+                    }
+                    break;
+                default:
+                    throw new AssertionError("Unexpected operation " + operation);
+            }
+        }
+    }
+}
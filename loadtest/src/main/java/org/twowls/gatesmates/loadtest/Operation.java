@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2016 Twowls.org.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.twowls.gatesmates.loadtest;
+
+import java.util.Locale;
+
+/**
+ * <p>Kinds of registry operations generated by {@link LoadTest}.</p>
+ *
+ * @author bubo &lt;bubo@twowls.org&gt;
+ */
+public enum Operation {
+
+    /** Opens a random key and closes it right away */
+    OPEN,
+
+    /** Opens a random key, reads one of its values and closes the key */
+    QUERY,
+
+    /** Reads a value of a key kept open by the generating thread */
+    HOT_QUERY,
+
+    /** Opens a random group key, lists its sub keys and closes the key */
+    ENUM;
+
+    /**
+     * @return name of this operation as used in workload mix specifications
+     */
+    public String label() {
+        return name().toLowerCase(Locale.ROOT).replace("_", "");
+    }
+
+    /**
+     * @param label operation name as used in workload mix specifications, case insensitive
+     * @return operation with the given label
+     * @throws IllegalArgumentException if no operation has such label
+     */
+    public static Operation forLabel(String label) {
+        for (Operation operation : values()) {
+            if (operation.label().equalsIgnoreCase(label)) {
+                return operation;
+            }
+        }
+        throw new IllegalArgumentException("Unknown operation '" + label + "'");
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2016 Twowls.org.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.twowls.gatesmates.loadtest;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * <p>Relative weights of {@link Operation operations} in generated load.</p>
+ *
+ * <p>A mix is specified as comma separated {@code label=weight} pairs, e.g.
+ * {@code query=60,hot=20,open=10,enum=10}; operations not mentioned are not
+ * generated. Weights need not add up to any particular number.</p>
+ *
+ * @author bubo &lt;bubo@twowls.org&gt;
+ */
+public final class WorkloadMix {
+
+    /** Mix used when none is specified */
+    public static final String DEFAULT_SPEC = "query=60,hotquery=20,open=10,enum=10";
+
+    private final Map<Operation, Integer> weights;
+    private final Operation[] operations;
+    private final int[] thresholds;
+    private final int totalWeight;
+
+    private WorkloadMix(Map<Operation, Integer> weights) {
+        this.weights = weights;
+        this.operations = weights.keySet().toArray(new Operation[0]);
+        this.thresholds = new int[operations.length];
+        int sum = 0;
+        for (int i = 0; i < operations.length; i++) {
+            sum += weights.get(operations[i]);
+            thresholds[i] = sum;
+        }
+        this.totalWeight = sum;
+    }
+
+    /**
+     * <p>Parses mix specification.</p>
+     * @param spec comma separated {@code label=weight} pairs
+     * @return parsed mix
+     * @throws IllegalArgumentException if specification is malformed
+     */
+    public static WorkloadMix parse(String spec) {
+        Map<Operation, Integer> weights = new EnumMap<>(Operation.class);
+        long total = 0;
+        for (String part : spec.split(",")) {
+            String[] pair = part.trim().split("=", 2);
+            if (pair.length != 2) {
+                throw new IllegalArgumentException("Expected label=weight instead of '" + part.trim() + "'");
+            }
+
+            Operation operation = Operation.forLabel(pair[0].trim());
+            int weight;
+            try {
+                weight = Integer.parseInt(pair[1].trim());
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid weight of '" + pair[0].trim() + "'", e);
+            }
+            if (weight < 0) {
+                throw new IllegalArgumentException("Weight of '" + pair[0].trim() + "' must not be negative");
+            }
+            if (weight > 0) {
+                weights.merge(operation, weight, Integer::sum);
+                total += weight;
+            }
+        }
+
+        if (total == 0 || total > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Total weight must be positive and fit into int");
+        }
+        return new WorkloadMix(weights);
+    }
+
+    /**
+     * @param operation an operation
+     * @return weight of the given operation, zero if it is not generated
+     */
+    public int weightOf(Operation operation) {
+        return weights.getOrDefault(operation, 0);
+    }
+
+    /**
+     * <p>Picks an operation with probability proportional to its weight.</p>
+     * @param random source of randomness
+     * @return picked operation
+     */
+    public Operation next(Random random) {
+        int roll = random.nextInt(totalWeight);
+        for (int i = 0; i < thresholds.length; i++) {
+            if (roll < thresholds[i]) {
+                return operations[i];
+            }
+        }
+        throw new AssertionError("Roll beyond total weight");
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<Operation, Integer> entry : weights.entrySet()) {
+            sb.append(sb.length() == 0 ? "" : ",").append(entry.getKey().label()).append('=').append(entry.getValue());
+        }
+        return sb.toString();
+    }
+}
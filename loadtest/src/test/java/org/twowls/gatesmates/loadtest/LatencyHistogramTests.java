@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2016 Twowls.org.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.twowls.gatesmates.loadtest;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * <p>Tests for {@link LatencyHistogram}.</p>
+ *
+ * @author bubo &lt;bubo@twowls.org&gt;
+ */
+public class LatencyHistogramTests {
+
+    @Test
+    public void bucketsCoverAllValuesWithBoundedError() {
+        assertEquals(0, LatencyHistogram.indexOf(0));
+        assertEquals(63, LatencyHistogram.highestValueOf(LatencyHistogram.indexOf(63)));
+        long previous = -1;
+        for (long value = 1; value > 0 && value < Long.MAX_VALUE / 3; value = value * 3 + 1) {
+            int index = LatencyHistogram.indexOf(value);
+            long highest = LatencyHistogram.highestValueOf(index);
+            assertTrue(highest >= value);
+            assertTrue((highest - value) * LatencyHistogram.SUB_BUCKETS <= 2 * value);
+            assertTrue(highest > previous);
+            previous = highest;
+        }
+        LatencyHistogram.indexOf(Long.MAX_VALUE);
+    }
+
+    @Test
+    public void percentilesOfMergedHistograms() {
+        LatencyHistogram first = new LatencyHistogram(), second = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            (i % 2 == 0 ? first : second).record(i * 1000L);
+        }
+        first.add(second);
+
+        assertEquals(1000, first.getTotalCount());
+        assertEquals(1_000_000L, first.getMax());
+        assertEquals(500_000.0, first.getValueAtPercentile(50.0), 500_000.0 * 2 / LatencyHistogram.SUB_BUCKETS);
+        assertEquals(990_000.0, first.getValueAtPercentile(99.0), 990_000.0 * 2 / LatencyHistogram.SUB_BUCKETS);
+        assertEquals(1_000_000L, first.getValueAtPercentile(100.0));
+        assertEquals(0, new LatencyHistogram().getValueAtPercentile(99.9));
+    }
+}
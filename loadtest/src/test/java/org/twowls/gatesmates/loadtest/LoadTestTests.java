@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2016 Twowls.org.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.twowls.gatesmates.loadtest;
+
+import org.junit.After;
+import org.junit.Test;
+import org.twowls.gatesmates.registry.Registry;
+import org.twowls.gatesmates.registry.RegistryConst;
+
+import java.time.Duration;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * <p>Tests for {@link LoadTest} and {@link WorkloadMix}.</p>
+ *
+ * @author bubo &lt;bubo@twowls.org&gt;
+ */
+public class LoadTestTests implements RegistryConst {
+
+    @After
+    public void tearDown() {
+        Registry.useBackend(null);
+    }
+
+    @Test
+    public void mixIsParsedAndSampledByWeight() {
+        WorkloadMix mix = WorkloadMix.parse(" query = 3, enum=1,open=0 ");
+        assertEquals("query=3,enum=1", mix.toString());
+        assertEquals(0, mix.weightOf(Operation.OPEN));
+
+        Random random = new Random(42);
+        int queries = 0;
+        for (int i = 0; i < 10_000; i++) {
+            Operation operation = mix.next(random);
+            assertNotEquals(Operation.OPEN, operation);
+            queries += (operation == Operation.QUERY ? 1 : 0);
+        }
+        assertEquals(7500, queries, 300);
+
+        try {
+            WorkloadMix.parse("query=1,write=2");
+            fail("Unknown operation accepted");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("write"));
+        }
+    }
+
+    @Test
+    public void shortRunReportsEveryOperationWithoutLeaks() throws Exception {
+        LoadTest loadTest = new LoadTest();
+        assertTrue(LoadTest.configure(loadTest, new String[]{"--threads", "8", "--keys", "100",
+                "--mix", "open=1,query=1,hotquery=1,enum=1", "--latency-us", "0", "--jitter-us", "0",
+                "--error-rate", "0.05", "--error-code", String.valueOf(ERROR_KEY_DELETED)}));
+        loadTest.setWarmup(Duration.ofMillis(50));
+        loadTest.setDuration(Duration.ofMillis(300));
+        LoadReport report = loadTest.run();
+
+        for (Operation operation : Operation.values()) {
+            assertTrue(operation.label(), report.getLatencies(operation).getTotalCount() > 0);
+            assertTrue(operation.label(), report.getErrorCount(operation) > 0);
+        }
+        assertEquals(1, report.getErrorCodes().size());
+        assertTrue(report.getErrorCodes().containsKey(ERROR_KEY_DELETED));
+        assertTrue(report.getThroughput() > 0);
+        assertEquals(0, report.getLeakedHandles());
+        assertSame(Registry.systemBackend(), Registry.currentBackend());
+    }
+
+    @Test
+    public void invalidOptionsAreRejected() {
+        assertFalse(LoadTest.configure(new LoadTest(), new String[]{"--help"}));
+        for (String[] args : new String[][]{{"--threads"}, {"--threads", "x"}, {"--error-rate", "2"},
+                {"--bogus", "1"}, {"--error-code", "0"}}) {
+            try {
+                LoadTest.configure(new LoadTest(), args);
+                fail("Accepted " + String.join(" ", args));
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+}
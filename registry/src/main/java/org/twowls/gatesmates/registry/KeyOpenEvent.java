@@ -0,0 +1,53 @@
+/*
+ * Copyright (c) 2016 Twowls.org.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.twowls.gatesmates.registry;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * <p>Flight Recorder event of opening or creating a registry key.</p>
+ *
+ * @author bubo &lt;bubo@twowls.org&gt;
+ */
+@Name(KeyOpenEvent.NAME)
+@Label("Registry Key Open")
+@Category({"Gatesmates", "Registry"})
+@Description("Opening or creating a registry key with RegOpenKeyExA or RegCreateKeyExA")
+final class KeyOpenEvent extends Event {
+
+    static final String NAME = "org.twowls.gatesmates.registry.KeyOpen";
+
+    @Label("Path")
+    @Description("Full path of the key")
+    String path;
+
+    @Label("For Writing")
+    boolean forWriting;
+
+    @Label("Create")
+    @Description("Whether the key was created if missing")
+    boolean create;
+
+    @Label("Error Code")
+    @Description("System error code, zero on success")
+    int errorCode;
+}
@@ -17,12 +17,17 @@
 
 package org.twowls.gatesmates.registry;
 
+import org.twowls.gatesmates.util.AdvApi32Backend;
 import org.twowls.gatesmates.util.Gates;
 import org.twowls.gatesmates.util.Handle;
+import org.twowls.gatesmates.util.HandleScope;
+import org.twowls.gatesmates.util.Kernel32Backend;
 
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Objects;
 
 /**
@@ -37,7 +42,36 @@ public final class Registry implements RegistryConst {
     /** Registry key for the local machine */
     public static final Key KEY_LOCAL_MACHINE = Key.forHandle(HKEY_LOCAL_MACHINE);
 
-    private static boolean available = Gates.isAvailable();
+    private static final AdvApi32Backend SYSTEM_BACKEND = Gates.systemBackend();
+    private static volatile AdvApi32Backend backend = SYSTEM_BACKEND;
+    private static volatile boolean available = Gates.isAvailable();
+
+    /**
+     * <p>Replaces the backend serving system calls made by this class.</p>
+     *
+     * <p>Any backend other than the {@link Gates#systemBackend() system one} makes
+     * registry available regardless of the current operating system.</p>
+     * @param newBackend the backend to use, or {@code null} to restore the system one
+     */
+    public static void useBackend(AdvApi32Backend newBackend) {
+        backend = (newBackend == null ? SYSTEM_BACKEND : newBackend);
+        available = (backend != SYSTEM_BACKEND || Gates.isAvailable());
+    }
+
+    /**
+     * @return the backend chosen by {@link Gates#systemBackend()} when this class was
+     *  loaded, serving system calls unless replaced with {@link #useBackend(AdvApi32Backend)}
+     */
+    public static AdvApi32Backend systemBackend() {
+        return SYSTEM_BACKEND;
+    }
+
+    /**
+     * @return the backend currently serving system calls made by this class
+     */
+    public static AdvApi32Backend currentBackend() {
+        return backend;
+    }
 
     /**
      * <p>Opens a registry key for reading.</p>
@@ -65,16 +99,104 @@ public final class Registry implements RegistryConst {
         Objects.requireNonNull(rootKey, "Root key must not be null");
         Objects.requireNonNull(subPath, "Sub key path must not be null");
 
-        int[] handleBuffer = createBuffer(0);
-        int err = Gates.AdvApi32.RegOpenKeyExA(rootKey.handle, toWindowsPath(subPath), REG_OPTION_OPEN_LINK,
+        // PHKEY is pointer sized, handles themselves fit in 32 bits even on 64-bit Windows
+        long[] handleBuffer = new long[1];
+        KeyOpenEvent event = new KeyOpenEvent();
+        event.begin();
+        int err = backend.RegOpenKeyExA(rootKey.handle, toWindowsPath(subPath), REG_OPTION_OPEN_LINK,
                 (forWriting ? KEY_WRITE : KEY_READ) | KEY_WOW64_64KEY, handleBuffer);
+        event.end();
+        if (event.shouldCommit()) {
+            event.path = rootKey.pathOf(subPath);
+            event.forWriting = forWriting;
+            event.errorCode = err;
+            event.commit();
+        }
 
         if (ERROR_SUCCESS != err) {
             throw new RegistryException(err, "Could not open registry key '" + subPath
                     + "' for " + (forWriting ? "writing" : "reading"));
         }
 
-        return Key.forHandle(handleBuffer[0]);
+        return Key.forHandle((int) handleBuffer[0], rootKey, subPath);
+    }
+
+    /**
+     * <p>Opens a registry key for reading, owned by the given scope.</p>
+     * @param scope the scope closing the key when it closes
+     * @param rootKey the root key that sought key belongs to
+     * @param subPath sub key path relative to root key
+     * @return a {@link Key} instance representing key resource
+     * @throws RegistryException if a problem occurred while opening key
+     * @throws IllegalStateException if the scope is already closed
+     */
+    public static Key openKey(HandleScope scope, Key rootKey, String subPath) throws RegistryException {
+        return openKey(scope, rootKey, subPath, false);
+    }
+
+    /**
+     * <p>Opens a registry key for reading or writing, owned by the given scope.</p>
+     * @param scope the scope closing the key when it closes
+     * @param rootKey the root key that sought key belongs to
+     * @param subPath sub key path relative to root key
+     * @param forWriting {@code true} if write access requested, otherwise {@code false}
+     * @return a {@link Key} instance representing key resource
+     * @throws RegistryException if a problem occurred while opening key
+     * @throws IllegalStateException if the scope is already closed
+     */
+    public static Key openKey(HandleScope scope, Key rootKey, String subPath, boolean forWriting)
+            throws RegistryException {
+
+        Objects.requireNonNull(scope, "Handle scope must not be null");
+        Key key = openKey(rootKey, subPath, forWriting);
+        try {
+            return scope.add(key);
+        } catch (IllegalStateException e) {
+            // closed meanwhile, the key has no owner
+            try {
+                key.close();
+            } catch (RegistryException closeError) {
+                e.addSuppressed(closeError);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * <p>Opens a registry key for reading and writing, creating it (and all missing
+     * intermediate keys) if it does not exist.</p>
+     * @param rootKey the root key that sought key belongs to
+     * @param subPath sub key path relative to root key
+     * @return a {@link Key} instance representing key resource
+     * @throws RegistryException if a problem occurred while creating or opening key
+     */
+    public static Key createKey(Key rootKey, String subPath) throws RegistryException {
+        checkAvailable();
+        Objects.requireNonNull(rootKey, "Root key must not be null");
+        Objects.requireNonNull(subPath, "Sub key path must not be null");
+
+        // PHKEY is pointer sized, handles themselves fit in 32 bits even on 64-bit Windows
+        long[] handleBuffer = new long[1];
+        int[] dispositionBuffer = createBuffer(0);
+        KeyOpenEvent event = new KeyOpenEvent();
+        event.begin();
+        int err = backend.RegCreateKeyExA(rootKey.handle, toWindowsPath(subPath), 0, null,
+                REG_OPTION_NON_VOLATILE, KEY_READ | KEY_WRITE | KEY_WOW64_64KEY, null,
+                handleBuffer, dispositionBuffer);
+        event.end();
+        if (event.shouldCommit()) {
+            event.path = rootKey.pathOf(subPath);
+            event.forWriting = true;
+            event.create = true;
+            event.errorCode = err;
+            event.commit();
+        }
+
+        if (ERROR_SUCCESS != err) {
+            throw new RegistryException(err, "Could not create registry key '" + subPath + "'");
+        }
+
+        return Key.forHandle((int) handleBuffer[0], rootKey, subPath);
     }
 
     /**
@@ -195,11 +317,367 @@ public final class Registry implements RegistryConst {
                 ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN).getInt();
     }
 
+    /**
+     * <p>Queries raw value of a named property of any type.</p>
+     * @param key registry key previously open with {@link #openKey(Key, String, boolean)}
+     * @param valueName the name of the property being queried
+     * @return property value
+     * @throws RegistryException if registry is not available or property does not exist
+     */
+    public static RegistryValue queryValue(Key key, String valueName) throws RegistryException {
+        while (true) {
+            int[] info = queryValue0(key, valueName, null);
+            byte[] data = new byte[info[1]];
+            try {
+                int[] actual = queryValue0(key, valueName, data);
+                return new RegistryValue(valueName, actual[0], Arrays.copyOf(data, actual[1]));
+            } catch (RegistryException e) {
+                // value has grown between the two calls, start over
+                if (ERROR_MORE_DATA != e.getErrorCode()) {
+                    throw e;
+                }
+            }
+        }
+    }
+
+    /**
+     * <p>Queries summary information about the given key.</p>
+     * @param key registry key previously open with {@link #openKey(Key, String, boolean)}
+     * @return key information
+     * @throws RegistryException if registry is not available or information cannot be read
+     */
+    public static RegistryKeyInfo queryKeyInfo(Key key) throws RegistryException {
+        checkAvailable();
+        Objects.requireNonNull(key, "Key must not be null");
+
+        int[] subKeys = createBuffer(0), maxSubKeyLen = createBuffer(0), values = createBuffer(0),
+                maxValueNameLen = createBuffer(0), maxValueLen = createBuffer(0);
+        long[] lastWriteTime = new long[1];
+        int err = backend.RegQueryInfoKeyA(key.handle, null, null, null, subKeys, maxSubKeyLen, null,
+                values, maxValueNameLen, maxValueLen, null, lastWriteTime);
+        if (ERROR_SUCCESS != err) {
+            throw new RegistryException(err, "Failed to query key information");
+        }
+
+        return new RegistryKeyInfo(subKeys[0], maxSubKeyLen[0], values[0],
+                maxValueNameLen[0], maxValueLen[0], lastWriteTime[0]);
+    }
+
+    /**
+     * <p>Returns the name of an immediate sub key of the given key.</p>
+     * @param key registry key previously open with {@link #openKey(Key, String, boolean)}
+     * @param index zero-based index of sub key
+     * @return sub key name or {@code null} if there are no more sub keys
+     * @throws RegistryException if registry is not available or sub key cannot be read
+     */
+    public static String enumSubKey(Key key, int index) throws RegistryException {
+        checkAvailable();
+        Objects.requireNonNull(key, "Key must not be null");
+
+        byte[] name = new byte[MAX_KEY_NAME_LENGTH + 1];
+        int[] nameSize = createBuffer(name.length);
+        int err = backend.RegEnumKeyExA(key.handle, index, name, nameSize, null, null, null, null);
+        if (ERROR_NO_MORE_ITEMS == err) {
+            return null;
+        } else if (ERROR_SUCCESS != err) {
+            throw new RegistryException(err, "Failed to enumerate sub key #" + index);
+        }
+
+        return new String(name, 0, nameSize[0]);
+    }
+
+    /**
+     * <p>Lists names of all immediate sub keys of the given key.</p>
+     * @param key registry key previously open with {@link #openKey(Key, String, boolean)}
+     * @return list of sub key names, possibly empty
+     * @throws RegistryException if registry is not available or sub keys cannot be read
+     */
+    public static List<String> listSubKeys(Key key) throws RegistryException {
+        List<String> names = new ArrayList<>();
+        for (String name; (name = enumSubKey(key, names.size())) != null; ) {
+            names.add(name);
+        }
+        return names;
+    }
+
+    /**
+     * <p>Returns a value of the given key.</p>
+     * @param key registry key previously open with {@link #openKey(Key, String, boolean)}
+     * @param index zero-based index of value
+     * @return registry value or {@code null} if there are no more values
+     * @throws RegistryException if registry is not available or value cannot be read
+     */
+    public static RegistryValue enumValue(Key key, int index) throws RegistryException {
+        return enumValue(key, index, new byte[MAX_VALUE_NAME_LENGTH + 1]);
+    }
+
+    /**
+     * <p>Lists all values of the given key.</p>
+     * @param key registry key previously open with {@link #openKey(Key, String, boolean)}
+     * @return list of values, possibly empty
+     * @throws RegistryException if registry is not available or values cannot be read
+     */
+    public static List<RegistryValue> listValues(Key key) throws RegistryException {
+        // name buffer sized once for the longest name, rather than for the longest possible one
+        RegistryKeyInfo info = queryKeyInfo(key);
+        byte[] name = new byte[info.getMaxValueNameLength() + 1];
+        List<RegistryValue> values = new ArrayList<>(info.getValueCount());
+        for (RegistryValue value; (value = enumValue(key, values.size(), name)) != null; ) {
+            values.add(value);
+        }
+        return values;
+    }
+
+    /**
+     * <p>Returns a value of the given key, reading its name into a caller provided buffer.
+     * Enumerating many values with a buffer sized once from
+     * {@link RegistryKeyInfo#getMaxValueNameLength()} spares allocating a buffer for the
+     * longest possible name per value.</p>
+     * @param key registry key previously open with {@link #openKey(Key, String, boolean)}
+     * @param index zero-based index of value
+     * @param name buffer for value name, a larger one is used for this call if too small
+     * @return registry value or {@code null} if there are no more values
+     * @throws RegistryException if registry is not available or value cannot be read
+     */
+    public static RegistryValue enumValue(Key key, int index, byte[] name) throws RegistryException {
+        checkAvailable();
+        Objects.requireNonNull(key, "Key must not be null");
+        Objects.requireNonNull(name, "Name buffer must not be null");
+
+        while (true) {
+            // first call returns name, type and necessary buffer size
+            int[] nameSize = createBuffer(name.length), typeBuffer = createBuffer(0), sizeBuffer = createBuffer(0);
+            int err = backend.RegEnumValueA(key.handle, index, name, nameSize, null, typeBuffer, null, sizeBuffer);
+            if (ERROR_MORE_DATA == err && name.length <= MAX_VALUE_NAME_LENGTH) {
+                // value with a longer name added meanwhile
+                name = new byte[MAX_VALUE_NAME_LENGTH + 1];
+                continue;
+            } else if (ERROR_NO_MORE_ITEMS == err) {
+                return null;
+            } else if (ERROR_SUCCESS != err) {
+                throw new RegistryException(err, "Failed to enumerate value #" + index);
+            }
+
+            // second call actually reads value into the buffer
+            byte[] data = new byte[sizeBuffer[0]];
+            nameSize[0] = name.length;
+            err = backend.RegEnumValueA(key.handle, index, name, nameSize, null, typeBuffer, data, sizeBuffer);
+            if (ERROR_SUCCESS == err) {
+                return new RegistryValue(new String(name, 0, nameSize[0]), typeBuffer[0],
+                        Arrays.copyOf(data, sizeBuffer[0]));
+            } else if (ERROR_MORE_DATA != err) {
+                throw new RegistryException(err, "Failed to enumerate value #" + index);
+            }
+        }
+    }
+
+    /**
+     * <p>Sets a value of any type, replacing an existing value of the same name.</p>
+     * @param key registry key previously open with {@link #openKey(Key, String, boolean)}
+     *            for writing or with {@link #createKey(Key, String)}
+     * @param value the value to set
+     * @throws RegistryException if registry is not available or value cannot be written
+     */
+    public static void setValue(Key key, RegistryValue value) throws RegistryException {
+        checkAvailable();
+        Objects.requireNonNull(key, "Key must not be null");
+        Objects.requireNonNull(value, "Value must not be null");
+
+        byte[] data = value.getData();
+        int err = backend.RegSetValueExA(key.handle, value.getName(), 0, value.getType(), data, data.length);
+        if (ERROR_SUCCESS != err) {
+            throw new RegistryException(err, "Failed to set value '" + value.getName() + "'");
+        }
+    }
+
+    /**
+     * <p>Sets a textual ({@code REG_SZ}) value.</p>
+     * @param key registry key open for writing
+     * @param valueName the name of the property being set
+     * @param value property value
+     * @throws RegistryException if registry is not available or value cannot be written
+     */
+    public static void setStringValue(Key key, String valueName, String value) throws RegistryException {
+        setValue(key, RegistryValue.ofString(valueName, value));
+    }
+
+    /**
+     * <p>Sets a numeric ({@code REG_DWORD}) value.</p>
+     * @param key registry key open for writing
+     * @param valueName the name of the property being set
+     * @param value property value
+     * @throws RegistryException if registry is not available or value cannot be written
+     */
+    public static void setIntValue(Key key, String valueName, int value) throws RegistryException {
+        setValue(key, RegistryValue.ofInt(valueName, value));
+    }
+
+    /**
+     * <p>Deletes a value.</p>
+     * @param key registry key open for writing
+     * @param valueName the name of the property being deleted
+     * @throws RegistryException if registry is not available or value cannot be deleted,
+     *  in particular with {@code ERROR_NOT_FOUND} if it does not exist
+     */
+    public static void deleteValue(Key key, String valueName) throws RegistryException {
+        checkAvailable();
+        Objects.requireNonNull(key, "Key must not be null");
+        Objects.requireNonNull(valueName, "Value name must not be null");
+
+        int err = backend.RegDeleteValueA(key.handle, valueName);
+        if (ERROR_SUCCESS != err) {
+            throw new RegistryException(err, "Failed to delete value '" + valueName + "'");
+        }
+    }
+
+    /**
+     * <p>Deletes a key, which must not have sub keys.</p>
+     * @param rootKey the root key that deleted key belongs to, open for writing
+     * @param subPath path of deleted key relative to root key
+     * @throws RegistryException if registry is not available or key cannot be deleted,
+     *  in particular with {@code ERROR_NOT_FOUND} if it does not exist
+     */
+    public static void deleteKey(Key rootKey, String subPath) throws RegistryException {
+        checkAvailable();
+        Objects.requireNonNull(rootKey, "Root key must not be null");
+        Objects.requireNonNull(subPath, "Sub key path must not be null");
+
+        int err = backend.RegDeleteKeyA(rootKey.handle, toWindowsPath(subPath));
+        if (ERROR_SUCCESS != err) {
+            throw new RegistryException(err, "Could not delete registry key '" + subPath + "'");
+        }
+    }
+
+    /**
+     * <p>Blocks the calling thread until the given key changes: a sub key is added or
+     * deleted, or a value is set or deleted. Closing the key from another thread ends
+     * the wait as well.</p>
+     * @param key registry key previously open with {@link #openKey(Key, String, boolean)}
+     * @param watchSubtree {@code true} to wait for changes of sub keys as well
+     * @throws RegistryException if registry is not available or key cannot be watched
+     */
+    public static void waitForChange(Key key, boolean watchSubtree) throws RegistryException {
+        checkAvailable();
+        Objects.requireNonNull(key, "Key must not be null");
+
+        int err = backend.RegNotifyChangeKeyValue(key.handle, watchSubtree,
+                REG_NOTIFY_CHANGE_NAME | REG_NOTIFY_CHANGE_LAST_SET, 0, false);
+        if (ERROR_SUCCESS != err) {
+            throw new RegistryException(err, "Failed to wait for change of key");
+        }
+    }
+
+    /**
+     * <p>Asks for the given event to be signalled on the next change of the given key,
+     * without waiting for it. Unlike {@link #waitForChange(Key, boolean)} a change made
+     * between this call and the wait is not missed, so that reading the key after this
+     * call and then waiting for the event sees every change. The event is also
+     * signalled when the key is deleted or its handle closed.</p>
+     * @param key registry key previously open with {@link #openKey(Key, String, boolean)}
+     * @param watchSubtree {@code true} to watch changes of sub keys as well
+     * @param event the event to signal, once
+     * @throws RegistryException if registry is not available or key cannot be watched
+     */
+    public static void notifyChange(Key key, boolean watchSubtree, Event event) throws RegistryException {
+        checkAvailable();
+        Objects.requireNonNull(key, "Key must not be null");
+        Objects.requireNonNull(event, "Event must not be null");
+
+        int err = backend.RegNotifyChangeKeyValue(key.handle, watchSubtree,
+                REG_NOTIFY_CHANGE_NAME | REG_NOTIFY_CHANGE_LAST_SET, event.handle, true);
+        if (ERROR_SUCCESS != err) {
+            throw new RegistryException(err, "Failed to watch for change of key");
+        }
+    }
+
+    /**
+     * <p>Creates an unnamed auto-reset event, initially not signalled, for use with
+     * {@link #notifyChange(Key, boolean, Event)}.</p>
+     * @return a new {@link Event} to close when no longer needed
+     * @throws RegistryException if registry is not available or event cannot be created
+     */
+    public static Event createEvent() throws RegistryException {
+        checkAvailable();
+        Kernel32Backend kernel = eventBackend();
+        int handle = kernel.CreateEventA(null, false, false, null);
+        if (handle == 0) {
+            throw new RegistryException(kernel.GetLastError(), "Could not create event");
+        }
+        return new Event(handle);
+    }
+
+    /**
+     * <p>Blocks the calling thread until one of the given events is signalled, then
+     * resets that event.</p>
+     * @param milliseconds time to wait at most, or {@link #INFINITE}
+     * @param events the events to wait for, at least one
+     * @return index of the signalled event, the lowest one if several are signalled,
+     *  or {@code -1} if none was signalled in time
+     * @throws RegistryException if registry is not available or events cannot be waited for
+     */
+    public static int waitForEvents(int milliseconds, Event... events) throws RegistryException {
+        checkAvailable();
+        if (events.length == 0) {
+            throw new IllegalArgumentException("No events to wait for");
+        }
+        int[] handles = new int[events.length];
+        for (int i = 0; i < events.length; i++) {
+            handles[i] = Objects.requireNonNull(events[i], "Event must not be null").handle;
+        }
+
+        Kernel32Backend kernel = eventBackend();
+        int result = kernel.WaitForMultipleObjects(handles.length, handles, false, milliseconds);
+        if (WAIT_TIMEOUT == result) {
+            return -1;
+        } else if (result < WAIT_OBJECT_0 || result >= WAIT_OBJECT_0 + handles.length) {
+            throw new RegistryException(WAIT_FAILED == result ? kernel.GetLastError() : result,
+                    "Failed to wait for events");
+        }
+        return result - WAIT_OBJECT_0;
+    }
+
+    /**
+     * <p>Signals an event, waking up a thread waiting for it.</p>
+     * @param event the event to signal
+     * @throws RegistryException if registry is not available or event cannot be signalled
+     */
+    public static void signalEvent(Event event) throws RegistryException {
+        checkAvailable();
+        Objects.requireNonNull(event, "Event must not be null");
+
+        Kernel32Backend kernel = eventBackend();
+        if (kernel.SetEvent(event.handle) == 0) {
+            throw new RegistryException(kernel.GetLastError(), "Could not signal event");
+        }
+    }
+
+    public static void closeEvent(Event event) throws RegistryException {
+        checkAvailable();
+        if (event != null) {
+            try {
+                Kernel32Backend kernel = eventBackend();
+                if (kernel.CloseHandle(event.handle) == 0) {
+                    throw new RegistryException(kernel.GetLastError(), "Could not close event");
+                }
+            } finally {
+                event.handle = 0;
+            }
+        }
+    }
+
     public static void closeKey(Key key) throws RegistryException {
         checkAvailable();
         if (key != null) {
             try {
-                int result = Gates.AdvApi32.RegCloseKey(key.handle);
+                KeyCloseEvent event = new KeyCloseEvent();
+                event.begin();
+                int result = backend.RegCloseKey(key.handle);
+                event.end();
+                if (event.shouldCommit()) {
+                    event.path = key.pathOf(null);
+                    event.errorCode = result;
+                    event.commit();
+                }
                 if (ERROR_SUCCESS != result) {
                     throw new RegistryException(result, "Could not close key");
                 }
@@ -223,7 +701,19 @@ public final class Registry implements RegistryConst {
         Objects.requireNonNull(valueName, "Value name must not be null");
 
         int[] typeBuffer = createBuffer(0), sizeBuffer = createBuffer(buffer == null ? 0 : buffer.length);
-        int err = Gates.AdvApi32.RegQueryValueExA(key.handle, valueName, null, typeBuffer, buffer, sizeBuffer);
+        ValueQueryEvent event = new ValueQueryEvent();
+        event.begin();
+        int err = backend.RegQueryValueExA(key.handle, valueName, null, typeBuffer, buffer, sizeBuffer);
+        event.end();
+        if (event.shouldCommit()) {
+            event.path = key.pathOf(null);
+            event.valueName = valueName;
+            event.type = typeBuffer[0];
+            event.bytes = sizeBuffer[0];
+            event.errorCode = err;
+            event.commit();
+        }
+
         if (err != ERROR_SUCCESS) {
             throw new RegistryException(err, "Failed to query value '" + valueName + "'");
         }
@@ -231,13 +721,19 @@ public final class Registry implements RegistryConst {
         return createBuffer(typeBuffer[0], sizeBuffer[0]);
     }
 
+    /** Events go along with keys of a backend serving both, real ones are used otherwise */
+    private static Kernel32Backend eventBackend() {
+        AdvApi32Backend current = backend;
+        return (current instanceof Kernel32Backend ? (Kernel32Backend) current : Kernel32Backend.NATIVE);
+    }
+
     private static void checkAvailable() throws RegistryException {
         if (!available) {
             throw new RegistryException(RegistryException.UNAVAILABLE, "Registry is not available");
         }
     }
 
-    private static String stringFromByteArray(byte[] bytes) {
+    static String stringFromByteArray(byte[] bytes) {
         if (bytes == null || bytes.length == 0) {
             return null;
         } else {
@@ -258,9 +754,14 @@ public final class Registry implements RegistryConst {
     public static class Key implements Handle {
 
         private int handle;
+        // where the key was opened from, for diagnostics only
+        private final Key parent;
+        private final String subPath;
 
-        private Key(int handle) {
+        private Key(int handle, Key parent, String subPath) {
             this.handle = handle;
+            this.parent = parent;
+            this.subPath = subPath;
         }
 
         public Key openSubKey(String subPath) throws RegistryException {
@@ -271,6 +772,18 @@ public final class Registry implements RegistryConst {
             return Registry.openKey(this, subPath, forWriting);
         }
 
+        public Key openSubKey(HandleScope scope, String subPath) throws RegistryException {
+            return Registry.openKey(scope, this, subPath);
+        }
+
+        public Key openSubKey(HandleScope scope, String subPath, boolean forWriting) throws RegistryException {
+            return Registry.openKey(scope, this, subPath, forWriting);
+        }
+
+        public Key createSubKey(String subPath) throws RegistryException {
+            return Registry.createKey(this, subPath);
+        }
+
         public String queryUnnamedValue() throws RegistryException {
             return Registry.queryUnnamedValue(this);
         }
@@ -295,6 +808,50 @@ public final class Registry implements RegistryConst {
             return Registry.queryIntValue(this, valueName, fallback);
         }
 
+        public RegistryValue queryValue(String valueName) throws RegistryException {
+            return Registry.queryValue(this, valueName);
+        }
+
+        public RegistryKeyInfo queryInfo() throws RegistryException {
+            return Registry.queryKeyInfo(this);
+        }
+
+        public List<String> listSubKeys() throws RegistryException {
+            return Registry.listSubKeys(this);
+        }
+
+        public List<RegistryValue> listValues() throws RegistryException {
+            return Registry.listValues(this);
+        }
+
+        public void setValue(RegistryValue value) throws RegistryException {
+            Registry.setValue(this, value);
+        }
+
+        public void setStringValue(String valueName, String value) throws RegistryException {
+            Registry.setStringValue(this, valueName, value);
+        }
+
+        public void setIntValue(String valueName, int value) throws RegistryException {
+            Registry.setIntValue(this, valueName, value);
+        }
+
+        public void deleteValue(String valueName) throws RegistryException {
+            Registry.deleteValue(this, valueName);
+        }
+
+        public void deleteSubKey(String subPath) throws RegistryException {
+            Registry.deleteKey(this, subPath);
+        }
+
+        public void waitForChange(boolean watchSubtree) throws RegistryException {
+            Registry.waitForChange(this, watchSubtree);
+        }
+
+        public void notifyChange(boolean watchSubtree, Event event) throws RegistryException {
+            Registry.notifyChange(this, watchSubtree, event);
+        }
+
         @Override
         public void close() throws RegistryException {
             Registry.closeKey(this);
@@ -325,7 +882,65 @@ public final class Registry implements RegistryConst {
          * @return a new instance of {@link Key}
          */
         static Key forHandle(int handle) {
-            return new Key(handle);
+            return new Key(handle, null, null);
+        }
+
+        /**
+         * <p>Creates a new {@link Key} object for a key opened from another one.</p>
+         * @param handle the value of system handle
+         * @param parent the key {@code subPath} is relative to
+         * @param subPath path of the key relative to {@code parent}
+         * @return a new instance of {@link Key}
+         */
+        static Key forHandle(int handle, Key parent, String subPath) {
+            return new Key(handle, parent, subPath);
+        }
+
+        /**
+         * <p>Builds full path of this key, or of a key relative to it; meant for
+         * diagnostics, as it walks up the keys this one was opened from.</p>
+         * @param relativePath path relative to this key or {@code null}
+         * @return full Windows path starting with a predefined key name
+         */
+        String pathOf(String relativePath) {
+            String path;
+            if (parent != null) {
+                path = parent.pathOf(subPath);
+            } else if (handle == HKEY_CLASSES_ROOT) {
+                path = "HKEY_CLASSES_ROOT";
+            } else if (handle == HKEY_CURRENT_USER) {
+                path = "HKEY_CURRENT_USER";
+            } else if (handle == HKEY_LOCAL_MACHINE) {
+                path = "HKEY_LOCAL_MACHINE";
+            } else {
+                path = "0x" + Integer.toHexString(handle);
+            }
+            return (relativePath == null || relativePath.isEmpty() ?
+                    path : path + '\\' + toWindowsPath(relativePath));
+        }
+    }
+
+    /** Internal representation of an event object */
+    public static class Event implements Handle {
+
+        private int handle;
+
+        private Event(int handle) {
+            this.handle = handle;
+        }
+
+        public void signal() throws RegistryException {
+            Registry.signalEvent(this);
+        }
+
+        @Override
+        public void close() throws RegistryException {
+            Registry.closeEvent(this);
+        }
+
+        @Override
+        public String toString() {
+            return this.getClass().getCanonicalName() + " (0x" + Integer.toHexString(handle) + ")";
         }
     }
 
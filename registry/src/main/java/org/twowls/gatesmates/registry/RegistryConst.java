@@ -38,14 +38,14 @@ public interface RegistryConst extends GatesConst {
     // Registry value types
     //
 
-    //static final int REG_NONE = 0;
+    int REG_NONE = 0;
     int REG_SZ = 1;
     int REG_EXPAND_SZ = 2;
-    //static final int REG_BINARY = 3;
+    int REG_BINARY = 3;
     int REG_DWORD = 4;
     int REG_DWORD_BIG_ENDIAN = 5;
     //static final int REG_LINK = 6;
-    //static final int REG_MULTI_SZ = 7;
+    int REG_MULTI_SZ = 7;
 
     //
     // Registry key access mask
@@ -55,7 +55,7 @@ public interface RegistryConst extends GatesConst {
     //static final int KEY_SET_VALUE = 0x2;
     //static final int KEY_CREATE_SUB_KEY = 0x4;
     //static final int KEY_ENUMERATE_SUB_KEYS = 0x8;
-    //static final int KEY_NOTIFY = 0x10;
+    int KEY_NOTIFY = 0x10;
     //static final int KEY_CREATE_LINK = 0x20;
     int KEY_WOW64_64KEY = 0x100;
     //static final int KEY_WOW64_32KEY = 0x200;
@@ -67,5 +67,35 @@ public interface RegistryConst extends GatesConst {
     // Registry key open mode mask
     //
 
+    int REG_OPTION_NON_VOLATILE = 0x0;
     int REG_OPTION_OPEN_LINK = 0x8;
+
+    //
+    // Registry key creation disposition
+    //
+
+    int REG_CREATED_NEW_KEY = 0x1;
+    int REG_OPENED_EXISTING_KEY = 0x2;
+
+    //
+    // Registry change notification filter
+    //
+
+    int REG_NOTIFY_CHANGE_NAME = 0x1;
+    int REG_NOTIFY_CHANGE_ATTRIBUTES = 0x2;
+    int REG_NOTIFY_CHANGE_LAST_SET = 0x4;
+    int REG_NOTIFY_CHANGE_SECURITY = 0x8;
+
+    //
+    // Registry element size limits
+    //
+
+    int MAX_KEY_NAME_LENGTH = 255;
+    int MAX_VALUE_NAME_LENGTH = 16383;
+
+    //
+    // Difference between FILETIME epoch (1601-01-01) and Unix epoch in 100-ns intervals
+    //
+
+    long FILETIME_UNIX_EPOCH_OFFSET = 116444736000000000L;
 }
@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2016 Twowls.org.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.twowls.gatesmates.registry;
+
+/**
+ * <p>Summary information about a registry key, as returned by {@code RegQueryInfoKey}.</p>
+ *
+ * @author bubo &lt;bubo@twowls.org&gt;
+ */
+public final class RegistryKeyInfo implements RegistryConst {
+
+    private final int subKeyCount;
+    private final int maxSubKeyNameLength;
+    private final int valueCount;
+    private final int maxValueNameLength;
+    private final int maxValueLength;
+    private final long lastWriteTime;
+
+    RegistryKeyInfo(int subKeyCount, int maxSubKeyNameLength, int valueCount,
+                    int maxValueNameLength, int maxValueLength, long lastWriteTime) {
+        this.subKeyCount = subKeyCount;
+        this.maxSubKeyNameLength = maxSubKeyNameLength;
+        this.valueCount = valueCount;
+        this.maxValueNameLength = maxValueNameLength;
+        this.maxValueLength = maxValueLength;
+        this.lastWriteTime = lastWriteTime;
+    }
+
+    /**
+     * @return number of immediate sub keys
+     */
+    public int getSubKeyCount() {
+        return subKeyCount;
+    }
+
+    /**
+     * @return length of the longest sub key name, in characters
+     */
+    public int getMaxSubKeyNameLength() {
+        return maxSubKeyNameLength;
+    }
+
+    /**
+     * @return number of values
+     */
+    public int getValueCount() {
+        return valueCount;
+    }
+
+    /**
+     * @return length of the longest value name, in characters
+     */
+    public int getMaxValueNameLength() {
+        return maxValueNameLength;
+    }
+
+    /**
+     * @return size of the longest value data, in bytes
+     */
+    public int getMaxValueLength() {
+        return maxValueLength;
+    }
+
+    /**
+     * @return time of the last modification of the key or its values, as {@code FILETIME}
+     */
+    public long getLastWriteTime() {
+        return lastWriteTime;
+    }
+
+    /**
+     * @return time of the last modification of the key or its values, in milliseconds since Unix epoch
+     */
+    public long getLastWriteTimeMillis() {
+        return (lastWriteTime - FILETIME_UNIX_EPOCH_OFFSET) / 10000L;
+    }
+
+    @Override
+    public String toString() {
+        return "RegistryKeyInfo (subKeys=" + subKeyCount + ", values=" + valueCount
+                + ", lastWriteTime=" + lastWriteTime + ")";
+    }
+}
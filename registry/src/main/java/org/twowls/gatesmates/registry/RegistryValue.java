@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2016 Twowls.org.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.twowls.gatesmates.registry;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * <p>Raw registry value: name, type and data exactly as stored by the system.</p>
+ *
+ * @author bubo &lt;bubo@twowls.org&gt;
+ */
+public final class RegistryValue implements RegistryConst {
+
+    private final String name;
+    private final int type;
+    private final byte[] data;
+
+    /**
+     * <p>Creates a new instance of {@link RegistryValue}.</p>
+     * @param name value name, empty string for the unnamed value
+     * @param type value type (one of {@code REG_xxx} constants)
+     * @param data raw value data
+     */
+    public RegistryValue(String name, int type, byte[] data) {
+        this.name = Objects.requireNonNull(name, "Value name must not be null");
+        this.type = type;
+        this.data = (data == null ? new byte[0] : data.clone());
+    }
+
+    /**
+     * <p>Creates a textual ({@code REG_SZ}) value.</p>
+     * @param name value name
+     * @param value value text
+     * @return a new instance of {@link RegistryValue}
+     */
+    public static RegistryValue ofString(String name, String value) {
+        return ofString(name, REG_SZ, value);
+    }
+
+    /**
+     * <p>Creates a textual value of the given type ({@code REG_SZ} or {@code REG_EXPAND_SZ}).</p>
+     * @param name value name
+     * @param type value type
+     * @param value value text
+     * @return a new instance of {@link RegistryValue}
+     */
+    public static RegistryValue ofString(String name, int type, String value) {
+        byte[] text = value.getBytes();
+        return new RegistryValue(name, type, Arrays.copyOf(text, text.length + 1));
+    }
+
+    /**
+     * <p>Creates a numeric ({@code REG_DWORD}) value.</p>
+     * @param name value name
+     * @param value value number
+     * @return a new instance of {@link RegistryValue}
+     */
+    public static RegistryValue ofInt(String name, int value) {
+        return new RegistryValue(name, REG_DWORD,
+                ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(value).array());
+    }
+
+    /**
+     * @return value name, empty string for the unnamed value
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return value type (one of {@code REG_xxx} constants)
+     */
+    public int getType() {
+        return type;
+    }
+
+    /**
+     * @return a copy of raw value data
+     */
+    public byte[] getData() {
+        return data.clone();
+    }
+
+    /**
+     * @return length of raw value data in bytes
+     */
+    public int getDataLength() {
+        return data.length;
+    }
+
+    /**
+     * @return {@code true} if value type is textual ({@code REG_SZ} or {@code REG_EXPAND_SZ})
+     */
+    public boolean isString() {
+        return REG_SZ == type || REG_EXPAND_SZ == type;
+    }
+
+    /**
+     * @return {@code true} if value type is numeric ({@code REG_DWORD} or {@code REG_DWORD_BIG_ENDIAN})
+     */
+    public boolean isInt() {
+        return (REG_DWORD == type || REG_DWORD_BIG_ENDIAN == type) && data.length >= 4;
+    }
+
+    /**
+     * <p>Interprets value data as text.</p>
+     * @return value text
+     * @throws RegistryException if value type is not textual
+     */
+    public String asString() throws RegistryException {
+        if (!isString()) {
+            throw new RegistryException(RegistryException.VALUE_TYPE_MISMATCH,
+                    "Actual property type is not textual");
+        }
+        return Registry.stringFromByteArray(data);
+    }
+
+    /**
+     * <p>Interprets value data as number.</p>
+     * @return value number
+     * @throws RegistryException if value type is not numeric
+     */
+    public int asInt() throws RegistryException {
+        if (!isInt()) {
+            throw new RegistryException(RegistryException.VALUE_TYPE_MISMATCH,
+                    "Actual property type is not numeric");
+        }
+        return ByteBuffer.wrap(data).order(REG_DWORD_BIG_ENDIAN == type ?
+                ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN).getInt();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof RegistryValue)) return false;
+        RegistryValue that = (RegistryValue) o;
+        return type == that.type && name.equals(that.name) && Arrays.equals(data, that.data);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * name.hashCode() + type) + Arrays.hashCode(data);
+    }
+
+    @Override
+    public String toString() {
+        String text;
+        if (isString()) {
+            text = "'" + Registry.stringFromByteArray(data) + "'";
+        } else if (isInt()) {
+            text = String.valueOf(ByteBuffer.wrap(data).order(REG_DWORD_BIG_ENDIAN == type ?
+                    ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN).getInt());
+        } else {
+            text = data.length + " byte(s)";
+        }
+        return "'" + name + "' (type " + type + ") = " + text;
+    }
+}
@@ -0,0 +1,809 @@
+/*
+ * Copyright (c) 2016 Twowls.org.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.twowls.gatesmates.registry;
+
+import org.twowls.gatesmates.util.AdvApi32Backend;
+import org.twowls.gatesmates.util.Kernel32Backend;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * <p>Pure Java registry kept in memory, usable as a backend for {@link Registry}
+ * on any operating system.</p>
+ *
+ * <p>Besides serving system calls this class offers a few path based methods
+ * for populating and modifying registry contents, e.g. from tests.</p>
+ *
+ * <p>Event objects are simulated as well, so that changes can be waited for
+ * asynchronously: {@link Registry} creates and waits for events through the
+ * {@link Kernel32Backend} side of this class.</p>
+ *
+ * @author bubo &lt;bubo@twowls.org&gt;
+ * @see Registry#useBackend(AdvApi32Backend)
+ */
+public class SimulatedBackend implements AdvApi32Backend, Kernel32Backend, RegistryConst {
+
+    private static final int FIRST_HANDLE = 0x1000;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<Integer, Node> handles = new ConcurrentHashMap<>();
+    private final AtomicInteger nextHandle = new AtomicInteger(FIRST_HANDLE);
+    private final AtomicLong clock = new AtomicLong();
+    private final Object changeMonitor = new Object();
+    // guarded by changeMonitor
+    private final Map<Integer, Event> events = new ConcurrentHashMap<>();
+    private final List<Notification> notifications = new ArrayList<>();
+    private final ThreadLocal<int[]> lastError = ThreadLocal.withInitial(() -> new int[1]);
+
+    /** Creates a new empty simulated registry */
+    public SimulatedBackend() {
+        for (int rootHandle : new int[]{HKEY_CLASSES_ROOT, HKEY_CURRENT_USER, HKEY_LOCAL_MACHINE}) {
+            handles.put(rootHandle, new Node(null, "", tick()));
+        }
+    }
+
+    //
+    // Path based access
+    //
+
+    /**
+     * <p>Creates a key (and all missing intermediate keys).</p>
+     * @param rootHandle handle of a predefined root key
+     * @param path key path relative to root key
+     */
+    public void createKey(int rootHandle, String path) {
+        lock.writeLock().lock();
+        try {
+            createPath(rootNode(rootHandle), path);
+        } finally {
+            lock.writeLock().unlock();
+            signalChanges();
+        }
+    }
+
+    /**
+     * <p>Sets a value, creating the key if necessary.</p>
+     * @param rootHandle handle of a predefined root key
+     * @param path key path relative to root key
+     * @param value the value to set
+     */
+    public void setValue(int rootHandle, String path, RegistryValue value) {
+        lock.writeLock().lock();
+        try {
+            Node node = createPath(rootNode(rootHandle), path);
+            node.values.put(lowerCase(value.getName()), value);
+            node.touch(tick(), REG_NOTIFY_CHANGE_LAST_SET);
+        } finally {
+            lock.writeLock().unlock();
+            signalChanges();
+        }
+    }
+
+    /**
+     * <p>Sets a textual ({@code REG_SZ}) value, creating the key if necessary.</p>
+     * @param rootHandle handle of a predefined root key
+     * @param path key path relative to root key
+     * @param name value name
+     * @param value value text
+     */
+    public void setStringValue(int rootHandle, String path, String name, String value) {
+        setValue(rootHandle, path, RegistryValue.ofString(name, value));
+    }
+
+    /**
+     * <p>Sets a numeric ({@code REG_DWORD}) value, creating the key if necessary.</p>
+     * @param rootHandle handle of a predefined root key
+     * @param path key path relative to root key
+     * @param name value name
+     * @param value value number
+     */
+    public void setIntValue(int rootHandle, String path, String name, int value) {
+        setValue(rootHandle, path, RegistryValue.ofInt(name, value));
+    }
+
+    /**
+     * <p>Deletes a value.</p>
+     * @param rootHandle handle of a predefined root key
+     * @param path key path relative to root key
+     * @param name value name
+     * @return {@code true} if value existed
+     */
+    public boolean deleteValue(int rootHandle, String path, String name) {
+        lock.writeLock().lock();
+        try {
+            Node node = findPath(rootNode(rootHandle), path);
+            if (node != null && node.values.remove(lowerCase(name)) != null) {
+                node.touch(tick(), REG_NOTIFY_CHANGE_LAST_SET);
+                return true;
+            }
+            return false;
+        } finally {
+            lock.writeLock().unlock();
+            signalChanges();
+        }
+    }
+
+    /**
+     * <p>Deletes a key with all its sub keys.</p>
+     * @param rootHandle handle of a predefined root key
+     * @param path key path relative to root key
+     * @return {@code true} if key existed
+     */
+    public boolean deleteKey(int rootHandle, String path) {
+        lock.writeLock().lock();
+        try {
+            Node node = findPath(rootNode(rootHandle), path);
+            if (node == null || node.parent == null) {
+                return false;
+            }
+            node.parent.children.remove(lowerCase(node.name));
+            node.parent.touch(tick(), REG_NOTIFY_CHANGE_NAME);
+            node.markDeleted();
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+            signalChanges();
+        }
+    }
+
+    /**
+     * @return number of handles currently open, events included, predefined root keys excluded
+     */
+    public int openHandleCount() {
+        return handles.size() - 3 + events.size();
+    }
+
+    //
+    // System calls
+    //
+
+    @Override
+    public int RegOpenKeyExA(int handle, String path, int options, int access, long[] result) {
+        lock.readLock().lock();
+        try {
+            Node parent = handles.get(handle);
+            if (parent == null) {
+                return ERROR_INVALID_HANDLE;
+            } else if (parent.deleted) {
+                return ERROR_KEY_DELETED;
+            }
+
+            Node node = findPath(parent, path);
+            if (node == null) {
+                return ERROR_NOT_FOUND;
+            }
+
+            int newHandle = nextHandle.getAndIncrement();
+            handles.put(newHandle, node);
+            result[0] = newHandle;
+            return ERROR_SUCCESS;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int RegQueryValueExA(int handle, String value, int[] ignore, int[] type, byte[] data, int[] size) {
+        lock.readLock().lock();
+        try {
+            Node node = handles.get(handle);
+            if (node == null) {
+                return ERROR_INVALID_HANDLE;
+            } else if (node.deleted) {
+                return ERROR_KEY_DELETED;
+            }
+
+            RegistryValue v = node.values.get(lowerCase(value == null ? "" : value));
+            if (v == null) {
+                return ERROR_NOT_FOUND;
+            }
+
+            return copyValue(v, type, data, size);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int RegEnumKeyExA(int handle, int index, byte[] name, int[] nameSize, int[] ignore,
+                             byte[] className, int[] classNameSize, long[] lastWriteTime) {
+        lock.readLock().lock();
+        try {
+            Node node = handles.get(handle);
+            if (node == null) {
+                return ERROR_INVALID_HANDLE;
+            } else if (node.deleted) {
+                return ERROR_KEY_DELETED;
+            }
+
+            List<Node> children = node.childList();
+            if (index < 0 || index >= children.size()) {
+                return ERROR_NO_MORE_ITEMS;
+            }
+
+            Node child = children.get(index);
+            int err = copyName(child.name, name, nameSize);
+            if (ERROR_SUCCESS == err) {
+                if (classNameSize != null) classNameSize[0] = 0;
+                if (lastWriteTime != null) lastWriteTime[0] = child.lastWriteTime;
+            }
+            return err;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int RegEnumValueA(int handle, int index, byte[] name, int[] nameSize, int[] ignore,
+                             int[] type, byte[] data, int[] size) {
+        lock.readLock().lock();
+        try {
+            Node node = handles.get(handle);
+            if (node == null) {
+                return ERROR_INVALID_HANDLE;
+            } else if (node.deleted) {
+                return ERROR_KEY_DELETED;
+            }
+
+            List<RegistryValue> values = node.valueList();
+            if (index < 0 || index >= values.size()) {
+                return ERROR_NO_MORE_ITEMS;
+            }
+
+            RegistryValue v = values.get(index);
+            int err = copyName(v.getName(), name, nameSize);
+            return (ERROR_SUCCESS == err ? copyValue(v, type, data, size) : err);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int RegQueryInfoKeyA(int handle, byte[] className, int[] classNameSize, int[] ignore,
+                                int[] subKeys, int[] maxSubKeyLen, int[] maxClassLen,
+                                int[] values, int[] maxValueNameLen, int[] maxValueLen,
+                                int[] securityDescriptor, long[] lastWriteTime) {
+        lock.readLock().lock();
+        try {
+            Node node = handles.get(handle);
+            if (node == null) {
+                return ERROR_INVALID_HANDLE;
+            } else if (node.deleted) {
+                return ERROR_KEY_DELETED;
+            }
+
+            int maxChildName = 0, maxName = 0, maxData = 0;
+            for (Node child : node.childList()) {
+                maxChildName = Math.max(maxChildName, child.name.length());
+            }
+            for (RegistryValue v : node.valueList()) {
+                maxName = Math.max(maxName, v.getName().length());
+                maxData = Math.max(maxData, v.getDataLength());
+            }
+
+            if (classNameSize != null) classNameSize[0] = 0;
+            if (subKeys != null) subKeys[0] = node.children.size();
+            if (maxSubKeyLen != null) maxSubKeyLen[0] = maxChildName;
+            if (maxClassLen != null) maxClassLen[0] = 0;
+            if (values != null) values[0] = node.values.size();
+            if (maxValueNameLen != null) maxValueNameLen[0] = maxName;
+            if (maxValueLen != null) maxValueLen[0] = maxData;
+            if (securityDescriptor != null) securityDescriptor[0] = 0;
+            if (lastWriteTime != null) lastWriteTime[0] = node.lastWriteTime;
+            return ERROR_SUCCESS;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public int RegCreateKeyExA(int handle, String path, int reserved, String className, int options,
+                               int access, int[] securityAttributes, long[] result, int[] disposition) {
+        lock.writeLock().lock();
+        try {
+            Node parent = handles.get(handle);
+            if (parent == null) {
+                return ERROR_INVALID_HANDLE;
+            } else if (parent.deleted) {
+                return ERROR_KEY_DELETED;
+            }
+
+            Node node = findPath(parent, path);
+            if (disposition != null) {
+                disposition[0] = (node == null ? REG_CREATED_NEW_KEY : REG_OPENED_EXISTING_KEY);
+            }
+            if (node == null) {
+                node = createPath(parent, path);
+            }
+
+            int newHandle = nextHandle.getAndIncrement();
+            handles.put(newHandle, node);
+            result[0] = newHandle;
+            return ERROR_SUCCESS;
+        } finally {
+            lock.writeLock().unlock();
+            signalChanges();
+        }
+    }
+
+    @Override
+    public int RegSetValueExA(int handle, String value, int reserved, int type, byte[] data, int size) {
+        lock.writeLock().lock();
+        try {
+            Node node = handles.get(handle);
+            if (node == null) {
+                return ERROR_INVALID_HANDLE;
+            } else if (node.deleted) {
+                return ERROR_KEY_DELETED;
+            } else if (size < 0 || size > (data == null ? 0 : data.length)) {
+                return ERROR_INVALID_PARAMETER;
+            }
+
+            String name = (value == null ? "" : value);
+            byte[] copy = (data == null ? new byte[0] : Arrays.copyOf(data, size));
+            node.values.put(lowerCase(name), new RegistryValue(name, type, copy));
+            node.touch(tick(), REG_NOTIFY_CHANGE_LAST_SET);
+            return ERROR_SUCCESS;
+        } finally {
+            lock.writeLock().unlock();
+            signalChanges();
+        }
+    }
+
+    @Override
+    public int RegDeleteKeyA(int handle, String path) {
+        lock.writeLock().lock();
+        try {
+            Node parent = handles.get(handle);
+            if (parent == null) {
+                return ERROR_INVALID_HANDLE;
+            } else if (parent.deleted) {
+                return ERROR_KEY_DELETED;
+            }
+
+            Node node = findPath(parent, path);
+            if (node == null) {
+                return ERROR_NOT_FOUND;
+            } else if (node.parent == null || !node.children.isEmpty()) {
+                // predefined keys and keys having sub keys cannot be deleted
+                return ERROR_ACCESS_DENIED;
+            }
+
+            node.parent.children.remove(lowerCase(node.name));
+            node.parent.touch(tick(), REG_NOTIFY_CHANGE_NAME);
+            node.markDeleted();
+            return ERROR_SUCCESS;
+        } finally {
+            lock.writeLock().unlock();
+            signalChanges();
+        }
+    }
+
+    @Override
+    public int RegDeleteValueA(int handle, String value) {
+        lock.writeLock().lock();
+        try {
+            Node node = handles.get(handle);
+            if (node == null) {
+                return ERROR_INVALID_HANDLE;
+            } else if (node.deleted) {
+                return ERROR_KEY_DELETED;
+            } else if (node.values.remove(lowerCase(value == null ? "" : value)) == null) {
+                return ERROR_NOT_FOUND;
+            }
+
+            node.touch(tick(), REG_NOTIFY_CHANGE_LAST_SET);
+            return ERROR_SUCCESS;
+        } finally {
+            lock.writeLock().unlock();
+            signalChanges();
+        }
+    }
+
+    /**
+     * <p>Waits for a change of the key or, with {@code asynchronous} set, arranges for
+     * the event to be signalled on the change. Changes of names (sub keys added or
+     * deleted) and of values are told apart, other filter bits are ignored. The wait
+     * also ends, and the event is signalled as well, when the key is deleted or its
+     * handle is closed. The synchronous wait cannot be interrupted.</p>
+     */
+    @Override
+    public int RegNotifyChangeKeyValue(int handle, boolean watchSubtree, int notifyFilter,
+                                       int event, boolean asynchronous) {
+        if (asynchronous) {
+            synchronized (changeMonitor) {
+                Node node = handles.get(handle);
+                if (node == null || !events.containsKey(event)) {
+                    return ERROR_INVALID_HANDLE;
+                } else if (node.deleted) {
+                    return ERROR_KEY_DELETED;
+                }
+                notifications.add(new Notification(handle, node, notifyFilter, watchSubtree, event));
+                return ERROR_SUCCESS;
+            }
+        }
+
+        boolean interrupted = false;
+        try {
+            synchronized (changeMonitor) {
+                Node node = handles.get(handle);
+                if (node == null) {
+                    return ERROR_INVALID_HANDLE;
+                } else if (node.deleted) {
+                    return ERROR_KEY_DELETED;
+                }
+
+                long stamp = node.changeStamp(notifyFilter, watchSubtree);
+                while (handles.get(handle) == node && !node.deleted
+                        && node.changeStamp(notifyFilter, watchSubtree) == stamp) {
+                    try {
+                        changeMonitor.wait();
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+                return ERROR_SUCCESS;
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public int RegCloseKey(int handle) {
+        if (handle < FIRST_HANDLE) {
+            // predefined keys are never actually closed
+            return (handles.containsKey(handle) ? ERROR_SUCCESS : ERROR_INVALID_HANDLE);
+        }
+        if (handles.remove(handle) == null) {
+            return ERROR_INVALID_HANDLE;
+        }
+        // wakes up whoever waits for changes using this handle
+        signalChanges();
+        return ERROR_SUCCESS;
+    }
+
+    @Override
+    public int CreateEventA(int[] securityAttributes, boolean manualReset, boolean initialState, String name) {
+        synchronized (changeMonitor) {
+            int newHandle = nextHandle.getAndIncrement();
+            events.put(newHandle, new Event(manualReset, initialState));
+            return newHandle;
+        }
+    }
+
+    @Override
+    public int SetEvent(int handle) {
+        synchronized (changeMonitor) {
+            Event event = events.get(handle);
+            if (event == null) {
+                return fail(ERROR_INVALID_HANDLE);
+            }
+            event.signalled = true;
+            changeMonitor.notifyAll();
+            return 1;
+        }
+    }
+
+    /**
+     * <p>Waits for simulated events only; waiting for keys or other handles fails.</p>
+     */
+    @Override
+    public int WaitForMultipleObjects(int count, int[] handles, boolean waitAll, int milliseconds) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(milliseconds & 0xFFFFFFFFL);
+        boolean interrupted = false;
+        try {
+            synchronized (changeMonitor) {
+                while (true) {
+                    int first = -1, signalled = 0;
+                    for (int i = 0; i < count; i++) {
+                        Event event = events.get(handles[i]);
+                        if (event == null) {
+                            fail(ERROR_INVALID_HANDLE);
+                            return WAIT_FAILED;
+                        } else if (event.signalled) {
+                            first = (first < 0 ? i : first);
+                            signalled++;
+                        }
+                    }
+
+                    if (waitAll ? signalled == count : first >= 0) {
+                        // the wait consumes signals of auto-reset events
+                        for (int i = (waitAll ? 0 : first); i < (waitAll ? count : first + 1); i++) {
+                            Event event = events.get(handles[i]);
+                            event.signalled &= event.manualReset;
+                        }
+                        return WAIT_OBJECT_0 + (waitAll ? 0 : first);
+                    }
+
+                    try {
+                        if (INFINITE == milliseconds) {
+                            changeMonitor.wait();
+                        } else {
+                            long remaining = deadline - System.nanoTime();
+                            if (remaining <= 0) {
+                                return WAIT_TIMEOUT;
+                            }
+                            TimeUnit.NANOSECONDS.timedWait(changeMonitor, remaining);
+                        }
+                    } catch (InterruptedException e) {
+                        interrupted = true;
+                    }
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    @Override
+    public int CloseHandle(int handle) {
+        synchronized (changeMonitor) {
+            if (events.remove(handle) == null) {
+                return fail(ERROR_INVALID_HANDLE);
+            }
+            // wakes up whoever waits for the event, to fail
+            changeMonitor.notifyAll();
+            return 1;
+        }
+    }
+
+    @Override
+    public int GetLastError() {
+        return lastError.get()[0];
+    }
+
+    //
+    // Internals
+    //
+
+    private void signalChanges() {
+        synchronized (changeMonitor) {
+            for (Iterator<Notification> it = notifications.iterator(); it.hasNext(); ) {
+                Notification notification = it.next();
+                if (notification.isDue()) {
+                    it.remove();
+                    Event event = events.get(notification.event);
+                    if (event != null) {
+                        event.signalled = true;
+                    }
+                }
+            }
+            changeMonitor.notifyAll();
+        }
+    }
+
+    /** Records the error of a failed call returning {@code FALSE}, for {@link #GetLastError()} */
+    private int fail(int errorCode) {
+        lastError.get()[0] = errorCode;
+        return 0;
+    }
+
+    private long tick() {
+        long now = System.currentTimeMillis() * 10000L + FILETIME_UNIX_EPOCH_OFFSET;
+        return clock.accumulateAndGet(now, (prev, current) -> Math.max(prev + 1, current));
+    }
+
+    private Node rootNode(int rootHandle) {
+        Node root = (rootHandle < FIRST_HANDLE ? handles.get(rootHandle) : null);
+        if (root == null) {
+            throw new IllegalArgumentException("Not a predefined key: 0x" + Integer.toHexString(rootHandle));
+        }
+        return root;
+    }
+
+    private Node findPath(Node node, String path) {
+        for (String segment : segments(path)) {
+            node = node.children.get(lowerCase(segment));
+            if (node == null) {
+                return null;
+            }
+        }
+        return node;
+    }
+
+    private Node createPath(Node node, String path) {
+        for (String segment : segments(path)) {
+            Node child = node.children.get(lowerCase(segment));
+            if (child == null) {
+                long time = tick();
+                child = new Node(node, segment, time);
+                node.children.put(lowerCase(segment), child);
+                node.touch(time, REG_NOTIFY_CHANGE_NAME);
+            }
+            node = child;
+        }
+        return node;
+    }
+
+    private static List<String> segments(String path) {
+        List<String> result = new ArrayList<>();
+        if (path != null) {
+            for (String segment : path.split("[\\\\/]")) {
+                if (!segment.isEmpty()) {
+                    result.add(segment);
+                }
+            }
+        }
+        return result;
+    }
+
+    private static String lowerCase(String s) {
+        return s.toLowerCase(Locale.ROOT);
+    }
+
+    private static int copyName(String s, byte[] name, int[] nameSize) {
+        byte[] bytes = s.getBytes();
+        if (name == null || nameSize == null || nameSize[0] < bytes.length + 1 || name.length < bytes.length + 1) {
+            return ERROR_MORE_DATA;
+        }
+        System.arraycopy(bytes, 0, name, 0, bytes.length);
+        name[bytes.length] = 0;
+        nameSize[0] = bytes.length;
+        return ERROR_SUCCESS;
+    }
+
+    private static int copyValue(RegistryValue v, int[] type, byte[] data, int[] size) {
+        if (type != null) {
+            type[0] = v.getType();
+        }
+
+        int length = v.getDataLength();
+        if (data != null) {
+            if (size == null || size[0] < length || data.length < length) {
+                if (size != null) size[0] = length;
+                return ERROR_MORE_DATA;
+            }
+            System.arraycopy(v.getData(), 0, data, 0, length);
+        }
+
+        if (size != null) {
+            size[0] = length;
+        }
+        return ERROR_SUCCESS;
+    }
+
+    /** Simulated event object */
+    private static final class Event {
+        final boolean manualReset;
+        boolean signalled;
+
+        Event(boolean manualReset, boolean signalled) {
+            this.manualReset = manualReset;
+            this.signalled = signalled;
+        }
+    }
+
+    /** Change notification armed with an event */
+    private final class Notification {
+        final int handle;
+        final Node node;
+        final int filter;
+        final boolean subtree;
+        final long stamp;
+        final int event;
+
+        Notification(int handle, Node node, int filter, boolean subtree, int event) {
+            this.handle = handle;
+            this.node = node;
+            this.filter = filter;
+            this.subtree = subtree;
+            this.stamp = node.changeStamp(filter, subtree);
+            this.event = event;
+        }
+
+        boolean isDue() {
+            return handles.get(handle) != node || node.deleted || node.changeStamp(filter, subtree) != stamp;
+        }
+    }
+
+    /** Simulated registry key */
+    private static final class Node {
+        final Node parent;
+        final String name;
+        final Map<String, Node> children = new LinkedHashMap<>();
+        final Map<String, RegistryValue> values = new LinkedHashMap<>();
+        volatile long lastWriteTime;
+        volatile boolean deleted;
+
+        // numbers of changes of this key and of its whole subtree, by kind
+        volatile long nameChanges;
+        volatile long valueChanges;
+        volatile long subtreeNameChanges;
+        volatile long subtreeValueChanges;
+
+        // enumeration snapshots, dropped on every modification
+        volatile List<Node> childList;
+        volatile List<RegistryValue> valueList;
+
+        Node(Node parent, String name, long lastWriteTime) {
+            this.parent = parent;
+            this.name = name;
+            this.lastWriteTime = lastWriteTime;
+        }
+
+        void touch(long time, int change) {
+            lastWriteTime = time;
+            childList = null;
+            valueList = null;
+            // modified under the write lock only
+            if (REG_NOTIFY_CHANGE_NAME == change) {
+                nameChanges++;
+                for (Node node = this; node != null; node = node.parent) {
+                    node.subtreeNameChanges++;
+                }
+            } else {
+                valueChanges++;
+                for (Node node = this; node != null; node = node.parent) {
+                    node.subtreeValueChanges++;
+                }
+            }
+        }
+
+        long changeStamp(int filter, boolean subtree) {
+            long stamp = 0;
+            if ((filter & REG_NOTIFY_CHANGE_NAME) != 0) {
+                stamp += (subtree ? subtreeNameChanges : nameChanges);
+            }
+            if ((filter & REG_NOTIFY_CHANGE_LAST_SET) != 0) {
+                stamp += (subtree ? subtreeValueChanges : valueChanges);
+            }
+            return stamp;
+        }
+
+        void markDeleted() {
+            deleted = true;
+            for (Node child : children.values()) {
+                child.markDeleted();
+            }
+        }
+
+        List<Node> childList() {
+            List<Node> list = childList;
+            if (list == null) {
+                childList = list = Collections.unmodifiableList(new ArrayList<>(children.values()));
+            }
+            return list;
+        }
+
+        List<RegistryValue> valueList() {
+            List<RegistryValue> list = valueList;
+            if (list == null) {
+                valueList = list = Collections.unmodifiableList(new ArrayList<>(values.values()));
+            }
+            return list;
+        }
+    }
+}
@@ -0,0 +1,765 @@
+/*
+ * Copyright (c) 2016 Twowls.org.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.twowls.gatesmates.registry.cache;
+
+import org.twowls.gatesmates.registry.Registry;
+import org.twowls.gatesmates.registry.RegistryConst;
+import org.twowls.gatesmates.registry.RegistryException;
+import org.twowls.gatesmates.registry.RegistryValue;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.BitSet;
+import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * <p>Cache of registry values shared by all processes on a host through a memory
+ * mapped file.</p>
+ *
+ * <p>The file holds a fixed number of fixed size slots, each holding a single value
+ * (or the fact that it does not exist) together with the time it was read. Slots are
+ * versioned seqlock style: a writer makes the version odd while changing a slot and
+ * even again when done, and a reader accepts what it copied only if the version was
+ * the same even number before and after copying. Readers thus never block nor write
+ * anything, and retry at most a few times before treating a slot as a miss.</p>
+ *
+ * <p>Only one of the processes sharing the file writes slots: the one holding an
+ * exclusive lock on the file, which every instance tries to take on each
+ * {@link #refresh()}. When the writer exits the operating system releases its lock
+ * and another process takes over. The writer serves values other processes missed or
+ * found close to expiry, which they post to a small request ring in the same file, so
+ * only values still being read are re-read. Slots not requested for several maximum
+ * ages are cleared. On a miss, non-writers read the registry directly, so a cache
+ * without a live writer degrades to plain registry reads once its entries expire.</p>
+ *
+ * <p>Values are identified by root key, key path and value name, all case insensitive.
+ * Only {@link Registry#KEY_LOCAL_MACHINE} and {@link Registry#KEY_CURRENT_USER} are
+ * supported as root keys; since the latter differs by user, a file caching it must
+ * not be shared between users. Values too large for a slot are not cached.</p>
+ *
+ * @author bubo &lt;bubo@twowls.org&gt;
+ */
+public class SharedValueCache implements Closeable, RegistryConst {
+
+    /** Default number of slots */
+    public static final int DEFAULT_SLOT_COUNT = 4096;
+    /** Default size of a slot in bytes, including its header */
+    public static final int DEFAULT_SLOT_SIZE = 512;
+
+    private static final VarHandle LONG_VIEW =
+            MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+    private static final int MAGIC = 0x47435631;
+    private static final int FORMAT_VERSION = 1;
+    private static final int PAGE_SIZE = 4096;
+    private static final long INIT_LOCK_POSITION = 0;
+    private static final long WRITER_LOCK_POSITION = 1;
+
+    // header: magic, version, slot count, slot size, request cursor, request count, writer heartbeat
+    private static final int HEADER_MAGIC = 0;
+    private static final int HEADER_VERSION = 4;
+    private static final int HEADER_SLOT_COUNT = 8;
+    private static final int HEADER_SLOT_SIZE = 12;
+    private static final int HEADER_REQUEST_CURSOR = 16;
+    private static final int HEADER_REQUEST_COUNT = 24;
+    private static final int HEADER_HEARTBEAT = 32;
+    private static final int HEADER_SIZE = 64;
+
+    // request: state, identity length, identity
+    private static final int REQUEST_COUNT = 256;
+    private static final int REQUEST_SIZE = 256;
+    private static final int REQUEST_IDENTITY = 12;
+    private static final long REQUEST_FREE = 0;
+    private static final long REQUEST_FILLING = 1;
+    private static final long REQUEST_READY = 2;
+
+    // slot: version, hash, time of reading, status, type, identity length, data length, identity, data
+    private static final int SLOT_HASH = 8;
+    private static final int SLOT_STORED_AT = 16;
+    private static final int SLOT_STATUS = 24;
+    private static final int SLOT_TYPE = 28;
+    private static final int SLOT_IDENTITY_LENGTH = 32;
+    private static final int SLOT_DATA_LENGTH = 36;
+    private static final int SLOT_HEADER_SIZE = 40;
+    private static final int STATUS_EMPTY = 0;
+    private static final int STATUS_PRESENT = 1;
+    private static final int STATUS_MISSING = 2;
+
+    private static final int PROBE_LIMIT = 8;
+    private static final int READ_ATTEMPTS = 16;
+    private static final int EVICTION_MAX_AGES = 4;
+    private static final int REQUESTED_VERSION_COUNT = 256;
+
+    // file locks are held per JVM, instances within one JVM must not race for them
+    private static final Object INIT_MONITOR = new Object();
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int slotCount;
+    private final int slotSize;
+    private final int slotsOffset;
+    private final Object writeMonitor = new Object();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final BitSet stuckRequests = new BitSet(REQUEST_COUNT);
+    // slot versions this instance asked to refresh, racy as requests are mere hints
+    private final long[] requestedVersions = new long[REQUESTED_VERSION_COUNT];
+
+    private volatile FileLock writerLock;
+    private volatile boolean closed;
+    private long refreshIntervalMillis = 1000;
+    private long maxAgeMillis = 5000;
+    private ScheduledExecutorService refresher;
+
+    private SharedValueCache(FileChannel channel, MappedByteBuffer buffer) {
+        this.channel = channel;
+        this.buffer = buffer;
+        this.slotCount = buffer.getInt(HEADER_SLOT_COUNT);
+        this.slotSize = buffer.getInt(HEADER_SLOT_SIZE);
+        this.slotsOffset = slotsOffset(buffer.getInt(HEADER_REQUEST_COUNT));
+    }
+
+    /**
+     * <p>Opens the cache file with default geometry, creating it if necessary.</p>
+     * @param file path of the cache file
+     * @return an open cache
+     * @throws IOException if the file cannot be created, mapped or has unknown format
+     */
+    public static SharedValueCache open(Path file) throws IOException {
+        return open(file, DEFAULT_SLOT_COUNT, DEFAULT_SLOT_SIZE);
+    }
+
+    /**
+     * <p>Opens the cache file, creating it if necessary. Geometry of an existing file
+     * is retained, whatever the arguments.</p>
+     * @param file path of the cache file
+     * @param slotCount number of slots of a new file
+     * @param slotSize size of a slot of a new file in bytes, a multiple of 8
+     * @return an open cache
+     * @throws IOException if the file cannot be created, mapped or has unknown format
+     */
+    public static SharedValueCache open(Path file, int slotCount, int slotSize) throws IOException {
+        if (slotCount < 1) {
+            throw new IllegalArgumentException("At least one slot is required");
+        }
+        if (slotSize < SLOT_HEADER_SIZE + 64 || slotSize % 8 != 0) {
+            throw new IllegalArgumentException("Slot size must be a multiple of 8 of at least "
+                    + (SLOT_HEADER_SIZE + 64));
+        }
+
+        FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        try {
+            synchronized (INIT_MONITOR) {
+                FileLock lock = channel.lock(INIT_LOCK_POSITION, 1, false);
+                try {
+                    if (channel.size() < HEADER_SIZE || map(channel, HEADER_SIZE).getInt(HEADER_MAGIC) == 0) {
+                        initialize(channel, slotCount, slotSize);
+                    }
+                } finally {
+                    lock.release();
+                }
+            }
+
+            MappedByteBuffer header = map(channel, HEADER_SIZE);
+            if (header.getInt(HEADER_MAGIC) != MAGIC || header.getInt(HEADER_VERSION) != FORMAT_VERSION) {
+                throw new IOException("Unknown format of shared cache file " + file);
+            }
+            long size = (long) slotsOffset(header.getInt(HEADER_REQUEST_COUNT))
+                    + (long) header.getInt(HEADER_SLOT_COUNT) * header.getInt(HEADER_SLOT_SIZE);
+            if (size > Integer.MAX_VALUE || channel.size() < size) {
+                throw new IOException("Corrupt shared cache file " + file);
+            }
+            return new SharedValueCache(channel, map(channel, (int) size));
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @param refreshInterval interval of writer cycles, 1 second by default; values read
+     *                        within this interval of their maximum age are requested to be
+     *                        re-read, and the writer re-reads requested values at least
+     *                        this old
+     */
+    public void setRefreshInterval(Duration refreshInterval) {
+        if (refreshInterval.isNegative()) {
+            throw new IllegalArgumentException("Refresh interval must not be negative");
+        }
+        this.refreshIntervalMillis = refreshInterval.toMillis();
+    }
+
+    /**
+     * @param maxAge age after which cached values are no longer returned, 5 seconds by default;
+     *               the writer clears values not re-read for four times
+     *               this age
+     */
+    public void setMaxAge(Duration maxAge) {
+        if (maxAge.isNegative()) {
+            throw new IllegalArgumentException("Maximum age must not be negative");
+        }
+        this.maxAgeMillis = maxAge.toMillis();
+    }
+
+    /**
+     * <p>Starts a background daemon thread calling {@link #refresh()} at the
+     * refresh interval.</p>
+     */
+    public synchronized void start() {
+        if (refresher == null && !closed) {
+            refresher = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "gatesmates-shared-cache");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long period = Math.max(1, refreshIntervalMillis);
+            refresher.scheduleWithFixedDelay(this::refreshQuietly, 0, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * <p>Reads a value, from the cache if a fresh enough copy is there.</p>
+     * @param rootKey {@link Registry#KEY_LOCAL_MACHINE} or {@link Registry#KEY_CURRENT_USER}
+     * @param subPath path of the key holding the value, relative to root key
+     * @param valueName name of the value
+     * @return the value
+     * @throws RegistryException with {@code ERROR_NOT_FOUND} if either key or value does not
+     *                           exist, or if the registry could not be read
+     */
+    public RegistryValue queryValue(Registry.Key rootKey, String subPath, String valueName)
+            throws RegistryException {
+        Objects.requireNonNull(subPath, "Sub key path must not be null");
+        Objects.requireNonNull(valueName, "Value name must not be null");
+        byte[] identity = identity(rootKey, subPath, valueName);
+        long hash = hash(identity);
+
+        Entry entry = lookup(identity, hash);
+        long age = (entry == null ? 0 : System.currentTimeMillis() - entry.storedAt);
+        if (entry != null && age <= maxAgeMillis) {
+            hits.increment();
+            if (age >= maxAgeMillis - refreshIntervalMillis) {
+                requestRefresh(identity, hash, entry.version);
+            }
+            if (entry.status == STATUS_MISSING) {
+                throw notFound(subPath, valueName);
+            }
+            return new RegistryValue(valueName, entry.type, entry.data);
+        }
+
+        misses.increment();
+        if (writerLock != null) {
+            return load(identity, hash, rootKey, subPath, valueName);
+        }
+
+        postRequest(identity);
+        return read(rootKey, subPath, valueName);
+    }
+
+    /**
+     * <p>Runs a single cycle of this instance: tries to become the writer unless it
+     * already is, and if it is, serves values requested by readers and clears values
+     * nobody requested for long.</p>
+     * @return {@code true} if this instance is the writer
+     * @throws IOException if the file lock could not be taken due to an I/O error
+     */
+    public boolean refresh() throws IOException {
+        if (closed) {
+            return false;
+        }
+        if (writerLock == null && !tryBecomeWriter()) {
+            return false;
+        }
+
+        synchronized (writeMonitor) {
+            LONG_VIEW.setRelease(buffer, HEADER_HEARTBEAT, System.currentTimeMillis());
+            serveRequests();
+            evictEntries();
+        }
+        return true;
+    }
+
+    /**
+     * @return {@code true} if this instance currently is the writer
+     */
+    public boolean isWriter() {
+        return writerLock != null;
+    }
+
+    /**
+     * @return number of reads served from the cache
+     */
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    /**
+     * @return number of reads that had to go to the registry
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * @return time the writer last completed a cycle, in milliseconds since epoch, or zero
+     */
+    public long getWriterHeartbeat() {
+        return (long) LONG_VIEW.getAcquire(buffer, HEADER_HEARTBEAT);
+    }
+
+    /**
+     * <p>Stops the background thread and gives up the writer role. The file stays
+     * mapped until this instance is garbage collected.</p>
+     * @throws IOException if the file could not be closed
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+            if (refresher != null) {
+                refresher.shutdownNow();
+            }
+        }
+        synchronized (writeMonitor) {
+            writerLock = null;
+            channel.close();
+        }
+    }
+
+    //
+    // Writer side
+    //
+
+    private boolean tryBecomeWriter() throws IOException {
+        synchronized (INIT_MONITOR) {
+            try {
+                writerLock = channel.tryLock(WRITER_LOCK_POSITION, 1, false);
+            } catch (OverlappingFileLockException e) {
+                // another instance in this JVM is the writer
+                writerLock = null;
+            }
+        }
+        return writerLock != null;
+    }
+
+    private void refreshQuietly() {
+        try {
+            refresh();
+        } catch (IOException | RuntimeException e) {
+            // next cycle tries again, readers are not affected
+        }
+    }
+
+    private void serveRequests() {
+        for (int i = 0; i < REQUEST_COUNT; i++) {
+            int offset = HEADER_SIZE + i * REQUEST_SIZE;
+            long state = (long) LONG_VIEW.getAcquire(buffer, offset);
+            if (state == REQUEST_FILLING) {
+                // a process died while posting, reclaim the entry once seen twice
+                if (stuckRequests.get(i)) {
+                    LONG_VIEW.compareAndSet(buffer, offset, REQUEST_FILLING, REQUEST_FREE);
+                    stuckRequests.clear(i);
+                } else {
+                    stuckRequests.set(i);
+                }
+                continue;
+            }
+            stuckRequests.clear(i);
+            if (state != REQUEST_READY) {
+                continue;
+            }
+
+            int length = buffer.getInt(offset + 8);
+            if (length < 0 || length > REQUEST_SIZE - REQUEST_IDENTITY) {
+                LONG_VIEW.setRelease(buffer, offset, REQUEST_FREE);
+                continue;
+            }
+            byte[] identity = new byte[length];
+            for (int j = 0; j < identity.length; j++) {
+                identity[j] = buffer.get(offset + REQUEST_IDENTITY + j);
+            }
+            LONG_VIEW.setRelease(buffer, offset, REQUEST_FREE);
+
+            // posted by another process, so checked like anything read from the file
+            String[] parts = parseIdentity(identity);
+            if (parts == null) {
+                continue;
+            }
+            // values are requested repeatedly until re-read, only the first request is served
+            long hash = hash(identity);
+            Entry entry = lookup(identity, hash);
+            if (entry == null || System.currentTimeMillis() - entry.storedAt >= refreshIntervalMillis) {
+                loadQuietly(identity, hash, parts);
+            }
+        }
+    }
+
+    private void evictEntries() {
+        long now = System.currentTimeMillis();
+        long evictionAge = (maxAgeMillis > Long.MAX_VALUE / EVICTION_MAX_AGES ?
+                Long.MAX_VALUE : maxAgeMillis * EVICTION_MAX_AGES);
+        for (int slot = 0; slot < slotCount; slot++) {
+            int offset = slotOffset(slot);
+            long version = (long) LONG_VIEW.getAcquire(buffer, offset);
+            // only the writer changes slots, so one being changed was left so by a writer that died
+            if ((version & 1) == 0) {
+                if (buffer.getInt(offset + SLOT_STATUS) == STATUS_EMPTY) {
+                    continue;
+                }
+                if (now - buffer.getLong(offset + SLOT_STORED_AT) < evictionAge && isIdentityValid(offset)) {
+                    continue;
+                }
+            }
+            clearSlot(offset);
+        }
+    }
+
+    /**
+     * @return {@code true} if identity held by the slot is consistent with its length and hash
+     */
+    private boolean isIdentityValid(int offset) {
+        int length = buffer.getInt(offset + SLOT_IDENTITY_LENGTH);
+        if (length < 0 || length > slotSize - SLOT_HEADER_SIZE) {
+            return false;
+        }
+        // same as hash(byte[]), without copying the identity
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < length; i++) {
+            hash = (hash ^ (buffer.get(offset + SLOT_HEADER_SIZE + i) & 0xff)) * 0x100000001b3L;
+        }
+        return hash == buffer.getLong(offset + SLOT_HASH);
+    }
+
+    private void clearSlot(int offset) {
+        long version = beginWrite(offset);
+        buffer.putLong(offset + SLOT_HASH, 0);
+        buffer.putLong(offset + SLOT_STORED_AT, 0);
+        buffer.putInt(offset + SLOT_STATUS, STATUS_EMPTY);
+        buffer.putInt(offset + SLOT_TYPE, REG_NONE);
+        buffer.putInt(offset + SLOT_IDENTITY_LENGTH, 0);
+        buffer.putInt(offset + SLOT_DATA_LENGTH, 0);
+        endWrite(offset, version);
+    }
+
+    private void loadQuietly(byte[] identity, long hash, String[] parts) {
+        Registry.Key rootKey = ("M".equals(parts[0]) ? Registry.KEY_LOCAL_MACHINE : Registry.KEY_CURRENT_USER);
+        try {
+            load(identity, hash, rootKey, parts[1], parts[2]);
+        } catch (RegistryException e) {
+            // a value that cannot be read is left to expire
+        }
+    }
+
+    /**
+     * <p>Reads a value and stores the result. The registry is read without holding the
+     * write monitor, so that misses neither wait for each other nor for a refresh.</p>
+     */
+    private RegistryValue load(byte[] identity, long hash, Registry.Key rootKey, String subPath,
+                               String valueName) throws RegistryException {
+        RegistryValue value;
+        try {
+            value = read(rootKey, subPath, valueName);
+        } catch (RegistryException e) {
+            if (ERROR_NOT_FOUND == e.getErrorCode()) {
+                storeAsWriter(identity, hash, STATUS_MISSING, REG_NONE, new byte[0]);
+            }
+            throw e;
+        }
+        storeAsWriter(identity, hash, STATUS_PRESENT, value.getType(), value.getData());
+        return value;
+    }
+
+    private void storeAsWriter(byte[] identity, long hash, int status, int type, byte[] data) {
+        synchronized (writeMonitor) {
+            // the role may have been given up while reading
+            if (writerLock != null) {
+                store(identity, hash, status, type, data);
+            }
+        }
+    }
+
+    private void store(byte[] identity, long hash, int status, int type, byte[] data) {
+        if (closed || identity.length + data.length > slotSize - SLOT_HEADER_SIZE) {
+            return;
+        }
+
+        // the slot already holding this value, or the first empty one, or the oldest one
+        int target = -1;
+        long oldest = Long.MAX_VALUE;
+        for (int probe = 0; probe < Math.min(PROBE_LIMIT, slotCount); probe++) {
+            int slot = (int) Long.remainderUnsigned(hash + probe, slotCount);
+            int offset = slotOffset(slot);
+            int slotStatus = buffer.getInt(offset + SLOT_STATUS);
+            if (slotStatus == STATUS_EMPTY) {
+                if (oldest != Long.MIN_VALUE) {
+                    target = slot;
+                    oldest = Long.MIN_VALUE;
+                }
+            } else if (buffer.getLong(offset + SLOT_HASH) == hash && identityMatches(offset, identity)) {
+                target = slot;
+                break;
+            } else if (buffer.getLong(offset + SLOT_STORED_AT) < oldest) {
+                target = slot;
+                oldest = buffer.getLong(offset + SLOT_STORED_AT);
+            }
+        }
+
+        int offset = slotOffset(target);
+        long version = beginWrite(offset);
+        buffer.putLong(offset + SLOT_HASH, hash);
+        buffer.putLong(offset + SLOT_STORED_AT, System.currentTimeMillis());
+        buffer.putInt(offset + SLOT_STATUS, status);
+        buffer.putInt(offset + SLOT_TYPE, type);
+        buffer.putInt(offset + SLOT_IDENTITY_LENGTH, identity.length);
+        buffer.putInt(offset + SLOT_DATA_LENGTH, data.length);
+        for (int i = 0; i < identity.length; i++) {
+            buffer.put(offset + SLOT_HEADER_SIZE + i, identity[i]);
+        }
+        for (int i = 0; i < data.length; i++) {
+            buffer.put(offset + SLOT_HEADER_SIZE + identity.length + i, data[i]);
+        }
+        endWrite(offset, version);
+    }
+
+    /**
+     * <p>Makes the slot version odd, telling readers the slot is being changed.</p>
+     * @return the even version the slot is changed from
+     */
+    private long beginWrite(int offset) {
+        long version = (long) LONG_VIEW.getOpaque(buffer, offset);
+        // a writer that died while writing left the version odd
+        version += (version & 1);
+        LONG_VIEW.setOpaque(buffer, offset, version + 1);
+        VarHandle.storeStoreFence();
+        return version;
+    }
+
+    private void endWrite(int offset, long version) {
+        LONG_VIEW.setRelease(buffer, offset, version + 2);
+    }
+
+    private boolean identityMatches(int offset, byte[] identity) {
+        if (buffer.getInt(offset + SLOT_IDENTITY_LENGTH) != identity.length) {
+            return false;
+        }
+        for (int i = 0; i < identity.length; i++) {
+            if (buffer.get(offset + SLOT_HEADER_SIZE + i) != identity[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //
+    // Reader side
+    //
+
+    private Entry lookup(byte[] identity, long hash) {
+        for (int probe = 0; probe < Math.min(PROBE_LIMIT, slotCount); probe++) {
+            int offset = slotOffset((int) Long.remainderUnsigned(hash + probe, slotCount));
+            for (int attempt = 0; attempt < READ_ATTEMPTS; attempt++) {
+                long version = (long) LONG_VIEW.getAcquire(buffer, offset);
+                if ((version & 1) != 0) {
+                    Thread.onSpinWait();
+                    continue;
+                }
+
+                Entry entry = copy(offset, version, identity, hash);
+                VarHandle.loadLoadFence();
+                if ((long) LONG_VIEW.getOpaque(buffer, offset) != version) {
+                    continue;
+                }
+                if (entry != null) {
+                    return entry;
+                }
+                break;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return copy of the slot if it holds the given value, or {@code null}; contents of
+     * a slot being written are arbitrary, hence the bounds checks
+     */
+    private Entry copy(int offset, long version, byte[] identity, long hash) {
+        int status = buffer.getInt(offset + SLOT_STATUS);
+        if (status == STATUS_EMPTY || buffer.getLong(offset + SLOT_HASH) != hash
+                || !identityMatches(offset, identity)) {
+            return null;
+        }
+        int dataLength = buffer.getInt(offset + SLOT_DATA_LENGTH);
+        if (dataLength < 0 || dataLength > slotSize - SLOT_HEADER_SIZE - identity.length) {
+            return null;
+        }
+
+        byte[] data = new byte[dataLength];
+        for (int i = 0; i < dataLength; i++) {
+            data[i] = buffer.get(offset + SLOT_HEADER_SIZE + identity.length + i);
+        }
+        return new Entry(version, status, buffer.getInt(offset + SLOT_TYPE),
+                buffer.getLong(offset + SLOT_STORED_AT), data);
+    }
+
+    /**
+     * <p>Asks the writer to re-read a value before it expires, once per version of the
+     * slot holding it, so that a value read often does not flood the request ring.</p>
+     */
+    private void requestRefresh(byte[] identity, long hash, long version) {
+        int index = (int) Long.remainderUnsigned(hash, REQUESTED_VERSION_COUNT);
+        long mark = hash ^ version;
+        if (requestedVersions[index] != mark) {
+            requestedVersions[index] = mark;
+            postRequest(identity);
+        }
+    }
+
+    private void postRequest(byte[] identity) {
+        if (identity.length > REQUEST_SIZE - REQUEST_IDENTITY || closed) {
+            return;
+        }
+
+        long ticket = (long) LONG_VIEW.getAndAdd(buffer, HEADER_REQUEST_CURSOR, 1L);
+        int offset = HEADER_SIZE + (int) Long.remainderUnsigned(ticket, REQUEST_COUNT) * REQUEST_SIZE;
+        // requests are mere hints, one that finds its entry busy is dropped
+        if (LONG_VIEW.compareAndSet(buffer, offset, REQUEST_FREE, REQUEST_FILLING)) {
+            buffer.putInt(offset + 8, identity.length);
+            for (int i = 0; i < identity.length; i++) {
+                buffer.put(offset + REQUEST_IDENTITY + i, identity[i]);
+            }
+            LONG_VIEW.setRelease(buffer, offset, REQUEST_READY);
+        }
+    }
+
+    //
+    // Helpers
+    //
+
+    private static RegistryValue read(Registry.Key rootKey, String subPath, String valueName)
+            throws RegistryException {
+        try (Registry.Key key = Registry.openKey(rootKey, subPath)) {
+            return key.queryValue(valueName);
+        }
+    }
+
+    private static RegistryException notFound(String subPath, String valueName) {
+        return new RegistryException(ERROR_NOT_FOUND, "Value '" + valueName + "' of key '" + subPath
+                + "' does not exist (cached)");
+    }
+
+    private static byte[] identity(Registry.Key rootKey, String subPath, String valueName) {
+        String root;
+        if (rootKey == Registry.KEY_LOCAL_MACHINE) {
+            root = "M";
+        } else if (rootKey == Registry.KEY_CURRENT_USER) {
+            root = "U";
+        } else {
+            throw new IllegalArgumentException("Only predefined root keys can be cached");
+        }
+        String path = subPath.replace('\\', '/').toLowerCase(Locale.ROOT);
+        return (root + '\0' + path + '\0' + valueName.toLowerCase(Locale.ROOT)).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return root key code, key path and value name, or {@code null} if not a valid identity
+     */
+    private static String[] parseIdentity(byte[] identity) {
+        String[] parts = new String(identity, StandardCharsets.UTF_8).split("\0", -1);
+        if (parts.length != 3 || !("M".equals(parts[0]) || "U".equals(parts[0]))) {
+            return null;
+        }
+        return parts;
+    }
+
+    /** FNV-1a, stable across processes unlike {@link String#hashCode()} of arbitrary JVMs */
+    private static long hash(byte[] identity) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : identity) {
+            hash = (hash ^ (b & 0xff)) * 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    private int slotOffset(int slot) {
+        return slotsOffset + slot * slotSize;
+    }
+
+    private static int slotsOffset(int requestCount) {
+        return HEADER_SIZE + requestCount * REQUEST_SIZE;
+    }
+
+    private static MappedByteBuffer map(FileChannel channel, int size) throws IOException {
+        MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        mapped.order(ByteOrder.nativeOrder());
+        return mapped;
+    }
+
+    private static void initialize(FileChannel channel, int slotCount, int slotSize) throws IOException {
+        long size = (long) slotsOffset(REQUEST_COUNT) + (long) slotCount * slotSize;
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Shared cache must not exceed 2 GiB");
+        }
+
+        // round up to whole pages and fill with zeros, i.e. empty slots and free requests
+        size = (size + PAGE_SIZE - 1) / PAGE_SIZE * PAGE_SIZE;
+        channel.truncate(0);
+        channel.write(ByteBuffer.allocate(1), size - 1);
+        MappedByteBuffer header = map(channel, HEADER_SIZE);
+        header.putInt(HEADER_VERSION, FORMAT_VERSION);
+        header.putInt(HEADER_SLOT_COUNT, slotCount);
+        header.putInt(HEADER_SLOT_SIZE, slotSize);
+        header.putInt(HEADER_REQUEST_COUNT, REQUEST_COUNT);
+        // magic goes last, so that a file initialized halfway is initialized again
+        header.putInt(HEADER_MAGIC, MAGIC);
+        header.force();
+    }
+
+    /** Contents of a slot as copied by a reader */
+    private static final class Entry {
+        final long version;
+        final int status;
+        final int type;
+        final long storedAt;
+        final byte[] data;
+
+        Entry(long version, int status, int type, long storedAt, byte[] data) {
+            this.version = version;
+            this.status = status;
+            this.type = type;
+            this.storedAt = storedAt;
+            this.data = data;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2016 Twowls.org.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.twowls.gatesmates.registry.expand;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * <p>Expandable string ({@code REG_EXPAND_SZ}) parsed into alternating literal text
+ * and variable references, ready to be rendered any number of times.</p>
+ *
+ * <p>Parsing follows {@code ExpandEnvironmentStrings}: {@code %NAME%} is replaced
+ * by the value of variable {@code NAME}, while references to undefined variables,
+ * empty names ({@code %%}) and a trailing unmatched percent sign are kept verbatim.</p>
+ *
+ * <p>Instances are immutable and thread safe.</p>
+ *
+ * @author bubo &lt;bubo@twowls.org&gt;
+ */
+public final class ExpandTemplate {
+
+    private final String text;
+    // literals[i] precedes names[i]; the last literal follows the last name
+    private final String[] literals;
+    private final String[] names;
+    private final int literalLength;
+
+    private ExpandTemplate(String text, String[] literals, String[] names) {
+        this.text = text;
+        this.literals = literals;
+        this.names = names;
+        int length = 0;
+        for (String literal : literals) {
+            length += literal.length();
+        }
+        this.literalLength = length;
+    }
+
+    /**
+     * <p>Parses an expandable string.</p>
+     * @param text the string with {@code %NAME%} references
+     * @return compiled template
+     */
+    public static ExpandTemplate compile(String text) {
+        Objects.requireNonNull(text, "Text must not be null");
+        List<String> literals = new ArrayList<>(), names = new ArrayList<>();
+        StringBuilder literal = new StringBuilder();
+        int pos = 0;
+        while (pos < text.length()) {
+            int open = text.indexOf('%', pos);
+            int close = (open < 0 ? -1 : text.indexOf('%', open + 1));
+            if (close < 0) {
+                literal.append(text, pos, text.length());
+                break;
+            }
+
+            if (close == open + 1) {
+                // empty name, the first sign is literal and the second may open a reference
+                literal.append(text, pos, close);
+                pos = close;
+                continue;
+            }
+
+            literal.append(text, pos, open);
+            literals.add(literal.toString());
+            names.add(text.substring(open + 1, close));
+            literal.setLength(0);
+            pos = close + 1;
+        }
+        literals.add(literal.toString());
+        return new ExpandTemplate(text, literals.toArray(new String[0]), names.toArray(new String[0]));
+    }
+
+    /**
+     * @return the string this template was compiled from
+     */
+    public String getText() {
+        return text;
+    }
+
+    /**
+     * @return {@code true} if the template references no variables, so that rendering
+     * always produces the original text
+     */
+    public boolean isConstant() {
+        return names.length == 0;
+    }
+
+    /**
+     * <p>Substitutes variable references with values from the given source.</p>
+     * @param source source of variable values
+     * @return expanded string
+     */
+    public String render(VariableSource source) {
+        if (names.length == 0) {
+            return text;
+        }
+
+        String[] values = new String[names.length];
+        int length = literalLength;
+        for (int i = 0; i < names.length; i++) {
+            values[i] = source.lookup(names[i]);
+            length += (values[i] == null ? names[i].length() + 2 : values[i].length());
+        }
+
+        StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < names.length; i++) {
+            sb.append(literals[i]);
+            if (values[i] == null) {
+                sb.append('%').append(names[i]).append('%');
+            } else {
+                sb.append(values[i]);
+            }
+        }
+        return sb.append(literals[names.length]).toString();
+    }
+
+    @Override
+    public String toString() {
+        return text;
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2016 Twowls.org.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.twowls.gatesmates.registry.expand;
+
+import org.twowls.gatesmates.registry.Registry;
+import org.twowls.gatesmates.registry.RegistryConst;
+import org.twowls.gatesmates.registry.RegistryException;
+import org.twowls.gatesmates.registry.RegistryValue;
+
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>Expands {@code REG_EXPAND_SZ} values in Java, without calling
+ * {@code ExpandEnvironmentStrings}.</p>
+ *
+ * <p>Each distinct expandable string is parsed once into an {@link ExpandTemplate};
+ * templates are cached by text, so repeated reads of the same value only cost
+ * rendering. The cache holds up to a fixed number of templates and is simply emptied
+ * when it overflows, which keeps hits free of any bookkeeping.</p>
+ *
+ * <p>Instances are thread safe.</p>
+ *
+ * @author bubo &lt;bubo@twowls.org&gt;
+ */
+public class Expander implements RegistryConst {
+
+    /** Default limit of cached templates */
+    public static final int DEFAULT_MAX_TEMPLATES = 1024;
+
+    private final Map<String, ExpandTemplate> templates = new ConcurrentHashMap<>();
+    private final int maxTemplates;
+    private volatile VariableSource source;
+
+    /**
+     * <p>Creates a new instance of {@link Expander}.</p>
+     * @param source source of variable values
+     */
+    public Expander(VariableSource source) {
+        this(source, DEFAULT_MAX_TEMPLATES);
+    }
+
+    /**
+     * <p>Creates a new instance of {@link Expander}.</p>
+     * @param source source of variable values
+     * @param maxTemplates limit of cached templates
+     */
+    public Expander(VariableSource source, int maxTemplates) {
+        if (maxTemplates < 1) {
+            throw new IllegalArgumentException("At least one template must be cached");
+        }
+        this.source = Objects.requireNonNull(source, "Variable source must not be null");
+        this.maxTemplates = maxTemplates;
+    }
+
+    /**
+     * <p>Replaces the source of variable values, e.g. with a fresh environment
+     * snapshot. Compiled templates stay valid.</p>
+     * @param source new source of variable values
+     */
+    public void setSource(VariableSource source) {
+        this.source = Objects.requireNonNull(source, "Variable source must not be null");
+    }
+
+    /**
+     * <p>Returns compiled template of the given string, compiling it on first use.</p>
+     * @param text expandable string
+     * @return compiled template
+     */
+    public ExpandTemplate compile(String text) {
+        ExpandTemplate template = templates.get(text);
+        if (template == null) {
+            if (templates.size() >= maxTemplates) {
+                templates.clear();
+            }
+            template = templates.computeIfAbsent(text, ExpandTemplate::compile);
+        }
+        return template;
+    }
+
+    /**
+     * @param text expandable string
+     * @return the string with variable references expanded
+     */
+    public String expand(String text) {
+        return compile(text).render(source);
+    }
+
+    /**
+     * <p>Returns text of a string value, expanded if it is of {@code REG_EXPAND_SZ} type.</p>
+     * @param value a value of {@code REG_SZ} or {@code REG_EXPAND_SZ} type
+     * @return the text, expanded if necessary
+     * @throws RegistryException if value is not textual
+     */
+    public String expand(RegistryValue value) throws RegistryException {
+        String text = value.asString();
+        return (text != null && REG_EXPAND_SZ == value.getType() ? expand(text) : text);
+    }
+
+    /**
+     * <p>Queries a textual value, expanding it if it is of {@code REG_EXPAND_SZ} type.</p>
+     * @param key registry key previously open with {@link Registry#openKey(Registry.Key, String, boolean)}
+     * @param valueName the name of the property being queried
+     * @return property value, expanded if necessary
+     * @throws RegistryException if registry is not available or property does not exist
+     * or actual property type is not textual
+     */
+    public String queryExpandedValue(Registry.Key key, String valueName) throws RegistryException {
+        return expand(Registry.queryValue(key, valueName));
+    }
+
+    /**
+     * @return number of currently cached templates
+     */
+    public int cachedTemplateCount() {
+        return templates.size();
+    }
+}
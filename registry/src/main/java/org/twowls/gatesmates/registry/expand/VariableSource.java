@@ -0,0 +1,66 @@
+/*
+ * Copyright (c) 2016 Twowls.org.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.twowls.gatesmates.registry.expand;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+
+/**
+ * <p>Source of variables referenced by {@code %NAME%} placeholders of expandable
+ * strings.</p>
+ *
+ * <p>Variable names are case insensitive, as they are on Windows; implementations
+ * are expected to be thread safe.</p>
+ *
+ * @author bubo &lt;bubo@twowls.org&gt;
+ * @see Expander
+ */
+@FunctionalInterface
+public interface VariableSource {
+
+    /**
+     * @param name name of a variable, without percent signs
+     * @return value of the variable or {@code null} if it is not defined
+     */
+    String lookup(String name);
+
+    /**
+     * <p>Takes a snapshot of the environment of the current process. Later changes
+     * of the environment are not seen by the snapshot.</p>
+     * @return immutable source of environment variables
+     */
+    static VariableSource environmentSnapshot() {
+        return of(System.getenv());
+    }
+
+    /**
+     * <p>Copies the given variables into an immutable source. If several names differ
+     * only in case, it is undefined which of them wins.</p>
+     * @param variables variables by name
+     * @return immutable source of the given variables
+     */
+    static VariableSource of(Map<String, String> variables) {
+        Objects.requireNonNull(variables, "Variables must not be null");
+        Map<String, String> copy = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        copy.putAll(variables);
+        Map<String, String> snapshot = Collections.unmodifiableMap(copy);
+        return snapshot::get;
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2016 Twowls.org.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.twowls.gatesmates.registry.flow;
+
+import org.twowls.gatesmates.registry.RegistryValue;
+
+/**
+ * <p>Registry key or value published by {@link RegistryPublisher}.</p>
+ *
+ * @author bubo &lt;bubo@twowls.org&gt;
+ */
+public final class RegistryItem {
+
+    private final String keyPath;
+    private final RegistryValue value;
+
+    RegistryItem(String keyPath, RegistryValue value) {
+        this.keyPath = keyPath;
+        this.value = value;
+    }
+
+    /**
+     * @return path of the key, or of the key holding the value, relative to published subtree
+     */
+    public String getKeyPath() {
+        return keyPath;
+    }
+
+    /**
+     * @return the value or {@code null} if this item represents a key
+     */
+    public RegistryValue getValue() {
+        return value;
+    }
+
+    /**
+     * @return {@code true} if this item represents a key
+     */
+    public boolean isKey() {
+        return value == null;
+    }
+
+    @Override
+    public String toString() {
+        return (value == null ? "key '" + keyPath + "'" : "value " + value + " of key '" + keyPath + "'");
+    }
+}
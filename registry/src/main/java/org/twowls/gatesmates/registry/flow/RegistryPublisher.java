@@ -0,0 +1,301 @@
+/*
+ * Copyright (c) 2016 Twowls.org.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.twowls.gatesmates.registry.flow;
+
+import org.twowls.gatesmates.registry.Registry;
+import org.twowls.gatesmates.registry.RegistryConst;
+import org.twowls.gatesmates.registry.RegistryException;
+import org.twowls.gatesmates.registry.RegistryValue;
+import org.twowls.gatesmates.util.HandleScope;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Objects;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Publishes keys and values of a registry subtree, depth first, to
+ * {@link Flow.Subscriber subscribers}.</p>
+ *
+ * <p>Each subscription walks the subtree on its own and reads from registry only
+ * while it has outstanding demand: at most {@link #setBufferSize(int) buffer size}
+ * items are read ahead in a single batch, and never more than has been requested.
+ * Handles of keys on the current path are the only resources held between batches;
+ * they are closed as soon as the walk completes, fails or the subscription is
+ * cancelled. They are owned by a {@link HandleScope} of the subscription, which also
+ * closes them if a subscriber drops the subscription without cancelling it.</p>
+ *
+ * <p>Signals to a subscriber are issued from the configured {@link Executor}, never
+ * concurrently.</p>
+ *
+ * @author bubo &lt;bubo@twowls.org&gt;
+ */
+public class RegistryPublisher implements Flow.Publisher<RegistryItem>, RegistryConst {
+
+    private final Registry.Key rootKey;
+    private final String subPath;
+    private Executor executor = ForkJoinPool.commonPool();
+    private int bufferSize = Flow.defaultBufferSize();
+    private boolean includeValues = true;
+
+    /**
+     * <p>Creates a new instance of {@link RegistryPublisher}.</p>
+     * @param rootKey the root key that published subtree belongs to
+     * @param subPath path of published subtree relative to root key
+     */
+    public RegistryPublisher(Registry.Key rootKey, String subPath) {
+        this.rootKey = Objects.requireNonNull(rootKey, "Root key must not be null");
+        this.subPath = Objects.requireNonNull(subPath, "Sub key path must not be null");
+    }
+
+    /**
+     * @param executor executor running registry reads and subscriber signals,
+     *                 {@link ForkJoinPool#commonPool()} by default
+     */
+    public void setExecutor(Executor executor) {
+        this.executor = Objects.requireNonNull(executor, "Executor must not be null");
+    }
+
+    /**
+     * @param bufferSize maximum number of items read ahead of delivery in a single batch
+     */
+    public void setBufferSize(int bufferSize) {
+        if (bufferSize < 1) {
+            throw new IllegalArgumentException("Buffer size must be positive");
+        }
+        this.bufferSize = bufferSize;
+    }
+
+    /**
+     * @param includeValues whether values are published along with keys, {@code true} by default
+     */
+    public void setIncludeValues(boolean includeValues) {
+        this.includeValues = includeValues;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super RegistryItem> subscriber) {
+        Objects.requireNonNull(subscriber, "Subscriber must not be null");
+        WalkSubscription subscription = new WalkSubscription(subscriber, executor, bufferSize, includeValues);
+        subscriber.onSubscribe(subscription);
+    }
+
+    private static boolean isSkippable(int errorCode) {
+        return ERROR_NOT_FOUND == errorCode || ERROR_KEY_DELETED == errorCode || ERROR_ACCESS_DENIED == errorCode;
+    }
+
+    /** Key being walked */
+    private static final class Frame {
+        final Registry.Key key;
+        final String path;
+        byte[] valueName;
+        int nextValue;
+        int nextSubKey;
+        boolean valuesDone;
+
+        Frame(Registry.Key key, String path) {
+            this.key = key;
+            this.path = path;
+        }
+    }
+
+    /** Subscription walking the subtree in response to demand */
+    private final class WalkSubscription implements Flow.Subscription, Runnable {
+        private final Flow.Subscriber<? super RegistryItem> subscriber;
+        private final Executor executor;
+        private final int bufferSize;
+        private final boolean includeValues;
+
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger wip = new AtomicInteger();
+        private volatile boolean cancelled;
+        private volatile Throwable invalidRequest;
+
+        // accessed only from the drain loop
+        private final Deque<Frame> stack = new ArrayDeque<>();
+        private final HandleScope scope = new HandleScope();
+        private final Deque<RegistryItem> buffer = new ArrayDeque<>();
+        private boolean started;
+        private boolean done;
+
+        WalkSubscription(Flow.Subscriber<? super RegistryItem> subscriber, Executor executor,
+                         int bufferSize, boolean includeValues) {
+            this.subscriber = subscriber;
+            this.executor = executor;
+            this.bufferSize = bufferSize;
+            this.includeValues = includeValues;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                invalidRequest = new IllegalArgumentException("Non-positive request: " + n);
+            } else {
+                demand.accumulateAndGet(n, (current, added) -> {
+                    long sum = current + added;
+                    return (sum < 0 ? Long.MAX_VALUE : sum);
+                });
+            }
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            schedule();
+        }
+
+        private void schedule() {
+            if (wip.getAndIncrement() == 0) {
+                executor.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            int missed = 1;
+            do {
+                if (!done) {
+                    drain();
+                }
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void drain() {
+            if (cancelled) {
+                terminate();
+                return;
+            }
+
+            Throwable error = invalidRequest;
+            if (error != null) {
+                terminate();
+                subscriber.onError(error);
+                return;
+            }
+
+            long requested = demand.get(), emitted = 0;
+            try {
+                while (emitted != requested) {
+                    if (cancelled) {
+                        terminate();
+                        return;
+                    }
+
+                    RegistryItem item = buffer.poll();
+                    if (item == null) {
+                        fill((int) Math.min(bufferSize, requested - emitted));
+                        item = buffer.poll();
+                        if (item == null) {
+                            break;
+                        }
+                    }
+
+                    subscriber.onNext(item);
+                    emitted++;
+                }
+
+                if (buffer.isEmpty() && started && stack.isEmpty()) {
+                    terminate();
+                    subscriber.onComplete();
+                    return;
+                }
+            } catch (RegistryException e) {
+                terminate();
+                subscriber.onError(e);
+                return;
+            } catch (RuntimeException | Error e) {
+                // misbehaving subscriber, consider the subscription cancelled
+                cancelled = true;
+                terminate();
+                throw e;
+            }
+
+            if (emitted != 0 && requested != Long.MAX_VALUE) {
+                demand.addAndGet(-emitted);
+            }
+        }
+
+        private void fill(int limit) throws RegistryException {
+            while (buffer.size() < limit) {
+                if (!started) {
+                    started = true;
+                    stack.push(new Frame(Registry.openKey(scope, rootKey, subPath), ""));
+                    buffer.add(new RegistryItem("", null));
+                    continue;
+                }
+
+                Frame top = stack.peek();
+                if (top == null) {
+                    return;
+                }
+
+                if (includeValues && !top.valuesDone) {
+                    if (top.valueName == null) {
+                        // sized once per key rather than for the longest possible name per value
+                        top.valueName = new byte[top.key.queryInfo().getMaxValueNameLength() + 1];
+                    }
+                    RegistryValue value = Registry.enumValue(top.key, top.nextValue++, top.valueName);
+                    if (value != null) {
+                        buffer.add(new RegistryItem(top.path, value));
+                        continue;
+                    }
+                    top.valuesDone = true;
+                }
+
+                String name = Registry.enumSubKey(top.key, top.nextSubKey++);
+                if (name == null) {
+                    pop();
+                    continue;
+                }
+
+                String childPath = (top.path.isEmpty() ? name : top.path + "/" + name);
+                try {
+                    stack.push(new Frame(top.key.openSubKey(scope, name), childPath));
+                    buffer.add(new RegistryItem(childPath, null));
+                } catch (RegistryException e) {
+                    if (!isSkippable(e.getErrorCode())) {
+                        throw e;
+                    }
+                }
+            }
+        }
+
+        private void pop() throws RegistryException {
+            Registry.Key key = stack.pop().key;
+            scope.release(key);
+            key.close();
+        }
+
+        private void terminate() {
+            done = true;
+            buffer.clear();
+            stack.clear();
+            try {
+                scope.close();
+            } catch (Exception e) {
+                // nothing sensible to do with handles that refuse to close
+            }
+        }
+    }
+}
@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2016 Twowls.org.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.twowls.gatesmates.registry.index;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * <p>Sorted set of document identifiers kept in a plain {@code int} array.</p>
+ *
+ * <p>On disk identifiers are written as variable length deltas, which takes
+ * a byte or two per entry for densely populated terms.</p>
+ *
+ * @author bubo &lt;bubo@twowls.org&gt;
+ */
+final class Postings {
+
+    private static final int INITIAL_CAPACITY = 4;
+
+    private int[] ids;
+    private int size;
+
+    Postings() {
+        this.ids = new int[INITIAL_CAPACITY];
+    }
+
+    private Postings(int[] ids, int size) {
+        this.ids = ids;
+        this.size = size;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int get(int i) {
+        return ids[i];
+    }
+
+    boolean add(int id) {
+        int pos = Arrays.binarySearch(ids, 0, size, id);
+        if (pos >= 0) {
+            return false;
+        }
+
+        pos = -pos - 1;
+        if (size == ids.length) {
+            ids = Arrays.copyOf(ids, size * 2);
+        }
+        System.arraycopy(ids, pos, ids, pos + 1, size - pos);
+        ids[pos] = id;
+        size++;
+        return true;
+    }
+
+    boolean remove(int id) {
+        int pos = Arrays.binarySearch(ids, 0, size, id);
+        if (pos < 0) {
+            return false;
+        }
+
+        System.arraycopy(ids, pos + 1, ids, pos, size - pos - 1);
+        size--;
+        if (size > INITIAL_CAPACITY && size < ids.length / 4) {
+            ids = Arrays.copyOf(ids, ids.length / 2);
+        }
+        return true;
+    }
+
+    void writeTo(DataOutput out) throws IOException {
+        writeVarInt(out, size);
+        int previous = 0;
+        for (int i = 0; i < size; i++) {
+            writeVarInt(out, ids[i] - previous);
+            previous = ids[i];
+        }
+    }
+
+    static Postings readFrom(DataInput in) throws IOException {
+        int size = readVarInt(in);
+        int[] ids = new int[Math.max(size, INITIAL_CAPACITY)];
+        int previous = 0;
+        for (int i = 0; i < size; i++) {
+            ids[i] = previous += readVarInt(in);
+        }
+        return new Postings(ids, size);
+    }
+
+    static void writeVarInt(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.writeByte((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    static int readVarInt(DataInput in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed variable length number");
+    }
+}
@@ -0,0 +1,459 @@
+/*
+ * Copyright (c) 2016 Twowls.org.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.twowls.gatesmates.registry.index;
+
+import org.twowls.gatesmates.registry.Registry;
+import org.twowls.gatesmates.registry.RegistryConst;
+import org.twowls.gatesmates.registry.RegistryException;
+import org.twowls.gatesmates.registry.RegistryKeyInfo;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * <p>Inverted index of key names and value data found in a registry subtree.</p>
+ *
+ * <p>Every key of the subtree is a document; its terms come from the key name,
+ * value names and value data (see {@link Tokenizer}). Each term maps to a sorted
+ * array of document identifiers, so term lookups cost a map access and prefix
+ * lookups a range scan of the term dictionary.</p>
+ *
+ * <p>{@link #refresh()} brings the index up to date re-reading values only of keys
+ * whose last write time has changed. Queries may run concurrently with a refresh
+ * and see each key either before or after its update.</p>
+ *
+ * @author bubo &lt;bubo@twowls.org&gt;
+ */
+public class RegistryIndex implements RegistryConst {
+
+    private static final int FILE_MAGIC = 0x474d4958;
+    private static final int FORMAT_VERSION = 1;
+
+    private final Registry.Key rootKey;
+    private final String subPath;
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final NavigableMap<String, Postings> terms = new TreeMap<>();
+    private final NavigableMap<String, Integer> docIds = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    private final List<Document> docs = new ArrayList<>();
+    private final Deque<Integer> freeIds = new ArrayDeque<>();
+
+    /**
+     * <p>Creates a new empty index of a registry subtree.</p>
+     * @param rootKey the root key that indexed subtree belongs to
+     * @param subPath path of indexed subtree relative to root key
+     */
+    public RegistryIndex(Registry.Key rootKey, String subPath) {
+        this.rootKey = Objects.requireNonNull(rootKey, "Root key must not be null");
+        this.subPath = Objects.requireNonNull(subPath, "Sub key path must not be null");
+    }
+
+    /**
+     * <p>Walks the subtree and updates the index with keys that are new, have changed
+     * or are gone.</p>
+     * @return number of keys (re)indexed or removed from the index
+     * @throws RegistryException if indexed subtree cannot be read
+     */
+    public synchronized int refresh() throws RegistryException {
+        Set<String> seen = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+        int changes;
+        try (Registry.Key key = Registry.openKey(rootKey, subPath)) {
+            changes = refreshKey(key, "", seen);
+        }
+
+        List<String> stale = new ArrayList<>();
+        lock.readLock().lock();
+        try {
+            for (String path : docIds.keySet()) {
+                if (!seen.contains(path)) {
+                    stale.add(path);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+
+        for (String path : stale) {
+            changes += removeSubtree(path);
+        }
+        return changes;
+    }
+
+    /**
+     * <p>Re-indexes a single key, e.g. in response to a change notification.
+     * Sub keys are not visited; if the key is gone it is removed from the index
+     * together with its sub keys.</p>
+     * @param path key path relative to indexed subtree
+     * @throws RegistryException if key exists but cannot be read
+     */
+    public synchronized void update(String path) throws RegistryException {
+        try (Registry.Key key = Registry.openKey(rootKey, path.isEmpty() ? subPath : subPath + "/" + path)) {
+            indexKey(key, path, key.queryInfo());
+        } catch (RegistryException e) {
+            // the key may also be deleted after it was opened
+            if (ERROR_NOT_FOUND != e.getErrorCode() && ERROR_KEY_DELETED != e.getErrorCode()) {
+                throw e;
+            }
+            removeSubtree(path);
+        }
+    }
+
+    /**
+     * <p>Finds keys containing the given term.</p>
+     * @param term term to look for (case insensitive)
+     * @return sorted list of key paths relative to indexed subtree
+     */
+    public List<String> find(String term) {
+        lock.readLock().lock();
+        try {
+            Postings postings = terms.get(Tokenizer.normalize(term));
+            return (postings == null ? Collections.emptyList() : toPaths(postings));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * <p>Finds keys containing any term starting with the given prefix.</p>
+     * @param prefix term prefix (case insensitive)
+     * @return sorted list of key paths relative to indexed subtree
+     */
+    public List<String> findPrefix(String prefix) {
+        String lowerCased = Tokenizer.normalize(prefix);
+        lock.readLock().lock();
+        try {
+            Set<String> paths = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+            for (Postings postings : terms.subMap(lowerCased, true, lowerCased + Character.MAX_VALUE, false).values()) {
+                for (int i = 0; i < postings.size(); i++) {
+                    paths.add(docs.get(postings.get(i)).path);
+                }
+            }
+            return new ArrayList<>(paths);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * <p>Finds keys containing every term of the given text, e.g. a full file path.</p>
+     * @param text text to look for (case insensitive)
+     * @return sorted list of key paths relative to indexed subtree
+     */
+    public List<String> search(String text) {
+        Set<String> queryTerms = new LinkedHashSet<>();
+        Tokenizer.tokenize(text, queryTerms);
+        if (queryTerms.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        lock.readLock().lock();
+        try {
+            List<Postings> lists = new ArrayList<>();
+            for (String term : queryTerms) {
+                Postings postings = terms.get(term);
+                if (postings == null) {
+                    return Collections.emptyList();
+                }
+                lists.add(postings);
+            }
+
+            // intersect starting from the rarest term
+            lists.sort(Comparator.comparingInt(Postings::size));
+            Postings result = lists.get(0);
+            for (int i = 1; i < lists.size() && result.size() > 0; i++) {
+                result = intersect(result, lists.get(i));
+            }
+            return toPaths(result);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return number of indexed keys
+     */
+    public int documentCount() {
+        lock.readLock().lock();
+        try {
+            return docIds.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return number of distinct terms
+     */
+    public int termCount() {
+        lock.readLock().lock();
+        try {
+            return terms.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * <p>Writes the index into a file, replacing it atomically.</p>
+     * @param file target file
+     * @throws IOException if file cannot be written
+     */
+    public void save(Path file) throws IOException {
+        Path tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+        lock.readLock().lock();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeUTF(subPath);
+            out.writeInt(docs.size());
+            for (Document doc : docs) {
+                out.writeBoolean(doc != null);
+                if (doc != null) {
+                    out.writeUTF(doc.path);
+                    out.writeLong(doc.lastWriteTime);
+                }
+            }
+            out.writeInt(terms.size());
+            for (Map.Entry<String, Postings> entry : terms.entrySet()) {
+                out.writeUTF(entry.getKey());
+                entry.getValue().writeTo(out);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * <p>Reads an index previously written with {@link #save(Path)}.</p>
+     * @param file source file
+     * @param rootKey the root key that indexed subtree belongs to
+     * @return loaded index, ready to be queried or refreshed
+     * @throws IOException if file cannot be read or has unrecognized format
+     */
+    public static RegistryIndex load(Path file, Registry.Key rootKey) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != FILE_MAGIC || in.readInt() != FORMAT_VERSION) {
+                throw new IOException("Unrecognized index format in " + file);
+            }
+
+            RegistryIndex index = new RegistryIndex(rootKey, in.readUTF());
+            List<List<String>> docTerms = new ArrayList<>();
+            for (int id = 0, count = in.readInt(); id < count; id++) {
+                Document doc = null;
+                if (in.readBoolean()) {
+                    doc = new Document(in.readUTF(), in.readLong());
+                    index.docIds.put(doc.path, id);
+                } else {
+                    index.freeIds.add(id);
+                }
+                index.docs.add(doc);
+                docTerms.add(new ArrayList<>());
+            }
+
+            for (int i = in.readInt(); i > 0; i--) {
+                String term = in.readUTF();
+                Postings postings = Postings.readFrom(in);
+                index.terms.put(term, postings);
+                for (int j = 0; j < postings.size(); j++) {
+                    docTerms.get(postings.get(j)).add(term);
+                }
+            }
+
+            // forward lists are derived from postings rather than stored twice
+            for (int id = 0; id < index.docs.size(); id++) {
+                Document doc = index.docs.get(id);
+                if (doc != null) {
+                    doc.terms = docTerms.get(id).toArray(new String[0]);
+                }
+            }
+            return index;
+        }
+    }
+
+    private int refreshKey(Registry.Key key, String path, Set<String> seen) throws RegistryException {
+        seen.add(path);
+
+        int changes = 0;
+        RegistryKeyInfo info = key.queryInfo();
+        if (indexedWriteTime(path) != info.getLastWriteTime()) {
+            indexKey(key, path, info);
+            changes++;
+        }
+
+        for (String name : key.listSubKeys()) {
+            try (Registry.Key child = key.openSubKey(name)) {
+                changes += refreshKey(child, path.isEmpty() ? name : path + "/" + name, seen);
+            } catch (RegistryException e) {
+                // sub key deleted while being walked, will be dropped from the index
+                if (ERROR_NOT_FOUND != e.getErrorCode() && ERROR_KEY_DELETED != e.getErrorCode()) {
+                    throw e;
+                }
+            }
+        }
+        return changes;
+    }
+
+    private long indexedWriteTime(String path) {
+        lock.readLock().lock();
+        try {
+            Integer id = docIds.get(path);
+            return (id == null ? Long.MIN_VALUE : docs.get(id).lastWriteTime);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private void indexKey(Registry.Key key, String path, RegistryKeyInfo info) throws RegistryException {
+        String keyName = (path.isEmpty() ? subPath : path);
+        keyName = keyName.substring(keyName.lastIndexOf('/') + 1);
+        Set<String> keyTerms = Tokenizer.tokenizeKey(keyName, key.listValues());
+
+        lock.writeLock().lock();
+        try {
+            Integer id = docIds.get(path);
+            Document doc;
+            if (id == null) {
+                id = (freeIds.isEmpty() ? docs.size() : freeIds.poll());
+                doc = new Document(path, info.getLastWriteTime());
+                if (id == docs.size()) {
+                    docs.add(doc);
+                } else {
+                    docs.set(id, doc);
+                }
+                docIds.put(path, id);
+            } else {
+                doc = docs.get(id);
+                doc.lastWriteTime = info.getLastWriteTime();
+                unlinkTerms(id, doc, keyTerms);
+            }
+
+            String[] docTerms = new String[keyTerms.size()];
+            int i = 0;
+            for (String term : keyTerms) {
+                Postings postings = terms.get(term);
+                if (postings == null) {
+                    terms.put(term, postings = new Postings());
+                } else {
+                    // reuse the dictionary instance to keep one copy of each term
+                    term = terms.ceilingKey(term);
+                }
+                postings.add(id);
+                docTerms[i++] = term;
+            }
+            doc.terms = docTerms;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private int removeSubtree(String path) {
+        lock.writeLock().lock();
+        try {
+            NavigableMap<String, Integer> victims = (path.isEmpty() ? docIds :
+                    docIds.subMap(path + "/", true, path + "0", false));
+            List<Integer> ids = new ArrayList<>(victims.values());
+            Integer self = docIds.get(path);
+            if (self != null && !path.isEmpty()) {
+                ids.add(self);
+            }
+
+            for (int id : ids) {
+                Document doc = docs.get(id);
+                unlinkTerms(id, doc, Collections.emptySet());
+                docIds.remove(doc.path);
+                docs.set(id, null);
+                freeIds.add(id);
+            }
+            return ids.size();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void unlinkTerms(int id, Document doc, Set<String> keep) {
+        for (String term : doc.terms) {
+            if (!keep.contains(term)) {
+                Postings postings = terms.get(term);
+                if (postings != null && postings.remove(id) && postings.size() == 0) {
+                    terms.remove(term);
+                }
+            }
+        }
+    }
+
+    private List<String> toPaths(Postings postings) {
+        String[] paths = new String[postings.size()];
+        for (int i = 0; i < paths.length; i++) {
+            paths[i] = docs.get(postings.get(i)).path;
+        }
+        Arrays.sort(paths, String.CASE_INSENSITIVE_ORDER);
+        return Arrays.asList(paths);
+    }
+
+    private static Postings intersect(Postings a, Postings b) {
+        Postings result = new Postings();
+        for (int i = 0, j = 0; i < a.size() && j < b.size(); ) {
+            int x = a.get(i), y = b.get(j);
+            if (x == y) {
+                result.add(x);
+                i++;
+                j++;
+            } else if (x < y) {
+                i++;
+            } else {
+                j++;
+            }
+        }
+        return result;
+    }
+
+    /** Indexed key */
+    private static final class Document {
+        final String path;
+        long lastWriteTime;
+        String[] terms = new String[0];
+
+        Document(String path, long lastWriteTime) {
+            this.path = path;
+            this.lastWriteTime = lastWriteTime;
+        }
+    }
+}
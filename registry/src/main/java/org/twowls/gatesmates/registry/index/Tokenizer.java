@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2016 Twowls.org.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.twowls.gatesmates.registry.index;
+
+import org.twowls.gatesmates.registry.RegistryConst;
+import org.twowls.gatesmates.registry.RegistryException;
+import org.twowls.gatesmates.registry.RegistryValue;
+
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.Set;
+
+/**
+ * <p>Splits key names and value data into index terms.</p>
+ *
+ * <p>Text is cut at whitespace, path separators and punctuation; the resulting words
+ * are lower-cased. Words joined by dots or dashes (file names, CLSIDs, versions) are
+ * indexed both as a whole and by their parts, so {@code "app.dll"} is found by either
+ * {@code "app.dll"} or {@code "dll"}.</p>
+ *
+ * @author bubo &lt;bubo@twowls.org&gt;
+ */
+final class Tokenizer {
+
+    private static final String SEPARATORS = " \t\r\n\\/:;,\"'(){}[]<>=|%*?!&+@#$^`~";
+    private static final String JOINERS = ".-_";
+
+    /**
+     * <p>Extracts terms from a piece of text.</p>
+     * @param text text to tokenize, may be {@code null}
+     * @param terms collection receiving terms
+     */
+    static void tokenize(String text, Collection<String> terms) {
+        if (text == null) {
+            return;
+        }
+
+        int start = -1;
+        for (int i = 0; i <= text.length(); i++) {
+            boolean separator = (i == text.length() || SEPARATORS.indexOf(text.charAt(i)) >= 0);
+            if (!separator && start < 0) {
+                start = i;
+            } else if (separator && start >= 0) {
+                addWord(text.substring(start, i), terms);
+                start = -1;
+            }
+        }
+    }
+
+    /**
+     * <p>Extracts terms from a key name and values of the key. Each string of a
+     * {@code REG_MULTI_SZ} value is tokenized on its own.</p>
+     * @param keyName key name
+     * @param values key values
+     * @return distinct terms
+     * @throws RegistryException if value data does not match its type
+     */
+    static Set<String> tokenizeKey(String keyName, Collection<RegistryValue> values) throws RegistryException {
+        Set<String> terms = new LinkedHashSet<>();
+        tokenize(keyName, terms);
+        for (RegistryValue value : values) {
+            tokenize(value.getName(), terms);
+            if (value.isString()) {
+                tokenize(value.asString(), terms);
+            } else if (value.isInt()) {
+                int number = value.asInt();
+                terms.add(Integer.toString(number));
+                terms.add("0x" + Integer.toHexString(number));
+            } else if (RegistryConst.REG_MULTI_SZ == value.getType()) {
+                tokenizeMultiString(value.getData(), terms);
+            }
+        }
+        return terms;
+    }
+
+    /**
+     * <p>Brings a query term to the form terms are indexed in.</p>
+     * @param term query term
+     * @return lower-cased term without leading and trailing separators
+     */
+    static String normalize(String term) {
+        int start = 0, end = term.length();
+        while (start < end && SEPARATORS.indexOf(term.charAt(start)) >= 0) start++;
+        while (end > start && SEPARATORS.indexOf(term.charAt(end - 1)) >= 0) end--;
+        return term.substring(start, end).toLowerCase(Locale.ROOT);
+    }
+
+    private static void tokenizeMultiString(byte[] data, Collection<String> terms) {
+        // strings are separated, and the list terminated, by nul characters
+        int start = 0;
+        for (int i = 0; i <= data.length; i++) {
+            if (i == data.length || data[i] == 0) {
+                if (i > start) {
+                    tokenize(new String(data, start, i - start), terms);
+                }
+                start = i + 1;
+            }
+        }
+    }
+
+    private static void addWord(String word, Collection<String> terms) {
+        String lowerCased = trimJoiners(word.toLowerCase(Locale.ROOT));
+        if (lowerCased.isEmpty()) {
+            return;
+        }
+
+        terms.add(lowerCased);
+        int start = 0;
+        for (int i = 0; i <= lowerCased.length(); i++) {
+            if (i == lowerCased.length() || JOINERS.indexOf(lowerCased.charAt(i)) >= 0) {
+                if (i > start && (start > 0 || i < lowerCased.length())) {
+                    terms.add(lowerCased.substring(start, i));
+                }
+                start = i + 1;
+            }
+        }
+    }
+
+    private static String trimJoiners(String word) {
+        int start = 0, end = word.length();
+        while (start < end && JOINERS.indexOf(word.charAt(start)) >= 0) start++;
+        while (end > start && JOINERS.indexOf(word.charAt(end - 1)) >= 0) end--;
+        return word.substring(start, end);
+    }
+
+    /* Prohibits instantiation */
+    private Tokenizer() {}
+}
@@ -0,0 +1,352 @@
+/*
+ * Copyright (c) 2016 Twowls.org.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.twowls.gatesmates.registry.mirror;
+
+import org.twowls.gatesmates.registry.RegistryValue;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * <p>Local persistent copy of a registry subtree.</p>
+ *
+ * <p>The store lives in a directory with two files: a snapshot holding the complete
+ * state as of some checkpoint, and an append-only journal of changes made since.
+ * Every journal record carries a sequence number and a checksum; on opening, the
+ * snapshot is loaded and the journal replayed on top of it, discarding a torn
+ * trailing record left by a crash. Records are idempotent, so replaying a journal
+ * already folded into the snapshot is harmless.</p>
+ *
+ * <p>Instances are not thread safe.</p>
+ *
+ * @author bubo &lt;bubo@twowls.org&gt;
+ */
+public class MirrorStore implements Closeable {
+
+    static final String SNAPSHOT_FILE = "snapshot.dat";
+    static final String JOURNAL_FILE = "journal.log";
+
+    private static final int SNAPSHOT_MAGIC = 0x474d534e;
+    private static final int FORMAT_VERSION = 1;
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    private static final byte OP_PUT = 1;
+    private static final byte OP_REMOVE = 2;
+
+    private final Path directory;
+    private final NavigableMap<String, MirroredKey> keys = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    private final FileChannel journal;
+    private final DataOutputStream journalOut;
+    private long sequence;
+    private long journalSize;
+
+    private MirrorStore(Path directory) throws IOException {
+        this.directory = directory;
+
+        long snapshotSequence = loadSnapshot();
+        this.sequence = snapshotSequence;
+
+        this.journal = FileChannel.open(directory.resolve(JOURNAL_FILE),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.journalSize = replayJournal(snapshotSequence);
+
+        // drop whatever follows the last intact record and continue appending from there
+        journal.truncate(journalSize);
+        journal.position(journalSize);
+        this.journalOut = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(journal)));
+    }
+
+    /**
+     * <p>Opens a store in the given directory, creating it if necessary, and recovers
+     * its contents from the snapshot and the journal.</p>
+     * @param directory store directory
+     * @return an open {@link MirrorStore}
+     * @throws IOException if store files cannot be read or created
+     */
+    public static MirrorStore open(Path directory) throws IOException {
+        Files.createDirectories(directory);
+        return new MirrorStore(directory);
+    }
+
+    /**
+     * <p>Returns stored copy of a key.</p>
+     * @param path key path relative to mirror root
+     * @return stored key or {@code null} if there is no such key
+     */
+    public MirroredKey get(String path) {
+        return keys.get(path);
+    }
+
+    /**
+     * @return unmodifiable sorted view of stored keys by their paths
+     */
+    public NavigableMap<String, MirroredKey> keys() {
+        return Collections.unmodifiableNavigableMap(keys);
+    }
+
+    /**
+     * @return number of stored keys
+     */
+    public int size() {
+        return keys.size();
+    }
+
+    /**
+     * @return sequence number of the last applied change
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return size of the journal in bytes
+     */
+    public long getJournalSize() {
+        return journalSize;
+    }
+
+    /**
+     * <p>Stores a key, replacing its previous copy if any.</p>
+     * @param key key to store
+     * @throws IOException if the change cannot be written to the journal
+     */
+    public void put(MirroredKey key) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.writeLong(sequence + 1);
+        out.writeByte(OP_PUT);
+        writeKey(out, key);
+        appendRecord(buffer.toByteArray());
+        keys.put(key.getPath(), key);
+    }
+
+    /**
+     * <p>Removes a key together with all keys below it.</p>
+     * @param path key path relative to mirror root
+     * @return {@code true} if the store has changed
+     * @throws IOException if the change cannot be written to the journal
+     */
+    public boolean remove(String path) throws IOException {
+        if (!keys.containsKey(path)) {
+            return false;
+        }
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.writeLong(sequence + 1);
+        out.writeByte(OP_REMOVE);
+        out.writeUTF(path);
+        appendRecord(buffer.toByteArray());
+        removeSubtree(path);
+        return true;
+    }
+
+    /**
+     * <p>Makes all changes written so far durable.</p>
+     * @throws IOException if journal cannot be flushed to disk
+     */
+    public void commit() throws IOException {
+        journalOut.flush();
+        journal.force(false);
+    }
+
+    /**
+     * <p>Writes complete store state into a new snapshot and empties the journal.</p>
+     * @throws IOException if snapshot cannot be written
+     */
+    public void checkpoint() throws IOException {
+        commit();
+
+        Path tempFile = directory.resolve(SNAPSHOT_FILE + ".tmp");
+        try (FileChannel channel = FileChannel.open(tempFile, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            CheckedOutputStream checked = new CheckedOutputStream(
+                    new BufferedOutputStream(Channels.newOutputStream(channel)), new CRC32());
+            DataOutputStream out = new DataOutputStream(checked);
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeInt(FORMAT_VERSION);
+            out.writeLong(sequence);
+            out.writeInt(keys.size());
+            for (MirroredKey key : keys.values()) {
+                writeKey(out, key);
+            }
+            out.flush();
+            out.writeLong(checked.getChecksum().getValue());
+            out.flush();
+            channel.force(true);
+        }
+        Files.move(tempFile, directory.resolve(SNAPSHOT_FILE),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        // journal records are already reflected by the snapshot
+        journal.truncate(0);
+        journal.position(0);
+        journal.force(true);
+        journalSize = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            commit();
+        } finally {
+            journal.close();
+        }
+    }
+
+    private void appendRecord(byte[] payload) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(payload, 0, payload.length);
+        journalOut.writeInt(payload.length);
+        journalOut.writeInt((int) crc.getValue());
+        journalOut.write(payload);
+        journalSize += RECORD_HEADER_SIZE + payload.length;
+        sequence++;
+    }
+
+    private long loadSnapshot() throws IOException {
+        Path file = directory.resolve(SNAPSHOT_FILE);
+        if (!Files.exists(file)) {
+            return 0;
+        }
+
+        try (InputStream in = Files.newInputStream(file)) {
+            CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(in), new CRC32());
+            DataInputStream data = new DataInputStream(checked);
+            if (data.readInt() != SNAPSHOT_MAGIC || data.readInt() != FORMAT_VERSION) {
+                throw new IOException("Unrecognized snapshot format in " + file);
+            }
+
+            long snapshotSequence = data.readLong();
+            for (int i = data.readInt(); i > 0; i--) {
+                MirroredKey key = readKey(data);
+                keys.put(key.getPath(), key);
+            }
+
+            long expectedChecksum = checked.getChecksum().getValue();
+            if (data.readLong() != expectedChecksum) {
+                throw new IOException("Snapshot checksum mismatch in " + file);
+            }
+            return snapshotSequence;
+        }
+    }
+
+    private long replayJournal(long snapshotSequence) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(
+                Channels.newInputStream(journal.position(0))));
+        long validSize = 0;
+        while (true) {
+            byte[] payload;
+            try {
+                int length = in.readInt();
+                int checksum = in.readInt();
+                if (length < 0 || validSize + RECORD_HEADER_SIZE + length > journal.size()) {
+                    break;
+                }
+                payload = new byte[length];
+                in.readFully(payload);
+                CRC32 crc = new CRC32();
+                crc.update(payload, 0, length);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+            } catch (EOFException e) {
+                break;
+            }
+
+            applyRecord(new DataInputStream(new ByteArrayInputStream(payload)), snapshotSequence);
+            validSize += RECORD_HEADER_SIZE + payload.length;
+        }
+        return validSize;
+    }
+
+    private void applyRecord(DataInput in, long snapshotSequence) throws IOException {
+        long recordSequence = in.readLong();
+        byte op = in.readByte();
+        if (recordSequence > snapshotSequence) {
+            if (OP_PUT == op) {
+                MirroredKey key = readKey(in);
+                keys.put(key.getPath(), key);
+            } else if (OP_REMOVE == op) {
+                removeSubtree(in.readUTF());
+            } else {
+                throw new IOException("Unknown journal operation " + op);
+            }
+        }
+        sequence = Math.max(sequence, recordSequence);
+    }
+
+    private void removeSubtree(String path) {
+        keys.remove(path);
+        // '0' immediately follows '/' so the range covers exactly the descendants
+        String prefix = (path.isEmpty() ? "" : path + "/");
+        String limit = (path.isEmpty() ? null : path + "0");
+        (limit == null ? keys.tailMap(prefix, true) : keys.subMap(prefix, true, limit, false)).clear();
+    }
+
+    private static void writeKey(DataOutput out, MirroredKey key) throws IOException {
+        out.writeUTF(key.getPath());
+        out.writeLong(key.getLastWriteTime());
+        out.writeInt(key.getValues().size());
+        for (RegistryValue value : key.getValues()) {
+            out.writeUTF(value.getName());
+            out.writeInt(value.getType());
+            out.writeInt(value.getDataLength());
+            out.write(value.getData());
+        }
+    }
+
+    private static MirroredKey readKey(DataInput in) throws IOException {
+        String path = in.readUTF();
+        long lastWriteTime = in.readLong();
+        int count = in.readInt();
+        List<RegistryValue> values = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            String name = in.readUTF();
+            int type = in.readInt();
+            byte[] data = new byte[in.readInt()];
+            in.readFully(data);
+            values.add(new RegistryValue(name, type, data));
+        }
+        return new MirroredKey(path, lastWriteTime, values);
+    }
+}
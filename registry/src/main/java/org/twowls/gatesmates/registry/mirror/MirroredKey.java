@@ -0,0 +1,102 @@
+/*
+ * Copyright (c) 2016 Twowls.org.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.twowls.gatesmates.registry.mirror;
+
+import org.twowls.gatesmates.registry.RegistryValue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * <p>Local copy of a single registry key: its path, last write time and values.</p>
+ *
+ * @author bubo &lt;bubo@twowls.org&gt;
+ */
+public final class MirroredKey {
+
+    private final String path;
+    private final long lastWriteTime;
+    private final List<RegistryValue> values;
+
+    /**
+     * <p>Creates a new instance of {@link MirroredKey}.</p>
+     * @param path key path relative to mirror root, {@code '/'} separated, empty for the root itself
+     * @param lastWriteTime last write time of the key as {@code FILETIME}
+     * @param values key values
+     */
+    public MirroredKey(String path, long lastWriteTime, List<RegistryValue> values) {
+        this.path = Objects.requireNonNull(path, "Path must not be null");
+        this.lastWriteTime = lastWriteTime;
+        this.values = Collections.unmodifiableList(new ArrayList<>(values));
+    }
+
+    /**
+     * @return key path relative to mirror root
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * @return last write time of the key as {@code FILETIME}
+     */
+    public long getLastWriteTime() {
+        return lastWriteTime;
+    }
+
+    /**
+     * @return unmodifiable list of key values
+     */
+    public List<RegistryValue> getValues() {
+        return values;
+    }
+
+    /**
+     * <p>Looks up a value by name (case insensitive, like registry itself).</p>
+     * @param name value name
+     * @return the value or {@code null} if key does not have it
+     */
+    public RegistryValue getValue(String name) {
+        for (RegistryValue value : values) {
+            if (value.getName().equalsIgnoreCase(name)) {
+                return value;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof MirroredKey)) return false;
+        MirroredKey that = (MirroredKey) o;
+        return lastWriteTime == that.lastWriteTime && path.equals(that.path) && values.equals(that.values);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(path, lastWriteTime, values);
+    }
+
+    @Override
+    public String toString() {
+        return "MirroredKey ('" + path + "', " + values.size() + " value(s))";
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2016 Twowls.org.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.twowls.gatesmates.registry.mirror;
+
+import org.twowls.gatesmates.registry.Registry;
+import org.twowls.gatesmates.registry.RegistryConst;
+import org.twowls.gatesmates.registry.RegistryException;
+import org.twowls.gatesmates.registry.RegistryKeyInfo;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * <p>Keeps a {@link MirrorStore} in sync with a registry subtree.</p>
+ *
+ * <p>Each {@link #sync()} walks the subtree and compares last write time of every
+ * key with the stored copy. Values are read and written to the store only for keys
+ * that are new or have changed; keys gone from registry are removed from the store.
+ * The journal is committed at the end of each pass and folded into a new snapshot
+ * once it grows beyond {@link #setCheckpointThreshold(long) checkpoint threshold}.</p>
+ *
+ * @author bubo &lt;bubo@twowls.org&gt;
+ */
+public class RegistryMirror implements RegistryConst {
+
+    /** Default journal size triggering a checkpoint, in bytes */
+    public static final long DEFAULT_CHECKPOINT_THRESHOLD = 4L * 1024 * 1024;
+
+    private final Registry.Key rootKey;
+    private final String subPath;
+    private final MirrorStore store;
+    private long checkpointThreshold = DEFAULT_CHECKPOINT_THRESHOLD;
+
+    /**
+     * <p>Creates a new instance of {@link RegistryMirror}.</p>
+     * @param rootKey the root key that mirrored subtree belongs to
+     * @param subPath path of mirrored subtree relative to root key
+     * @param store the store to keep in sync
+     */
+    public RegistryMirror(Registry.Key rootKey, String subPath, MirrorStore store) {
+        this.rootKey = Objects.requireNonNull(rootKey, "Root key must not be null");
+        this.subPath = Objects.requireNonNull(subPath, "Sub key path must not be null");
+        this.store = Objects.requireNonNull(store, "Store must not be null");
+    }
+
+    /**
+     * @return the store kept in sync by this mirror
+     */
+    public MirrorStore getStore() {
+        return store;
+    }
+
+    /**
+     * <p>Sets the journal size which, once exceeded, makes {@link #sync()} write a checkpoint.</p>
+     * @param checkpointThreshold journal size in bytes
+     */
+    public void setCheckpointThreshold(long checkpointThreshold) {
+        this.checkpointThreshold = checkpointThreshold;
+    }
+
+    /**
+     * <p>Brings the store up to date with the registry.</p>
+     * @return number of changes applied to the store
+     * @throws RegistryException if mirrored subtree cannot be read
+     * @throws IOException if store cannot be updated
+     */
+    public int sync() throws IOException {
+        Set<String> seen = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+        int changes;
+        try (Registry.Key key = Registry.openKey(rootKey, subPath)) {
+            changes = syncKey(key, "", seen);
+        }
+
+        // whatever was not seen during the walk is gone from registry
+        List<String> stale = new ArrayList<>();
+        for (String path : store.keys().keySet()) {
+            if (!seen.contains(path)) {
+                stale.add(path);
+            }
+        }
+        for (String path : stale) {
+            if (store.remove(path)) {
+                changes++;
+            }
+        }
+
+        store.commit();
+        if (store.getJournalSize() > checkpointThreshold) {
+            store.checkpoint();
+        }
+        return changes;
+    }
+
+    private int syncKey(Registry.Key key, String path, Set<String> seen) throws IOException {
+        seen.add(path);
+
+        int changes = 0;
+        RegistryKeyInfo info = key.queryInfo();
+        MirroredKey known = store.get(path);
+        if (known == null || known.getLastWriteTime() != info.getLastWriteTime()) {
+            store.put(new MirroredKey(path, info.getLastWriteTime(), key.listValues()));
+            changes++;
+        }
+
+        for (String name : key.listSubKeys()) {
+            String childPath = (path.isEmpty() ? name : path + "/" + name);
+            try (Registry.Key child = key.openSubKey(name)) {
+                changes += syncKey(child, childPath, seen);
+            } catch (RegistryException e) {
+                // sub key deleted while being walked, will be dropped from the store
+                if (ERROR_NOT_FOUND != e.getErrorCode() && ERROR_KEY_DELETED != e.getErrorCode()) {
+                    throw e;
+                }
+            }
+        }
+        return changes;
+    }
+}
@@ -0,0 +1,443 @@
+/*
+ * Copyright (c) 2016 Twowls.org.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.twowls.gatesmates.registry.prefs;
+
+import org.twowls.gatesmates.registry.Registry;
+import org.twowls.gatesmates.registry.RegistryConst;
+import org.twowls.gatesmates.registry.RegistryException;
+import org.twowls.gatesmates.registry.RegistryValue;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.prefs.AbstractPreferences;
+import java.util.prefs.BackingStoreException;
+import java.util.prefs.PreferenceChangeEvent;
+import java.util.prefs.PreferenceChangeListener;
+
+/**
+ * <p>{@link java.util.prefs.Preferences} node stored in a registry key, its
+ * preferences being textual ({@code REG_SZ}) values of the key.</p>
+ *
+ * <p>Values of a node are read from registry all at once, on first access, and kept
+ * in memory afterwards. Updates are kept in memory too, until the node is flushed:
+ * then the key is opened (or created) once and all updates of the node are written
+ * in a row. Nodes of a tree are flushed key by key, as with {@link #flush()}. Keys
+ * are created in registry only when flushed, and deleted as soon as their node is
+ * removed.</p>
+ *
+ * <p>While a node has {@link PreferenceChangeListener preference change listeners},
+ * a watcher thread waits for the operating system to report changes of its key,
+ * and then reloads the values and tells the listeners about those changed by
+ * others since the listener was added. Values with updates not flushed yet are
+ * left alone, as the updates are going to overwrite them anyway. Changes made
+ * through the node itself are reported by {@link AbstractPreferences} as usual.
+ * Nodes without listeners see changes made by others after {@link #sync()}.</p>
+ *
+ * <p>The watcher asks for an event to be signalled on the next change before it
+ * reloads the values, and waits for the event afterwards, so that no change goes
+ * unreported: one made while reloading signals the event as well. The watcher
+ * thread is the only one using its key; it is stopped by another event.</p>
+ *
+ * <p>Registry treats value names case insensitively, and so does this class:
+ * preference keys differing in case only refer to the same preference. Numeric
+ * ({@code REG_DWORD}) values are readable as their decimal text; values of other
+ * types are invisible.</p>
+ *
+ * @author bubo &lt;bubo@twowls.org&gt;
+ * @see RegistryPreferencesFactory
+ */
+public class RegistryPreferences extends AbstractPreferences implements RegistryConst {
+
+    private final Registry.Key rootKey;
+    private final String keyPath;
+    // the same listeners as registered with the superclass, which keeps them private
+    private final List<PreferenceChangeListener> listeners = new CopyOnWriteArrayList<>();
+
+    // guarded by lock; pending updates map names to new values, null meaning removal
+    private Map<String, String> values;
+    private final Map<String, String> pending = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+    private boolean stored;
+    private Watcher watcher;
+
+    /**
+     * <p>Creates a root node.</p>
+     * @param rootKey the root key node's key belongs to
+     * @param keyPath path of node's key relative to root key
+     */
+    public RegistryPreferences(Registry.Key rootKey, String keyPath) {
+        super(null, "");
+        this.rootKey = Objects.requireNonNull(rootKey, "Root key must not be null");
+        this.keyPath = Objects.requireNonNull(keyPath, "Key path must not be null");
+        this.stored = exists();
+    }
+
+    private RegistryPreferences(RegistryPreferences parent, String name) {
+        super(parent, name);
+        this.rootKey = parent.rootKey;
+        this.keyPath = (parent.keyPath.isEmpty() ? name : parent.keyPath + "/" + name);
+        this.stored = exists();
+        this.newNode = !stored;
+    }
+
+    @Override
+    public void addPreferenceChangeListener(PreferenceChangeListener listener) {
+        super.addPreferenceChangeListener(listener);
+        listeners.add(listener);
+        synchronized (lock) {
+            if (watcher == null && !isRemoved()) {
+                try {
+                    // the baseline changes are told against, taken before returning
+                    loadedValues();
+                } catch (RegistryException e) {
+                    // taken by the watcher instead
+                }
+                watcher = new Watcher();
+                watcher.start();
+            }
+        }
+    }
+
+    @Override
+    public void removePreferenceChangeListener(PreferenceChangeListener listener) {
+        super.removePreferenceChangeListener(listener);
+        listeners.remove(listener);
+        synchronized (lock) {
+            if (listeners.isEmpty()) {
+                stopWatcher();
+            }
+        }
+    }
+
+    @Override
+    protected void putSpi(String key, String value) {
+        pending.put(key, value);
+    }
+
+    @Override
+    protected String getSpi(String key) {
+        if (pending.containsKey(key)) {
+            return pending.get(key);
+        }
+        try {
+            return loadedValues().get(key);
+        } catch (RegistryException e) {
+            // treated by the caller as a missing preference
+            return null;
+        }
+    }
+
+    @Override
+    protected void removeSpi(String key) {
+        pending.put(key, null);
+    }
+
+    @Override
+    protected void removeNodeSpi() throws BackingStoreException {
+        stopWatcher();
+        pending.clear();
+        values = null;
+        if (!stored) {
+            return;
+        }
+
+        int slash = keyPath.lastIndexOf('/');
+        try (Registry.Key parentKey = Registry.openKey(rootKey, keyPath.substring(0, Math.max(slash, 0)), true)) {
+            parentKey.deleteSubKey(keyPath.substring(slash + 1));
+            stored = false;
+        } catch (RegistryException e) {
+            if (ERROR_NOT_FOUND != e.getErrorCode()) {
+                throw new BackingStoreException(e);
+            }
+        }
+    }
+
+    @Override
+    protected String[] keysSpi() throws BackingStoreException {
+        try {
+            TreeSet<String> keys = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+            keys.addAll(loadedValues().keySet());
+            for (Map.Entry<String, String> entry : pending.entrySet()) {
+                if (entry.getValue() == null) {
+                    keys.remove(entry.getKey());
+                } else {
+                    keys.add(entry.getKey());
+                }
+            }
+            return keys.toArray(new String[0]);
+        } catch (RegistryException e) {
+            throw new BackingStoreException(e);
+        }
+    }
+
+    @Override
+    protected String[] childrenNamesSpi() throws BackingStoreException {
+        if (!stored) {
+            return new String[0];
+        }
+        try (Registry.Key key = Registry.openKey(rootKey, keyPath)) {
+            return key.listSubKeys().toArray(new String[0]);
+        } catch (RegistryException e) {
+            if (ERROR_NOT_FOUND == e.getErrorCode()) {
+                return new String[0];
+            }
+            throw new BackingStoreException(e);
+        }
+    }
+
+    @Override
+    protected AbstractPreferences childSpi(String name) {
+        return new RegistryPreferences(this, name);
+    }
+
+    @Override
+    protected void syncSpi() throws BackingStoreException {
+        flushSpi();
+        if (watcher == null) {
+            // reloaded on next access; values of a watched node are always current
+            values = null;
+        }
+    }
+
+    @Override
+    protected void flushSpi() throws BackingStoreException {
+        if (isRemoved() || (stored && pending.isEmpty())) {
+            return;
+        }
+
+        try (Registry.Key key = Registry.createKey(rootKey, keyPath)) {
+            stored = true;
+            // written one by one, so that a failure keeps the rest pending
+            for (Map.Entry<String, String> entry : new ArrayList<>(pending.entrySet())) {
+                String name = entry.getKey(), value = entry.getValue();
+                if (value == null) {
+                    deleteValue(key, name);
+                } else {
+                    key.setStringValue(name, value);
+                }
+                pending.remove(name);
+                if (values != null) {
+                    if (value == null) {
+                        values.remove(name);
+                    } else {
+                        values.put(name, value);
+                    }
+                }
+            }
+        } catch (RegistryException e) {
+            throw new BackingStoreException(e);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "RegistryPreferences{" + rootKey + ", '" + keyPath + "'}";
+    }
+
+    private boolean exists() {
+        Registry.Key key;
+        try {
+            key = Registry.openKey(rootKey, keyPath);
+        } catch (RegistryException e) {
+            return false;
+        }
+        try {
+            key.close();
+        } catch (RegistryException e) {
+            // the key exists nevertheless
+        }
+        return true;
+    }
+
+    private Map<String, String> loadedValues() throws RegistryException {
+        if (values == null) {
+            if (!stored) {
+                values = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+            } else {
+                try (Registry.Key key = Registry.openKey(rootKey, keyPath)) {
+                    values = readValues(key);
+                } catch (RegistryException e) {
+                    if (ERROR_NOT_FOUND != e.getErrorCode()) {
+                        throw e;
+                    }
+                    values = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+                }
+            }
+        }
+        return values;
+    }
+
+    /**
+     * <p>Replaces loaded values with fresh ones, except for those having pending updates.</p>
+     * @param fresh values just read from registry
+     * @return names of changed preferences mapped to new values, {@code null} for removed ones
+     */
+    private Map<String, String> merge(Map<String, String> fresh) {
+        Map<String, String> changes = new LinkedHashMap<>();
+        Map<String, String> old = values;
+        for (Map.Entry<String, String> entry : fresh.entrySet()) {
+            if (!pending.containsKey(entry.getKey()) && !entry.getValue().equals(old.get(entry.getKey()))) {
+                changes.put(entry.getKey(), entry.getValue());
+            }
+        }
+        for (String name : old.keySet()) {
+            if (!pending.containsKey(name) && !fresh.containsKey(name)) {
+                changes.put(name, null);
+            }
+        }
+        values = fresh;
+        return changes;
+    }
+
+    private void fire(Map<String, String> changes) {
+        for (Map.Entry<String, String> change : changes.entrySet()) {
+            PreferenceChangeEvent event = new PreferenceChangeEvent(this, change.getKey(), change.getValue());
+            for (PreferenceChangeListener listener : listeners) {
+                listener.preferenceChange(event);
+            }
+        }
+    }
+
+    private void stopWatcher() {
+        if (watcher != null) {
+            watcher.terminate();
+            watcher = null;
+        }
+    }
+
+    private static Map<String, String> readValues(Registry.Key key) throws RegistryException {
+        Map<String, String> result = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        for (RegistryValue value : key.listValues()) {
+            if (value.isString()) {
+                String text = value.asString();
+                result.put(value.getName(), (text == null ? "" : text));
+            } else if (value.isInt()) {
+                result.put(value.getName(), Integer.toString(value.asInt()));
+            }
+        }
+        return result;
+    }
+
+    private static void deleteValue(Registry.Key key, String name) throws RegistryException {
+        try {
+            key.deleteValue(name);
+        } catch (RegistryException e) {
+            if (ERROR_NOT_FOUND != e.getErrorCode()) {
+                throw e;
+            }
+        }
+    }
+
+    /** Waits for changes of node's key and reports those made by others */
+    private final class Watcher extends Thread {
+        // guarded by this watcher
+        private Registry.Event stop;
+        private boolean terminated;
+
+        Watcher() {
+            super("gatesmates-prefs-watcher " + keyPath);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            Registry.Event changed = null;
+            Registry.Key watched = null;
+            try {
+                Registry.Event created = Registry.createEvent();
+                synchronized (this) {
+                    if (terminated) {
+                        created.close();
+                        return;
+                    }
+                    stop = created;
+                }
+                changed = Registry.createEvent();
+                try {
+                    watched = Registry.openKey(rootKey, keyPath);
+                } catch (RegistryException e) {
+                    if (ERROR_NOT_FOUND != e.getErrorCode()) {
+                        throw e;
+                    }
+                    // a new node is stored right away to have something to watch
+                    watched = Registry.createKey(rootKey, keyPath);
+                }
+
+                do {
+                    // armed before reading, so that changes made while reading are not missed
+                    watched.notifyChange(false, changed);
+                    Map<String, String> changes;
+                    synchronized (lock) {
+                        if (isTerminated()) {
+                            return;
+                        }
+                        stored = true;
+                        if (values == null) {
+                            values = readValues(watched);
+                            continue;
+                        }
+                        changes = merge(readValues(watched));
+                    }
+                    // listeners are called without holding any locks
+                    fire(changes);
+                } while (Registry.waitForEvents(INFINITE, changed, stop) == 0);
+            } catch (RegistryException e) {
+                // key deleted or not accessible: nothing left to watch
+            } finally {
+                closeQuietly(watched);
+                closeQuietly(changed);
+                synchronized (this) {
+                    terminated = true;
+                    closeQuietly(stop);
+                    stop = null;
+                }
+            }
+        }
+
+        synchronized boolean isTerminated() {
+            return terminated;
+        }
+
+        synchronized void terminate() {
+            terminated = true;
+            if (stop != null) {
+                try {
+                    // ends the wait for changes, the watcher closes its handles itself
+                    stop.signal();
+                } catch (RegistryException e) {
+                    // the watcher still stops at its next change
+                }
+            }
+        }
+
+        private void closeQuietly(AutoCloseable handle) {
+            if (handle != null) {
+                try {
+                    handle.close();
+                } catch (Exception e) {
+                    // nothing sensible to do with a handle that refuses to close
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2016 Twowls.org.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.twowls.gatesmates.registry.prefs;
+
+import org.twowls.gatesmates.registry.Registry;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.prefs.BackingStoreException;
+import java.util.prefs.Preferences;
+import java.util.prefs.PreferencesFactory;
+
+/**
+ * <p>{@link PreferencesFactory} storing preferences in registry by means of
+ * {@link RegistryPreferences}. Activated by setting system property
+ * {@code java.util.prefs.PreferencesFactory} to the name of this class.</p>
+ *
+ * <p>User preferences are kept under {@code HKEY_CURRENT_USER}, system preferences
+ * under {@code HKEY_LOCAL_MACHINE}, both at the path given by system property
+ * {@value #ROOT_PATH_PROPERTY}, {@value #DEFAULT_ROOT_PATH} by default. The path
+ * differs from the one of the JDK's own Windows preferences, which encode names
+ * differently.</p>
+ *
+ * <p>As {@link RegistryPreferences} keep updates in memory until flushed, a shutdown
+ * hook flushes both trees when the virtual machine exits normally, the way the JDK's
+ * own preferences do. Both trees are also synced periodically if system property
+ * {@value #SYNC_INTERVAL_PROPERTY} holds a positive number of seconds; unlike with
+ * the JDK, there is no periodic sync by default. Either starts with the first root
+ * asked for.</p>
+ *
+ * @author bubo &lt;bubo@twowls.org&gt;
+ */
+public class RegistryPreferencesFactory implements PreferencesFactory {
+
+    /** System property holding path of the root nodes' keys */
+    public static final String ROOT_PATH_PROPERTY = "org.twowls.gatesmates.registry.prefs.root";
+    /** Default path of the root nodes' keys */
+    public static final String DEFAULT_ROOT_PATH = "Software/Gatesmates/Prefs";
+    /** System property holding interval in seconds of periodic sync of both trees */
+    public static final String SYNC_INTERVAL_PROPERTY = "org.twowls.gatesmates.registry.prefs.syncInterval";
+
+    // roots created so far, flushed at exit
+    private static final List<Preferences> roots = new CopyOnWriteArrayList<>();
+    // guarded by roots
+    private static Thread shutdownHook;
+
+    @Override
+    public Preferences systemRoot() {
+        return SystemRoot.INSTANCE;
+    }
+
+    @Override
+    public Preferences userRoot() {
+        return UserRoot.INSTANCE;
+    }
+
+    private static String rootPath() {
+        return System.getProperty(ROOT_PATH_PROPERTY, DEFAULT_ROOT_PATH);
+    }
+
+    private static Preferences register(Preferences root) {
+        synchronized (roots) {
+            if (shutdownHook == null) {
+                shutdownHook = new Thread(() -> syncRoots(false), "gatesmates-prefs-shutdown");
+                Runtime.getRuntime().addShutdownHook(shutdownHook);
+                long interval = Long.getLong(SYNC_INTERVAL_PROPERTY, 0);
+                if (interval > 0) {
+                    ScheduledExecutorService syncer = Executors.newSingleThreadScheduledExecutor(r -> {
+                        Thread thread = new Thread(r, "gatesmates-prefs-sync");
+                        thread.setDaemon(true);
+                        return thread;
+                    });
+                    syncer.scheduleWithFixedDelay(() -> syncRoots(true), interval, interval, TimeUnit.SECONDS);
+                }
+            }
+            roots.add(root);
+        }
+        return root;
+    }
+
+    /**
+     * @return the hook flushing roots at exit, {@code null} until a root is created
+     */
+    static Thread shutdownHook() {
+        synchronized (roots) {
+            return shutdownHook;
+        }
+    }
+
+    /**
+     * <p>Flushes or syncs every root created so far, trying the next root when one fails.</p>
+     * @param sync {@code true} to sync, {@code false} to flush only
+     */
+    static void syncRoots(boolean sync) {
+        for (Preferences root : roots) {
+            try {
+                if (sync) {
+                    root.sync();
+                } else {
+                    root.flush();
+                }
+            } catch (BackingStoreException e) {
+                // registry not available: updates stay pending, for the next sync if any
+            }
+        }
+    }
+
+    /** Holds the system root, created on first use */
+    private static final class SystemRoot {
+        static final Preferences INSTANCE = register(
+                new RegistryPreferences(Registry.KEY_LOCAL_MACHINE, rootPath()));
+    }
+
+    /** Holds the user root, created on first use */
+    private static final class UserRoot {
+        static final Preferences INSTANCE = register(
+                new RegistryPreferences(Registry.KEY_CURRENT_USER, rootPath()));
+    }
+}
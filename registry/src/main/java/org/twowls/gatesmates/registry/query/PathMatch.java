@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2016 Twowls.org.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.twowls.gatesmates.registry.query;
+
+import java.util.Objects;
+
+/**
+ * <p>Registry key or value found by a {@link PathQuery}.</p>
+ *
+ * @author bubo &lt;bubo@twowls.org&gt;
+ */
+public final class PathMatch {
+
+    private final String keyPath;
+    private final String valueName;
+
+    PathMatch(String keyPath, String valueName) {
+        this.keyPath = keyPath;
+        this.valueName = valueName;
+    }
+
+    /**
+     * @return path of the matched key, or of the key holding matched value,
+     * relative to query root key
+     */
+    public String getKeyPath() {
+        return keyPath;
+    }
+
+    /**
+     * @return name of the matched value or {@code null} if a key has been matched
+     */
+    public String getValueName() {
+        return valueName;
+    }
+
+    /**
+     * @return {@code true} if a value has been matched
+     */
+    public boolean isValue() {
+        return valueName != null;
+    }
+
+    /**
+     * @return full path of the match, value name (if any) being the last element
+     */
+    public String getPath() {
+        return (valueName == null ? keyPath : keyPath.isEmpty() ? valueName : keyPath + "/" + valueName);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (!(o instanceof PathMatch)) return false;
+        PathMatch that = (PathMatch) o;
+        return keyPath.equals(that.keyPath) && Objects.equals(valueName, that.valueName);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(keyPath, valueName);
+    }
+
+    @Override
+    public String toString() {
+        return (valueName == null ? "key '" + keyPath + "'" : "value '" + valueName + "' of key '" + keyPath + "'");
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2016 Twowls.org.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.twowls.gatesmates.registry.query;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.regex.Pattern;
+
+/**
+ * <p>Compiled registry path pattern.</p>
+ *
+ * <p>A pattern is a {@code '/'} separated list of segments, each matching one
+ * path element case insensitively:</p>
+ * <ul>
+ *     <li>{@code *} matches any sequence of characters within an element,</li>
+ *     <li>{@code ?} matches any single character,</li>
+ *     <li>{@code [abc]}, {@code [a-z]} and {@code [!abc]} match one character from
+ *     (or not from) a set,</li>
+ *     <li>a segment consisting solely of {@code **} matches any number of elements,
+ *     including none.</li>
+ * </ul>
+ *
+ * <p>Matching is done against a set of pattern positions rather than by backtracking,
+ * so the cost of testing a path element does not depend on how many {@code **}
+ * segments the pattern has.</p>
+ *
+ * @author bubo &lt;bubo@twowls.org&gt;
+ */
+public final class PathPattern {
+
+    private final String source;
+    private final Segment[] segments;
+
+    private PathPattern(String source, Segment[] segments) {
+        this.source = source;
+        this.segments = segments;
+    }
+
+    /**
+     * <p>Compiles a pattern.</p>
+     * @param pattern pattern text, e.g. {@code SOFTWARE/*}{@code /Uninstall/*}{@code /DisplayVersion}
+     * @return compiled pattern
+     * @throws IllegalArgumentException if pattern is malformed
+     */
+    public static PathPattern compile(String pattern) {
+        Objects.requireNonNull(pattern, "Pattern must not be null");
+
+        List<Segment> segments = new ArrayList<>();
+        for (String part : pattern.split("/")) {
+            if (part.isEmpty()) {
+                continue;
+            }
+            if ("**".equals(part)) {
+                // consecutive '**' segments are equivalent to a single one
+                if (segments.isEmpty() || !segments.get(segments.size() - 1).isAnyDepth()) {
+                    segments.add(Segment.ANY_DEPTH);
+                }
+            } else {
+                segments.add(Segment.of(part));
+            }
+        }
+        return new PathPattern(pattern, segments.toArray(new Segment[0]));
+    }
+
+    /**
+     * <p>Tests whether a whole path matches this pattern.</p>
+     * @param path {@code '/'} separated path
+     * @return {@code true} if path matches
+     */
+    public boolean matches(String path) {
+        BitSet state = initialState();
+        for (String element : path.split("/")) {
+            if (!element.isEmpty()) {
+                state = advance(state, element);
+                if (state.isEmpty()) {
+                    return false;
+                }
+            }
+        }
+        return isComplete(state);
+    }
+
+    @Override
+    public String toString() {
+        return source;
+    }
+
+    //
+    // Position set operations used by the query engine
+    //
+
+    int length() {
+        return segments.length;
+    }
+
+    Segment segment(int position) {
+        return segments[position];
+    }
+
+    BitSet initialState() {
+        BitSet state = new BitSet(segments.length + 1);
+        state.set(0);
+        return closure(state);
+    }
+
+    BitSet advance(BitSet state, String element) {
+        BitSet next = new BitSet(segments.length + 1);
+        for (int pos = state.nextSetBit(0); pos >= 0 && pos < segments.length; pos = state.nextSetBit(pos + 1)) {
+            Segment segment = segments[pos];
+            if (segment.isAnyDepth()) {
+                next.set(pos);
+            } else if (segment.matches(element)) {
+                next.set(pos + 1);
+            }
+        }
+        return closure(next);
+    }
+
+    boolean isComplete(BitSet state) {
+        return state.get(segments.length);
+    }
+
+    boolean isOnlyComplete(BitSet state) {
+        return state.cardinality() == 1 && isComplete(state);
+    }
+
+    private BitSet closure(BitSet state) {
+        // '**' may match no elements at all, so its position implies the next one
+        for (int pos = state.nextSetBit(0); pos >= 0 && pos < segments.length; pos = state.nextSetBit(pos + 1)) {
+            if (segments[pos].isAnyDepth()) {
+                state.set(pos + 1);
+            }
+        }
+        return state;
+    }
+
+    /** Single pattern segment */
+    static final class Segment {
+
+        static final Segment ANY_DEPTH = new Segment("**", null, null);
+
+        private final String text;
+        private final String literal;
+        private final Pattern regex;
+
+        private Segment(String text, String literal, Pattern regex) {
+            this.text = text;
+            this.literal = literal;
+            this.regex = regex;
+        }
+
+        static Segment of(String text) {
+            StringBuilder regex = new StringBuilder();
+            boolean wildcard = false;
+            for (int i = 0; i < text.length(); i++) {
+                char c = text.charAt(i);
+                if (c == '*') {
+                    regex.append(".*");
+                    wildcard = true;
+                } else if (c == '?') {
+                    regex.append('.');
+                    wildcard = true;
+                } else if (c == '[') {
+                    int end = text.indexOf(']', i + 2);
+                    if (end < 0) {
+                        throw new IllegalArgumentException("Unclosed character class in '" + text + "'");
+                    }
+                    regex.append('[');
+                    int start = i + 1;
+                    if (text.charAt(start) == '!') {
+                        regex.append('^');
+                        start++;
+                    }
+                    for (int j = start; j < end; j++) {
+                        char member = text.charAt(j);
+                        if (member == '-' && j > start && j < end - 1) {
+                            regex.append('-');
+                        } else {
+                            if ("\\[]^&-".indexOf(member) >= 0) {
+                                regex.append('\\');
+                            }
+                            regex.append(member);
+                        }
+                    }
+                    regex.append(']');
+                    i = end;
+                    wildcard = true;
+                } else {
+                    regex.append(Pattern.quote(String.valueOf(c)));
+                }
+            }
+            return (wildcard ? new Segment(text, null,
+                    Pattern.compile(regex.toString(), Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE))
+                    : new Segment(text, text, null));
+        }
+
+        boolean isAnyDepth() {
+            return this == ANY_DEPTH;
+        }
+
+        /**
+         * @return literal element name or {@code null} if segment contains wildcards
+         */
+        String literal() {
+            return literal;
+        }
+
+        boolean matches(String element) {
+            return (literal != null ? literal.equalsIgnoreCase(element)
+                    : regex != null && regex.matcher(element).matches());
+        }
+
+        @Override
+        public String toString() {
+            return text;
+        }
+    }
+}
@@ -0,0 +1,437 @@
+/*
+ * Copyright (c) 2016 Twowls.org.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.twowls.gatesmates.registry.query;
+
+import org.twowls.gatesmates.registry.Registry;
+import org.twowls.gatesmates.registry.RegistryConst;
+import org.twowls.gatesmates.registry.RegistryException;
+import org.twowls.gatesmates.registry.RegistryValue;
+
+import java.io.UncheckedIOException;
+import java.lang.ref.Cleaner;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * <p>Finds registry keys and values whose paths match a {@link PathPattern}.</p>
+ *
+ * <p>The subtree is walked in parallel on a {@link ForkJoinPool}, one task per visited
+ * key. Sub keys are enumerated only where the pattern has wildcards; literal segments
+ * are opened directly (consecutive ones in a single call) and subtrees that cannot
+ * match are never opened. The number of handles open at any moment is capped, and
+ * a task never holds a handle while waiting for its sub tasks.</p>
+ *
+ * <p>The last element of a path may be either a sub key or a value name; see
+ * {@link #setMatchKeys(boolean)} and {@link #setMatchValues(boolean)}. Keys that
+ * disappear or cannot be opened due to insufficient access rights are skipped.</p>
+ *
+ * <p>A {@link #stream() stream} of matches is fed by the traversal through a bounded
+ * buffer, so the traversal waits for a slow consumer instead of piling up matches.</p>
+ *
+ * @author bubo &lt;bubo@twowls.org&gt;
+ */
+public class PathQuery implements RegistryConst {
+
+    /** Default limit of simultaneously open handles */
+    public static final int DEFAULT_MAX_OPEN_HANDLES = 64;
+    /** Default number of matches found ahead of a stream consumer */
+    public static final int DEFAULT_STREAM_BUFFER_SIZE = 256;
+
+    private static final Cleaner CLEANER = Cleaner.create();
+    private static final Object END_OF_MATCHES = new Object();
+    private static final long OFFER_TIMEOUT_MILLIS = 100;
+
+    private final Registry.Key rootKey;
+    private final PathPattern pattern;
+    private ForkJoinPool pool = ForkJoinPool.commonPool();
+    private int maxOpenHandles = DEFAULT_MAX_OPEN_HANDLES;
+    private int streamBufferSize = DEFAULT_STREAM_BUFFER_SIZE;
+    private boolean matchKeys = true;
+    private boolean matchValues = true;
+
+    /**
+     * <p>Creates a new instance of {@link PathQuery}.</p>
+     * @param rootKey the key pattern paths are relative to
+     * @param pattern compiled path pattern
+     */
+    public PathQuery(Registry.Key rootKey, PathPattern pattern) {
+        this.rootKey = Objects.requireNonNull(rootKey, "Root key must not be null");
+        this.pattern = Objects.requireNonNull(pattern, "Pattern must not be null");
+    }
+
+    /**
+     * <p>Creates a new instance of {@link PathQuery}.</p>
+     * @param rootKey the key pattern paths are relative to
+     * @param pattern path pattern text
+     */
+    public PathQuery(Registry.Key rootKey, String pattern) {
+        this(rootKey, PathPattern.compile(pattern));
+    }
+
+    /**
+     * @param pool the pool to run traversal tasks on, {@link ForkJoinPool#commonPool()} by default
+     */
+    public void setPool(ForkJoinPool pool) {
+        this.pool = Objects.requireNonNull(pool, "Pool must not be null");
+    }
+
+    /**
+     * @param maxOpenHandles limit of simultaneously open handles
+     */
+    public void setMaxOpenHandles(int maxOpenHandles) {
+        if (maxOpenHandles < 1) {
+            throw new IllegalArgumentException("At least one handle must be allowed");
+        }
+        this.maxOpenHandles = maxOpenHandles;
+    }
+
+    /**
+     * @param streamBufferSize number of matches the traversal may find ahead of a stream consumer
+     */
+    public void setStreamBufferSize(int streamBufferSize) {
+        if (streamBufferSize < 1) {
+            throw new IllegalArgumentException("Stream buffer size must be positive");
+        }
+        this.streamBufferSize = streamBufferSize;
+    }
+
+    /**
+     * @param matchKeys whether keys matching the pattern are reported, {@code true} by default
+     */
+    public void setMatchKeys(boolean matchKeys) {
+        this.matchKeys = matchKeys;
+    }
+
+    /**
+     * @param matchValues whether values matching the pattern are reported, {@code true} by default
+     */
+    public void setMatchValues(boolean matchValues) {
+        this.matchValues = matchValues;
+    }
+
+    /**
+     * <p>Runs the query, passing matches to the given action as soon as they are found.
+     * The action may be called concurrently from several threads.</p>
+     * @param action action receiving matches
+     * @throws RegistryException if traversal failed
+     */
+    public void forEach(Consumer<? super PathMatch> action) throws RegistryException {
+        Execution execution = new Execution(action);
+        pool.invoke(new VisitTask(execution, "", pattern.initialState()));
+        execution.rethrow();
+    }
+
+    /**
+     * <p>Runs the query and collects all matches.</p>
+     * @return matches sorted by path
+     * @throws RegistryException if traversal failed
+     */
+    public List<PathMatch> list() throws RegistryException {
+        List<PathMatch> matches = Collections.synchronizedList(new ArrayList<>());
+        forEach(matches::add);
+        List<PathMatch> sorted = new ArrayList<>(matches);
+        sorted.sort(Comparator.comparing(PathMatch::getPath, String.CASE_INSENSITIVE_ORDER));
+        return sorted;
+    }
+
+    /**
+     * <p>Starts the query in background and returns a stream of its matches in order
+     * they are found. The traversal runs at most {@link #setStreamBufferSize(int) stream
+     * buffer size} matches ahead of the consumer, keeping its handles open meanwhile.</p>
+     *
+     * <p>The stream must be closed, e.g. with try-with-resources, unless consumed to the
+     * end: closing stops the traversal and releases its handles. Short-circuiting
+     * operations like {@code findFirst()} do not close the stream; a stream that is
+     * neither consumed nor closed stops the traversal only once garbage collected.</p>
+     * @return stream of matches; traversal failure surfaces as {@link UncheckedIOException}
+     */
+    public Stream<PathMatch> stream() {
+        BlockingQueue<Object> queue = new ArrayBlockingQueue<>(streamBufferSize);
+        Execution execution = new Execution(queue);
+        pool.execute(() -> {
+            try {
+                new VisitTask(execution, "", pattern.initialState()).invoke();
+                execution.rethrow();
+                execution.offer(END_OF_MATCHES);
+            } catch (Throwable e) {
+                execution.offer(e);
+            }
+        });
+
+        Iterator<PathMatch> iterator = new Iterator<PathMatch>() {
+            private Object next;
+
+            @Override
+            public boolean hasNext() {
+                if (next == null) {
+                    try {
+                        next = queue.take();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        execution.cancelled = true;
+                        throw new IllegalStateException("Interrupted while waiting for matches", e);
+                    }
+                }
+                if (next instanceof RegistryException) {
+                    throw new UncheckedIOException((RegistryException) next);
+                } else if (next instanceof RuntimeException) {
+                    throw (RuntimeException) next;
+                } else if (next instanceof Error) {
+                    throw (Error) next;
+                }
+                return next != END_OF_MATCHES;
+            }
+
+            @Override
+            public PathMatch next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                PathMatch match = (PathMatch) next;
+                next = null;
+                return match;
+            }
+        };
+
+        // cancels an abandoned traversal, the action must not refer to the iterator
+        Cleaner.Cleanable cleanable = CLEANER.register(iterator, execution::cancel);
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(iterator,
+                Spliterator.NONNULL), false).onClose(cleanable::clean);
+    }
+
+    private static boolean isSkippable(int errorCode) {
+        return ERROR_NOT_FOUND == errorCode || ERROR_KEY_DELETED == errorCode || ERROR_ACCESS_DENIED == errorCode;
+    }
+
+    private static String childPath(String path, String name) {
+        return (path.isEmpty() ? name : path + "/" + name);
+    }
+
+    /** State of a single query run */
+    private final class Execution {
+        final Consumer<? super PathMatch> sink;
+        final BlockingQueue<Object> queue;
+        final Semaphore handles = new Semaphore(maxOpenHandles);
+        final AtomicReference<RegistryException> error = new AtomicReference<>();
+        volatile boolean cancelled;
+
+        Execution(Consumer<? super PathMatch> sink) {
+            this.sink = sink;
+            this.queue = null;
+        }
+
+        Execution(BlockingQueue<Object> queue) {
+            this.sink = this::offer;
+            this.queue = queue;
+        }
+
+        void cancel() {
+            cancelled = true;
+        }
+
+        /**
+         * <p>Passes an item to the stream consumer, waiting for room until cancelled.</p>
+         */
+        void offer(Object item) {
+            try {
+                while (!cancelled) {
+                    if (queue.offer(item, OFFER_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                        return;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                cancelled = true;
+            }
+        }
+
+        void emit(String keyPath, String valueName) {
+            if (!cancelled) {
+                sink.accept(new PathMatch(keyPath, valueName));
+            }
+        }
+
+        void fail(RegistryException e) {
+            error.compareAndSet(null, e);
+            cancelled = true;
+        }
+
+        void rethrow() throws RegistryException {
+            RegistryException e = error.get();
+            if (e != null) {
+                throw e;
+            }
+        }
+
+        boolean acquireHandle() {
+            try {
+                // let the pool compensate for a worker blocked on the handle limit
+                ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+                    @Override
+                    public boolean block() throws InterruptedException {
+                        handles.acquire();
+                        return true;
+                    }
+
+                    @Override
+                    public boolean isReleasable() {
+                        return handles.tryAcquire();
+                    }
+                });
+                return true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                cancelled = true;
+                return false;
+            }
+        }
+    }
+
+    /** Visits a single key */
+    private final class VisitTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Execution execution;
+        private final String path;
+        private final BitSet state;
+
+        VisitTask(Execution execution, String path, BitSet state) {
+            this.execution = execution;
+            this.path = path;
+            this.state = state;
+        }
+
+        @Override
+        protected void compute() {
+            if (execution.cancelled || !execution.acquireHandle()) {
+                return;
+            }
+
+            List<VisitTask> subTasks = new ArrayList<>();
+            try (Registry.Key key = Registry.openKey(rootKey, path)) {
+                visit(key, subTasks);
+            } catch (RegistryException e) {
+                if (!isSkippable(e.getErrorCode())) {
+                    execution.fail(e);
+                }
+                return;
+            } finally {
+                execution.handles.release();
+            }
+
+            invokeAll(subTasks);
+        }
+
+        private void visit(Registry.Key key, List<VisitTask> subTasks) throws RegistryException {
+            int length = pattern.length();
+            if (matchKeys && pattern.isComplete(state)) {
+                execution.emit(path, null);
+            }
+
+            if (matchValues && length > 0 && state.get(length - 1)) {
+                PathPattern.Segment last = pattern.segment(length - 1);
+                if (last.literal() != null) {
+                    try {
+                        execution.emit(path, key.queryValue(last.literal()).getName());
+                    } catch (RegistryException e) {
+                        if (ERROR_NOT_FOUND != e.getErrorCode()) {
+                            throw e;
+                        }
+                    }
+                } else if (!last.isAnyDepth()) {
+                    for (RegistryValue value : key.listValues()) {
+                        if (last.matches(value.getName())) {
+                            execution.emit(path, value.getName());
+                        }
+                    }
+                }
+            }
+
+            // collect literal names of sub keys, unless some position needs enumeration
+            Set<String> literals = new LinkedHashSet<>();
+            int pending = 0, firstPending = -1;
+            for (int pos = state.nextSetBit(0); pos >= 0 && pos < length; pos = state.nextSetBit(pos + 1)) {
+                String literal = pattern.segment(pos).literal();
+                if (literal == null) {
+                    enumerate(key, subTasks);
+                    return;
+                }
+                literals.add(literal);
+                if (pending++ == 0) {
+                    firstPending = pos;
+                }
+            }
+
+            if (pending == 1 && firstPending < length - 1) {
+                // a single chain of literal segments is opened with a single call
+                String chain = "";
+                BitSet next = state;
+                for (int pos = firstPending; pos < length - 1 && pattern.segment(pos).literal() != null; pos++) {
+                    chain = childPath(chain, pattern.segment(pos).literal());
+                    next = pattern.advance(next, pattern.segment(pos).literal());
+                }
+                subTasks.add(new VisitTask(execution, childPath(path, chain), next));
+                return;
+            }
+
+            for (String literal : literals) {
+                BitSet next = pattern.advance(state, literal);
+                if (!next.isEmpty() && (matchKeys || !pattern.isOnlyComplete(next))) {
+                    subTasks.add(new VisitTask(execution, childPath(path, literal), next));
+                }
+            }
+        }
+
+        private void enumerate(Registry.Key key, List<VisitTask> subTasks) throws RegistryException {
+            for (String name : key.listSubKeys()) {
+                BitSet next = pattern.advance(state, name);
+                if (next.isEmpty()) {
+                    continue;
+                }
+                if (pattern.isOnlyComplete(next)) {
+                    // existence is already known, no need to open the key just to report it
+                    if (matchKeys) {
+                        execution.emit(childPath(path, name), null);
+                    }
+                } else {
+                    subTasks.add(new VisitTask(execution, childPath(path, name), next));
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,314 @@
+/*
+ * Copyright (c) 2016 Twowls.org.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.twowls.gatesmates.registry.trace;
+
+import org.twowls.gatesmates.registry.RegistryConst;
+import org.twowls.gatesmates.util.AdvApi32Backend;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <p>Backend recording every call passed on to another backend, together with its
+ * arguments, results and timing, into a compact binary trace file.</p>
+ *
+ * <p>Install it with {@link org.twowls.gatesmates.registry.Registry#useBackend(AdvApi32Backend)}
+ * on top of the {@link org.twowls.gatesmates.util.Gates#systemBackend() system backend}
+ * to capture a workload and serve the trace later with {@link ReplayBackend}, on any
+ * operating system. Keys are recorded by path instead of handle, so a trace does not
+ * depend on handle values of the recording process.</p>
+ *
+ * <p>Calls may come from any number of threads; records are appended in order of
+ * completion. Failure to write the trace never affects calls, it is reported by
+ * {@link #close()} instead.</p>
+ *
+ * @author bubo &lt;bubo@twowls.org&gt;
+ */
+public class RecordingBackend implements AdvApi32Backend, Closeable, RegistryConst {
+
+    private final AdvApi32Backend target;
+    private final DataOutputStream out;
+    private final Map<Integer, String> paths = new ConcurrentHashMap<>();
+    private final long origin = System.nanoTime();
+    private final TraceRecord.Context context = new TraceRecord.Context();
+    private long recordCount;
+    private IOException failure;
+    private boolean closed;
+
+    /**
+     * <p>Creates a new instance of {@link RecordingBackend}.</p>
+     * @param target the backend calls are passed on to
+     * @param traceFile trace file, replaced if exists
+     * @throws IOException if the trace file cannot be created
+     */
+    public RecordingBackend(AdvApi32Backend target, Path traceFile) throws IOException {
+        this.target = Objects.requireNonNull(target, "Target backend must not be null");
+        this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(traceFile), 1 << 16));
+        out.writeInt(TraceRecord.MAGIC);
+        out.writeByte(TraceRecord.FORMAT_VERSION);
+        out.writeLong(System.currentTimeMillis());
+    }
+
+    /**
+     * @return number of calls recorded so far
+     */
+    public synchronized long getRecordCount() {
+        return recordCount;
+    }
+
+    @Override
+    public int RegOpenKeyExA(int handle, String path, int options, int access, long[] result) {
+        long start = System.nanoTime();
+        int error = target.RegOpenKeyExA(handle, path, options, access, result);
+        TraceRecord record = newRecord(TraceRecord.OP_OPEN, handle, start, error);
+        record.name = path;
+        if (ERROR_SUCCESS == error) {
+            paths.put((int) result[0], TraceRecord.childPath(record.path, path));
+        }
+        append(record);
+        return error;
+    }
+
+    @Override
+    public int RegQueryValueExA(int handle, String value, int[] ignore, int[] type, byte[] data, int[] size) {
+        int capacity = (data == null ? TraceRecord.NO_BUFFER : bufferSize(data, size));
+        long start = System.nanoTime();
+        int error = target.RegQueryValueExA(handle, value, ignore, type, data, size);
+        TraceRecord record = newRecord(TraceRecord.OP_QUERY_VALUE, handle, start, error);
+        record.name = value;
+        record.dataCapacity = capacity;
+        record.ints = new int[]{get(type), get(size)};
+        if (ERROR_SUCCESS == error && data != null && size != null) {
+            record.data = Arrays.copyOf(data, Math.min(size[0], data.length));
+        }
+        append(record);
+        return error;
+    }
+
+    @Override
+    public int RegEnumKeyExA(int handle, int index, byte[] name, int[] nameSize, int[] ignore,
+                             byte[] className, int[] classNameSize, long[] lastWriteTime) {
+        int capacity = get(nameSize);
+        long start = System.nanoTime();
+        int error = target.RegEnumKeyExA(handle, index, name, nameSize, ignore,
+                className, classNameSize, lastWriteTime);
+        TraceRecord record = newRecord(TraceRecord.OP_ENUM_KEY, handle, start, error);
+        record.index = index;
+        record.capacity = capacity;
+        record.ints = new int[]{get(nameSize), get(classNameSize)};
+        record.lastWriteTime = (lastWriteTime == null ? 0 : lastWriteTime[0]);
+        if (ERROR_SUCCESS == error && name != null) {
+            record.nameBytes = Arrays.copyOf(name, Math.min(get(nameSize), name.length));
+        }
+        append(record);
+        return error;
+    }
+
+    @Override
+    public int RegEnumValueA(int handle, int index, byte[] name, int[] nameSize, int[] ignore,
+                             int[] type, byte[] data, int[] size) {
+        int capacity = get(nameSize);
+        int dataCapacity = (data == null ? TraceRecord.NO_BUFFER : bufferSize(data, size));
+        long start = System.nanoTime();
+        int error = target.RegEnumValueA(handle, index, name, nameSize, ignore, type, data, size);
+        TraceRecord record = newRecord(TraceRecord.OP_ENUM_VALUE, handle, start, error);
+        record.index = index;
+        record.capacity = capacity;
+        record.dataCapacity = dataCapacity;
+        record.ints = new int[]{get(nameSize), get(type), get(size)};
+        if (ERROR_SUCCESS == error) {
+            if (name != null) {
+                record.nameBytes = Arrays.copyOf(name, Math.min(get(nameSize), name.length));
+            }
+            if (data != null && size != null) {
+                record.data = Arrays.copyOf(data, Math.min(size[0], data.length));
+            }
+        }
+        append(record);
+        return error;
+    }
+
+    @Override
+    public int RegQueryInfoKeyA(int handle, byte[] className, int[] classNameSize, int[] ignore,
+                                int[] subKeys, int[] maxSubKeyLen, int[] maxClassLen,
+                                int[] values, int[] maxValueNameLen, int[] maxValueLen,
+                                int[] securityDescriptor, long[] lastWriteTime) {
+        long start = System.nanoTime();
+        int error = target.RegQueryInfoKeyA(handle, className, classNameSize, ignore,
+                subKeys, maxSubKeyLen, maxClassLen, values, maxValueNameLen, maxValueLen,
+                securityDescriptor, lastWriteTime);
+        TraceRecord record = newRecord(TraceRecord.OP_QUERY_INFO, handle, start, error);
+        record.ints = new int[]{get(classNameSize), get(subKeys), get(maxSubKeyLen), get(maxClassLen),
+                get(values), get(maxValueNameLen), get(maxValueLen), get(securityDescriptor)};
+        record.lastWriteTime = (lastWriteTime == null ? 0 : lastWriteTime[0]);
+        append(record);
+        return error;
+    }
+
+    @Override
+    public int RegCreateKeyExA(int handle, String path, int reserved, String className, int options,
+                               int access, int[] securityAttributes, long[] result, int[] disposition) {
+        long start = System.nanoTime();
+        int error = target.RegCreateKeyExA(handle, path, reserved, className, options, access,
+                securityAttributes, result, disposition);
+        TraceRecord record = newRecord(TraceRecord.OP_CREATE, handle, start, error);
+        record.name = path;
+        record.ints = new int[]{get(disposition)};
+        if (ERROR_SUCCESS == error) {
+            paths.put((int) result[0], TraceRecord.childPath(record.path, path));
+        }
+        append(record);
+        return error;
+    }
+
+    @Override
+    public int RegSetValueExA(int handle, String value, int reserved, int type, byte[] data, int size) {
+        long start = System.nanoTime();
+        int error = target.RegSetValueExA(handle, value, reserved, type, data, size);
+        TraceRecord record = newRecord(TraceRecord.OP_SET_VALUE, handle, start, error);
+        record.name = value;
+        record.capacity = type;
+        record.data = (data == null ? null : Arrays.copyOf(data, Math.min(size, data.length)));
+        append(record);
+        return error;
+    }
+
+    @Override
+    public int RegDeleteKeyA(int handle, String path) {
+        long start = System.nanoTime();
+        int error = target.RegDeleteKeyA(handle, path);
+        TraceRecord record = newRecord(TraceRecord.OP_DELETE_KEY, handle, start, error);
+        record.name = path;
+        append(record);
+        return error;
+    }
+
+    @Override
+    public int RegDeleteValueA(int handle, String value) {
+        long start = System.nanoTime();
+        int error = target.RegDeleteValueA(handle, value);
+        TraceRecord record = newRecord(TraceRecord.OP_DELETE_VALUE, handle, start, error);
+        record.name = value;
+        append(record);
+        return error;
+    }
+
+    @Override
+    public int RegNotifyChangeKeyValue(int handle, boolean watchSubtree, int notifyFilter,
+                                       int event, boolean asynchronous) {
+        long start = System.nanoTime();
+        int error = target.RegNotifyChangeKeyValue(handle, watchSubtree, notifyFilter, event, asynchronous);
+        TraceRecord record = newRecord(TraceRecord.OP_NOTIFY, handle, start, error);
+        record.index = (watchSubtree ? 1 : 0);
+        record.capacity = notifyFilter;
+        append(record);
+        return error;
+    }
+
+    @Override
+    public int RegCloseKey(int handle) {
+        // forgotten beforehand, as the handle may be reused as soon as it is closed
+        String path = paths.remove(handle);
+        long start = System.nanoTime();
+        int error = target.RegCloseKey(handle);
+        if (ERROR_SUCCESS != error && path != null) {
+            paths.put(handle, path);
+        }
+        TraceRecord record = new TraceRecord(TraceRecord.OP_CLOSE, (path == null ? pathOf(handle) : path));
+        record.startNanos = start - origin;
+        record.durationNanos = System.nanoTime() - start;
+        record.error = error;
+        append(record);
+        return error;
+    }
+
+    /**
+     * <p>Flushes and closes the trace file. Calls are still passed on afterwards,
+     * but no longer recorded.</p>
+     * @throws IOException the first failure of writing the trace
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            out.close();
+        } catch (IOException e) {
+            if (failure == null) {
+                failure = e;
+            } else {
+                failure.addSuppressed(e);
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "RecordingBackend{" + target + "}";
+    }
+
+    private TraceRecord newRecord(byte op, int handle, long start, int error) {
+        long end = System.nanoTime();
+        TraceRecord record = new TraceRecord(op, pathOf(handle));
+        record.startNanos = start - origin;
+        record.durationNanos = end - start;
+        record.error = error;
+        return record;
+    }
+
+    private String pathOf(int handle) {
+        String path = TraceRecord.rootPath(handle);
+        if (path == null) {
+            path = paths.get(handle);
+        }
+        return (path == null ? "#" + Integer.toHexString(handle) : path);
+    }
+
+    private synchronized void append(TraceRecord record) {
+        if (closed || failure != null) {
+            return;
+        }
+        try {
+            record.write(out, context);
+            recordCount++;
+        } catch (IOException e) {
+            failure = e;
+        }
+    }
+
+    private static int bufferSize(byte[] data, int[] size) {
+        return (size == null ? data.length : Math.min(size[0], data.length));
+    }
+
+    private static int get(int[] array) {
+        return (array == null ? 0 : array[0]);
+    }
+}
@@ -0,0 +1,355 @@
+/*
+ * Copyright (c) 2016 Twowls.org.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.twowls.gatesmates.registry.trace;
+
+import org.twowls.gatesmates.registry.RegistryConst;
+import org.twowls.gatesmates.util.AdvApi32Backend;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <p>Backend serving the responses recorded by {@link RecordingBackend}.</p>
+ *
+ * <p>A call gets the response recorded for a call of the same function on the key
+ * of the same path with the same arguments. Responses to repeated calls are served
+ * in order of recording, the last one being repeated once they run out; change
+ * notifications are the exception, each of them is served once only. A call
+ * never recorded fails with {@code ERROR_NOT_FOUND} ({@code ERROR_NO_MORE_ITEMS}
+ * for enumerations), and is counted as {@link #getMissCount() a miss}.</p>
+ *
+ * <p>Each call takes as long as its recorded counterpart with {@link Timing#ORIGINAL}
+ * timing, or returns at once with {@link Timing#FAST} timing. Time spent between
+ * calls is up to the replayed workload.</p>
+ *
+ * @author bubo &lt;bubo@twowls.org&gt;
+ */
+public class ReplayBackend implements AdvApi32Backend, RegistryConst {
+
+    /** Duration of replayed calls */
+    public enum Timing {
+        /** Calls take as long as they did when recorded */
+        ORIGINAL,
+        /** Calls return as fast as possible */
+        FAST
+    }
+
+    private static final int FIRST_HANDLE = 0x1000;
+    private static final long SPIN_THRESHOLD_NANOS = 50_000;
+
+    private final Map<String, Deque<TraceRecord>> responses;
+    private final long recordedAt;
+    private final Map<Integer, String> paths = new ConcurrentHashMap<>();
+    private final AtomicInteger nextHandle = new AtomicInteger(FIRST_HANDLE);
+    private final AtomicLong callCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private volatile Timing timing = Timing.ORIGINAL;
+
+    private ReplayBackend(Map<String, Deque<TraceRecord>> responses, long recordedAt) {
+        this.responses = responses;
+        this.recordedAt = recordedAt;
+    }
+
+    /**
+     * <p>Loads a trace file written by {@link RecordingBackend}.</p>
+     * @param traceFile trace file
+     * @return backend replaying the trace
+     * @throws IOException if the trace cannot be read or is not a trace at all
+     */
+    public static ReplayBackend load(Path traceFile) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(traceFile), 1 << 16))) {
+            if (in.readInt() != TraceRecord.MAGIC) {
+                throw new IOException("Not a registry trace: " + traceFile);
+            }
+            int version = in.readUnsignedByte();
+            if (version != TraceRecord.FORMAT_VERSION) {
+                throw new IOException("Unsupported trace format version " + version + ": " + traceFile);
+            }
+            long recordedAt = in.readLong();
+
+            Map<String, Deque<TraceRecord>> responses = new HashMap<>();
+            TraceRecord.Context context = new TraceRecord.Context();
+            for (TraceRecord record; (record = TraceRecord.read(in, context)) != null; ) {
+                responses.computeIfAbsent(record.signature(), s -> new ArrayDeque<>()).add(record);
+            }
+            return new ReplayBackend(responses, recordedAt);
+        }
+    }
+
+    /**
+     * @param timing duration of replayed calls, {@link Timing#ORIGINAL} by default
+     */
+    public void setTiming(Timing timing) {
+        this.timing = Objects.requireNonNull(timing, "Timing must not be null");
+    }
+
+    /**
+     * @return time of recording start in milliseconds since epoch
+     */
+    public long getRecordedAt() {
+        return recordedAt;
+    }
+
+    /**
+     * @return number of calls served so far, including misses
+     */
+    public long getCallCount() {
+        return callCount.get();
+    }
+
+    /**
+     * @return number of calls that had no recorded counterpart
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    @Override
+    public int RegOpenKeyExA(int handle, String path, int options, int access, long[] result) {
+        TraceRecord call = newCall(TraceRecord.OP_OPEN, handle);
+        call.name = path;
+        TraceRecord response = respond(call);
+        if (response == null) {
+            return ERROR_NOT_FOUND;
+        }
+        if (ERROR_SUCCESS == response.error) {
+            result[0] = newHandle(TraceRecord.childPath(call.path, path));
+        }
+        return response.error;
+    }
+
+    @Override
+    public int RegQueryValueExA(int handle, String value, int[] ignore, int[] type, byte[] data, int[] size) {
+        TraceRecord call = newCall(TraceRecord.OP_QUERY_VALUE, handle);
+        call.name = value;
+        call.dataCapacity = (data == null ? TraceRecord.NO_BUFFER : bufferSize(data, size));
+        TraceRecord response = respond(call);
+        if (response == null) {
+            return ERROR_NOT_FOUND;
+        }
+        set(type, response.ints[0]);
+        set(size, response.ints[1]);
+        copy(response.data, data);
+        return response.error;
+    }
+
+    @Override
+    public int RegEnumKeyExA(int handle, int index, byte[] name, int[] nameSize, int[] ignore,
+                             byte[] className, int[] classNameSize, long[] lastWriteTime) {
+        TraceRecord call = newCall(TraceRecord.OP_ENUM_KEY, handle);
+        call.index = index;
+        call.capacity = (nameSize == null ? 0 : nameSize[0]);
+        TraceRecord response = respond(call);
+        if (response == null) {
+            return ERROR_NO_MORE_ITEMS;
+        }
+        set(nameSize, response.ints[0]);
+        set(classNameSize, response.ints[1]);
+        if (lastWriteTime != null) {
+            lastWriteTime[0] = response.lastWriteTime;
+        }
+        copy(response.nameBytes, name);
+        return response.error;
+    }
+
+    @Override
+    public int RegEnumValueA(int handle, int index, byte[] name, int[] nameSize, int[] ignore,
+                             int[] type, byte[] data, int[] size) {
+        TraceRecord call = newCall(TraceRecord.OP_ENUM_VALUE, handle);
+        call.index = index;
+        call.capacity = (nameSize == null ? 0 : nameSize[0]);
+        call.dataCapacity = (data == null ? TraceRecord.NO_BUFFER : bufferSize(data, size));
+        TraceRecord response = respond(call);
+        if (response == null) {
+            return ERROR_NO_MORE_ITEMS;
+        }
+        set(nameSize, response.ints[0]);
+        set(type, response.ints[1]);
+        set(size, response.ints[2]);
+        copy(response.nameBytes, name);
+        copy(response.data, data);
+        return response.error;
+    }
+
+    @Override
+    public int RegQueryInfoKeyA(int handle, byte[] className, int[] classNameSize, int[] ignore,
+                                int[] subKeys, int[] maxSubKeyLen, int[] maxClassLen,
+                                int[] values, int[] maxValueNameLen, int[] maxValueLen,
+                                int[] securityDescriptor, long[] lastWriteTime) {
+        TraceRecord response = respond(newCall(TraceRecord.OP_QUERY_INFO, handle));
+        if (response == null) {
+            return ERROR_NOT_FOUND;
+        }
+        int[][] outputs = {classNameSize, subKeys, maxSubKeyLen, maxClassLen,
+                values, maxValueNameLen, maxValueLen, securityDescriptor};
+        for (int i = 0; i < outputs.length; i++) {
+            set(outputs[i], response.ints[i]);
+        }
+        if (lastWriteTime != null) {
+            lastWriteTime[0] = response.lastWriteTime;
+        }
+        return response.error;
+    }
+
+    @Override
+    public int RegCreateKeyExA(int handle, String path, int reserved, String className, int options,
+                               int access, int[] securityAttributes, long[] result, int[] disposition) {
+        TraceRecord call = newCall(TraceRecord.OP_CREATE, handle);
+        call.name = path;
+        TraceRecord response = respond(call);
+        if (response == null) {
+            return ERROR_NOT_FOUND;
+        }
+        set(disposition, response.ints[0]);
+        if (ERROR_SUCCESS == response.error) {
+            result[0] = newHandle(TraceRecord.childPath(call.path, path));
+        }
+        return response.error;
+    }
+
+    @Override
+    public int RegSetValueExA(int handle, String value, int reserved, int type, byte[] data, int size) {
+        TraceRecord call = newCall(TraceRecord.OP_SET_VALUE, handle);
+        call.name = value;
+        call.capacity = type;
+        TraceRecord response = respond(call);
+        return (response == null ? ERROR_NOT_FOUND : response.error);
+    }
+
+    @Override
+    public int RegDeleteKeyA(int handle, String path) {
+        TraceRecord call = newCall(TraceRecord.OP_DELETE_KEY, handle);
+        call.name = path;
+        TraceRecord response = respond(call);
+        return (response == null ? ERROR_NOT_FOUND : response.error);
+    }
+
+    @Override
+    public int RegDeleteValueA(int handle, String value) {
+        TraceRecord call = newCall(TraceRecord.OP_DELETE_VALUE, handle);
+        call.name = value;
+        TraceRecord response = respond(call);
+        return (response == null ? ERROR_NOT_FOUND : response.error);
+    }
+
+    @Override
+    public int RegNotifyChangeKeyValue(int handle, boolean watchSubtree, int notifyFilter,
+                                       int event, boolean asynchronous) {
+        TraceRecord call = newCall(TraceRecord.OP_NOTIFY, handle);
+        call.index = (watchSubtree ? 1 : 0);
+        call.capacity = notifyFilter;
+        TraceRecord response = respond(call);
+        return (response == null ? ERROR_NOT_FOUND : response.error);
+    }
+
+    @Override
+    public int RegCloseKey(int handle) {
+        String path = paths.remove(handle);
+        if (path == null) {
+            callCount.incrementAndGet();
+            return ERROR_INVALID_HANDLE;
+        }
+        TraceRecord response = respond(new TraceRecord(TraceRecord.OP_CLOSE, path));
+        // a handle given out by replay is always closed, recorded or not
+        return (response == null ? ERROR_SUCCESS : response.error);
+    }
+
+    @Override
+    public String toString() {
+        return "ReplayBackend{" + responses.size() + " distinct calls, " + timing + " timing}";
+    }
+
+    private TraceRecord newCall(byte op, int handle) {
+        String path = TraceRecord.rootPath(handle);
+        if (path == null) {
+            path = paths.get(handle);
+        }
+        return new TraceRecord(op, (path == null ? "#" + Integer.toHexString(handle) : path));
+    }
+
+    /**
+     * @return the recorded response or {@code null} on miss
+     */
+    private TraceRecord respond(TraceRecord call) {
+        long start = System.nanoTime();
+        callCount.incrementAndGet();
+        Deque<TraceRecord> queue = responses.get(call.signature());
+        if (queue == null) {
+            missCount.incrementAndGet();
+            return null;
+        }
+
+        TraceRecord response;
+        synchronized (queue) {
+            // repeating a notification would make a watcher spin
+            response = (queue.size() > 1 || TraceRecord.OP_NOTIFY == call.op ? queue.poll() : queue.peek());
+        }
+        if (response == null) {
+            missCount.incrementAndGet();
+            return null;
+        }
+        if (Timing.ORIGINAL == timing) {
+            waitUntil(start + response.durationNanos);
+        }
+        return response;
+    }
+
+    private int newHandle(String path) {
+        int handle = nextHandle.getAndIncrement();
+        paths.put(handle, path);
+        return handle;
+    }
+
+    private static void waitUntil(long deadline) {
+        for (long remaining; (remaining = deadline - System.nanoTime()) > 0; ) {
+            if (remaining > SPIN_THRESHOLD_NANOS) {
+                LockSupport.parkNanos(remaining - SPIN_THRESHOLD_NANOS);
+            } else {
+                Thread.onSpinWait();
+            }
+        }
+    }
+
+    private static int bufferSize(byte[] data, int[] size) {
+        return (size == null ? data.length : Math.min(size[0], data.length));
+    }
+
+    private static void set(int[] array, int value) {
+        if (array != null) {
+            array[0] = value;
+        }
+    }
+
+    private static void copy(byte[] recorded, byte[] buffer) {
+        if (recorded != null && buffer != null) {
+            System.arraycopy(recorded, 0, buffer, 0, Math.min(recorded.length, buffer.length));
+        }
+    }
+}
@@ -0,0 +1,284 @@
+/*
+ * Copyright (c) 2016 Twowls.org.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.twowls.gatesmates.registry.trace;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import static org.twowls.gatesmates.registry.RegistryConst.*;
+
+/**
+ * <p>A single system call of a trace: what was called on which key, what it returned
+ * and how long it took.</p>
+ *
+ * <p>Keys are identified by their normalized path rather than by handle, since
+ * handle values are reused by the system and differ from run to run. Buffer
+ * capacities passed to a call are part of its signature, as they decide whether
+ * the call succeeds or asks for a bigger buffer.</p>
+ *
+ * <p>Records are written with variable length integers (zig-zag encoded where they
+ * may be negative), byte arrays being prefixed by their length plus one, zero
+ * standing for {@code null}. Strings are written once per trace and referred to by
+ * number afterwards, see {@link Context}.</p>
+ *
+ * @author bubo &lt;bubo@twowls.org&gt;
+ */
+final class TraceRecord {
+
+    static final int MAGIC = 0x474d5452;
+    static final int FORMAT_VERSION = 1;
+
+    static final byte OP_OPEN = 1;
+    static final byte OP_QUERY_VALUE = 2;
+    static final byte OP_ENUM_KEY = 3;
+    static final byte OP_ENUM_VALUE = 4;
+    static final byte OP_QUERY_INFO = 5;
+    static final byte OP_CREATE = 6;
+    static final byte OP_SET_VALUE = 7;
+    static final byte OP_CLOSE = 8;
+    static final byte OP_DELETE_KEY = 9;
+    static final byte OP_DELETE_VALUE = 10;
+    static final byte OP_NOTIFY = 11;
+
+    static final int NO_BUFFER = -1;
+
+    // signature
+    byte op;
+    String path;
+    String name;
+    int index;
+    int capacity;
+    int dataCapacity = NO_BUFFER;
+
+    // response
+    int error;
+    int[] ints = new int[0];
+    long lastWriteTime;
+    byte[] nameBytes;
+    byte[] data;
+
+    // timing, start relative to the start of recording
+    long startNanos;
+    long durationNanos;
+
+    TraceRecord(byte op, String path) {
+        this.op = op;
+        this.path = path;
+    }
+
+    private TraceRecord() {
+    }
+
+    /**
+     * @return string uniquely identifying calls that should get the same response
+     */
+    String signature() {
+        return op + "|" + path + "|" + (name == null ? "" : name.toLowerCase(Locale.ROOT)) + "|" + index
+                + "|" + capacity + "|" + dataCapacity;
+    }
+
+    void write(DataOutput out, Context context) throws IOException {
+        out.writeByte(op);
+        // records are written as calls complete, so starts may go backwards
+        writeVarLong(out, zigZag(startNanos - context.previousStartNanos));
+        context.previousStartNanos = startNanos;
+        writeVarLong(out, durationNanos);
+        context.writeString(out, path);
+        context.writeString(out, name);
+        writeVarLong(out, index);
+        writeVarLong(out, zigZag(capacity));
+        writeVarLong(out, zigZag(dataCapacity));
+        writeVarLong(out, zigZag(error));
+        writeVarLong(out, ints.length);
+        for (int i : ints) {
+            writeVarLong(out, zigZag(i));
+        }
+        writeVarLong(out, lastWriteTime);
+        writeBytes(out, nameBytes);
+        writeBytes(out, data);
+    }
+
+    /**
+     * @return the next record or {@code null} at the end of trace
+     */
+    static TraceRecord read(DataInput in, Context context) throws IOException {
+        int op;
+        try {
+            op = in.readUnsignedByte();
+        } catch (EOFException e) {
+            return null;
+        }
+
+        TraceRecord record = new TraceRecord();
+        record.op = (byte) op;
+        record.startNanos = context.previousStartNanos + unZigZag(readVarLong(in));
+        context.previousStartNanos = record.startNanos;
+        record.durationNanos = readVarLong(in);
+        record.path = context.readString(in);
+        record.name = context.readString(in);
+        record.index = (int) readVarLong(in);
+        record.capacity = (int) unZigZag(readVarLong(in));
+        record.dataCapacity = (int) unZigZag(readVarLong(in));
+        record.error = (int) unZigZag(readVarLong(in));
+        record.ints = new int[(int) readVarLong(in)];
+        for (int i = 0; i < record.ints.length; i++) {
+            record.ints[i] = (int) unZigZag(readVarLong(in));
+        }
+        record.lastWriteTime = readVarLong(in);
+        record.nameBytes = readBytes(in);
+        record.data = readBytes(in);
+        return record;
+    }
+
+    /**
+     * @param handle handle of a predefined root key
+     * @return normalized path of the root key or {@code null} if the handle is not predefined
+     */
+    static String rootPath(int handle) {
+        switch (handle) {
+            case HKEY_CLASSES_ROOT:
+                return "hkey_classes_root";
+            case HKEY_CURRENT_USER:
+                return "hkey_current_user";
+            case HKEY_LOCAL_MACHINE:
+                return "hkey_local_machine";
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * <p>Normalizes a key path, so that different spellings of the same key match.</p>
+     * @param parent normalized path of the key {@code subPath} is relative to
+     * @param subPath path relative to {@code parent}, either separator allowed
+     * @return normalized path
+     */
+    static String childPath(String parent, String subPath) {
+        StringBuilder sb = new StringBuilder(parent);
+        if (subPath != null) {
+            for (String segment : subPath.split("[\\\\/]")) {
+                if (!segment.isEmpty()) {
+                    sb.append('\\').append(segment.toLowerCase(Locale.ROOT));
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    private static long zigZag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unZigZag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeVarLong(DataOutput out, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.writeByte((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInput in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed variable length number");
+    }
+
+    private static void writeBytes(DataOutput out, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            writeVarLong(out, 0);
+        } else {
+            writeVarLong(out, bytes.length + 1L);
+            out.write(bytes);
+        }
+    }
+
+    private static byte[] readBytes(DataInput in) throws IOException {
+        long length = readVarLong(in);
+        if (length == 0) {
+            return null;
+        }
+        if (length - 1 > Integer.MAX_VALUE) {
+            throw new IOException("Malformed byte array length");
+        }
+        byte[] bytes = new byte[(int) (length - 1)];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    /**
+     * <p>State shared by consecutive records of a trace: the start of the previous
+     * record and the strings seen so far. A string is written as zero followed by
+     * its bytes on first occurrence, and as its number plus one afterwards.</p>
+     */
+    static final class Context {
+        private final Map<String, Integer> numbers = new HashMap<>();
+        private final List<String> strings = new ArrayList<>();
+        long previousStartNanos;
+
+        void writeString(DataOutput out, String s) throws IOException {
+            if (s == null) {
+                writeVarLong(out, 0);
+                writeBytes(out, null);
+                return;
+            }
+            Integer number = numbers.get(s);
+            if (number != null) {
+                writeVarLong(out, number + 1L);
+            } else {
+                numbers.put(s, numbers.size());
+                writeVarLong(out, 0);
+                writeBytes(out, s.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        String readString(DataInput in) throws IOException {
+            long number = readVarLong(in);
+            if (number == 0) {
+                byte[] bytes = readBytes(in);
+                if (bytes == null) {
+                    return null;
+                }
+                String s = new String(bytes, StandardCharsets.UTF_8);
+                strings.add(s);
+                return s;
+            }
+            if (number > strings.size()) {
+                throw new IOException("Reference to unknown string #" + (number - 1));
+            }
+            return strings.get((int) (number - 1));
+        }
+    }
+}
@@ -0,0 +1,441 @@
+/*
+ * Copyright (c) 2016 Twowls.org.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.twowls.gatesmates.registry.write;
+
+import org.twowls.gatesmates.registry.Registry;
+import org.twowls.gatesmates.registry.RegistryConst;
+import org.twowls.gatesmates.registry.RegistryException;
+import org.twowls.gatesmates.registry.RegistryValue;
+
+import java.io.Closeable;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * <p>Buffers value updates and writes them to registry in batches.</p>
+ *
+ * <p>Pending updates are kept in a concurrent map keyed by key path and value name,
+ * so an update replaces a pending one of the same value and only the last of them
+ * is ever written. A flush takes all pending updates, groups them by key and opens
+ * each key once (creating it if necessary) to write all of its values. Flushes run
+ * in a background thread every {@link #setFlushInterval(Duration) flush interval}
+ * and as soon as the number of pending values reaches the
+ * {@link #setFlushThreshold(int) flush threshold}, once {@link #start() started};
+ * they can also be requested explicitly and always happen on {@link #close()}.</p>
+ *
+ * <p>The number of pending values is bounded by {@link #setCapacity(int) capacity}.
+ * An update of a value that is not yet pending waits for a flush to make room when
+ * the buffer is full, requesting another one every flush interval for as long as
+ * it waits; without a background thread the waiting caller flushes itself.</p>
+ *
+ * <p>Updates that fail to be written are put back, unless a newer update of the same
+ * value came meanwhile, and retried by the next flush; they may exceed capacity for
+ * a while. The first failure of a background flush is kept and thrown by the next
+ * {@link #flush()} or {@link #close()}, with later ones of the same flush attached
+ * as suppressed exceptions.</p>
+ *
+ * @author bubo &lt;bubo@twowls.org&gt;
+ */
+public class WriteBehindBuffer implements Closeable, RegistryConst {
+
+    /** Default interval of background flushes */
+    public static final Duration DEFAULT_FLUSH_INTERVAL = Duration.ofSeconds(1);
+    /** Default number of pending values triggering a flush */
+    public static final int DEFAULT_FLUSH_THRESHOLD = 256;
+    /** Default limit of pending values */
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    private final Registry.Key rootKey;
+    private final Map<ValueId, Update> pending = new ConcurrentHashMap<>();
+    private final ReentrantLock flushLock = new ReentrantLock();
+    private final ReadWriteLock closeLock = new ReentrantReadWriteLock();
+    private final AtomicBoolean flushScheduled = new AtomicBoolean();
+    private final AtomicReference<RegistryException> failure = new AtomicReference<>();
+    private final AtomicLong updateCount = new AtomicLong();
+    private final AtomicLong writeCount = new AtomicLong();
+    private Duration flushInterval = DEFAULT_FLUSH_INTERVAL;
+    private int flushThreshold = DEFAULT_FLUSH_THRESHOLD;
+    private Room room = new Room(DEFAULT_CAPACITY);
+    private volatile ScheduledExecutorService flusher;
+    private volatile boolean closed;
+
+    /**
+     * <p>Creates a new instance of {@link WriteBehindBuffer}.</p>
+     * @param rootKey the key paths of updated values are relative to
+     */
+    public WriteBehindBuffer(Registry.Key rootKey) {
+        this.rootKey = Objects.requireNonNull(rootKey, "Root key must not be null");
+    }
+
+    /**
+     * @param flushInterval interval of background flushes, 1 second by default
+     */
+    public void setFlushInterval(Duration flushInterval) {
+        if (flushInterval.isNegative() || flushInterval.isZero()) {
+            throw new IllegalArgumentException("Flush interval must be positive");
+        }
+        this.flushInterval = flushInterval;
+    }
+
+    /**
+     * @param flushThreshold number of pending values triggering a background flush, 256 by default
+     */
+    public void setFlushThreshold(int flushThreshold) {
+        if (flushThreshold < 1) {
+            throw new IllegalArgumentException("Flush threshold must be positive");
+        }
+        this.flushThreshold = flushThreshold;
+    }
+
+    /**
+     * <p>Sets the limit of pending values; must be called before any update.</p>
+     * @param capacity limit of pending values, 4096 by default
+     */
+    public void setCapacity(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        if (!pending.isEmpty()) {
+            throw new IllegalStateException("Capacity cannot be changed while updates are pending");
+        }
+        this.room = new Room(capacity);
+    }
+
+    /**
+     * <p>Starts the background thread flushing at the flush interval and on reaching
+     * the flush threshold.</p>
+     */
+    public synchronized void start() {
+        if (closed) {
+            throw new IllegalStateException("Buffer is closed");
+        }
+        if (flusher == null) {
+            ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread thread = new Thread(r, "gatesmates-write-behind");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long period = flushInterval.toNanos();
+            executor.scheduleWithFixedDelay(this::flushQuietly, period, period, TimeUnit.NANOSECONDS);
+            flusher = executor;
+        }
+    }
+
+    /**
+     * <p>Buffers a value update, waiting for room if the buffer is full.</p>
+     * @param keyPath path of the key holding the value, relative to root key
+     * @param value new value
+     * @throws InterruptedException if interrupted while waiting for room
+     */
+    public void put(String keyPath, RegistryValue value) throws InterruptedException {
+        Objects.requireNonNull(keyPath, "Key path must not be null");
+        Objects.requireNonNull(value, "Value must not be null");
+        checkOpen();
+
+        ValueId id = new ValueId(keyPath, value.getName());
+        Update update = new Update(id, keyPath, value);
+        updateCount.incrementAndGet();
+        closeLock.readLock().lock();
+        try {
+            checkOpen();
+            if (pending.replace(id, update) != null) {
+                // coalesced with a pending update, no room needed
+                return;
+            }
+        } finally {
+            closeLock.readLock().unlock();
+        }
+
+        // flushes are requested again while failed updates put back keep the buffer full
+        while (!room.tryAcquire()) {
+            requestFlush(true);
+            if (room.tryAcquire(flushInterval.toNanos(), TimeUnit.NANOSECONDS)) {
+                break;
+            }
+        }
+        // updates are inserted under the read lock, so the final flush of close() sees them all
+        closeLock.readLock().lock();
+        try {
+            if (closed) {
+                room.release();
+                checkOpen();
+            }
+            if (pending.put(id, update) != null) {
+                // another thread added the same value meanwhile
+                room.release();
+            }
+        } finally {
+            closeLock.readLock().unlock();
+        }
+        if (pending.size() >= flushThreshold) {
+            requestFlush(false);
+        }
+    }
+
+    /**
+     * <p>Buffers an update of a textual ({@code REG_SZ}) value.</p>
+     * @param keyPath path of the key holding the value, relative to root key
+     * @param valueName value name
+     * @param value new value text
+     * @throws InterruptedException if interrupted while waiting for room
+     */
+    public void putString(String keyPath, String valueName, String value) throws InterruptedException {
+        put(keyPath, RegistryValue.ofString(valueName, value));
+    }
+
+    /**
+     * <p>Buffers an update of a numeric ({@code REG_DWORD}) value.</p>
+     * @param keyPath path of the key holding the value, relative to root key
+     * @param valueName value name
+     * @param value new value number
+     * @throws InterruptedException if interrupted while waiting for room
+     */
+    public void putInt(String keyPath, String valueName, int value) throws InterruptedException {
+        put(keyPath, RegistryValue.ofInt(valueName, value));
+    }
+
+    /**
+     * <p>Writes all pending updates to registry on the calling thread.</p>
+     * @throws RegistryException the first failure of this or a preceding background
+     *                           flush, the rest of updates written nevertheless
+     */
+    public void flush() throws RegistryException {
+        RegistryException e = flush0();
+        RegistryException earlier = failure.getAndSet(null);
+        if (earlier != null) {
+            if (e != null) {
+                earlier.addSuppressed(e);
+            }
+            throw earlier;
+        }
+        if (e != null) {
+            throw e;
+        }
+    }
+
+    /**
+     * @return number of values waiting to be written
+     */
+    public int pendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * @return number of updates accepted so far
+     */
+    public long getUpdateCount() {
+        return updateCount.get();
+    }
+
+    /**
+     * @return number of values written so far, i.e. updates accepted minus coalesced
+     */
+    public long getWriteCount() {
+        return writeCount.get();
+    }
+
+    /**
+     * <p>Stops the background thread and writes all pending updates. Updates are not
+     * accepted afterwards.</p>
+     * @throws RegistryException the first failure of the final or a preceding flush
+     */
+    @Override
+    public void close() throws RegistryException {
+        ScheduledExecutorService executor;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closeLock.writeLock().lock();
+            try {
+                closed = true;
+            } finally {
+                closeLock.writeLock().unlock();
+            }
+            executor = flusher;
+        }
+
+        if (executor != null) {
+            executor.shutdown();
+            try {
+                executor.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        flush();
+    }
+
+    private void checkOpen() {
+        if (closed) {
+            throw new IllegalStateException("Buffer is closed");
+        }
+    }
+
+    private void requestFlush(boolean full) {
+        ScheduledExecutorService executor = flusher;
+        if (executor == null) {
+            if (full) {
+                // nobody else is going to make room
+                flushQuietly();
+            }
+        } else if (flushScheduled.compareAndSet(false, true)) {
+            try {
+                executor.execute(this::flushQuietly);
+            } catch (RuntimeException e) {
+                // executor shut down by close, which flushes anyway
+                flushScheduled.set(false);
+            }
+        }
+    }
+
+    private void flushQuietly() {
+        RegistryException e = flush0();
+        if (e != null) {
+            failure.compareAndSet(null, e);
+        }
+    }
+
+    /**
+     * @return the first failure or {@code null}
+     */
+    private RegistryException flush0() {
+        // flushes are serialized, so that an older update never overwrites a newer one
+        flushLock.lock();
+        try {
+            flushScheduled.set(false);
+            // grouped by normalized path, keys are created with path spelled as in their first update
+            Map<String, List<Update>> byKey = new LinkedHashMap<>();
+            for (ValueId id : pending.keySet()) {
+                Update update = pending.remove(id);
+                if (update != null) {
+                    room.release();
+                    byKey.computeIfAbsent(id.keyPath, k -> new ArrayList<>()).add(update);
+                }
+            }
+
+            RegistryException first = null;
+            for (List<Update> updates : byKey.values()) {
+                List<Update> failed = updates;
+                try (Registry.Key key = Registry.createKey(rootKey, updates.get(0).keyPath)) {
+                    failed = new ArrayList<>();
+                    for (Update update : updates) {
+                        try {
+                            key.setValue(update.value);
+                            writeCount.incrementAndGet();
+                        } catch (RegistryException e) {
+                            failed.add(update);
+                            first = addFailure(first, e);
+                        }
+                    }
+                } catch (RegistryException e) {
+                    first = addFailure(first, e);
+                }
+                failed.forEach(this::putBack);
+            }
+            return first;
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    private static RegistryException addFailure(RegistryException first, RegistryException e) {
+        if (first == null) {
+            return e;
+        }
+        first.addSuppressed(e);
+        return first;
+    }
+
+    /**
+     * <p>Returns an update that failed to be written to pending ones, unless replaced
+     * by a newer one meanwhile. Room is taken even if there is none left, rather than
+     * waiting for a flush while flushing.</p>
+     */
+    private void putBack(Update update) {
+        if (pending.putIfAbsent(update.id, update) == null && !room.tryAcquire()) {
+            room.overdraw();
+        }
+    }
+
+    /** Room for pending values, which a put back update may overdraw */
+    private static final class Room extends Semaphore {
+        private static final long serialVersionUID = 1L;
+
+        Room(int permits) {
+            super(permits);
+        }
+
+        void overdraw() {
+            reducePermits(1);
+        }
+    }
+
+    /** Identity of a value, case insensitive */
+    private static final class ValueId {
+        final String keyPath;
+        final String valueName;
+
+        ValueId(String keyPath, String valueName) {
+            this.keyPath = keyPath.replace('\\', '/').toLowerCase(Locale.ROOT);
+            this.valueName = valueName.toLowerCase(Locale.ROOT);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof ValueId)) return false;
+            ValueId other = (ValueId) o;
+            return keyPath.equals(other.keyPath) && valueName.equals(other.valueName);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * keyPath.hashCode() + valueName.hashCode();
+        }
+    }
+
+    /** Pending update */
+    private static final class Update {
+        final ValueId id;
+        final String keyPath;
+        final RegistryValue value;
+
+        Update(ValueId id, String keyPath, RegistryValue value) {
+            this.id = id;
+            this.keyPath = keyPath;
+            this.value = value;
+        }
+    }
+}
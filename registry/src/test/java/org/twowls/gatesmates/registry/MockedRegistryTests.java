@@ -68,7 +68,7 @@ public class MockedRegistryTests extends RegistryTests {
         when(Gates.AdvApi32.RegOpenKeyExA(anyInt(), eq(Registry.toWindowsPath(subKey)), anyInt(), anyInt(), any()))
                 .then(invocation -> {
                     if (GatesConst.ERROR_SUCCESS == retCode) {
-                        int[] data = invocation.getArgumentAt(4, int[].class);
+                        long[] data = invocation.getArgumentAt(4, long[].class);
                         while (true) {
                             int virtualHandle = new Random().nextInt(NORMAL_HANDLE_UPPER_BOUND);
                             if (virtualHandle > 0 && !virtualHandles.contains(virtualHandle)) {
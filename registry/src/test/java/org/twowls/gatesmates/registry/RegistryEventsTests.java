@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2016 Twowls.org.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.twowls.gatesmates.registry;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+/**
+ * <p>Tests for Flight Recorder events emitted by {@link Registry}.</p>
+ *
+ * @author bubo &lt;bubo@twowls.org&gt;
+ */
+public class RegistryEventsTests implements RegistryConst {
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void setup() {
+        SimulatedBackend backend = new SimulatedBackend();
+        backend.setStringValue(HKEY_LOCAL_MACHINE, "Software/Vendor/App", "Home", "C:\\App");
+        Registry.useBackend(backend);
+    }
+
+    @After
+    public void tearDown() {
+        Registry.useBackend(null);
+    }
+
+    @Test
+    public void openQueryAndCloseAreRecorded() throws Exception {
+        Path file = folder.getRoot().toPath().resolve("registry.jfr");
+        try (Recording recording = new Recording()) {
+            recording.enable(KeyOpenEvent.NAME).withoutStackTrace();
+            recording.enable(ValueQueryEvent.NAME).withoutStackTrace();
+            recording.enable(KeyCloseEvent.NAME).withoutStackTrace();
+            recording.start();
+
+            try (Registry.Key key = Registry.openKey(Registry.KEY_LOCAL_MACHINE, "Software/Vendor")) {
+                try (Registry.Key app = key.openSubKey("App")) {
+                    assertEquals("C:\\App", app.queryStringValue("Home"));
+                }
+                try {
+                    key.queryStringValue("Missing");
+                    fail("Missing value found");
+                } catch (RegistryException e) {
+                    assertEquals(ERROR_NOT_FOUND, e.getErrorCode());
+                }
+            }
+
+            recording.stop();
+            recording.dump(file);
+        }
+
+        List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+        List<String> summary = events.stream()
+                .sorted((a, b) -> a.getStartTime().compareTo(b.getStartTime()))
+                .map(e -> e.getEventType().getName().replaceFirst(".*\\.", "") + " " + e.getString("path")
+                        + (e.hasField("valueName") ? " " + e.getString("valueName") + " " + e.getLong("bytes") : "")
+                        + " " + e.getInt("errorCode"))
+                .collect(Collectors.toList());
+
+        assertEquals(7, summary.size());
+        assertEquals("KeyOpen HKEY_LOCAL_MACHINE\\Software\\Vendor 0", summary.get(0));
+        assertEquals("KeyOpen HKEY_LOCAL_MACHINE\\Software\\Vendor\\App 0", summary.get(1));
+        assertEquals("ValueQuery HKEY_LOCAL_MACHINE\\Software\\Vendor\\App Home 7 0", summary.get(2));
+        assertEquals("ValueQuery HKEY_LOCAL_MACHINE\\Software\\Vendor\\App Home 7 0", summary.get(3));
+        assertEquals("KeyClose HKEY_LOCAL_MACHINE\\Software\\Vendor\\App 0", summary.get(4));
+        assertEquals("ValueQuery HKEY_LOCAL_MACHINE\\Software\\Vendor Missing 0 " + ERROR_NOT_FOUND, summary.get(5));
+        assertEquals("KeyClose HKEY_LOCAL_MACHINE\\Software\\Vendor 0", summary.get(6));
+    }
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright (c) 2016 Twowls.org.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.twowls.gatesmates.registry;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.twowls.gatesmates.registry.apitest.RegistryTests;
+import org.twowls.gatesmates.util.HandleScope;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * <p>Executes registry tests defined in {@link RegistryTests} against {@link SimulatedBackend}.</p>
+ *
+ * @author bubo &lt;bubo@twowls.org&gt;
+ */
+public class SimulatedRegistryTests extends RegistryTests implements RegistryConst {
+
+    private SimulatedBackend backend;
+
+    @Before
+    public void setup() {
+        backend = new SimulatedBackend();
+        backend.setStringValue(HKEY_CURRENT_USER, EXISTENT_SUB_KEY, UNNAMED_PROPERTY, UNNAMED_PROPERTY_VALUE);
+        backend.setStringValue(HKEY_CURRENT_USER, EXISTENT_SUB_KEY, NAMED_STRING_PROPERTY, NAMED_STRING_PROPERTY_VALUE);
+        backend.setIntValue(HKEY_CURRENT_USER, EXISTENT_SUB_KEY, NAMED_DWORD_PROPERTY, NAMED_DWORD_PROPERTY_VALUE);
+        backend.createKey(HKEY_CURRENT_USER, EXISTENT_SUB_KEY + "/" + EXISTENT_SUB_SUB_KEY);
+        Registry.useBackend(backend);
+    }
+
+    @After
+    public void tearDown() {
+        Registry.useBackend(null);
+        assertEquals(0, backend.openHandleCount());
+    }
+
+    @Test
+    public void enumerationListsSubKeysAndValues() throws RegistryException {
+        try (Registry.Key key = Registry.openKey(Registry.KEY_CURRENT_USER, EXISTENT_SUB_KEY)) {
+            assertEquals(Arrays.asList(EXISTENT_SUB_SUB_KEY), key.listSubKeys());
+            assertNull(Registry.enumSubKey(key, 1));
+
+            List<RegistryValue> values = key.listValues();
+            assertEquals(3, values.size());
+            assertEquals(RegistryValue.ofInt(NAMED_DWORD_PROPERTY, NAMED_DWORD_PROPERTY_VALUE), values.get(2));
+            assertEquals(NAMED_STRING_PROPERTY_VALUE, key.queryValue(NAMED_STRING_PROPERTY).asString());
+
+            RegistryKeyInfo info = key.queryInfo();
+            assertEquals(1, info.getSubKeyCount());
+            assertEquals(3, info.getValueCount());
+            assertEquals(NAMED_STRING_PROPERTY_VALUE.length() + 1, info.getMaxValueLength());
+            assertTrue(Math.abs(System.currentTimeMillis() - info.getLastWriteTimeMillis()) < 60000);
+        }
+    }
+
+    @Test
+    public void listingValuesSizesNameBufferToLongestName() throws RegistryException {
+        String longName = "Value with a name longer than any other";
+        List<Integer> nameBufferSizes = new ArrayList<>();
+        backend = new SimulatedBackend() {
+            @Override
+            public int RegEnumValueA(int handle, int index, byte[] name, int[] nameSize, int[] ignore,
+                                     int[] type, byte[] data, int[] size) {
+                if (nameBufferSizes.isEmpty()) {
+                    // a longer name appears between querying key info and enumeration
+                    setIntValue(HKEY_CURRENT_USER, EXISTENT_SUB_KEY, longName, 1);
+                }
+                nameBufferSizes.add(name.length);
+                return super.RegEnumValueA(handle, index, name, nameSize, ignore, type, data, size);
+            }
+        };
+        backend.setStringValue(HKEY_CURRENT_USER, EXISTENT_SUB_KEY, NAMED_STRING_PROPERTY, NAMED_STRING_PROPERTY_VALUE);
+        backend.setIntValue(HKEY_CURRENT_USER, EXISTENT_SUB_KEY, NAMED_DWORD_PROPERTY, NAMED_DWORD_PROPERTY_VALUE);
+        Registry.useBackend(backend);
+
+        try (Registry.Key key = Registry.openKey(Registry.KEY_CURRENT_USER, EXISTENT_SUB_KEY)) {
+            List<RegistryValue> values = key.listValues();
+            assertEquals(3, values.size());
+            assertEquals(longName, values.get(2).getName());
+        }
+        int shortest = Math.max(NAMED_STRING_PROPERTY.length(), NAMED_DWORD_PROPERTY.length()) + 1;
+        assertEquals(Integer.valueOf(shortest), nameBufferSizes.get(0));
+        assertTrue(nameBufferSizes.stream().allMatch(size -> size == shortest || size == MAX_VALUE_NAME_LENGTH + 1));
+    }
+
+    @Test
+    public void keysOpenedInScopeAreClosedWithIt() throws Exception {
+        HandleScope scope = new HandleScope();
+        try (scope) {
+            Registry.Key key = Registry.openKey(scope, Registry.KEY_CURRENT_USER, EXISTENT_SUB_KEY);
+            Registry.Key sub = key.openSubKey(scope, EXISTENT_SUB_SUB_KEY);
+            assertEquals(0, sub.listValues().size());
+            assertEquals(2, scope.size());
+            assertEquals(2, backend.openHandleCount());
+        }
+        assertEquals(0, backend.openHandleCount());
+
+        try {
+            Registry.openKey(scope, Registry.KEY_CURRENT_USER, EXISTENT_SUB_KEY);
+            fail("Key opened in a closed scope");
+        } catch (IllegalStateException e) {
+            assertEquals(0, backend.openHandleCount());
+        }
+    }
+
+    @Test
+    public void deletionRemovesValuesAndEmptyKeysOnly() throws RegistryException {
+        try (Registry.Key key = Registry.openKey(Registry.KEY_CURRENT_USER, EXISTENT_SUB_KEY, true)) {
+            key.deleteValue(NAMED_STRING_PROPERTY);
+            assertNull(key.queryStringValue(NAMED_STRING_PROPERTY, null));
+            try {
+                key.deleteValue(NAMED_STRING_PROPERTY);
+                fail("Missing value must not be deleted");
+            } catch (RegistryException e) {
+                assertEquals(ERROR_NOT_FOUND, e.getErrorCode());
+            }
+
+            key.createSubKey(EXISTENT_SUB_SUB_KEY + "/Leaf").close();
+            try {
+                key.deleteSubKey(EXISTENT_SUB_SUB_KEY);
+                fail("Key having sub keys must not be deleted");
+            } catch (RegistryException e) {
+                assertEquals(ERROR_ACCESS_DENIED, e.getErrorCode());
+            }
+            key.deleteSubKey(EXISTENT_SUB_SUB_KEY + "/Leaf");
+            key.deleteSubKey(EXISTENT_SUB_SUB_KEY);
+            assertTrue(key.listSubKeys().isEmpty());
+        }
+    }
+
+    @Test
+    public void waitForChangeEndsOnChangeOrClose() throws Exception {
+        Registry.Key key = Registry.openKey(Registry.KEY_CURRENT_USER, EXISTENT_SUB_KEY);
+        CompletableFuture<Void> change = CompletableFuture.runAsync(() -> waitForChange(key));
+        Thread.sleep(50);
+        assertFalse(change.isDone());
+        backend.setIntValue(HKEY_CURRENT_USER, EXISTENT_SUB_KEY, NAMED_DWORD_PROPERTY, 42);
+        change.get(10, TimeUnit.SECONDS);
+
+        CompletableFuture<Void> close = CompletableFuture.runAsync(() -> waitForChange(key));
+        Thread.sleep(50);
+        // a change below the key is not reported without watching the subtree
+        backend.setIntValue(HKEY_CURRENT_USER, EXISTENT_SUB_KEY + "/" + EXISTENT_SUB_SUB_KEY, "Other", 1);
+        Thread.sleep(50);
+        assertFalse(close.isDone());
+        key.close();
+        close.get(10, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void notifiedChangeSignalsEvent() throws Exception {
+        Registry.Key key = Registry.openKey(Registry.KEY_CURRENT_USER, EXISTENT_SUB_KEY);
+        try (Registry.Event changed = Registry.createEvent(); Registry.Event other = Registry.createEvent()) {
+            key.notifyChange(false, changed);
+            assertEquals(-1, Registry.waitForEvents(10, changed, other));
+            // made before anybody waits, and still reported
+            backend.setIntValue(HKEY_CURRENT_USER, EXISTENT_SUB_KEY, NAMED_DWORD_PROPERTY, 42);
+            assertEquals(0, Registry.waitForEvents(INFINITE, changed, other));
+            // signalled once per notification, and reset by the wait
+            backend.setIntValue(HKEY_CURRENT_USER, EXISTENT_SUB_KEY, NAMED_DWORD_PROPERTY, 43);
+            assertEquals(-1, Registry.waitForEvents(10, changed, other));
+
+            other.signal();
+            assertEquals(1, Registry.waitForEvents(INFINITE, changed, other));
+            key.notifyChange(false, changed);
+            key.close();
+            assertEquals(0, Registry.waitForEvents(INFINITE, changed, other));
+        }
+    }
+
+    private static void waitForChange(Registry.Key key) {
+        try {
+            key.waitForChange(false);
+        } catch (RegistryException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
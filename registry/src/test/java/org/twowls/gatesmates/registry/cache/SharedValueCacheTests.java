@@ -0,0 +1,304 @@
+/*
+ * Copyright (c) 2016 Twowls.org.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.twowls.gatesmates.registry.cache;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.twowls.gatesmates.registry.Registry;
+import org.twowls.gatesmates.registry.RegistryConst;
+import org.twowls.gatesmates.registry.RegistryException;
+import org.twowls.gatesmates.registry.SimulatedBackend;
+
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * <p>Tests for {@link SharedValueCache}. Two instances mapping the same file stand
+ * for two processes.</p>
+ *
+ * @author bubo &lt;bubo@twowls.org&gt;
+ */
+public class SharedValueCacheTests implements RegistryConst {
+
+    private static final String APP = "Software/Vendor/App";
+
+    // file layout, as created by the writer below
+    private static final int REQUESTS_OFFSET = 64;
+    private static final int REQUEST_SIZE = 256;
+    private static final int SLOTS_OFFSET = REQUESTS_OFFSET + 256 * REQUEST_SIZE;
+    private static final int SLOT_COUNT = 64;
+    private static final int SLOT_SIZE = 256;
+    private static final int SLOT_STATUS = 24;
+    private static final int SLOT_IDENTITY_LENGTH = 32;
+
+    @Rule
+    public final TemporaryFolder folder = new TemporaryFolder();
+
+    private SimulatedBackend backend;
+    private Path file;
+    private SharedValueCache writer;
+    private SharedValueCache reader;
+
+    @Before
+    public void setup() throws Exception {
+        backend = new SimulatedBackend();
+        backend.setStringValue(HKEY_LOCAL_MACHINE, APP, "Endpoint", "https://example.org");
+        backend.setIntValue(HKEY_LOCAL_MACHINE, APP, "Retries", 3);
+        Registry.useBackend(backend);
+
+        file = folder.getRoot().toPath().resolve("values.cache");
+        writer = SharedValueCache.open(file, SLOT_COUNT, SLOT_SIZE);
+        reader = SharedValueCache.open(file, 1024, 1024);
+        assertTrue(writer.refresh());
+        assertFalse(reader.refresh());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        reader.close();
+        writer.close();
+        Registry.useBackend(null);
+    }
+
+    @Test
+    public void valuesReadByWriterAreServedToOtherProcesses() throws Exception {
+        assertEquals("https://example.org",
+                writer.queryValue(Registry.KEY_LOCAL_MACHINE, APP, "Endpoint").asString());
+        assertEquals(1, writer.getMissCount());
+
+        backend.setStringValue(HKEY_LOCAL_MACHINE, APP, "Endpoint", "changed behind the cache");
+        assertEquals("https://example.org",
+                reader.queryValue(Registry.KEY_LOCAL_MACHINE, "SOFTWARE\\vendor\\APP", "endpoint").asString());
+        assertEquals(1, reader.getHitCount());
+        assertEquals(0, reader.getMissCount());
+        assertTrue(writer.getWriterHeartbeat() > 0);
+    }
+
+    @Test
+    public void missesOfOtherProcessesAreServedByWriter() throws Exception {
+        assertEquals(3, reader.queryValue(Registry.KEY_LOCAL_MACHINE, APP, "Retries").asInt());
+        assertEquals(1, reader.getMissCount());
+        assertMissing(reader, "Timeout");
+        assertEquals(2, reader.getMissCount());
+
+        writer.refresh();
+        assertEquals(3, reader.queryValue(Registry.KEY_LOCAL_MACHINE, APP, "Retries").asInt());
+        assertMissing(reader, "Timeout");
+        assertEquals(2, reader.getHitCount());
+        assertEquals(0, writer.getMissCount());
+    }
+
+    @Test
+    public void writerRefreshesRequestedValuesAndRoleIsTakenOver() throws Exception {
+        writer.setRefreshInterval(Duration.ZERO);
+        writer.queryValue(Registry.KEY_LOCAL_MACHINE, APP, "Retries");
+        backend.setIntValue(HKEY_LOCAL_MACHINE, APP, "Retries", 5);
+        backend.deleteValue(HKEY_LOCAL_MACHINE, APP, "Endpoint");
+        writer.refresh();
+        assertEquals(3, reader.queryValue(Registry.KEY_LOCAL_MACHINE, APP, "Retries").asInt());
+
+        // values read within the refresh interval of expiry are requested to be re-read
+        reader.setRefreshInterval(Duration.ofMinutes(1));
+        assertEquals(3, reader.queryValue(Registry.KEY_LOCAL_MACHINE, APP, "Retries").asInt());
+        writer.refresh();
+        assertEquals(5, reader.queryValue(Registry.KEY_LOCAL_MACHINE, APP, "Retries").asInt());
+
+        writer.close();
+        assertTrue(reader.refresh());
+        assertTrue(reader.isWriter());
+        assertMissing(reader, "Endpoint");
+        assertMissing(reader, "Endpoint");
+        assertEquals(1, reader.getMissCount());
+    }
+
+    @Test
+    public void readersNeverSeeTornValues() throws Exception {
+        writer.setRefreshInterval(Duration.ZERO);
+        writer.queryValue(Registry.KEY_LOCAL_MACHINE, APP, "Endpoint");
+        reader.setRefreshInterval(Duration.ofMinutes(1));
+
+        AtomicBoolean stop = new AtomicBoolean();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Thread> readers = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            Thread thread = new Thread(() -> {
+                try {
+                    while (!stop.get()) {
+                        String text = reader.queryValue(Registry.KEY_LOCAL_MACHINE, APP, "Endpoint").asString();
+                        // every written value repeats its own length digit
+                        if (!text.startsWith("https") && !text.chars().allMatch(c -> c == '0' + text.length())) {
+                            throw new AssertionError("Torn value " + text);
+                        }
+                    }
+                } catch (Throwable e) {
+                    failure.compareAndSet(null, e);
+                }
+            });
+            readers.add(thread);
+            thread.start();
+        }
+
+        for (int round = 0; round < 2000; round++) {
+            int length = 1 + round % 9;
+            StringBuilder text = new StringBuilder();
+            for (int i = 0; i < length; i++) {
+                text.append(length);
+            }
+            backend.setStringValue(HKEY_LOCAL_MACHINE, APP, "Endpoint", text.toString());
+            writer.refresh();
+        }
+        stop.set(true);
+        for (Thread thread : readers) {
+            thread.join();
+        }
+
+        assertNull(failure.get());
+        assertTrue(reader.getHitCount() > 0);
+    }
+
+    @Test
+    public void missesOfWriterAreReadConcurrently() throws Exception {
+        CountDownLatch bothReading = new CountDownLatch(2);
+        AtomicBoolean overlapped = new AtomicBoolean(true);
+        SimulatedBackend slow = new SimulatedBackend() {
+            @Override
+            public int RegQueryValueExA(int handle, String value, int[] ignore, int[] type, byte[] data,
+                                        int[] size) {
+                bothReading.countDown();
+                try {
+                    if (!bothReading.await(5, TimeUnit.SECONDS)) {
+                        overlapped.set(false);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.RegQueryValueExA(handle, value, ignore, type, data, size);
+            }
+        };
+        slow.setStringValue(HKEY_LOCAL_MACHINE, APP, "Endpoint", "https://example.org");
+        slow.setIntValue(HKEY_LOCAL_MACHINE, APP, "Retries", 3);
+        Registry.useBackend(slow);
+
+        CompletableFuture<Integer> retries = CompletableFuture.supplyAsync(() -> {
+            try {
+                return writer.queryValue(Registry.KEY_LOCAL_MACHINE, APP, "Retries").asInt();
+            } catch (RegistryException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        assertEquals("https://example.org",
+                writer.queryValue(Registry.KEY_LOCAL_MACHINE, APP, "Endpoint").asString());
+        assertEquals(3, (int) retries.get(10, TimeUnit.SECONDS));
+        assertTrue(overlapped.get());
+        assertEquals(3, reader.queryValue(Registry.KEY_LOCAL_MACHINE, APP, "Retries").asInt());
+        assertEquals(1, reader.getHitCount());
+    }
+
+    @Test
+    public void slotsAndRequestsLeftBrokenByDeadProcessesAreCleared() throws Exception {
+        writer.setRefreshInterval(Duration.ZERO);
+        writer.queryValue(Registry.KEY_LOCAL_MACHINE, APP, "Endpoint");
+        writer.queryValue(Registry.KEY_LOCAL_MACHINE, APP, "Retries");
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            mapped.order(ByteOrder.nativeOrder());
+            List<Integer> used = usedSlots(mapped);
+            assertEquals(2, used.size());
+            // one slot left half-written, another one with garbage identity length
+            int torn = SLOTS_OFFSET + used.get(0) * SLOT_SIZE;
+            mapped.putLong(torn, mapped.getLong(torn) + 1);
+            mapped.putInt(SLOTS_OFFSET + used.get(1) * SLOT_SIZE + SLOT_IDENTITY_LENGTH, -5);
+            // a request with an identity of a single part
+            byte[] garbage = "garbage".getBytes(StandardCharsets.UTF_8);
+            mapped.putInt(REQUESTS_OFFSET + 8, garbage.length);
+            mapped.position(REQUESTS_OFFSET + 12);
+            mapped.put(garbage);
+            mapped.putLong(REQUESTS_OFFSET, 2);
+
+            assertTrue(writer.refresh());
+            assertTrue(usedSlots(mapped).isEmpty());
+            assertEquals(0, mapped.getLong(REQUESTS_OFFSET));
+        }
+
+        // cleared slots are used and refreshed again
+        writer.queryValue(Registry.KEY_LOCAL_MACHINE, APP, "Retries");
+        backend.setIntValue(HKEY_LOCAL_MACHINE, APP, "Retries", 7);
+        reader.setRefreshInterval(Duration.ofMinutes(1));
+        assertEquals(3, reader.queryValue(Registry.KEY_LOCAL_MACHINE, APP, "Retries").asInt());
+        writer.refresh();
+        assertEquals(7, reader.queryValue(Registry.KEY_LOCAL_MACHINE, APP, "Retries").asInt());
+        assertEquals(2, reader.getHitCount());
+    }
+
+    @Test
+    public void valuesNotRequestedAreClearedInsteadOfReread() throws Exception {
+        writer.queryValue(Registry.KEY_LOCAL_MACHINE, APP, "Endpoint");
+        writer.queryValue(Registry.KEY_LOCAL_MACHINE, APP, "Retries");
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            mapped.order(ByteOrder.nativeOrder());
+            writer.refresh();
+            assertEquals(2, usedSlots(mapped).size());
+
+            // nothing is older than four maximum ages of zero
+            writer.setMaxAge(Duration.ZERO);
+            writer.refresh();
+            assertTrue(usedSlots(mapped).isEmpty());
+        }
+        assertEquals(3, reader.queryValue(Registry.KEY_LOCAL_MACHINE, APP, "Retries").asInt());
+        assertEquals(1, reader.getMissCount());
+    }
+
+    private static List<Integer> usedSlots(MappedByteBuffer mapped) {
+        List<Integer> used = new ArrayList<>();
+        for (int slot = 0; slot < SLOT_COUNT; slot++) {
+            if (mapped.getInt(SLOTS_OFFSET + slot * SLOT_SIZE + SLOT_STATUS) != 0) {
+                used.add(slot);
+            }
+        }
+        return used;
+    }
+
+    private static void assertMissing(SharedValueCache cache, String valueName) {
+        try {
+            cache.queryValue(Registry.KEY_LOCAL_MACHINE, APP, valueName);
+            fail("Value " + valueName + " should not exist");
+        } catch (RegistryException e) {
+            assertEquals(ERROR_NOT_FOUND, e.getErrorCode());
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (c) 2016 Twowls.org.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.twowls.gatesmates.registry.expand;
+
+import org.junit.After;
+import org.junit.Test;
+import org.twowls.gatesmates.registry.Registry;
+import org.twowls.gatesmates.registry.RegistryConst;
+import org.twowls.gatesmates.registry.RegistryException;
+import org.twowls.gatesmates.registry.RegistryValue;
+import org.twowls.gatesmates.registry.SimulatedBackend;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+/**
+ * <p>Tests for {@link ExpandTemplate} and {@link Expander}.</p>
+ *
+ * @author bubo &lt;bubo@twowls.org&gt;
+ */
+public class ExpanderTests implements RegistryConst {
+
+    private static final VariableSource SOURCE = VariableSource.of(variables(
+            "SystemRoot", "C:\\Windows", "ProgramFiles", "C:\\Program Files", "EMPTY", ""));
+
+    @After
+    public void tearDown() {
+        Registry.useBackend(null);
+    }
+
+    @Test
+    public void templatesFollowExpandEnvironmentStrings() {
+        assertEquals("C:\\Windows\\system32\\cmd.exe", ExpandTemplate.compile("%SYSTEMROOT%\\system32\\cmd.exe")
+                .render(SOURCE));
+        assertEquals("C:\\Program Files;C:\\Windows;", ExpandTemplate.compile("%programfiles%;%SystemRoot%;%Empty%")
+                .render(SOURCE));
+        assertEquals("%Undefined%\\x", ExpandTemplate.compile("%Undefined%\\x").render(SOURCE));
+        assertEquals("100%", ExpandTemplate.compile("100%").render(SOURCE));
+        assertEquals("%%C:\\Windows", ExpandTemplate.compile("%%%SystemRoot%").render(SOURCE));
+
+        ExpandTemplate constant = ExpandTemplate.compile("plain text");
+        assertTrue(constant.isConstant());
+        assertSame(constant.getText(), constant.render(name -> {
+            throw new AssertionError("No lookups expected");
+        }));
+    }
+
+    @Test
+    public void templatesAreCompiledOnceAndCacheIsBounded() {
+        Expander expander = new Expander(SOURCE, 2);
+        ExpandTemplate template = expander.compile("%SystemRoot%\\Fonts");
+        assertSame(template, expander.compile("%SystemRoot%\\Fonts"));
+        assertEquals("C:\\Windows\\Fonts", expander.expand("%SystemRoot%\\Fonts"));
+
+        expander.compile("a");
+        expander.compile("b");
+        assertTrue(expander.cachedTemplateCount() <= 2);
+
+        expander.setSource(VariableSource.of(variables("SystemRoot", "D:\\Win")));
+        assertEquals("D:\\Win\\Fonts", expander.expand("%SystemRoot%\\Fonts"));
+    }
+
+    @Test
+    public void onlyExpandableValuesAreExpanded() throws Exception {
+        SimulatedBackend backend = new SimulatedBackend();
+        String path = "Software/Vendor/App";
+        backend.setValue(HKEY_LOCAL_MACHINE, path, RegistryValue.ofString("Home", REG_EXPAND_SZ, "%ProgramFiles%\\App"));
+        backend.setStringValue(HKEY_LOCAL_MACHINE, path, "Literal", "%ProgramFiles%\\App");
+        backend.setIntValue(HKEY_LOCAL_MACHINE, path, "Count", 1);
+        Registry.useBackend(backend);
+
+        Expander expander = new Expander(SOURCE);
+        try (Registry.Key key = Registry.openKey(Registry.KEY_LOCAL_MACHINE, path)) {
+            assertEquals("C:\\Program Files\\App", expander.queryExpandedValue(key, "Home"));
+            assertEquals("%ProgramFiles%\\App", expander.queryExpandedValue(key, "Literal"));
+            try {
+                expander.queryExpandedValue(key, "Count");
+                fail("Numeric value expanded");
+            } catch (RegistryException e) {
+                assertEquals(RegistryException.VALUE_TYPE_MISMATCH, e.getErrorCode());
+            }
+        }
+        assertEquals(1, expander.cachedTemplateCount());
+    }
+
+    @Test
+    public void environmentSnapshotIsCaseInsensitive() {
+        Map.Entry<String, String> any = System.getenv().entrySet().iterator().next();
+        VariableSource snapshot = VariableSource.environmentSnapshot();
+        assertNotNull(snapshot.lookup(any.getKey().toLowerCase()));
+        assertNull(snapshot.lookup("GATESMATES_SURELY_UNDEFINED_VARIABLE"));
+    }
+
+    private static Map<String, String> variables(String... namesAndValues) {
+        Map<String, String> variables = new HashMap<>();
+        for (int i = 0; i < namesAndValues.length; i += 2) {
+            variables.put(namesAndValues[i], namesAndValues[i + 1]);
+        }
+        return variables;
+    }
+}
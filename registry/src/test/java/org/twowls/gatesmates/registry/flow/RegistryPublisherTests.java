@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2016 Twowls.org.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.twowls.gatesmates.registry.flow;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.twowls.gatesmates.registry.Registry;
+import org.twowls.gatesmates.registry.RegistryConst;
+import org.twowls.gatesmates.registry.RegistryException;
+import org.twowls.gatesmates.registry.SimulatedBackend;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.*;
+
+/**
+ * <p>Tests for {@link RegistryPublisher} against {@link SimulatedBackend}.</p>
+ *
+ * @author bubo &lt;bubo@twowls.org&gt;
+ */
+public class RegistryPublisherTests implements RegistryConst {
+
+    private static final String ROOT = "Software/Inventory";
+
+    private SimulatedBackend backend;
+
+    @Before
+    public void setup() {
+        backend = new SimulatedBackend();
+        for (int i = 0; i < 5; i++) {
+            backend.setStringValue(HKEY_LOCAL_MACHINE, ROOT + "/Host" + i, "Name", "host-" + i);
+            backend.setIntValue(HKEY_LOCAL_MACHINE, ROOT + "/Host" + i + "/Cpu", "Cores", 4 * (i + 1));
+        }
+        Registry.useBackend(backend);
+    }
+
+    @After
+    public void tearDown() {
+        Registry.useBackend(null);
+    }
+
+    @Test
+    public void publishesWholeSubtreeDepthFirst() throws Exception {
+        RegistryPublisher publisher = new RegistryPublisher(Registry.KEY_LOCAL_MACHINE, ROOT);
+        publisher.setBufferSize(3);
+        RecordingSubscriber subscriber = new RecordingSubscriber(2);
+        publisher.subscribe(subscriber);
+
+        subscriber.completion.get(10, TimeUnit.SECONDS);
+        List<String> items = subscriber.items.stream().map(RegistryItem::toString).collect(Collectors.toList());
+        assertEquals(1 + 5 * 4, items.size());
+        assertEquals("key ''", items.get(0));
+        assertEquals("key 'Host0'", items.get(1));
+        assertEquals("value 'Name' (type 1) = 'host-0' of key 'Host0'", items.get(2));
+        assertEquals("key 'Host0/Cpu'", items.get(3));
+        assertEquals("value 'Cores' (type 4) = 4 of key 'Host0/Cpu'", items.get(4));
+        assertEquals(0, backend.openHandleCount());
+    }
+
+    @Test
+    public void readsOnlyAsRequestedAndClosesHandlesOnCancel() {
+        RegistryPublisher publisher = new RegistryPublisher(Registry.KEY_LOCAL_MACHINE, ROOT);
+        publisher.setExecutor(Runnable::run);
+        publisher.setIncludeValues(false);
+        RecordingSubscriber subscriber = new RecordingSubscriber(0);
+        publisher.subscribe(subscriber);
+        assertEquals(0, backend.openHandleCount());
+
+        subscriber.subscription.request(3);
+        assertEquals(3, subscriber.items.size());
+        assertEquals("Host0/Cpu", subscriber.items.get(2).getKeyPath());
+        assertEquals(3, backend.openHandleCount());
+
+        subscriber.subscription.cancel();
+        assertEquals(0, backend.openHandleCount());
+        subscriber.subscription.request(10);
+        assertEquals(3, subscriber.items.size());
+        assertFalse(subscriber.completion.isDone());
+    }
+
+    @Test
+    public void missingSubtreeIsReportedAsError() {
+        RegistryPublisher publisher = new RegistryPublisher(Registry.KEY_LOCAL_MACHINE, "Software/Missing");
+        publisher.setExecutor(Runnable::run);
+        RecordingSubscriber subscriber = new RecordingSubscriber(1);
+        publisher.subscribe(subscriber);
+
+        assertTrue(subscriber.completion.isCompletedExceptionally());
+        try {
+            subscriber.completion.join();
+        } catch (Exception e) {
+            assertTrue(e.getCause() instanceof RegistryException);
+            assertEquals(ERROR_NOT_FOUND, ((RegistryException) e.getCause()).getErrorCode());
+        }
+    }
+
+    /** Requests a fixed number of items on subscription and after each item received */
+    private static final class RecordingSubscriber implements Flow.Subscriber<RegistryItem> {
+        final List<RegistryItem> items = new ArrayList<>();
+        final CompletableFuture<Void> completion = new CompletableFuture<>();
+        final int batch;
+        Flow.Subscription subscription;
+
+        RecordingSubscriber(int batch) {
+            this.batch = batch;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            if (batch > 0) {
+                subscription.request(batch);
+            }
+        }
+
+        @Override
+        public void onNext(RegistryItem item) {
+            items.add(item);
+            if (batch > 0 && items.size() % batch == 0) {
+                subscription.request(batch);
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            completion.completeExceptionally(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            completion.complete(null);
+        }
+    }
+}
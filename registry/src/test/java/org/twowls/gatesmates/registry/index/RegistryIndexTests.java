@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2016 Twowls.org.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.twowls.gatesmates.registry.index;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.twowls.gatesmates.registry.Registry;
+import org.twowls.gatesmates.registry.RegistryConst;
+import org.twowls.gatesmates.registry.RegistryValue;
+import org.twowls.gatesmates.registry.SimulatedBackend;
+
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.*;
+
+/**
+ * <p>Tests for {@link RegistryIndex} against {@link SimulatedBackend}.</p>
+ *
+ * @author bubo &lt;bubo@twowls.org&gt;
+ */
+public class RegistryIndexTests implements RegistryConst {
+
+    private static final String ROOT = "Software/Classes";
+    private static final String CLSID = "{0002DF01-0000-0000-C000-000000000046}";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private SimulatedBackend backend;
+
+    @Before
+    public void setup() {
+        backend = new SimulatedBackend();
+        backend.setStringValue(HKEY_LOCAL_MACHINE, ROOT + "/CLSID/" + CLSID, "", "Internet Explorer");
+        backend.setValue(HKEY_LOCAL_MACHINE, ROOT + "/CLSID/" + CLSID + "/InprocServer32",
+                RegistryValue.ofString("", REG_EXPAND_SZ, "%SystemRoot%\\System32\\ieframe.dll"));
+        backend.setStringValue(HKEY_LOCAL_MACHINE, ROOT + "/IE.HTTP", "CLSID", CLSID);
+        backend.setStringValue(HKEY_LOCAL_MACHINE, ROOT + "/txtfile/shell/open/command", "",
+                "C:\\Windows\\System32\\notepad.exe %1");
+        backend.setIntValue(HKEY_LOCAL_MACHINE, ROOT + "/txtfile", "EditFlags", 0x10000);
+        Registry.useBackend(backend);
+    }
+
+    @After
+    public void tearDown() {
+        Registry.useBackend(null);
+    }
+
+    @Test
+    public void termAndPrefixQueriesFindKeys() throws Exception {
+        RegistryIndex index = new RegistryIndex(Registry.KEY_LOCAL_MACHINE, ROOT);
+        assertEquals(9, index.refresh());
+
+        assertEquals(Arrays.asList("CLSID/" + CLSID, "IE.HTTP"), index.find(CLSID.substring(1, 37)));
+        assertEquals(Collections.singletonList("CLSID/" + CLSID + "/InprocServer32"), index.find("IEFRAME.DLL"));
+        assertEquals(Collections.singletonList("txtfile/shell/open/command"), index.find("notepad"));
+        assertEquals(Collections.singletonList("txtfile"), index.find("0x10000"));
+        assertEquals(Collections.singletonList("txtfile/shell"), index.find("shell"));
+
+        assertEquals(Arrays.asList("CLSID/" + CLSID + "/InprocServer32", "txtfile/shell/open/command"),
+                index.findPrefix("system3"));
+        assertEquals(Collections.singletonList("txtfile/shell/open/command"),
+                index.search("C:\\Windows\\System32\\notepad.exe"));
+        assertTrue(index.search("C:\\Windows\\System32\\wordpad.exe").isEmpty());
+        assertEquals(0, backend.openHandleCount());
+    }
+
+    @Test
+    public void everyStringOfMultiStringValueIsIndexed() throws Exception {
+        backend.setValue(HKEY_LOCAL_MACHINE, ROOT + "/txtfile/OpenWithList", new RegistryValue("Editors",
+                REG_MULTI_SZ, "wordpad.exe\0C:\\Tools\\write.exe\0\0".getBytes()));
+        RegistryIndex index = new RegistryIndex(Registry.KEY_LOCAL_MACHINE, ROOT);
+        index.refresh();
+
+        assertEquals(Collections.singletonList("txtfile/OpenWithList"), index.find("wordpad.exe"));
+        assertEquals(Collections.singletonList("txtfile/OpenWithList"), index.find("write"));
+        assertEquals(Collections.singletonList("txtfile/OpenWithList"), index.search("C:\\Tools\\write.exe"));
+    }
+
+    @Test
+    public void refreshUpdatesOnlyChangedKeys() throws Exception {
+        RegistryIndex index = new RegistryIndex(Registry.KEY_LOCAL_MACHINE, ROOT);
+        index.refresh();
+        assertEquals(0, index.refresh());
+
+        backend.setStringValue(HKEY_LOCAL_MACHINE, ROOT + "/txtfile/shell/open/command", "",
+                "C:\\Tools\\editor.exe %1");
+        assertEquals(1, index.refresh());
+        assertTrue(index.find("notepad.exe").isEmpty());
+        assertEquals(Collections.singletonList("txtfile/shell/open/command"), index.find("editor"));
+
+        backend.deleteKey(HKEY_LOCAL_MACHINE, ROOT + "/CLSID");
+        index.refresh();
+        assertTrue(index.find("ieframe").isEmpty());
+        assertEquals(Collections.singletonList("IE.HTTP"), index.find(CLSID));
+        assertEquals(6, index.documentCount());
+    }
+
+    @Test
+    public void keyDeletedWhileUpdatingIsRemoved() throws Exception {
+        RegistryIndex index = new RegistryIndex(Registry.KEY_LOCAL_MACHINE, ROOT);
+        index.refresh();
+
+        // the key is gone by the time its open handle is read
+        SimulatedBackend deleting = new SimulatedBackend() {
+            @Override
+            public int RegQueryInfoKeyA(int handle, byte[] className, int[] classNameSize, int[] ignore,
+                                        int[] subKeys, int[] maxSubKeyLen, int[] maxClassLen,
+                                        int[] values, int[] maxValueNameLen, int[] maxValueLen,
+                                        int[] securityDescriptor, long[] lastWriteTime) {
+                deleteKey(HKEY_LOCAL_MACHINE, ROOT + "/IE.HTTP");
+                return super.RegQueryInfoKeyA(handle, className, classNameSize, ignore, subKeys, maxSubKeyLen,
+                        maxClassLen, values, maxValueNameLen, maxValueLen, securityDescriptor, lastWriteTime);
+            }
+        };
+        deleting.setStringValue(HKEY_LOCAL_MACHINE, ROOT + "/IE.HTTP", "CLSID", CLSID);
+        Registry.useBackend(deleting);
+
+        index.update("IE.HTTP");
+        assertEquals(Collections.singletonList("CLSID/" + CLSID), index.find(CLSID));
+        assertEquals(0, deleting.openHandleCount());
+    }
+
+    @Test
+    public void savedIndexCanBeLoadedAndRefreshed() throws Exception {
+        RegistryIndex index = new RegistryIndex(Registry.KEY_LOCAL_MACHINE, ROOT);
+        index.refresh();
+        Path file = folder.getRoot().toPath().resolve("classes.idx");
+        index.save(file);
+
+        RegistryIndex loaded = RegistryIndex.load(file, Registry.KEY_LOCAL_MACHINE);
+        assertEquals(index.documentCount(), loaded.documentCount());
+        assertEquals(index.termCount(), loaded.termCount());
+        assertEquals(index.findPrefix("c"), loaded.findPrefix("c"));
+        assertEquals(0, loaded.refresh());
+
+        backend.deleteValue(HKEY_LOCAL_MACHINE, ROOT + "/IE.HTTP", "CLSID");
+        assertEquals(1, loaded.refresh());
+        assertEquals(Collections.singletonList("CLSID/" + CLSID), loaded.find(CLSID));
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2016 Twowls.org.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.twowls.gatesmates.registry.mirror;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.twowls.gatesmates.registry.Registry;
+import org.twowls.gatesmates.registry.RegistryConst;
+import org.twowls.gatesmates.registry.SimulatedBackend;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static org.junit.Assert.*;
+
+/**
+ * <p>End to end tests of {@link RegistryMirror} against {@link SimulatedBackend}.</p>
+ *
+ * @author bubo &lt;bubo@twowls.org&gt;
+ */
+public class RegistryMirrorTests implements RegistryConst {
+
+    private static final String ROOT = "Software/Vendor";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private SimulatedBackend backend;
+    private Path storeDir;
+
+    @Before
+    public void setup() throws IOException {
+        backend = new SimulatedBackend();
+        backend.setStringValue(HKEY_LOCAL_MACHINE, ROOT, "", "Vendor");
+        backend.setStringValue(HKEY_LOCAL_MACHINE, ROOT + "/App", "Path", "C:\\App\\app.exe");
+        backend.setIntValue(HKEY_LOCAL_MACHINE, ROOT + "/App", "Version", 3);
+        backend.setIntValue(HKEY_LOCAL_MACHINE, ROOT + "/App/Plugins/Spell", "Enabled", 1);
+        backend.createKey(HKEY_LOCAL_MACHINE, ROOT + "/Empty");
+        Registry.useBackend(backend);
+        storeDir = folder.newFolder("mirror").toPath();
+    }
+
+    @After
+    public void tearDown() {
+        Registry.useBackend(null);
+    }
+
+    @Test
+    public void initialSyncCopiesWholeSubtree() throws Exception {
+        try (MirrorStore store = MirrorStore.open(storeDir)) {
+            int changes = new RegistryMirror(Registry.KEY_LOCAL_MACHINE, ROOT, store).sync();
+            assertEquals(5, changes);
+            assertEquals(5, store.size());
+            assertEquals("C:\\App\\app.exe", store.get("App").getValue("path").asString());
+            assertEquals(1, store.get("app/plugins/spell").getValue("Enabled").asInt());
+            assertTrue(store.get("Empty").getValues().isEmpty());
+        }
+        assertEquals(0, backend.openHandleCount());
+    }
+
+    @Test
+    public void repeatedSyncAppliesOnlyChangedKeys() throws Exception {
+        try (MirrorStore store = MirrorStore.open(storeDir)) {
+            RegistryMirror mirror = new RegistryMirror(Registry.KEY_LOCAL_MACHINE, ROOT, store);
+            mirror.sync();
+            long sequence = store.getSequence();
+            assertEquals(0, mirror.sync());
+            assertEquals(sequence, store.getSequence());
+
+            backend.setIntValue(HKEY_LOCAL_MACHINE, ROOT + "/App", "Version", 4);
+            assertEquals(1, mirror.sync());
+            assertEquals(4, store.get("App").getValue("Version").asInt());
+
+            // deleting a key touches its parent and drops the whole subtree
+            backend.deleteKey(HKEY_LOCAL_MACHINE, ROOT + "/App/Plugins");
+            assertEquals(2, mirror.sync());
+            assertNull(store.get("App/Plugins"));
+            assertNull(store.get("App/Plugins/Spell"));
+            assertEquals(3, store.size());
+        }
+    }
+
+    @Test
+    public void reopenedStoreRecoversFromJournal() throws Exception {
+        try (MirrorStore store = MirrorStore.open(storeDir)) {
+            new RegistryMirror(Registry.KEY_LOCAL_MACHINE, ROOT, store).sync();
+        }
+
+        // simulate a crash in the middle of appending a record
+        Files.write(storeDir.resolve(MirrorStore.JOURNAL_FILE), new byte[]{0, 0, 1, 0, 42, 42},
+                StandardOpenOption.APPEND);
+
+        try (MirrorStore store = MirrorStore.open(storeDir)) {
+            assertEquals(5, store.size());
+            assertEquals(3, store.get("App").getValue("Version").asInt());
+
+            backend.setStringValue(HKEY_LOCAL_MACHINE, ROOT + "/Empty", "Note", "not empty anymore");
+            assertEquals(1, new RegistryMirror(Registry.KEY_LOCAL_MACHINE, ROOT, store).sync());
+        }
+
+        try (MirrorStore store = MirrorStore.open(storeDir)) {
+            assertEquals("not empty anymore", store.get("Empty").getValue("Note").asString());
+            assertEquals(6, store.getSequence());
+        }
+    }
+
+    @Test
+    public void checkpointFoldsJournalIntoSnapshot() throws Exception {
+        try (MirrorStore store = MirrorStore.open(storeDir)) {
+            RegistryMirror mirror = new RegistryMirror(Registry.KEY_LOCAL_MACHINE, ROOT, store);
+            mirror.setCheckpointThreshold(0);
+            mirror.sync();
+            assertEquals(0, store.getJournalSize());
+            assertTrue(Files.exists(storeDir.resolve(MirrorStore.SNAPSHOT_FILE)));
+
+            backend.deleteValue(HKEY_LOCAL_MACHINE, ROOT + "/App", "Path");
+            mirror.setCheckpointThreshold(RegistryMirror.DEFAULT_CHECKPOINT_THRESHOLD);
+            assertEquals(1, mirror.sync());
+            assertTrue(store.getJournalSize() > 0);
+        }
+
+        try (MirrorStore store = MirrorStore.open(storeDir)) {
+            assertEquals(5, store.size());
+            assertNull(store.get("App").getValue("Path"));
+            assertEquals(6, store.getSequence());
+        }
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright (c) 2016 Twowls.org.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.twowls.gatesmates.registry.prefs;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.twowls.gatesmates.registry.Registry;
+import org.twowls.gatesmates.registry.RegistryConst;
+import org.twowls.gatesmates.registry.SimulatedBackend;
+
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.prefs.PreferenceChangeEvent;
+import java.util.prefs.PreferenceChangeListener;
+import java.util.prefs.Preferences;
+
+import static org.junit.Assert.*;
+
+/**
+ * <p>Tests for {@link RegistryPreferences} against {@link SimulatedBackend}.</p>
+ *
+ * @author bubo &lt;bubo@twowls.org&gt;
+ */
+public class RegistryPreferencesTests implements RegistryConst {
+
+    private static final String ROOT = "Software/Prefs";
+
+    private CountingBackend backend;
+    private Preferences root;
+
+    @Before
+    public void setup() {
+        backend = new CountingBackend();
+        backend.setStringValue(HKEY_CURRENT_USER, ROOT + "/App", "Theme", "dark");
+        backend.setIntValue(HKEY_CURRENT_USER, ROOT + "/App", "Width", 640);
+        backend.createKey(HKEY_CURRENT_USER, ROOT + "/App/Plugins");
+        Registry.useBackend(backend);
+        root = new RegistryPreferences(Registry.KEY_CURRENT_USER, ROOT);
+    }
+
+    @After
+    public void tearDown() {
+        Registry.useBackend(null);
+    }
+
+    @Test
+    public void valuesAreLoadedOnceAndKeptInMemory() throws Exception {
+        Preferences app = root.node("App");
+        assertEquals("dark", app.get("theme", null));
+        assertEquals(640, app.getInt("Width", 0));
+        assertEquals(Arrays.asList("Theme", "Width"), Arrays.asList(app.keys()));
+        assertEquals(Arrays.asList("Plugins"), Arrays.asList(app.childrenNames()));
+
+        backend.setStringValue(HKEY_CURRENT_USER, ROOT + "/App", "Theme", "light");
+        assertEquals("dark", app.get("Theme", null));
+        app.sync();
+        assertEquals("light", app.get("Theme", null));
+        assertEquals(0, backend.openHandleCount());
+    }
+
+    @Test
+    public void flushWritesAllUpdatesOfKeyAtOnce() throws Exception {
+        Preferences app = root.node("App");
+        app.put("Theme", "light");
+        app.putInt("Height", 480);
+        app.remove("Width");
+        Preferences editor = app.node("Editor");
+        editor.putBoolean("Wrap", true);
+        assertEquals(0, backend.createCount.get());
+        assertEquals(640, registryInt("App", "Width"));
+
+        root.flush();
+        assertEquals("light", registryString("App", "Theme"));
+        assertEquals("480", registryString("App", "Height"));
+        assertEquals(-1, registryInt("App", "Width"));
+        assertEquals("true", registryString("App/Editor", "Wrap"));
+        // a single open of App and of Editor, nothing to write to root
+        assertEquals(2, backend.createCount.get());
+
+        root.flush();
+        assertEquals(2, backend.createCount.get());
+
+        editor.removeNode();
+        try (Registry.Key key = Registry.openKey(Registry.KEY_CURRENT_USER, ROOT + "/App")) {
+            assertEquals(Arrays.asList("Plugins"), key.listSubKeys());
+        }
+        assertEquals(0, backend.openHandleCount());
+    }
+
+    @Test
+    public void listenersLearnAboutChangesMadeByOthers() throws Exception {
+        Preferences app = root.node("App");
+        BlockingQueue<PreferenceChangeEvent> events = new LinkedBlockingQueue<>();
+        PreferenceChangeListener listener = events::add;
+        app.addPreferenceChangeListener(listener);
+        app.put("Width", "800");
+        assertEquals("Width", events.poll(10, TimeUnit.SECONDS).getKey());
+
+        // reported no matter how far the watcher has got
+        backend.setStringValue(HKEY_CURRENT_USER, ROOT + "/App", "Theme", "light");
+        PreferenceChangeEvent event = events.poll(10, TimeUnit.SECONDS);
+        assertNotNull(event);
+        assertEquals("Theme", event.getKey());
+        assertEquals("light", event.getNewValue());
+        assertEquals("light", app.get("Theme", null));
+
+        // updates not flushed yet win over changes made by others
+        backend.setIntValue(HKEY_CURRENT_USER, ROOT + "/App", "Width", 1024);
+        backend.deleteValue(HKEY_CURRENT_USER, ROOT + "/App", "Theme");
+        event = events.poll(10, TimeUnit.SECONDS);
+        assertNotNull(event);
+        assertEquals("Theme", event.getKey());
+        assertNull(event.getNewValue());
+        assertEquals("800", app.get("Width", null));
+
+        app.removePreferenceChangeListener(listener);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (backend.openHandleCount() != 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, backend.openHandleCount());
+        assertTrue(events.isEmpty());
+    }
+
+    @Test
+    public void changesMadeWhileWatcherReadsAreReported() throws Exception {
+        Preferences app = root.node("App");
+        BlockingQueue<PreferenceChangeEvent> events = new LinkedBlockingQueue<>();
+        // a change right after each of the first reads of the watcher, before it waits
+        AtomicInteger changes = new AtomicInteger();
+        backend.afterWatcherRead = () -> {
+            int n = changes.incrementAndGet();
+            if (n <= 3) {
+                backend.setIntValue(HKEY_CURRENT_USER, ROOT + "/App", "Width", n);
+            }
+        };
+        app.addPreferenceChangeListener(events::add);
+
+        for (int n = 1; n <= 3; n++) {
+            PreferenceChangeEvent event = events.poll(10, TimeUnit.SECONDS);
+            assertNotNull(event);
+            assertEquals("Width", event.getKey());
+            assertEquals(Integer.toString(n), event.getNewValue());
+        }
+    }
+
+    @Test
+    public void pendingUpdatesAreFlushedAtExit() throws Exception {
+        System.setProperty(RegistryPreferencesFactory.ROOT_PATH_PROPERTY, ROOT);
+        try {
+            Preferences app = new RegistryPreferencesFactory().userRoot().node("App");
+            app.put("Theme", "light");
+            assertEquals("dark", registryString("App", "Theme"));
+
+            Thread hook = RegistryPreferencesFactory.shutdownHook();
+            assertNotNull(hook);
+            // removed to run it right away, and not again at exit of the tests
+            assertTrue(Runtime.getRuntime().removeShutdownHook(hook));
+            hook.run();
+            assertEquals("light", registryString("App", "Theme"));
+            assertEquals(0, backend.openHandleCount());
+        } finally {
+            System.clearProperty(RegistryPreferencesFactory.ROOT_PATH_PROPERTY);
+        }
+    }
+
+    private int registryInt(String path, String name) throws Exception {
+        try (Registry.Key key = Registry.openKey(Registry.KEY_CURRENT_USER, ROOT + "/" + path)) {
+            return key.queryIntValue(name, -1);
+        }
+    }
+
+    private String registryString(String path, String name) throws Exception {
+        try (Registry.Key key = Registry.openKey(Registry.KEY_CURRENT_USER, ROOT + "/" + path)) {
+            return key.queryStringValue(name, null);
+        }
+    }
+
+    /** Counts keys opened for writing, and may act when a watcher has read all values */
+    private static final class CountingBackend extends SimulatedBackend {
+        final AtomicInteger createCount = new AtomicInteger();
+        volatile Runnable afterWatcherRead;
+
+        @Override
+        public int RegEnumValueA(int handle, int index, byte[] name, int[] nameSize, int[] ignore,
+                                 int[] type, byte[] data, int[] size) {
+            int err = super.RegEnumValueA(handle, index, name, nameSize, ignore, type, data, size);
+            Runnable action = afterWatcherRead;
+            if (ERROR_NO_MORE_ITEMS == err && action != null
+                    && Thread.currentThread().getName().startsWith("gatesmates-prefs-watcher")) {
+                action.run();
+            }
+            return err;
+        }
+
+        @Override
+        public int RegCreateKeyExA(int handle, String path, int reserved, String className, int options,
+                                   int access, int[] securityAttributes, long[] result, int[] disposition) {
+            createCount.incrementAndGet();
+            return super.RegCreateKeyExA(handle, path, reserved, className, options, access,
+                    securityAttributes, result, disposition);
+        }
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) 2016 Twowls.org.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.twowls.gatesmates.registry.query;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.twowls.gatesmates.registry.Registry;
+import org.twowls.gatesmates.registry.RegistryConst;
+import org.twowls.gatesmates.registry.SimulatedBackend;
+import org.twowls.gatesmates.util.AdvApi32Backend;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+/**
+ * <p>Tests for {@link PathPattern} and {@link PathQuery}.</p>
+ *
+ * @author bubo &lt;bubo@twowls.org&gt;
+ */
+public class PathQueryTests implements RegistryConst {
+
+    private static final String UNINSTALL = "SOFTWARE/Microsoft/Windows/CurrentVersion/Uninstall";
+
+    private CountingBackend backend;
+
+    @Before
+    public void setup() {
+        SimulatedBackend simulated = new SimulatedBackend();
+        for (int i = 0; i < 20; i++) {
+            simulated.setStringValue(HKEY_LOCAL_MACHINE, UNINSTALL + "/App" + i, "DisplayName", "Application " + i);
+            if (i % 2 == 0) {
+                simulated.setStringValue(HKEY_LOCAL_MACHINE, UNINSTALL + "/App" + i, "DisplayVersion", "1." + i);
+            }
+        }
+        simulated.setStringValue(HKEY_LOCAL_MACHINE, "SOFTWARE/Vendor/Tool/Uninstall/Tool", "DisplayVersion", "2.0");
+        simulated.setStringValue(HKEY_LOCAL_MACHINE, "SOFTWARE/Vendor/Tool/Settings", "Theme", "dark");
+        simulated.createKey(HKEY_LOCAL_MACHINE, "SYSTEM/CurrentControlSet");
+        backend = new CountingBackend(simulated);
+        Registry.useBackend(backend);
+    }
+
+    @After
+    public void tearDown() {
+        Registry.useBackend(null);
+        assertEquals(0, backend.openHandleCount());
+    }
+
+    @Test
+    public void patternMatchesPaths() {
+        PathPattern pattern = PathPattern.compile("SOFTWARE/**/Uninstall/App[0-4]?");
+        assertTrue(pattern.matches("software/Microsoft/Windows/CurrentVersion/Uninstall/App12"));
+        assertTrue(pattern.matches("SOFTWARE/Uninstall/App0x"));
+        assertFalse(pattern.matches("SOFTWARE/Uninstall/App5x"));
+        assertFalse(pattern.matches("SOFTWARE/Uninstall/App1"));
+        assertTrue(PathPattern.compile("a/[!b]*/**").matches("A/cde"));
+        assertFalse(PathPattern.compile("a/[!b]*/**").matches("A/bcd/e"));
+    }
+
+    @Test
+    public void literalPrefixIsOpenedWithoutEnumeration() throws Exception {
+        PathQuery query = new PathQuery(Registry.KEY_LOCAL_MACHINE, UNINSTALL + "/*/DisplayVersion");
+        query.setMatchKeys(false);
+        List<PathMatch> matches = query.list();
+
+        assertEquals(10, matches.size());
+        assertEquals(UNINSTALL + "/App0", matches.get(0).getKeyPath());
+        assertEquals("DisplayVersion", matches.get(0).getValueName());
+        // only the Uninstall key itself is enumerated, the literal prefix is opened in one call
+        assertEquals(1, backend.enumerations.get());
+        assertEquals(1 + 1 + 20, backend.opens.get());
+    }
+
+    @Test
+    public void anyDepthSegmentFindsKeysAndValues() throws Exception {
+        List<String> paths = new PathQuery(Registry.KEY_LOCAL_MACHINE, "SOFTWARE/**/Uninstall/*/DisplayVersion")
+                .list().stream().map(PathMatch::getPath).collect(Collectors.toList());
+        assertEquals(11, paths.size());
+        assertTrue(paths.contains("SOFTWARE/Vendor/Tool/Uninstall/Tool/DisplayVersion"));
+
+        List<PathMatch> keys = new PathQuery(Registry.KEY_LOCAL_MACHINE, "S*/*/Tool/*").list();
+        assertEquals(Arrays.asList("SOFTWARE/Vendor/Tool/Settings", "SOFTWARE/Vendor/Tool/Uninstall"),
+                keys.stream().map(PathMatch::getPath).collect(Collectors.toList()));
+    }
+
+    @Test
+    public void parallelTraversalRespectsHandleLimit() throws Exception {
+        PathQuery query = new PathQuery(Registry.KEY_LOCAL_MACHINE, "**/Display*");
+        query.setPool(new ForkJoinPool(8));
+        query.setMaxOpenHandles(3);
+        query.setMatchKeys(false);
+
+        try (Stream<PathMatch> stream = query.stream()) {
+            assertEquals(31, stream.count());
+        }
+        assertTrue(backend.maxOpen.get() <= 3);
+    }
+
+    @Test
+    public void closedStreamStopsTraversal() throws Exception {
+        PathQuery query = new PathQuery(Registry.KEY_LOCAL_MACHINE, "**/Display*");
+        query.setMatchKeys(false);
+        query.list();
+        int fullTraversalOpens = backend.opens.getAndSet(0);
+
+        ForkJoinPool pool = new ForkJoinPool(2);
+        query.setPool(pool);
+        query.setStreamBufferSize(1);
+        // short-circuiting operations do not close streams
+        Stream<PathMatch> stream = query.stream();
+        assertTrue(stream.findFirst().isPresent());
+        stream.close();
+        assertTrue(pool.awaitQuiescence(10, TimeUnit.SECONDS));
+        assertEquals(0, backend.openHandleCount());
+        assertTrue(backend.opens.get() < fullTraversalOpens);
+    }
+
+    /** Counts calls and tracks the number of simultaneously open handles */
+    private static final class CountingBackend implements AdvApi32Backend, RegistryConst {
+        final SimulatedBackend target;
+        final AtomicInteger opens = new AtomicInteger();
+        final AtomicInteger enumerations = new AtomicInteger();
+        final AtomicInteger open = new AtomicInteger();
+        final AtomicInteger maxOpen = new AtomicInteger();
+
+        CountingBackend(SimulatedBackend target) {
+            this.target = target;
+        }
+
+        @Override
+        public int RegOpenKeyExA(int handle, String path, int options, int access, long[] result) {
+            opens.incrementAndGet();
+            int err = target.RegOpenKeyExA(handle, path, options, access, result);
+            if (ERROR_SUCCESS == err) {
+                maxOpen.accumulateAndGet(open.incrementAndGet(), Math::max);
+            }
+            return err;
+        }
+
+        @Override
+        public int RegQueryValueExA(int handle, String value, int[] ignore, int[] type, byte[] data, int[] size) {
+            return target.RegQueryValueExA(handle, value, ignore, type, data, size);
+        }
+
+        @Override
+        public int RegEnumKeyExA(int handle, int index, byte[] name, int[] nameSize, int[] ignore,
+                                 byte[] className, int[] classNameSize, long[] lastWriteTime) {
+            if (index == 0) {
+                enumerations.incrementAndGet();
+            }
+            return target.RegEnumKeyExA(handle, index, name, nameSize, ignore, className, classNameSize,
+                    lastWriteTime);
+        }
+
+        @Override
+        public int RegEnumValueA(int handle, int index, byte[] name, int[] nameSize, int[] ignore,
+                                 int[] type, byte[] data, int[] size) {
+            return target.RegEnumValueA(handle, index, name, nameSize, ignore, type, data, size);
+        }
+
+        @Override
+        public int RegQueryInfoKeyA(int handle, byte[] className, int[] classNameSize, int[] ignore,
+                                    int[] subKeys, int[] maxSubKeyLen, int[] maxClassLen,
+                                    int[] values, int[] maxValueNameLen, int[] maxValueLen,
+                                    int[] securityDescriptor, long[] lastWriteTime) {
+            return target.RegQueryInfoKeyA(handle, className, classNameSize, ignore, subKeys, maxSubKeyLen,
+                    maxClassLen, values, maxValueNameLen, maxValueLen, securityDescriptor, lastWriteTime);
+        }
+
+        @Override
+        public int RegCreateKeyExA(int handle, String path, int reserved, String className, int options,
+                                   int access, int[] securityAttributes, long[] result, int[] disposition) {
+            opens.incrementAndGet();
+            int err = target.RegCreateKeyExA(handle, path, reserved, className, options, access,
+                    securityAttributes, result, disposition);
+            if (ERROR_SUCCESS == err) {
+                maxOpen.accumulateAndGet(open.incrementAndGet(), Math::max);
+            }
+            return err;
+        }
+
+        @Override
+        public int RegSetValueExA(int handle, String value, int reserved, int type, byte[] data, int size) {
+            return target.RegSetValueExA(handle, value, reserved, type, data, size);
+        }
+
+        @Override
+        public int RegDeleteKeyA(int handle, String path) {
+            return target.RegDeleteKeyA(handle, path);
+        }
+
+        @Override
+        public int RegDeleteValueA(int handle, String value) {
+            return target.RegDeleteValueA(handle, value);
+        }
+
+        @Override
+        public int RegNotifyChangeKeyValue(int handle, boolean watchSubtree, int notifyFilter,
+                                           int event, boolean asynchronous) {
+            return target.RegNotifyChangeKeyValue(handle, watchSubtree, notifyFilter, event, asynchronous);
+        }
+
+        @Override
+        public int RegCloseKey(int handle) {
+            int err = target.RegCloseKey(handle);
+            if (ERROR_SUCCESS == err) {
+                open.decrementAndGet();
+            }
+            return err;
+        }
+
+        int openHandleCount() {
+            return target.openHandleCount();
+        }
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2016 Twowls.org.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.twowls.gatesmates.registry.trace;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.twowls.gatesmates.registry.Registry;
+import org.twowls.gatesmates.registry.RegistryConst;
+import org.twowls.gatesmates.registry.RegistryException;
+import org.twowls.gatesmates.registry.SimulatedBackend;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * <p>Tests for {@link RecordingBackend} and {@link ReplayBackend}.</p>
+ *
+ * @author bubo &lt;bubo@twowls.org&gt;
+ */
+public class TraceTests implements RegistryConst {
+
+    private static final long OPEN_DELAY_MILLIS = 5;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private SimulatedBackend backend;
+    private Path traceFile;
+
+    @Before
+    public void setup() throws IOException {
+        backend = new SimulatedBackend() {
+            @Override
+            public int RegOpenKeyExA(int handle, String path, int options, int access, long[] result) {
+                try {
+                    Thread.sleep(OPEN_DELAY_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return super.RegOpenKeyExA(handle, path, options, access, result);
+            }
+        };
+        backend.setStringValue(HKEY_LOCAL_MACHINE, "Software/Vendor/App", "Home", "C:\\App");
+        backend.setIntValue(HKEY_LOCAL_MACHINE, "Software/Vendor/App", "Level", 3);
+        backend.createKey(HKEY_LOCAL_MACHINE, "Software/Vendor/App/Plugins/Alpha");
+        backend.createKey(HKEY_LOCAL_MACHINE, "Software/Vendor/App/Plugins/Beta");
+        traceFile = folder.getRoot().toPath().resolve("startup.trace");
+    }
+
+    @After
+    public void tearDown() {
+        Registry.useBackend(null);
+    }
+
+    @Test
+    public void replayServesRecordedResponses() throws Exception {
+        List<String> recorded;
+        try (RecordingBackend recording = new RecordingBackend(backend, traceFile)) {
+            Registry.useBackend(recording);
+            recorded = workload();
+            assertTrue(recording.getRecordCount() > 0);
+        }
+        assertEquals(0, backend.openHandleCount());
+        assertTrue(Files.size(traceFile) < 1024);
+
+        ReplayBackend replay = ReplayBackend.load(traceFile);
+        replay.setTiming(ReplayBackend.Timing.FAST);
+        Registry.useBackend(replay);
+        assertEquals(recorded, workload());
+        assertEquals(0, replay.getMissCount());
+
+        // spelling of paths does not matter, handles are replay's own
+        try (Registry.Key key = Registry.openKey(Registry.KEY_LOCAL_MACHINE, "SOFTWARE\\vendor\\app")) {
+            assertEquals("C:\\App", key.queryStringValue("Home"));
+        }
+        try {
+            Registry.openKey(Registry.KEY_LOCAL_MACHINE, "Software/Other").close();
+            fail("Call never recorded must fail");
+        } catch (RegistryException e) {
+            assertEquals(ERROR_NOT_FOUND, e.getErrorCode());
+        }
+        assertEquals(1, replay.getMissCount());
+    }
+
+    @Test
+    public void replayReproducesRecordedDurations() throws Exception {
+        try (RecordingBackend recording = new RecordingBackend(backend, traceFile)) {
+            Registry.useBackend(recording);
+            workload();
+        }
+
+        ReplayBackend replay = ReplayBackend.load(traceFile);
+        Registry.useBackend(replay);
+        long original = timed(this::workload);
+        assertTrue(original >= TimeUnit.MILLISECONDS.toNanos(3 * OPEN_DELAY_MILLIS));
+
+        replay.setTiming(ReplayBackend.Timing.FAST);
+        assertTrue(timed(this::workload) < original);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsForeignFile() throws Exception {
+        Files.write(traceFile, new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13});
+        ReplayBackend.load(traceFile);
+    }
+
+    private List<String> workload() throws RegistryException {
+        List<String> results = new ArrayList<>();
+        try (Registry.Key app = Registry.openKey(Registry.KEY_LOCAL_MACHINE, "Software/Vendor/App")) {
+            results.add(app.queryStringValue("Home"));
+            results.add(String.valueOf(app.queryIntValue("Level")));
+            results.add(app.listValues().toString());
+            results.add(String.valueOf(app.queryInfo().getSubKeyCount()));
+            try (Registry.Key plugins = app.openSubKey("Plugins")) {
+                for (String name : plugins.listSubKeys()) {
+                    try (Registry.Key plugin = plugins.openSubKey(name)) {
+                        results.add(name + ":" + plugin.listValues().size());
+                    }
+                }
+            }
+            try {
+                app.queryValue("Missing");
+            } catch (RegistryException e) {
+                results.add("error " + e.getErrorCode());
+            }
+        }
+        return results;
+    }
+
+    private static long timed(Workload workload) throws RegistryException {
+        long start = System.nanoTime();
+        workload.run();
+        return System.nanoTime() - start;
+    }
+
+    /** Workload run against registry */
+    private interface Workload {
+        void run() throws RegistryException;
+    }
+}
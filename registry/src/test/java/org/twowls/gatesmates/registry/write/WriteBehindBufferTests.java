@@ -0,0 +1,312 @@
+/*
+ * Copyright (c) 2016 Twowls.org.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.twowls.gatesmates.registry.write;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.twowls.gatesmates.registry.Registry;
+import org.twowls.gatesmates.registry.RegistryConst;
+import org.twowls.gatesmates.registry.RegistryException;
+import org.twowls.gatesmates.registry.SimulatedBackend;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * <p>Tests for {@link WriteBehindBuffer} and writing support of {@link Registry}.</p>
+ *
+ * @author bubo &lt;bubo@twowls.org&gt;
+ */
+public class WriteBehindBufferTests implements RegistryConst {
+
+    private static final String STATUS = "Software/Vendor/Agent/Status";
+
+    private CountingBackend backend;
+
+    @Before
+    public void setup() {
+        backend = new CountingBackend();
+        Registry.useBackend(backend);
+    }
+
+    @After
+    public void tearDown() {
+        Registry.useBackend(null);
+        assertEquals(0, backend.openHandleCount());
+    }
+
+    @Test
+    public void registryCreatesKeysAndSetsValues() throws Exception {
+        try (Registry.Key key = Registry.createKey(Registry.KEY_CURRENT_USER, STATUS)) {
+            key.setStringValue("State", "running");
+            key.setIntValue("Pid", 4242);
+        }
+        try (Registry.Key key = Registry.openKey(Registry.KEY_CURRENT_USER, STATUS)) {
+            assertEquals("running", key.queryStringValue("State"));
+            assertEquals(4242, key.queryIntValue("Pid"));
+            try (Registry.Key sub = key.createSubKey("Workers/1")) {
+                sub.setIntValue("Busy", 1);
+            }
+            assertEquals(1, key.listSubKeys().size());
+        }
+    }
+
+    @Test
+    public void updatesAreCoalescedAndGroupedPerKey() throws Exception {
+        try (WriteBehindBuffer buffer = new WriteBehindBuffer(Registry.KEY_CURRENT_USER)) {
+            for (int i = 0; i < 1000; i++) {
+                buffer.putInt(STATUS, "Counter", i);
+                buffer.putString(STATUS.toUpperCase(), "heartbeat", "t" + i);
+                buffer.putInt(STATUS + "/Workers", "Active", i % 7);
+            }
+            assertEquals(3, buffer.pendingCount());
+            buffer.flush();
+
+            assertEquals(0, buffer.pendingCount());
+            assertEquals(3000, buffer.getUpdateCount());
+            assertEquals(3, buffer.getWriteCount());
+            assertEquals(2, backend.creates.get());
+            assertEquals(3, backend.sets.get());
+        }
+
+        try (Registry.Key key = Registry.openKey(Registry.KEY_CURRENT_USER, STATUS)) {
+            assertEquals(999, key.queryIntValue("Counter"));
+            assertEquals("t999", key.queryStringValue("Heartbeat"));
+            assertEquals("Workers", key.listSubKeys().get(0));
+        }
+    }
+
+    @Test
+    public void fullBufferFlushesOnCallerWithoutBackgroundThread() throws Exception {
+        WriteBehindBuffer buffer = new WriteBehindBuffer(Registry.KEY_CURRENT_USER);
+        buffer.setCapacity(2);
+        buffer.putInt(STATUS, "A", 1);
+        buffer.putInt(STATUS, "B", 2);
+        assertEquals(0, backend.sets.get());
+        buffer.putInt(STATUS, "C", 3);
+        assertEquals(2, backend.sets.get());
+        assertEquals(1, buffer.pendingCount());
+
+        buffer.close();
+        assertEquals(3, backend.sets.get());
+        try {
+            buffer.putInt(STATUS, "D", 4);
+            fail("Update accepted after close");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void backgroundFlushesOnThresholdAndConcurrentUpdatesAreKept() throws Exception {
+        WriteBehindBuffer buffer = new WriteBehindBuffer(Registry.KEY_CURRENT_USER);
+        buffer.setCapacity(16);
+        buffer.setFlushThreshold(8);
+        buffer.setFlushInterval(Duration.ofMinutes(1));
+        buffer.start();
+
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 4; t++) {
+            int thread = t;
+            threads.add(new Thread(() -> {
+                try {
+                    for (int i = 0; i < 500; i++) {
+                        buffer.putInt(STATUS + "/Thread" + thread, "Value" + (i % 10), i);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertTrue(backend.sets.get() > 0);
+        buffer.close();
+
+        for (int t = 0; t < 4; t++) {
+            try (Registry.Key key = Registry.openKey(Registry.KEY_CURRENT_USER, STATUS + "/Thread" + t)) {
+                for (int v = 0; v < 10; v++) {
+                    assertEquals(490 + v, key.queryIntValue("Value" + v));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void updatesAcceptedWhileClosingAreWritten() throws Exception {
+        for (int round = 0; round < 20; round++) {
+            WriteBehindBuffer buffer = new WriteBehindBuffer(Registry.KEY_CURRENT_USER);
+            buffer.setCapacity(4);
+            buffer.setFlushThreshold(2);
+            buffer.start();
+
+            String path = STATUS + "/Round" + round;
+            int[] accepted = new int[4];
+            List<Thread> threads = new ArrayList<>();
+            for (int t = 0; t < accepted.length; t++) {
+                int thread = t;
+                accepted[thread] = -1;
+                threads.add(new Thread(() -> {
+                    try {
+                        for (int i = 0; ; i++) {
+                            buffer.putInt(path, "Thread" + thread + "/" + i, i);
+                            accepted[thread] = i;
+                        }
+                    } catch (IllegalStateException e) {
+                        // closed
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }));
+            }
+            int sets = backend.sets.get();
+            threads.forEach(Thread::start);
+            while (backend.sets.get() < sets + 20) {
+                Thread.yield();
+            }
+            buffer.close();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+
+            try (Registry.Key key = Registry.openKey(Registry.KEY_CURRENT_USER, path)) {
+                for (int t = 0; t < accepted.length; t++) {
+                    if (accepted[t] >= 0) {
+                        assertEquals(accepted[t], key.queryIntValue("Thread" + t + "/" + accepted[t]));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void failuresSurfaceOnFlush() throws Exception {
+        WriteBehindBuffer buffer = new WriteBehindBuffer(Registry.KEY_CURRENT_USER);
+        backend.failSets = true;
+        buffer.putInt(STATUS, "A", 1);
+        buffer.putInt(STATUS + "/Other", "B", 2);
+        try {
+            buffer.close();
+            fail("Failure not reported");
+        } catch (RegistryException e) {
+            assertEquals(ERROR_ACCESS_DENIED, e.getErrorCode());
+            assertEquals(1, e.getSuppressed().length);
+        }
+    }
+
+    @Test
+    public void failedUpdatesArePutBackUnlessReplaced() throws Exception {
+        WriteBehindBuffer buffer = new WriteBehindBuffer(Registry.KEY_CURRENT_USER);
+        buffer.setCapacity(2);
+        backend.failingValue = "A";
+        // updates coming while flushing take the room of the failed one
+        backend.duringSet = () -> {
+            putInt(buffer, STATUS, "C", 3);
+            putInt(buffer, STATUS, "D", 4);
+        };
+        buffer.putInt(STATUS, "A", 1);
+        buffer.putInt(STATUS, "B", 2);
+        try {
+            buffer.flush();
+            fail("Failure not reported");
+        } catch (RegistryException e) {
+            assertEquals(ERROR_ACCESS_DENIED, e.getErrorCode());
+        }
+        assertEquals(3, buffer.pendingCount());
+        assertEquals(1, buffer.getWriteCount());
+
+        backend.duringSet = null;
+        buffer.putInt(STATUS, "A", 10);
+        backend.failCreates = true;
+        try {
+            buffer.flush();
+            fail("Failure not reported");
+        } catch (RegistryException e) {
+            assertEquals(ERROR_ACCESS_DENIED, e.getErrorCode());
+        }
+        assertEquals(3, buffer.pendingCount());
+
+        backend.failingValue = null;
+        backend.failCreates = false;
+        buffer.flush();
+        assertEquals(0, buffer.pendingCount());
+        try (Registry.Key key = Registry.openKey(Registry.KEY_CURRENT_USER, STATUS)) {
+            assertEquals(10, key.queryIntValue("A"));
+            assertEquals(2, key.queryIntValue("B"));
+            assertEquals(3, key.queryIntValue("C"));
+            assertEquals(4, key.queryIntValue("D"));
+        }
+
+        // the overdrawn room is paid back, the third update has to flush
+        buffer.putInt(STATUS, "X", 1);
+        buffer.putInt(STATUS, "Y", 2);
+        assertEquals(2, buffer.pendingCount());
+        buffer.putInt(STATUS, "Z", 3);
+        assertEquals(1, buffer.pendingCount());
+        buffer.close();
+    }
+
+    private static void putInt(WriteBehindBuffer buffer, String keyPath, String valueName, int value) {
+        try {
+            buffer.putInt(keyPath, valueName, value);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /** Counts writing calls and optionally fails them */
+    private static final class CountingBackend extends SimulatedBackend {
+        final AtomicInteger creates = new AtomicInteger();
+        final AtomicInteger sets = new AtomicInteger();
+        volatile boolean failSets;
+        volatile boolean failCreates;
+        volatile String failingValue;
+        volatile Runnable duringSet;
+
+        @Override
+        public int RegCreateKeyExA(int handle, String path, int reserved, String className, int options,
+                                   int access, int[] securityAttributes, long[] result, int[] disposition) {
+            creates.incrementAndGet();
+            if (failCreates) {
+                return ERROR_ACCESS_DENIED;
+            }
+            return super.RegCreateKeyExA(handle, path, reserved, className, options, access,
+                    securityAttributes, result, disposition);
+        }
+
+        @Override
+        public int RegSetValueExA(int handle, String value, int reserved, int type, byte[] data, int size) {
+            sets.incrementAndGet();
+            Runnable action = duringSet;
+            if (action != null) {
+                action.run();
+            }
+            if (failSets || value.equals(failingValue)) {
+                return ERROR_ACCESS_DENIED;
+            }
+            return super.RegSetValueExA(handle, value, reserved, type, data, size);
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2016 Twowls.org.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.twowls.gatesmates.util;
+
+/**
+ * <p>Instance-level mirror of {@link Gates.AdvApi32} functions.</p>
+ *
+ * <p>Method names and signatures follow the native functions one to one, so that
+ * an implementation may either forward calls to the operating system or serve
+ * them from elsewhere (e.g. a simulated registry on a non-Windows machine).</p>
+ *
+ * @author bubo &lt;bubo@twowls.org&gt;
+ */
+public interface AdvApi32Backend {
+
+    /** Backend forwarding every call to {@link Gates.AdvApi32} */
+    AdvApi32Backend NATIVE = new AdvApi32Backend() {
+        @Override
+        public int RegOpenKeyExA(int handle, String path, int options, int access, long[] result) {
+            return Gates.AdvApi32.RegOpenKeyExA(handle, path, options, access, result);
+        }
+
+        @Override
+        public int RegQueryValueExA(int handle, String value, int[] ignore, int[] type, byte[] data, int[] size) {
+            return Gates.AdvApi32.RegQueryValueExA(handle, value, ignore, type, data, size);
+        }
+
+        @Override
+        public int RegEnumKeyExA(int handle, int index, byte[] name, int[] nameSize, int[] ignore,
+                                 byte[] className, int[] classNameSize, long[] lastWriteTime) {
+            return Gates.AdvApi32.RegEnumKeyExA(handle, index, name, nameSize, ignore,
+                    className, classNameSize, lastWriteTime);
+        }
+
+        @Override
+        public int RegEnumValueA(int handle, int index, byte[] name, int[] nameSize, int[] ignore,
+                                 int[] type, byte[] data, int[] size) {
+            return Gates.AdvApi32.RegEnumValueA(handle, index, name, nameSize, ignore, type, data, size);
+        }
+
+        @Override
+        public int RegQueryInfoKeyA(int handle, byte[] className, int[] classNameSize, int[] ignore,
+                                    int[] subKeys, int[] maxSubKeyLen, int[] maxClassLen,
+                                    int[] values, int[] maxValueNameLen, int[] maxValueLen,
+                                    int[] securityDescriptor, long[] lastWriteTime) {
+            return Gates.AdvApi32.RegQueryInfoKeyA(handle, className, classNameSize, ignore,
+                    subKeys, maxSubKeyLen, maxClassLen, values, maxValueNameLen, maxValueLen,
+                    securityDescriptor, lastWriteTime);
+        }
+
+        @Override
+        public int RegCreateKeyExA(int handle, String path, int reserved, String className, int options,
+                                   int access, int[] securityAttributes, long[] result, int[] disposition) {
+            return Gates.AdvApi32.RegCreateKeyExA(handle, path, reserved, className, options, access,
+                    securityAttributes, result, disposition);
+        }
+
+        @Override
+        public int RegSetValueExA(int handle, String value, int reserved, int type, byte[] data, int size) {
+            return Gates.AdvApi32.RegSetValueExA(handle, value, reserved, type, data, size);
+        }
+
+        @Override
+        public int RegDeleteKeyA(int handle, String path) {
+            return Gates.AdvApi32.RegDeleteKeyA(handle, path);
+        }
+
+        @Override
+        public int RegDeleteValueA(int handle, String value) {
+            return Gates.AdvApi32.RegDeleteValueA(handle, value);
+        }
+
+        @Override
+        public int RegNotifyChangeKeyValue(int handle, boolean watchSubtree, int notifyFilter,
+                                           int event, boolean asynchronous) {
+            return Gates.AdvApi32.RegNotifyChangeKeyValue(handle, watchSubtree, notifyFilter, event, asynchronous);
+        }
+
+        @Override
+        public int RegCloseKey(int handle) {
+            return Gates.AdvApi32.RegCloseKey(handle);
+        }
+
+        @Override
+        public String toString() {
+            return "AdvApi32Backend.NATIVE";
+        }
+    };
+
+    int RegOpenKeyExA(int handle, String path, int options, int access, long[] result);
+
+    int RegQueryValueExA(int handle, String value, int[] ignore, int[] type, byte[] data, int[] size);
+
+    int RegEnumKeyExA(int handle, int index, byte[] name, int[] nameSize, int[] ignore,
+                      byte[] className, int[] classNameSize, long[] lastWriteTime);
+
+    int RegEnumValueA(int handle, int index, byte[] name, int[] nameSize, int[] ignore,
+                      int[] type, byte[] data, int[] size);
+
+    int RegQueryInfoKeyA(int handle, byte[] className, int[] classNameSize, int[] ignore,
+                         int[] subKeys, int[] maxSubKeyLen, int[] maxClassLen,
+                         int[] values, int[] maxValueNameLen, int[] maxValueLen,
+                         int[] securityDescriptor, long[] lastWriteTime);
+
+    int RegCreateKeyExA(int handle, String path, int reserved, String className, int options,
+                        int access, int[] securityAttributes, long[] result, int[] disposition);
+
+    int RegSetValueExA(int handle, String value, int reserved, int type, byte[] data, int size);
+
+    int RegDeleteKeyA(int handle, String path);
+
+    int RegDeleteValueA(int handle, String value);
+
+    int RegNotifyChangeKeyValue(int handle, boolean watchSubtree, int notifyFilter, int event, boolean asynchronous);
+
+    int RegCloseKey(int handle);
+}
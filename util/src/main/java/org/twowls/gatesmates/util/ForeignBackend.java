@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2016 Twowls.org.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.twowls.gatesmates.util;
+
+/**
+ * <p>Factory of backends calling native functions through the Foreign Function
+ * and Memory API instead of JNA.</p>
+ *
+ * <p>The API is final as of Java 22. This class is part of a multi-release jar: the
+ * version compiled for older Java, this one, supports nothing, while the version
+ * under {@code META-INF/versions/22} does the actual work.</p>
+ *
+ * @author bubo &lt;bubo@twowls.org&gt;
+ * @see Gates#systemBackend()
+ */
+public final class ForeignBackend {
+
+    /**
+     * @return {@code true} if the running Java supports foreign function calls
+     */
+    public static boolean isSupported() {
+        return false;
+    }
+
+    /**
+     * <p>Creates a backend calling the functions of the given library.</p>
+     * @param library library name (e.g. {@code Advapi32}) or path
+     * @return backend calling the library
+     * @throws UnsupportedOperationException if foreign function calls are not supported
+     */
+    public static AdvApi32Backend forLibrary(String library) {
+        throw new UnsupportedOperationException("Foreign function calls require Java 22 or later");
+    }
+
+    /* Prohibits instantiation */
+    private ForeignBackend() {}
+}
@@ -19,6 +19,7 @@ package org.twowls.gatesmates.util;
 
 import com.sun.jna.Native;
 import com.sun.jna.Platform;
+import com.sun.jna.Pointer;
 
 /**
  * <p>System APIs</p>
@@ -27,22 +28,93 @@ import com.sun.jna.Platform;
  */
 public class Gates {
 
+    /**
+     * System property naming the library (or giving the path to a library) serving
+     * {@link AdvApi32} functions in place of the system one, e.g. a test double
+     */
+    public static final String ADVAPI32_LIBRARY_PROPERTY = "org.twowls.gatesmates.advapi32";
+    /** System property disabling foreign function calls in favor of JNA when {@code true} */
+    public static final String USE_JNA_PROPERTY = "org.twowls.gatesmates.useJna";
+
     public static boolean isAvailable() {
         return Platform.isWindows();
     }
 
+    /**
+     * <p>Chooses the backend for system calls: {@link ForeignBackend} where supported
+     * by the running Java, {@link AdvApi32Backend#NATIVE} (JNA) otherwise or if
+     * {@value #USE_JNA_PROPERTY} is set.</p>
+     * @return the backend to call {@code AdvApi32} functions with
+     */
+    public static AdvApi32Backend systemBackend() {
+        if (isAvailable() && ForeignBackend.isSupported() && !Boolean.getBoolean(USE_JNA_PROPERTY)) {
+            try {
+                return ForeignBackend.forLibrary(System.getProperty(ADVAPI32_LIBRARY_PROPERTY, "Advapi32"));
+            } catch (RuntimeException e) {
+                // e.g. native access disabled, JNA still works
+            }
+        }
+        return AdvApi32Backend.NATIVE;
+    }
+
     public static class AdvApi32 {
 
-        public static native int RegOpenKeyExA(int handle, String path, int options, int access, int[] result);
+        public static native int RegOpenKeyExA(int handle, String path, int options, int access, long[] result);
 
         public static native int RegQueryValueExA(int handle, String value, int[] ignore, int[] type, byte[] data, int[] size);
 
+        public static native int RegEnumKeyExA(int handle, int index, byte[] name, int[] nameSize, int[] ignore,
+                                               byte[] className, int[] classNameSize, long[] lastWriteTime);
+
+        public static native int RegEnumValueA(int handle, int index, byte[] name, int[] nameSize, int[] ignore,
+                                               int[] type, byte[] data, int[] size);
+
+        public static native int RegQueryInfoKeyA(int handle, byte[] className, int[] classNameSize, int[] ignore,
+                                                  int[] subKeys, int[] maxSubKeyLen, int[] maxClassLen,
+                                                  int[] values, int[] maxValueNameLen, int[] maxValueLen,
+                                                  int[] securityDescriptor, long[] lastWriteTime);
+
+        public static native int RegCreateKeyExA(int handle, String path, int reserved, String className,
+                                                 int options, int access, int[] securityAttributes,
+                                                 long[] result, int[] disposition);
+
+        public static native int RegSetValueExA(int handle, String value, int reserved, int type,
+                                                byte[] data, int size);
+
+        public static native int RegDeleteKeyA(int handle, String path);
+
+        public static native int RegDeleteValueA(int handle, String value);
+
+        public static native int RegNotifyChangeKeyValue(int handle, boolean watchSubtree, int notifyFilter,
+                                                         int event, boolean asynchronous);
+
         public static native int RegCloseKey(int handle);
 
         static {
-            if (isAvailable()) {
+            String library = System.getProperty(ADVAPI32_LIBRARY_PROPERTY);
+            if (library != null) {
+                Native.register(AdvApi32.class, library);
+            } else if (isAvailable()) {
                 Native.register(AdvApi32.class.getSimpleName());
             }
         }
     }
+
+    public static class Kernel32 {
+
+        public static native int CreateEventA(int[] securityAttributes, boolean manualReset,
+                                              boolean initialState, String name);
+
+        public static native int SetEvent(int handle);
+
+        public static native int WaitForMultipleObjects(int count, Pointer handles, boolean waitAll, int milliseconds);
+
+        public static native int CloseHandle(int handle);
+
+        static {
+            if (isAvailable()) {
+                Native.register(Kernel32.class.getSimpleName());
+            }
+        }
+    }
 }
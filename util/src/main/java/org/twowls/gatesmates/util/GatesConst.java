@@ -30,7 +30,20 @@ public interface GatesConst {
 
     int ERROR_SUCCESS = 0;
     int ERROR_NOT_FOUND = 2;
+    int ERROR_ACCESS_DENIED = 5;
     int ERROR_INVALID_HANDLE = 6;
+    int ERROR_INVALID_PARAMETER = 87;
     int ERROR_MORE_DATA = 234;
+    int ERROR_NO_MORE_ITEMS = 259;
+    int ERROR_KEY_DELETED = 1018;
+
+    //
+    // Waiting for objects
+    //
+
+    int INFINITE = 0xFFFFFFFF;
+    int WAIT_OBJECT_0 = 0;
+    int WAIT_TIMEOUT = 0x102;
+    int WAIT_FAILED = 0xFFFFFFFF;
 
 }
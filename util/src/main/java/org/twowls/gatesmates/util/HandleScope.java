@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2016 Twowls.org.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.twowls.gatesmates.util;
+
+import java.lang.ref.Cleaner;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Arena owning handles opened within it, so that they are all released by a
+ * single {@link #close()} instead of one try-with-resources statement each.</p>
+ *
+ * <p>Handles are closed in reverse order of {@link #add(Handle) addition}, so that
+ * a handle is closed before the ones it was opened from. Closing continues past
+ * failures; the first failure is thrown with the later ones attached as suppressed
+ * exceptions.</p>
+ *
+ * <p>A scope that becomes unreachable without being closed is cleaned up by a
+ * {@link Cleaner}: its handles are closed quietly and counted as
+ * {@link #leakedHandleCount() leaked}. Numbers of handles currently owned by open
+ * scopes are reported per scope and in total.</p>
+ *
+ * <p>Instances are thread safe.</p>
+ *
+ * @author bubo &lt;bubo@twowls.org&gt;
+ */
+public final class HandleScope implements AutoCloseable {
+
+    private static final Cleaner CLEANER = Cleaner.create();
+    private static final AtomicLong LIVE_HANDLES = new AtomicLong();
+    private static final AtomicLong LEAKED_HANDLES = new AtomicLong();
+
+    private final Handles handles = new Handles();
+    private final Cleaner.Cleanable cleanable;
+
+    /** Creates a new empty scope */
+    public HandleScope() {
+        this.cleanable = CLEANER.register(this, handles);
+    }
+
+    /**
+     * <p>Makes this scope the owner of the given handle.</p>
+     * @param handle a handle to close when this scope closes
+     * @param <H> type of the handle
+     * @return the same handle, for chaining with the call opening it
+     * @throws IllegalStateException if this scope is already closed
+     */
+    public <H extends Handle> H add(H handle) {
+        Objects.requireNonNull(handle, "Handle must not be null");
+        synchronized (handles) {
+            if (handles.closed) {
+                throw new IllegalStateException("Handle scope is closed");
+            }
+            handles.list.add(handle);
+        }
+        LIVE_HANDLES.incrementAndGet();
+        return handle;
+    }
+
+    /**
+     * <p>Gives up ownership of a handle without closing it, e.g. to close it early
+     * or to hand it over to a longer living owner.</p>
+     * @param handle a handle previously added to this scope
+     * @return {@code true} if the handle was owned by this scope
+     */
+    public boolean release(Handle handle) {
+        synchronized (handles) {
+            // recently added handles are the likeliest to be released
+            for (int i = handles.list.size() - 1; i >= 0; i--) {
+                if (handles.list.get(i) == handle) {
+                    handles.list.remove(i);
+                    LIVE_HANDLES.decrementAndGet();
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return number of handles owned by this scope
+     */
+    public int size() {
+        synchronized (handles) {
+            return handles.list.size();
+        }
+    }
+
+    /**
+     * @return {@code true} if this scope is closed
+     */
+    public boolean isClosed() {
+        synchronized (handles) {
+            return handles.closed;
+        }
+    }
+
+    /**
+     * <p>Closes all owned handles in reverse order of addition. Closing an already
+     * closed scope has no effect.</p>
+     * @throws Exception the first failure to close a handle, later ones suppressed
+     */
+    @Override
+    public void close() throws Exception {
+        Exception first = handles.closeAll();
+        cleanable.clean();
+        if (first != null) {
+            throw first;
+        }
+    }
+
+    /**
+     * @return number of handles owned by all open scopes
+     */
+    public static long liveHandleCount() {
+        return LIVE_HANDLES.get();
+    }
+
+    /**
+     * @return number of handles closed by the cleaner because their scope was never closed
+     */
+    public static long leakedHandleCount() {
+        return LEAKED_HANDLES.get();
+    }
+
+    /** State of a scope, must not refer to the scope itself to let it become unreachable */
+    private static final class Handles implements Runnable {
+        final List<Handle> list = new ArrayList<>();
+        boolean closed;
+
+        Exception closeAll() {
+            List<Handle> owned;
+            synchronized (this) {
+                if (closed) {
+                    return null;
+                }
+                closed = true;
+                owned = new ArrayList<>(list);
+                list.clear();
+            }
+
+            Exception first = null;
+            for (int i = owned.size() - 1; i >= 0; i--) {
+                try {
+                    owned.get(i).close();
+                } catch (Exception e) {
+                    if (first == null) {
+                        first = e;
+                    } else {
+                        first.addSuppressed(e);
+                    }
+                } finally {
+                    LIVE_HANDLES.decrementAndGet();
+                }
+            }
+            return first;
+        }
+
+        /** Called by the cleaner, either from {@link HandleScope#close()} or after the scope was collected */
+        @Override
+        public void run() {
+            int leaked;
+            synchronized (this) {
+                leaked = (closed ? 0 : list.size());
+            }
+            if (leaked > 0) {
+                LEAKED_HANDLES.addAndGet(leaked);
+                // nobody is there to report failures to
+                closeAll();
+            }
+        }
+    }
+}
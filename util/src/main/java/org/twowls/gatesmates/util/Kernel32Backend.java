@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2016 Twowls.org.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package org.twowls.gatesmates.util;
+
+import com.sun.jna.Memory;
+import com.sun.jna.Native;
+
+/**
+ * <p>Instance-level mirror of the {@link Gates.Kernel32} functions dealing with
+ * event objects, which asynchronous registry change notifications signal.</p>
+ *
+ * <p>An {@link AdvApi32Backend} implementing this interface as well serves events
+ * for the keys it serves, e.g. a simulated registry; otherwise events are real
+ * ones served by {@link #NATIVE}. Unlike their native counterparts the methods
+ * take handles of waited objects as {@code int} values, like key handles.</p>
+ *
+ * @author bubo &lt;bubo@twowls.org&gt;
+ */
+public interface Kernel32Backend {
+
+    /** Backend forwarding every call to {@link Gates.Kernel32} */
+    Kernel32Backend NATIVE = new Kernel32Backend() {
+        @Override
+        public int CreateEventA(int[] securityAttributes, boolean manualReset, boolean initialState, String name) {
+            return Gates.Kernel32.CreateEventA(securityAttributes, manualReset, initialState, name);
+        }
+
+        @Override
+        public int SetEvent(int handle) {
+            return Gates.Kernel32.SetEvent(handle);
+        }
+
+        @Override
+        public int WaitForMultipleObjects(int count, int[] handles, boolean waitAll, int milliseconds) {
+            // an array of pointer sized HANDLEs, widened with sign like predefined keys
+            Memory array = new Memory((long) Native.POINTER_SIZE * Math.max(count, 1));
+            for (int i = 0; i < count; i++) {
+                if (Native.POINTER_SIZE == 8) {
+                    array.setLong(8L * i, handles[i]);
+                } else {
+                    array.setInt(4L * i, handles[i]);
+                }
+            }
+            return Gates.Kernel32.WaitForMultipleObjects(count, array, waitAll, milliseconds);
+        }
+
+        @Override
+        public int CloseHandle(int handle) {
+            return Gates.Kernel32.CloseHandle(handle);
+        }
+
+        @Override
+        public int GetLastError() {
+            return Native.getLastError();
+        }
+
+        @Override
+        public String toString() {
+            return "Kernel32Backend.NATIVE";
+        }
+    };
+
+    int CreateEventA(int[] securityAttributes, boolean manualReset, boolean initialState, String name);
+
+    int SetEvent(int handle);
+
+    int WaitForMultipleObjects(int count, int[] handles, boolean waitAll, int milliseconds);
+
+    int CloseHandle(int handle);
+
+    /**
+     * @return error code of the last failed call made by the current thread
+     */
+    int GetLastError();
+}
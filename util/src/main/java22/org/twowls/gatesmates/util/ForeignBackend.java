@@ -0,0 +1,440 @@
+/*
+ * Copyright (c) 2016 Twowls.org.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.twowls.gatesmates.util;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.FunctionDescriptor;
+import java.lang.foreign.Linker;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.SegmentAllocator;
+import java.lang.foreign.SymbolLookup;
+import java.lang.invoke.MethodHandle;
+import java.nio.charset.Charset;
+import java.nio.file.Path;
+
+import static java.lang.foreign.ValueLayout.*;
+
+/**
+ * <p>Factory of backends calling native functions through the Foreign Function
+ * and Memory API instead of JNA.</p>
+ *
+ * <p>Method handles of all functions are bound once per library. Every call
+ * slices its native arguments from a scratch segment owned by the calling thread,
+ * so that no native memory is allocated per call. Arrays read by the function are
+ * copied in before the call; output buffers are not, and only the part the call
+ * reports filled is copied back after it. Arguments not fitting the scratch segment
+ * go to a confined arena closed on return, and the segment grows for the next call.
+ * Handles are passed as pointers, sign extended like the predefined {@code HKEY}
+ * constants are.</p>
+ *
+ * <p>Strings are passed in the native encoding, as the {@code A} functions expect.
+ * Calling native functions may need {@code --enable-native-access}.</p>
+ *
+ * @author bubo &lt;bubo@twowls.org&gt;
+ * @see Gates#systemBackend()
+ */
+public final class ForeignBackend {
+
+    /**
+     * @return {@code true} if the running Java supports foreign function calls
+     */
+    public static boolean isSupported() {
+        return true;
+    }
+
+    /**
+     * <p>Creates a backend calling the functions of the given library.</p>
+     * @param library library name (e.g. {@code Advapi32}) or path
+     * @return backend calling the library
+     * @throws IllegalArgumentException if the library or one of its functions cannot be found
+     */
+    public static AdvApi32Backend forLibrary(String library) {
+        boolean isPath = library.indexOf('/') >= 0 || library.indexOf('\\') >= 0;
+        SymbolLookup lookup = (isPath ? SymbolLookup.libraryLookup(Path.of(library), Arena.global())
+                : SymbolLookup.libraryLookup(library, Arena.global()));
+        return new Bound(library, lookup);
+    }
+
+    /* Prohibits instantiation */
+    private ForeignBackend() {}
+
+    /** Backend with function handles bound to a library */
+    private static final class Bound implements AdvApi32Backend, GatesConst {
+        private final String library;
+        private final Charset charset = Charset.forName(System.getProperty("native.encoding"), Charset.defaultCharset());
+
+        private final MethodHandle regOpenKeyEx;
+        private final MethodHandle regQueryValueEx;
+        private final MethodHandle regEnumKeyEx;
+        private final MethodHandle regEnumValue;
+        private final MethodHandle regQueryInfoKey;
+        private final MethodHandle regCreateKeyEx;
+        private final MethodHandle regSetValueEx;
+        private final MethodHandle regDeleteKey;
+        private final MethodHandle regDeleteValue;
+        private final MethodHandle regNotifyChangeKeyValue;
+        private final MethodHandle regCloseKey;
+
+        Bound(String library, SymbolLookup lookup) {
+            this.library = library;
+            Linker linker = Linker.nativeLinker();
+            regOpenKeyEx = bind(linker, lookup, "RegOpenKeyExA", FunctionDescriptor.of(JAVA_INT,
+                    ADDRESS, ADDRESS, JAVA_INT, JAVA_INT, ADDRESS));
+            regQueryValueEx = bind(linker, lookup, "RegQueryValueExA", FunctionDescriptor.of(JAVA_INT,
+                    ADDRESS, ADDRESS, ADDRESS, ADDRESS, ADDRESS, ADDRESS));
+            regEnumKeyEx = bind(linker, lookup, "RegEnumKeyExA", FunctionDescriptor.of(JAVA_INT,
+                    ADDRESS, JAVA_INT, ADDRESS, ADDRESS, ADDRESS, ADDRESS, ADDRESS, ADDRESS));
+            regEnumValue = bind(linker, lookup, "RegEnumValueA", FunctionDescriptor.of(JAVA_INT,
+                    ADDRESS, JAVA_INT, ADDRESS, ADDRESS, ADDRESS, ADDRESS, ADDRESS, ADDRESS));
+            regQueryInfoKey = bind(linker, lookup, "RegQueryInfoKeyA", FunctionDescriptor.of(JAVA_INT,
+                    ADDRESS, ADDRESS, ADDRESS, ADDRESS, ADDRESS, ADDRESS, ADDRESS, ADDRESS, ADDRESS, ADDRESS,
+                    ADDRESS, ADDRESS));
+            regCreateKeyEx = bind(linker, lookup, "RegCreateKeyExA", FunctionDescriptor.of(JAVA_INT,
+                    ADDRESS, ADDRESS, JAVA_INT, ADDRESS, JAVA_INT, JAVA_INT, ADDRESS, ADDRESS, ADDRESS));
+            regSetValueEx = bind(linker, lookup, "RegSetValueExA", FunctionDescriptor.of(JAVA_INT,
+                    ADDRESS, ADDRESS, JAVA_INT, JAVA_INT, ADDRESS, JAVA_INT));
+            regDeleteKey = bind(linker, lookup, "RegDeleteKeyA", FunctionDescriptor.of(JAVA_INT,
+                    ADDRESS, ADDRESS));
+            regDeleteValue = bind(linker, lookup, "RegDeleteValueA", FunctionDescriptor.of(JAVA_INT,
+                    ADDRESS, ADDRESS));
+            regNotifyChangeKeyValue = bind(linker, lookup, "RegNotifyChangeKeyValue", FunctionDescriptor.of(JAVA_INT,
+                    ADDRESS, JAVA_INT, JAVA_INT, ADDRESS, JAVA_INT));
+            regCloseKey = bind(linker, lookup, "RegCloseKey", FunctionDescriptor.of(JAVA_INT,
+                    ADDRESS));
+        }
+
+        @Override
+        public int RegOpenKeyExA(int handle, String path, int options, int access, long[] result) {
+            try (Scratch scratch = Scratch.open()) {
+                MemorySegment resultSegment = scratch.allocate(ADDRESS);
+                int err = (int) regOpenKeyEx.invokeExact(hkey(handle), string(scratch, path), options, access,
+                        resultSegment);
+                if (err == ERROR_SUCCESS) {
+                    result[0] = resultSegment.get(ADDRESS, 0).address();
+                }
+                return err;
+            } catch (Throwable e) {
+                throw rethrow(e);
+            }
+        }
+
+        @Override
+        public int RegQueryValueExA(int handle, String value, int[] ignore, int[] type, byte[] data, int[] size) {
+            try (Scratch scratch = Scratch.open()) {
+                MemorySegment typeSegment = ints(scratch, type), dataSegment = output(scratch, data),
+                        sizeSegment = ints(scratch, size);
+                int err = (int) regQueryValueEx.invokeExact(hkey(handle), string(scratch, value), ints(scratch, ignore),
+                        typeSegment, dataSegment, sizeSegment);
+                copyBack(typeSegment, type);
+                copyBack(sizeSegment, size);
+                if (err == ERROR_SUCCESS) {
+                    copyBack(dataSegment, data, length(size, 0));
+                }
+                return err;
+            } catch (Throwable e) {
+                throw rethrow(e);
+            }
+        }
+
+        @Override
+        public int RegEnumKeyExA(int handle, int index, byte[] name, int[] nameSize, int[] ignore,
+                                 byte[] className, int[] classNameSize, long[] lastWriteTime) {
+            try (Scratch scratch = Scratch.open()) {
+                MemorySegment nameSegment = output(scratch, name), nameSizeSegment = ints(scratch, nameSize),
+                        classNameSegment = output(scratch, className), classNameSizeSegment = ints(scratch, classNameSize),
+                        lastWriteTimeSegment = longs(scratch, lastWriteTime);
+                int err = (int) regEnumKeyEx.invokeExact(hkey(handle), index, nameSegment, nameSizeSegment,
+                        ints(scratch, ignore), classNameSegment, classNameSizeSegment, lastWriteTimeSegment);
+                copyBack(nameSizeSegment, nameSize);
+                copyBack(classNameSizeSegment, classNameSize);
+                copyBack(lastWriteTimeSegment, lastWriteTime);
+                if (err == ERROR_SUCCESS) {
+                    copyBack(nameSegment, name, length(nameSize, 1));
+                    copyBack(classNameSegment, className, length(classNameSize, 1));
+                }
+                return err;
+            } catch (Throwable e) {
+                throw rethrow(e);
+            }
+        }
+
+        @Override
+        public int RegEnumValueA(int handle, int index, byte[] name, int[] nameSize, int[] ignore,
+                                 int[] type, byte[] data, int[] size) {
+            try (Scratch scratch = Scratch.open()) {
+                MemorySegment nameSegment = output(scratch, name), nameSizeSegment = ints(scratch, nameSize),
+                        typeSegment = ints(scratch, type), dataSegment = output(scratch, data),
+                        sizeSegment = ints(scratch, size);
+                int err = (int) regEnumValue.invokeExact(hkey(handle), index, nameSegment, nameSizeSegment,
+                        ints(scratch, ignore), typeSegment, dataSegment, sizeSegment);
+                copyBack(nameSizeSegment, nameSize);
+                copyBack(typeSegment, type);
+                copyBack(sizeSegment, size);
+                if (err == ERROR_SUCCESS) {
+                    copyBack(nameSegment, name, length(nameSize, 1));
+                    copyBack(dataSegment, data, length(size, 0));
+                }
+                return err;
+            } catch (Throwable e) {
+                throw rethrow(e);
+            }
+        }
+
+        @Override
+        public int RegQueryInfoKeyA(int handle, byte[] className, int[] classNameSize, int[] ignore,
+                                    int[] subKeys, int[] maxSubKeyLen, int[] maxClassLen,
+                                    int[] values, int[] maxValueNameLen, int[] maxValueLen,
+                                    int[] securityDescriptor, long[] lastWriteTime) {
+            try (Scratch scratch = Scratch.open()) {
+                MemorySegment classNameSegment = output(scratch, className),
+                        classNameSizeSegment = ints(scratch, classNameSize), subKeysSegment = ints(scratch, subKeys),
+                        maxSubKeyLenSegment = ints(scratch, maxSubKeyLen), maxClassLenSegment = ints(scratch, maxClassLen),
+                        valuesSegment = ints(scratch, values), maxValueNameLenSegment = ints(scratch, maxValueNameLen),
+                        maxValueLenSegment = ints(scratch, maxValueLen),
+                        securityDescriptorSegment = ints(scratch, securityDescriptor),
+                        lastWriteTimeSegment = longs(scratch, lastWriteTime);
+                int err = (int) regQueryInfoKey.invokeExact(hkey(handle), classNameSegment, classNameSizeSegment,
+                        ints(scratch, ignore), subKeysSegment, maxSubKeyLenSegment, maxClassLenSegment,
+                        valuesSegment, maxValueNameLenSegment, maxValueLenSegment, securityDescriptorSegment,
+                        lastWriteTimeSegment);
+                copyBack(classNameSizeSegment, classNameSize);
+                copyBack(subKeysSegment, subKeys);
+                copyBack(maxSubKeyLenSegment, maxSubKeyLen);
+                copyBack(maxClassLenSegment, maxClassLen);
+                copyBack(valuesSegment, values);
+                copyBack(maxValueNameLenSegment, maxValueNameLen);
+                copyBack(maxValueLenSegment, maxValueLen);
+                copyBack(securityDescriptorSegment, securityDescriptor);
+                copyBack(lastWriteTimeSegment, lastWriteTime);
+                if (err == ERROR_SUCCESS) {
+                    copyBack(classNameSegment, className, length(classNameSize, 1));
+                }
+                return err;
+            } catch (Throwable e) {
+                throw rethrow(e);
+            }
+        }
+
+        @Override
+        public int RegCreateKeyExA(int handle, String path, int reserved, String className, int options,
+                                   int access, int[] securityAttributes, long[] result, int[] disposition) {
+            try (Scratch scratch = Scratch.open()) {
+                MemorySegment resultSegment = scratch.allocate(ADDRESS), dispositionSegment = ints(scratch, disposition);
+                int err = (int) regCreateKeyEx.invokeExact(hkey(handle), string(scratch, path), reserved,
+                        string(scratch, className), options, access, ints(scratch, securityAttributes),
+                        resultSegment, dispositionSegment);
+                if (err == ERROR_SUCCESS) {
+                    result[0] = resultSegment.get(ADDRESS, 0).address();
+                }
+                copyBack(dispositionSegment, disposition);
+                return err;
+            } catch (Throwable e) {
+                throw rethrow(e);
+            }
+        }
+
+        @Override
+        public int RegSetValueExA(int handle, String value, int reserved, int type, byte[] data, int size) {
+            try (Scratch scratch = Scratch.open()) {
+                MemorySegment dataSegment = input(scratch, data, size);
+                return (int) regSetValueEx.invokeExact(hkey(handle), string(scratch, value), reserved, type,
+                        dataSegment, size);
+            } catch (Throwable e) {
+                throw rethrow(e);
+            }
+        }
+
+        @Override
+        public int RegDeleteKeyA(int handle, String path) {
+            try (Scratch scratch = Scratch.open()) {
+                return (int) regDeleteKey.invokeExact(hkey(handle), string(scratch, path));
+            } catch (Throwable e) {
+                throw rethrow(e);
+            }
+        }
+
+        @Override
+        public int RegDeleteValueA(int handle, String value) {
+            try (Scratch scratch = Scratch.open()) {
+                return (int) regDeleteValue.invokeExact(hkey(handle), string(scratch, value));
+            } catch (Throwable e) {
+                throw rethrow(e);
+            }
+        }
+
+        @Override
+        public int RegNotifyChangeKeyValue(int handle, boolean watchSubtree, int notifyFilter,
+                                           int event, boolean asynchronous) {
+            try {
+                return (int) regNotifyChangeKeyValue.invokeExact(hkey(handle), (watchSubtree ? 1 : 0),
+                        notifyFilter, MemorySegment.ofAddress(event), (asynchronous ? 1 : 0));
+            } catch (Throwable e) {
+                throw rethrow(e);
+            }
+        }
+
+        @Override
+        public int RegCloseKey(int handle) {
+            try {
+                return (int) regCloseKey.invokeExact(hkey(handle));
+            } catch (Throwable e) {
+                throw rethrow(e);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "ForeignBackend{" + library + "}";
+        }
+
+        private MemorySegment string(SegmentAllocator allocator, String s) {
+            return (s == null ? MemorySegment.NULL : allocator.allocateFrom(s, charset));
+        }
+
+        private static MethodHandle bind(Linker linker, SymbolLookup lookup, String name,
+                                         FunctionDescriptor descriptor) {
+            MemorySegment address = lookup.find(name).orElseThrow(() ->
+                    new IllegalArgumentException("Function " + name + " not found"));
+            return linker.downcallHandle(address, descriptor);
+        }
+
+        private static MemorySegment hkey(int handle) {
+            // widened with sign, so that predefined keys come out as on 64-bit Windows
+            return MemorySegment.ofAddress(handle);
+        }
+
+        private static MemorySegment ints(SegmentAllocator allocator, int[] array) {
+            return (array == null ? MemorySegment.NULL : allocator.allocateFrom(JAVA_INT, array));
+        }
+
+        private static MemorySegment longs(SegmentAllocator allocator, long[] array) {
+            return (array == null ? MemorySegment.NULL : allocator.allocateFrom(JAVA_LONG, array));
+        }
+
+        /** Buffer filled by the call, not copied in: only the part reported filled is copied back */
+        private static MemorySegment output(SegmentAllocator allocator, byte[] array) {
+            return (array == null ? MemorySegment.NULL : allocator.allocate(array.length));
+        }
+
+        /** Buffer read by the call, only its first {@code length} bytes copied in */
+        private static MemorySegment input(SegmentAllocator allocator, byte[] array, int length) {
+            if (array == null) {
+                return MemorySegment.NULL;
+            }
+            int count = Math.max(0, Math.min(length, array.length));
+            MemorySegment segment = allocator.allocate(count);
+            MemorySegment.copy(array, 0, segment, JAVA_BYTE, 0, count);
+            return segment;
+        }
+
+        /**
+         * @param size size reported by the call, or {@code null}
+         * @param terminator {@code 1} if the reported size leaves out a terminating null character
+         * @return number of bytes the call filled
+         */
+        private static int length(int[] size, int terminator) {
+            return (size == null ? 0 : size[0] + terminator);
+        }
+
+        private static void copyBack(MemorySegment segment, int[] array) {
+            if (array != null) {
+                MemorySegment.copy(segment, JAVA_INT, 0, array, 0, array.length);
+            }
+        }
+
+        private static void copyBack(MemorySegment segment, long[] array) {
+            if (array != null) {
+                MemorySegment.copy(segment, JAVA_LONG, 0, array, 0, array.length);
+            }
+        }
+
+        private static void copyBack(MemorySegment segment, byte[] array, int length) {
+            int count = (array == null ? 0 : Math.min(length, array.length));
+            if (count > 0) {
+                MemorySegment.copy(segment, JAVA_BYTE, 0, array, 0, count);
+            }
+        }
+
+        private static RuntimeException rethrow(Throwable e) {
+            if (e instanceof RuntimeException) {
+                throw (RuntimeException) e;
+            } else if (e instanceof Error) {
+                throw (Error) e;
+            }
+            return new IllegalStateException("Native call failed", e);
+        }
+    }
+
+    /** Per thread memory for call arguments */
+    private static final class Scratch implements SegmentAllocator, AutoCloseable {
+        private static final long INITIAL_SIZE = 1024;
+        private static final long MAX_SIZE = 1024 * 1024;
+        private static final ThreadLocal<Scratch> CURRENT = ThreadLocal.withInitial(() -> new Scratch(INITIAL_SIZE));
+
+        private MemorySegment segment;
+        private long offset;
+        private long wanted;
+        private Arena overflow;
+        private boolean inUse;
+
+        private Scratch(long size) {
+            // freed once the owning thread is gone
+            segment = (size == 0 ? MemorySegment.NULL : Arena.ofAuto().allocate(size, Long.BYTES));
+        }
+
+        /**
+         * @return scratch memory of the calling thread, to be closed after the call
+         */
+        static Scratch open() {
+            Scratch scratch = CURRENT.get();
+            if (scratch.inUse) {
+                // nested use, possible only from an upcall, gets memory of its own
+                scratch = new Scratch(0);
+            }
+            scratch.inUse = true;
+            return scratch;
+        }
+
+        @Override
+        public MemorySegment allocate(long byteSize, long byteAlignment) {
+            long start = (offset + byteAlignment - 1) & -byteAlignment;
+            if (start + byteSize <= segment.byteSize()) {
+                offset = start + byteSize;
+                return segment.asSlice(start, byteSize);
+            }
+            wanted = Math.max(wanted, start + byteSize);
+            if (overflow == null) {
+                overflow = Arena.ofConfined();
+            }
+            return overflow.allocate(byteSize, byteAlignment);
+        }
+
+        @Override
+        public void close() {
+            if (overflow != null) {
+                overflow.close();
+                overflow = null;
+            }
+            if (wanted > segment.byteSize() && wanted <= MAX_SIZE && segment.byteSize() > 0) {
+                segment = Arena.ofAuto().allocate(Long.highestOneBit(wanted - 1) << 1, Long.BYTES);
+            }
+            offset = wanted = 0;
+            inUse = false;
+        }
+    }
+}
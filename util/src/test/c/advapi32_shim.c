@@ -0,0 +1,479 @@
+/*
+ * Copyright (c) 2016 Twowls.org.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/*
+ * In-memory stand-in for the registry functions of Advapi32, with the same
+ * signatures, so that native backends can be exercised on other systems.
+ *
+ * Build with: gcc -shared -fPIC -O2 -o libadvapi32shim.so advapi32_shim.c -lpthread
+ *
+ * Keys live as long as the library is loaded. Predefined keys are the usual
+ * HKEY constants, opened keys get small handle numbers. RegNotifyChangeKeyValue
+ * returns at once as if a change has happened.
+ */
+
+#include <pthread.h>
+#include <stdint.h>
+#include <stdlib.h>
+#include <string.h>
+#include <strings.h>
+
+typedef uint32_t DWORD;
+typedef int32_t LONG;
+typedef void *HKEY;
+
+#define ERROR_SUCCESS 0
+#define ERROR_FILE_NOT_FOUND 2
+#define ERROR_ACCESS_DENIED 5
+#define ERROR_INVALID_HANDLE 6
+#define ERROR_INVALID_PARAMETER 87
+#define ERROR_MORE_DATA 234
+#define ERROR_NO_MORE_ITEMS 259
+#define ERROR_KEY_DELETED 1018
+
+#define REG_CREATED_NEW_KEY 1
+#define REG_OPENED_EXISTING_KEY 2
+
+#define ROOT_COUNT 3
+#define FIRST_ROOT 0x80000000u
+#define FIRST_HANDLE 0x1000
+#define MAX_HANDLES 4096
+#define MAX_SEGMENT 256
+
+struct value {
+    char *name;
+    DWORD type;
+    unsigned char *data;
+    DWORD size;
+    struct value *next;
+};
+
+struct key {
+    char *name;
+    struct key *parent;
+    struct key *children;   /* in order of creation */
+    struct key *next;
+    struct value *values;   /* in order of creation */
+    int64_t last_write;
+    int deleted;            /* kept for open handles */
+};
+
+static pthread_mutex_t lock = PTHREAD_MUTEX_INITIALIZER;
+static struct key roots[ROOT_COUNT];
+static struct key *handles[MAX_HANDLES];
+static int64_t clock_ticks = 116444736000000000LL;
+
+static int64_t tick(void) {
+    return ++clock_ticks;
+}
+
+/* Finds the key of a handle, setting err unless the key is usable */
+static struct key *resolve(HKEY hkey, LONG *err) {
+    uint32_t handle = (uint32_t) (uintptr_t) hkey;
+    struct key *key = NULL;
+    if (handle >= FIRST_ROOT && handle < FIRST_ROOT + ROOT_COUNT) {
+        key = &roots[handle - FIRST_ROOT];
+    } else if (handle >= FIRST_HANDLE && handle < FIRST_HANDLE + MAX_HANDLES) {
+        key = handles[handle - FIRST_HANDLE];
+    }
+    *err = (key == NULL ? ERROR_INVALID_HANDLE : (key->deleted ? ERROR_KEY_DELETED : ERROR_SUCCESS));
+    return (*err == ERROR_SUCCESS ? key : NULL);
+}
+
+static LONG open_handle(struct key *key, HKEY *result) {
+    int i;
+    for (i = 0; i < MAX_HANDLES; i++) {
+        if (handles[i] == NULL) {
+            handles[i] = key;
+            /* sign extension of the Java side does not matter for small numbers */
+            *result = (HKEY) (uintptr_t) (FIRST_HANDLE + i);
+            return ERROR_SUCCESS;
+        }
+    }
+    return ERROR_ACCESS_DENIED;
+}
+
+/* Copies the next path segment into buffer, returns the rest of path or NULL at the end */
+static const char *next_segment(const char *path, char *buffer) {
+    size_t length = 0;
+    while (*path == '\\' || *path == '/') {
+        path++;
+    }
+    if (*path == 0) {
+        return NULL;
+    }
+    while (*path != 0 && *path != '\\' && *path != '/') {
+        if (length < MAX_SEGMENT - 1) {
+            buffer[length++] = *path;
+        }
+        path++;
+    }
+    buffer[length] = 0;
+    return path;
+}
+
+static struct key *find_child(struct key *key, const char *name) {
+    struct key *child;
+    for (child = key->children; child != NULL; child = child->next) {
+        if (strcasecmp(child->name, name) == 0) {
+            return child;
+        }
+    }
+    return NULL;
+}
+
+static struct key *find_path(struct key *key, const char *path) {
+    char segment[MAX_SEGMENT];
+    while (key != NULL && path != NULL && (path = next_segment(path, segment)) != NULL) {
+        key = find_child(key, segment);
+    }
+    return key;
+}
+
+static void append_child(struct key *key, struct key *child) {
+    struct key **tail = &key->children;
+    while (*tail != NULL) {
+        tail = &(*tail)->next;
+    }
+    *tail = child;
+}
+
+static struct value *find_value(struct key *key, const char *name) {
+    struct value *value;
+    if (name == NULL) {
+        name = "";
+    }
+    for (value = key->values; value != NULL; value = value->next) {
+        if (strcasecmp(value->name, name) == 0) {
+            return value;
+        }
+    }
+    return NULL;
+}
+
+static LONG copy_name(const char *s, char *name, DWORD *name_size) {
+    DWORD length = (DWORD) strlen(s);
+    if (name == NULL || name_size == NULL || *name_size < length + 1) {
+        return ERROR_MORE_DATA;
+    }
+    memcpy(name, s, length + 1);
+    *name_size = length;
+    return ERROR_SUCCESS;
+}
+
+static LONG copy_value(struct value *value, DWORD *type, unsigned char *data, DWORD *size) {
+    if (type != NULL) {
+        *type = value->type;
+    }
+    if (data != NULL) {
+        if (size == NULL || *size < value->size) {
+            if (size != NULL) {
+                *size = value->size;
+            }
+            return ERROR_MORE_DATA;
+        }
+        memcpy(data, value->data, value->size);
+    }
+    if (size != NULL) {
+        *size = value->size;
+    }
+    return ERROR_SUCCESS;
+}
+
+LONG RegOpenKeyExA(HKEY hkey, const char *path, DWORD options, DWORD access, HKEY *result) {
+    struct key *key;
+    LONG err;
+    (void) options;
+    (void) access;
+    if (result == NULL) {
+        return ERROR_INVALID_PARAMETER;
+    }
+    pthread_mutex_lock(&lock);
+    key = resolve(hkey, &err);
+    if (key == NULL) {
+        /* error set by resolve */
+    } else if ((key = find_path(key, path)) == NULL) {
+        err = ERROR_FILE_NOT_FOUND;
+    } else {
+        err = open_handle(key, result);
+    }
+    pthread_mutex_unlock(&lock);
+    return err;
+}
+
+LONG RegCreateKeyExA(HKEY hkey, const char *path, DWORD reserved, const char *class_name, DWORD options,
+                     DWORD access, void *security_attributes, HKEY *result, DWORD *disposition) {
+    char segment[MAX_SEGMENT];
+    struct key *key, *child;
+    DWORD created = REG_OPENED_EXISTING_KEY;
+    LONG err;
+    (void) reserved;
+    (void) class_name;
+    (void) options;
+    (void) access;
+    (void) security_attributes;
+    if (result == NULL) {
+        return ERROR_INVALID_PARAMETER;
+    }
+    pthread_mutex_lock(&lock);
+    key = resolve(hkey, &err);
+    if (key != NULL) {
+        while (path != NULL && (path = next_segment(path, segment)) != NULL) {
+            child = find_child(key, segment);
+            if (child == NULL) {
+                child = calloc(1, sizeof(struct key));
+                child->name = strdup(segment);
+                child->parent = key;
+                child->last_write = tick();
+                append_child(key, child);
+                key->last_write = child->last_write;
+                created = REG_CREATED_NEW_KEY;
+            }
+            key = child;
+        }
+        err = open_handle(key, result);
+        if (err == ERROR_SUCCESS && disposition != NULL) {
+            *disposition = created;
+        }
+    }
+    pthread_mutex_unlock(&lock);
+    return err;
+}
+
+LONG RegQueryValueExA(HKEY hkey, const char *name, DWORD *reserved, DWORD *type, unsigned char *data,
+                      DWORD *size) {
+    struct key *key;
+    struct value *value;
+    LONG err;
+    (void) reserved;
+    pthread_mutex_lock(&lock);
+    key = resolve(hkey, &err);
+    if (key == NULL) {
+        /* error set by resolve */
+    } else if ((value = find_value(key, name)) == NULL) {
+        err = ERROR_FILE_NOT_FOUND;
+    } else {
+        err = copy_value(value, type, data, size);
+    }
+    pthread_mutex_unlock(&lock);
+    return err;
+}
+
+LONG RegEnumKeyExA(HKEY hkey, DWORD index, char *name, DWORD *name_size, DWORD *reserved,
+                   char *class_name, DWORD *class_name_size, int64_t *last_write_time) {
+    struct key *key, *child;
+    LONG err;
+    (void) reserved;
+    (void) class_name;
+    pthread_mutex_lock(&lock);
+    key = resolve(hkey, &err);
+    if (key != NULL) {
+        for (child = key->children; child != NULL && index > 0; child = child->next) {
+            index--;
+        }
+        if (child == NULL) {
+            err = ERROR_NO_MORE_ITEMS;
+        } else if ((err = copy_name(child->name, name, name_size)) == ERROR_SUCCESS) {
+            if (class_name_size != NULL) {
+                *class_name_size = 0;
+            }
+            if (last_write_time != NULL) {
+                *last_write_time = child->last_write;
+            }
+        }
+    }
+    pthread_mutex_unlock(&lock);
+    return err;
+}
+
+LONG RegEnumValueA(HKEY hkey, DWORD index, char *name, DWORD *name_size, DWORD *reserved,
+                   DWORD *type, unsigned char *data, DWORD *size) {
+    struct key *key;
+    struct value *value;
+    LONG err;
+    (void) reserved;
+    pthread_mutex_lock(&lock);
+    key = resolve(hkey, &err);
+    if (key != NULL) {
+        for (value = key->values; value != NULL && index > 0; value = value->next) {
+            index--;
+        }
+        if (value == NULL) {
+            err = ERROR_NO_MORE_ITEMS;
+        } else if ((err = copy_name(value->name, name, name_size)) == ERROR_SUCCESS) {
+            err = copy_value(value, type, data, size);
+        }
+    }
+    pthread_mutex_unlock(&lock);
+    return err;
+}
+
+LONG RegQueryInfoKeyA(HKEY hkey, char *class_name, DWORD *class_name_size, DWORD *reserved,
+                      DWORD *sub_keys, DWORD *max_sub_key_len, DWORD *max_class_len,
+                      DWORD *values, DWORD *max_value_name_len, DWORD *max_value_len,
+                      DWORD *security_descriptor, int64_t *last_write_time) {
+    struct key *key, *child;
+    struct value *value;
+    DWORD count = 0, max_name = 0, max_data = 0, length;
+    LONG err;
+    (void) reserved;
+    pthread_mutex_lock(&lock);
+    key = resolve(hkey, &err);
+    if (key != NULL) {
+        if (class_name != NULL && class_name_size != NULL && *class_name_size > 0) {
+            class_name[0] = 0;
+        }
+        if (class_name_size != NULL) {
+            *class_name_size = 0;
+        }
+        for (child = key->children; child != NULL; child = child->next) {
+            length = (DWORD) strlen(child->name);
+            max_name = (length > max_name ? length : max_name);
+            count++;
+        }
+        if (sub_keys != NULL) *sub_keys = count;
+        if (max_sub_key_len != NULL) *max_sub_key_len = max_name;
+        if (max_class_len != NULL) *max_class_len = 0;
+
+        count = max_name = 0;
+        for (value = key->values; value != NULL; value = value->next) {
+            length = (DWORD) strlen(value->name);
+            max_name = (length > max_name ? length : max_name);
+            max_data = (value->size > max_data ? value->size : max_data);
+            count++;
+        }
+        if (values != NULL) *values = count;
+        if (max_value_name_len != NULL) *max_value_name_len = max_name;
+        if (max_value_len != NULL) *max_value_len = max_data;
+        if (security_descriptor != NULL) *security_descriptor = 0;
+        if (last_write_time != NULL) *last_write_time = key->last_write;
+    }
+    pthread_mutex_unlock(&lock);
+    return err;
+}
+
+LONG RegSetValueExA(HKEY hkey, const char *name, DWORD reserved, DWORD type, const unsigned char *data,
+                    DWORD size) {
+    struct key *key;
+    struct value *value, **tail;
+    LONG err;
+    (void) reserved;
+    if (data == NULL && size > 0) {
+        return ERROR_INVALID_PARAMETER;
+    }
+    pthread_mutex_lock(&lock);
+    key = resolve(hkey, &err);
+    if (key != NULL) {
+        value = find_value(key, name);
+        if (value == NULL) {
+            value = calloc(1, sizeof(struct value));
+            value->name = strdup(name == NULL ? "" : name);
+            for (tail = &key->values; *tail != NULL; tail = &(*tail)->next) {
+            }
+            *tail = value;
+        }
+        free(value->data);
+        value->type = type;
+        value->size = size;
+        value->data = malloc(size > 0 ? size : 1);
+        if (size > 0) {
+            memcpy(value->data, data, size);
+        }
+        key->last_write = tick();
+    }
+    pthread_mutex_unlock(&lock);
+    return err;
+}
+
+LONG RegDeleteKeyA(HKEY hkey, const char *path) {
+    struct key *key, **link;
+    struct value *value;
+    LONG err;
+    pthread_mutex_lock(&lock);
+    key = resolve(hkey, &err);
+    if (key == NULL) {
+        /* error set by resolve */
+    } else if ((key = find_path(key, path)) == NULL) {
+        err = ERROR_FILE_NOT_FOUND;
+    } else if (key->parent == NULL || key->children != NULL) {
+        err = ERROR_ACCESS_DENIED;
+    } else {
+        for (link = &key->parent->children; *link != key; link = &(*link)->next) {
+        }
+        *link = key->next;
+        key->parent->last_write = tick();
+        key->deleted = 1;
+        while ((value = key->values) != NULL) {
+            key->values = value->next;
+            free(value->name);
+            free(value->data);
+            free(value);
+        }
+    }
+    pthread_mutex_unlock(&lock);
+    return err;
+}
+
+LONG RegDeleteValueA(HKEY hkey, const char *name) {
+    struct key *key;
+    struct value *value, **link;
+    LONG err;
+    pthread_mutex_lock(&lock);
+    key = resolve(hkey, &err);
+    if (key == NULL) {
+        /* error set by resolve */
+    } else if ((value = find_value(key, name)) == NULL) {
+        err = ERROR_FILE_NOT_FOUND;
+    } else {
+        for (link = &key->values; *link != value; link = &(*link)->next) {
+        }
+        *link = value->next;
+        free(value->name);
+        free(value->data);
+        free(value);
+        key->last_write = tick();
+    }
+    pthread_mutex_unlock(&lock);
+    return err;
+}
+
+LONG RegNotifyChangeKeyValue(HKEY hkey, int32_t watch_subtree, DWORD notify_filter, void *event,
+                             int32_t asynchronous) {
+    LONG err;
+    (void) watch_subtree;
+    (void) notify_filter;
+    (void) event;
+    pthread_mutex_lock(&lock);
+    if (resolve(hkey, &err) != NULL && asynchronous) {
+        err = ERROR_INVALID_PARAMETER;
+    }
+    pthread_mutex_unlock(&lock);
+    return err;
+}
+
+LONG RegCloseKey(HKEY hkey) {
+    uint32_t handle = (uint32_t) (uintptr_t) hkey;
+    LONG err = ERROR_SUCCESS;
+    pthread_mutex_lock(&lock);
+    if (handle >= FIRST_HANDLE && handle < FIRST_HANDLE + MAX_HANDLES && handles[handle - FIRST_HANDLE] != NULL) {
+        handles[handle - FIRST_HANDLE] = NULL;
+    } else if (!(handle >= FIRST_ROOT && handle < FIRST_ROOT + ROOT_COUNT)) {
+        err = ERROR_INVALID_HANDLE;
+    }
+    pthread_mutex_unlock(&lock);
+    return err;
+}
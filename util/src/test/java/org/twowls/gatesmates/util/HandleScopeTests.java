@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2016 Twowls.org.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.twowls.gatesmates.util;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * <p>Tests for {@link HandleScope}.</p>
+ *
+ * @author bubo &lt;bubo@twowls.org&gt;
+ */
+public class HandleScopeTests {
+
+    @Test
+    public void handlesAreClosedInReverseOrderWithAggregatedErrors() throws Exception {
+        List<String> closed = new ArrayList<>();
+        HandleScope scope = new HandleScope();
+        long live = HandleScope.liveHandleCount();
+        scope.add(new TestHandle("a", closed, null));
+        scope.add(new TestHandle("b", closed, "first"));
+        TestHandle c = scope.add(new TestHandle("c", closed, null));
+        scope.add(new TestHandle("d", closed, "second"));
+        assertEquals(4, scope.size());
+        assertEquals(live + 4, HandleScope.liveHandleCount());
+
+        assertTrue(scope.release(c));
+        assertFalse(scope.release(c));
+        try {
+            scope.close();
+            fail("Failures not reported");
+        } catch (IOException e) {
+            assertEquals("second", e.getMessage());
+            assertEquals(1, e.getSuppressed().length);
+            assertEquals("first", e.getSuppressed()[0].getMessage());
+        }
+
+        assertEquals(Arrays.asList("d", "b", "a"), closed);
+        assertEquals(live, HandleScope.liveHandleCount());
+        assertTrue(scope.isClosed());
+        scope.close();
+        try {
+            scope.add(new TestHandle("e", closed, null));
+            fail("Handle added to a closed scope");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void abandonedScopeIsCleanedUp() throws Exception {
+        List<String> closed = new ArrayList<>();
+        long leaked = HandleScope.leakedHandleCount();
+        abandon(closed);
+
+        for (int i = 0; i < 100 && HandleScope.leakedHandleCount() == leaked; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        assertEquals(leaked + 2, HandleScope.leakedHandleCount());
+        synchronized (closed) {
+            assertEquals(Arrays.asList("y", "x"), closed);
+        }
+    }
+
+    private static void abandon(List<String> closed) {
+        HandleScope scope = new HandleScope();
+        scope.add(new TestHandle("x", closed, null));
+        scope.add(new TestHandle("y", closed, null));
+    }
+
+    /** Records closing and optionally fails */
+    private static final class TestHandle implements Handle {
+        final String name;
+        final List<String> closed;
+        final String failure;
+
+        TestHandle(String name, List<String> closed, String failure) {
+            this.name = name;
+            this.closed = closed;
+            this.failure = failure;
+        }
+
+        @Override
+        public void close() throws IOException {
+            synchronized (closed) {
+                closed.add(name);
+            }
+            if (failure != null) {
+                throw new IOException(failure);
+            }
+        }
+    }
+}
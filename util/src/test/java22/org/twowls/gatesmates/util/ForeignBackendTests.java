@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2016 Twowls.org.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.twowls.gatesmates.util;
+
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * <p>Tests for {@link ForeignBackend} against a shim library built from
+ * {@code src/test/c/advapi32_shim.c}, skipped unless on Linux with {@code gcc}.</p>
+ *
+ * @author bubo &lt;bubo@twowls.org&gt;
+ */
+public class ForeignBackendTests implements GatesConst {
+
+    private static final int HKEY_CURRENT_USER = 0x80000001;
+    private static final int REG_SZ = 1;
+    private static final int REG_DWORD = 4;
+    private static final int REG_CREATED_NEW_KEY = 0x1;
+    private static final int REG_OPENED_EXISTING_KEY = 0x2;
+
+    @ClassRule
+    public static final TemporaryFolder folder = new TemporaryFolder();
+
+    private static AdvApi32Backend backend;
+
+    @BeforeClass
+    public static void buildShim() throws Exception {
+        assumeTrue(System.getProperty("os.name").startsWith("Linux"));
+        File source = new File("src/test/c/advapi32_shim.c");
+        File library = new File(folder.getRoot(), "libadvapi32shim.so");
+        Process gcc;
+        try {
+            gcc = new ProcessBuilder("gcc", "-shared", "-fPIC", "-O2", "-o", library.getPath(),
+                    source.getPath(), "-lpthread").inheritIO().start();
+        } catch (IOException e) {
+            gcc = null;
+        }
+        assumeTrue(gcc != null && gcc.waitFor(1, TimeUnit.MINUTES) && gcc.exitValue() == 0);
+        backend = ForeignBackend.forLibrary(library.getAbsolutePath());
+    }
+
+    @Test
+    public void isSupported() {
+        assertTrue(ForeignBackend.isSupported());
+    }
+
+    @Test
+    public void keysAndValuesRoundTrip() {
+        long[] handle = new long[1];
+        int[] disposition = new int[1];
+        assertEquals(ERROR_SUCCESS, backend.RegCreateKeyExA(HKEY_CURRENT_USER, "Software\\Tests\\Round", 0,
+                null, 0, 0, null, handle, disposition));
+        assertEquals(REG_CREATED_NEW_KEY, disposition[0]);
+        int key = (int) handle[0];
+
+        byte[] text = "hello\0".getBytes(StandardCharsets.US_ASCII);
+        assertEquals(ERROR_SUCCESS, backend.RegSetValueExA(key, "Greeting", 0, REG_SZ, text, text.length));
+        byte[] number = {42, 0, 0, 0};
+        assertEquals(ERROR_SUCCESS, backend.RegSetValueExA(key, "Answer", 0, REG_DWORD, number, number.length));
+
+        int[] type = new int[1], size = {2};
+        byte[] data = new byte[16];
+        // only what the call reports as filled is copied back
+        Arrays.fill(data, (byte) 'x');
+        assertEquals(ERROR_MORE_DATA, backend.RegQueryValueExA(key, "greeting", null, type, data, size));
+        assertEquals(text.length, size[0]);
+        assertEquals('x', data[0]);
+        size[0] = data.length;
+        assertEquals(ERROR_SUCCESS, backend.RegQueryValueExA(key, "greeting", null, type, data, size));
+        assertEquals(REG_SZ, type[0]);
+        assertEquals("hello", new String(data, 0, size[0] - 1, StandardCharsets.US_ASCII));
+        assertEquals('x', data[size[0]]);
+        assertEquals(ERROR_NOT_FOUND, backend.RegQueryValueExA(key, "Missing", null, type, data, size));
+
+        byte[] name = new byte[32];
+        Arrays.fill(name, (byte) 'x');
+        int[] nameSize = {name.length};
+        size[0] = data.length;
+        assertEquals(ERROR_SUCCESS, backend.RegEnumValueA(key, 1, name, nameSize, null, type, data, size));
+        assertEquals("Answer", new String(name, 0, nameSize[0], StandardCharsets.US_ASCII));
+        assertEquals(0, name[nameSize[0]]);
+        assertEquals('x', name[nameSize[0] + 1]);
+        assertEquals(REG_DWORD, type[0]);
+        assertEquals(42, data[0]);
+        nameSize[0] = name.length;
+        assertEquals(ERROR_NO_MORE_ITEMS, backend.RegEnumValueA(key, 2, name, nameSize, null, type, data, size));
+
+        int[] values = new int[1], maxValueLen = new int[1];
+        long[] lastWriteTime = new long[1];
+        assertEquals(ERROR_SUCCESS, backend.RegQueryInfoKeyA(key, null, null, null, null, null, null,
+                values, null, maxValueLen, null, lastWriteTime));
+        assertEquals(2, values[0]);
+        assertEquals(text.length, maxValueLen[0]);
+        assertTrue(lastWriteTime[0] > 0);
+
+        assertEquals(ERROR_SUCCESS, backend.RegDeleteValueA(key, "Answer"));
+        assertEquals(ERROR_NOT_FOUND, backend.RegDeleteValueA(key, "Answer"));
+        assertEquals(ERROR_SUCCESS, backend.RegCloseKey(key));
+        assertEquals(ERROR_INVALID_HANDLE, backend.RegCloseKey(key));
+    }
+
+    @Test
+    public void subKeysAreOpenedEnumeratedAndDeleted() {
+        long[] created = new long[1];
+        long[] handle = new long[1];
+        int[] disposition = new int[1];
+        assertEquals(ERROR_SUCCESS, backend.RegCreateKeyExA(HKEY_CURRENT_USER, "Software/Tests/Tree/A", 0,
+                null, 0, 0, null, created, disposition));
+        assertEquals(ERROR_SUCCESS, backend.RegCloseKey((int) created[0]));
+        assertEquals(ERROR_SUCCESS, backend.RegCreateKeyExA(HKEY_CURRENT_USER, "Software/Tests/Tree", 0,
+                null, 0, 0, null, created, disposition));
+        assertEquals(REG_OPENED_EXISTING_KEY, disposition[0]);
+        int tree = (int) created[0];
+
+        assertEquals(ERROR_NOT_FOUND, backend.RegOpenKeyExA(tree, "B", 0, 0, handle));
+        assertEquals(ERROR_SUCCESS, backend.RegOpenKeyExA(HKEY_CURRENT_USER, "software\\tests\\tree\\a", 0, 0,
+                handle));
+        int a = (int) handle[0];
+
+        byte[] name = new byte[8];
+        int[] nameSize = {1};
+        long[] lastWriteTime = new long[1];
+        assertEquals(ERROR_MORE_DATA, backend.RegEnumKeyExA(tree, 0, name, nameSize, null, null, null,
+                lastWriteTime));
+        nameSize[0] = name.length;
+        assertEquals(ERROR_SUCCESS, backend.RegEnumKeyExA(tree, 0, name, nameSize, null, null, null,
+                lastWriteTime));
+        assertEquals("A", new String(name, 0, nameSize[0], StandardCharsets.US_ASCII));
+        assertTrue(lastWriteTime[0] > 0);
+        assertEquals(ERROR_NO_MORE_ITEMS, backend.RegEnumKeyExA(tree, 1, name, nameSize, null, null, null, null));
+
+        assertEquals(ERROR_SUCCESS, backend.RegNotifyChangeKeyValue(tree, true, 0x5, 0, false));
+        assertEquals(ERROR_ACCESS_DENIED, backend.RegDeleteKeyA(HKEY_CURRENT_USER, "Software/Tests/Tree"));
+        assertEquals(ERROR_SUCCESS, backend.RegDeleteKeyA(tree, "A"));
+        assertEquals(ERROR_KEY_DELETED, backend.RegQueryValueExA(a, null, null, null, null, null));
+        assertEquals(ERROR_SUCCESS, backend.RegCloseKey(a));
+
+        int[] subKeys = new int[1];
+        assertEquals(ERROR_SUCCESS, backend.RegQueryInfoKeyA(tree, null, null, null, subKeys, null, null,
+                null, null, null, null, null));
+        assertEquals(0, subKeys[0]);
+        assertEquals(ERROR_SUCCESS, backend.RegCloseKey(tree));
+    }
+}